@@ -0,0 +1,42 @@
+package de.appsist.service.lbd.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the hot paths of a pipeline run with the GC profiler, which reports the
+ * allocation rate and the bytes allocated per operation (<code>gc.alloc.rate.norm</code>) next to
+ * the duration. The results are written as JSON, so the results of a change can be compared with
+ * those of a baseline run.
+ */
+public class HotPathBenchmarks
+{
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args Optional file for the results, "hotpaths.json" by default, and a regular
+     *            expression selecting the benchmarks.
+     * @throws RunnerException If a benchmark run fails.
+     */
+    public static void main(String[] args) throws RunnerException
+    {
+        String resultFile = args.length > 0 ? args[0] : "hotpaths.json";
+        OptionsBuilder options = new OptionsBuilder();
+        if (args.length > 1) {
+            options.include(args[1]);
+        }
+        else {
+            options.include(QueryConstructionBenchmark.class.getName());
+            options.include(ResultDecodingBenchmark.class.getName());
+            options.include(UserProfileDecodingBenchmark.class.getName());
+            options.include(ServiceItemBenchmark.class.getName());
+        }
+        Options built = options.addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON)
+                .result(resultFile).build();
+        new Runner(built).run();
+    }
+}
@@ -0,0 +1,101 @@
+package de.appsist.service.lbd.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.appsist.service.lbd.queries.LBDSparQLQueries;
+import de.appsist.service.lbd.queries.ValuesBlock;
+
+/**
+ * Construction of the SparQL queries sent for a session: rendering the VALUES blocks of the rule
+ * queries, the canonical form used as key of the result caches, and the wrapping of result URIs
+ * with {@link LBDSparQLQueries#sparqlPrefix(String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryConstructionBenchmark
+{
+    private static final String ONTOLOGY = "http://www.appsist.de/ontology/";
+
+    // number of stations, states and contents bound to the queries
+    @Param({ "10", "100", "1000", "10000" })
+    public int cardinality;
+
+    private List<String> stations;
+    private List<String[]> stateStation;
+    private List<String> contents;
+    private String contentsQuery;
+
+    @Setup
+    public void setUp()
+    {
+        stations = new ArrayList<String>(cardinality);
+        stateStation = new ArrayList<String[]>(cardinality);
+        contents = new ArrayList<String>(cardinality);
+        for (int i = 0; i < cardinality; i++) {
+            String station = ONTOLOGY + "Station" + i;
+            stations.add(station);
+            stateStation.add(new String[] { ONTOLOGY + "FunkionsfaehigerZustand", station });
+            contents.add(ONTOLOGY + "Inhalt" + i);
+        }
+        contentsQuery = contentsForStatesMachinesStations();
+    }
+
+    /**
+     * Query of rule 3.1.1.1 for the functional state of every station.
+     */
+    @Benchmark
+    public String localStates()
+    {
+        return LBDSparQLQueries.bindLocalStates(stateStation).render();
+    }
+
+    /**
+     * Query of the contents informing about the states, machines and stations.
+     */
+    @Benchmark
+    public String contentsForStatesMachinesStations()
+    {
+        return LBDSparQLQueries.bindContentsForStatesMachinesStations(stations,
+                ONTOLOGY + "Anlagenbediener").render();
+    }
+
+    /**
+     * Consolidated query of rules 3.1.2.2 to 3.1.2.5.
+     */
+    @Benchmark
+    public String sideActivityContents()
+    {
+        return LBDSparQLQueries.bindSideActivityContents(stations, ONTOLOGY + "Anlagenbediener",
+                ONTOLOGY + "Anlagenbediener", contents, "de").render();
+    }
+
+    /**
+     * Canonical form of the contents query, computed by the dispatcher for every query.
+     */
+    @Benchmark
+    public String normalize()
+    {
+        return ValuesBlock.normalize(contentsQuery);
+    }
+
+    /**
+     * Wrapping of the state and station of every row of the result of rule 3.1.1.1.
+     */
+    @Benchmark
+    public void sparqlPrefix(Blackhole blackhole)
+    {
+        for (String[] row : stateStation) {
+            blackhole.consume(LBDSparQLQueries.sparqlPrefix(row[0]));
+            blackhole.consume(LBDSparQLQueries.sparqlPrefix(row[1]));
+        }
+    }
+}
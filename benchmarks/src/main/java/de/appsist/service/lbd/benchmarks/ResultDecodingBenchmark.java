@@ -0,0 +1,113 @@
+package de.appsist.service.lbd.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import de.appsist.service.lbd.queries.LBDSparQLQueries;
+import de.appsist.service.lbd.queries.SparQLResultDecoder;
+import de.appsist.service.measuresservice.model.LocalState;
+
+/**
+ * Decoding of the result bindings of the SparQL queries, as done by the handlers of the rules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultDecodingBenchmark
+{
+    private static final String ONTOLOGY = "http://www.appsist.de/ontology/";
+
+    private static final SparQLResultDecoder CONTENTS_DECODER = new SparQLResultDecoder(
+            "inhalt", "vorschau", "i");
+    private static final SparQLResultDecoder STATION_DECODER = new SparQLResultDecoder("i");
+    private static final SparQLResultDecoder LOCAL_STATE_DECODER = new SparQLResultDecoder(
+            "z", "station", "p");
+
+    // number of rows of the results
+    @Param({ "10", "100", "1000", "10000" })
+    public int cardinality;
+
+    private String contentsResult;
+    private String localStatesResult;
+
+    @Setup
+    public void setUp()
+    {
+        StringBuilder contents = new StringBuilder(
+                "{\"head\":{\"vars\":[\"inhalt\",\"vorschau\",\"i\"]},\"results\":{\"bindings\":[");
+        StringBuilder localStates = new StringBuilder(
+                "{\"head\":{\"vars\":[\"z\",\"station\",\"p\"]},\"results\":{\"bindings\":[");
+        for (int i = 0; i < cardinality; i++) {
+            if (i > 0) {
+                contents.append(',');
+                localStates.append(',');
+            }
+            contents.append("{\"inhalt\":{\"type\":\"uri\",\"value\":\"").append(ONTOLOGY)
+                    .append("Inhalt").append(i)
+                    .append("\"},\"vorschau\":{\"type\":\"literal\",\"value\":\"").append(i)
+                    .append(".png\"},\"i\":{\"type\":\"uri\",\"value\":\"").append(ONTOLOGY)
+                    .append("Station").append(i).append("\"}}");
+            localStates.append("{\"z\":{\"type\":\"uri\",\"value\":\"").append(ONTOLOGY)
+                    .append("Zustand").append(i)
+                    .append("\"},\"station\":{\"type\":\"uri\",\"value\":\"").append(ONTOLOGY)
+                    .append("Station").append(i)
+                    .append("\"},\"p\":{\"type\":\"literal\",\"value\":\"").append(i % 2)
+                    .append("\"}}");
+        }
+        contents.append("]}}");
+        localStates.append("]}}");
+        contentsResult = contents.toString();
+        localStatesResult = localStates.toString();
+    }
+
+    /**
+     * Contents and their previews mapped by content id, as decoded by the content rules.
+     */
+    @Benchmark
+    public Map<String, String> contentMap() throws IOException
+    {
+        Map<String, String> contents = new HashMap<String, String>();
+        CONTENTS_DECODER.decode(contentsResult, SparQLResultDecoder.map(contents, 0, 1,
+                "default.png"));
+        return contents;
+    }
+
+    /**
+     * Values of a single variable, as collected for the stations and machines.
+     */
+    @Benchmark
+    public Set<String> bindingValues() throws IOException
+    {
+        Set<String> values = new HashSet<String>();
+        STATION_DECODER.decode(contentsResult, SparQLResultDecoder.values(values, 0));
+        return values;
+    }
+
+    /**
+     * Local states of rule 3.1.1.1, with the URIs wrapped for the measures service.
+     */
+    @Benchmark
+    public Set<LocalState> localStates() throws IOException
+    {
+        final Set<LocalState> states = new HashSet<LocalState>();
+        LOCAL_STATE_DECODER.decode(localStatesResult, new SparQLResultDecoder.RowSink()
+        {
+            @Override
+            public void row(String[] values)
+            {
+                states.add(new LocalState(LBDSparQLQueries.sparqlPrefix(values[0]),
+                        LBDSparQLQueries.sparqlPrefix(values[1]), values[2]));
+            }
+        });
+        return states;
+    }
+}
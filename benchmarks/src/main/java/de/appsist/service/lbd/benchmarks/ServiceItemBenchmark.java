@@ -0,0 +1,68 @@
+package de.appsist.service.lbd.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import de.appsist.service.iid.server.model.ServiceItem;
+import de.appsist.service.lbd.cache.LabelCache;
+import de.appsist.service.lbd.items.ServiceItemFactory;
+
+/**
+ * Construction of the service items of the learning materials found for a session, the last step
+ * before they are published. Half of the contents are learning objects of the ontology, the other
+ * half external contents, and all of them are labelled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceItemBenchmark
+{
+    private static final String EXTERNAL_CONTENT_DIRECTORY = "/services/cds/static/externalContent/";
+
+    // number of contents found
+    @Param({ "10", "100", "1000", "10000" })
+    public int cardinality;
+
+    // whether the actions of the items are logged, as in the verticle
+    @Param({ "true", "false" })
+    public boolean debug;
+
+    private ServiceItemFactory factory;
+    private Map<String, String> contentIds;
+
+    @Setup
+    public void setUp()
+    {
+        LabelCache labels = new LabelCache(cardinality * 2, TimeUnit.HOURS.toMillis(1),
+                TimeUnit.HOURS.toMillis(1), 16);
+        contentIds = new LinkedHashMap<String, String>();
+        for (int i = 0; i < cardinality; i++) {
+            String contentId;
+            String labelKey;
+            if (i % 2 == 0) {
+                contentId = "http://www.appsist.de/ontology/Inhalt" + i;
+                labelKey = contentId;
+            }
+            else {
+                contentId = "file:///static/Inhalt" + i + "/index.html";
+                labelKey = EXTERNAL_CONTENT_DIRECTORY + "Inhalt" + i + "/index.html";
+            }
+            contentIds.put(contentId, i + ".png");
+            labels.put(labelKey, "Inhalt " + i);
+        }
+        factory = new ServiceItemFactory(EXTERNAL_CONTENT_DIRECTORY, labels, debug);
+    }
+
+    @Benchmark
+    public List<ServiceItem> buildLearningMaterialList()
+    {
+        return factory.buildLearningMaterialList("session", contentIds);
+    }
+}
@@ -0,0 +1,106 @@
+package de.appsist.service.lbd.benchmarks;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import de.appsist.service.lbd.cache.LabelCache;
+import de.appsist.service.lbd.cache.SparQLResultCache;
+import de.appsist.service.lbd.cache.UserProfile;
+import de.appsist.service.lbd.cache.UserProfileCache;
+import de.appsist.service.lbd.queries.QueryTemplate;
+import de.appsist.service.lbd.queries.SparQLResultDecoder;
+
+/**
+ * Throughput of the work done for a session whose ontology results are cached, with the caches
+ * shared by all benchmark threads, i.e., the contention of the shared caches. Run it with a
+ * growing number of threads, e.g., -t 4, to see the cost of the locking. The scaling of the whole
+ * service over the number of verticle instances is measured by
+ * {@link de.appsist.service.lbd.benchmarks.load.InstanceScaling}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedStateBenchmark
+{
+    private static final QueryTemplate CONTENTS = QueryTemplate.compile("PREFIX app: "
+            + "<http://www.appsist.de/ontology/> SELECT DISTINCT ?inhalt ?vorschau ?i WHERE { "
+            + "VALUES ?i ${iris:ids} ?inhalt app:informiertUeber ?i . "
+            + "OPTIONAL { ?inhalt app:hasPreview ?vorschau } }");
+    private static final SparQLResultDecoder DECODER = new SparQLResultDecoder("inhalt",
+            "vorschau", "i");
+
+    // number of distinct sessions, each with its own query
+    @Param({ "1000" })
+    public int sessionCount;
+
+    // contents per session
+    @Param({ "20" })
+    public int contentCount;
+
+    private SparQLResultCache results;
+    private LabelCache labels;
+    private UserProfileCache profiles;
+    private List<Set<String>> sessionIds;
+
+    @Setup
+    public void setUp()
+    {
+        results = new SparQLResultCache(sessionCount * 2, TimeUnit.HOURS.toMillis(1), 16);
+        labels = new LabelCache(sessionCount * contentCount * 2, TimeUnit.HOURS.toMillis(1),
+                TimeUnit.HOURS.toMillis(1), 16);
+        profiles = new UserProfileCache(sessionCount * 2, TimeUnit.HOURS.toMillis(1), 16);
+        sessionIds = new ArrayList<Set<String>>(sessionCount);
+        for (int session = 0; session < sessionCount; session++) {
+            Set<String> ids = new HashSet<String>();
+            StringBuilder result = new StringBuilder(
+                    "{\"head\":{\"vars\":[\"inhalt\",\"vorschau\",\"i\"]},\"results\":{\"bindings\":[");
+            for (int content = 0; content < contentCount; content++) {
+                String id = "http://www.appsist.de/ontology/Station" + session + "_" + content;
+                String contentId = "http://www.appsist.de/ontology/Inhalt" + session + "_"
+                        + content;
+                ids.add(id);
+                labels.put(contentId, "Inhalt " + session + "/" + content);
+                if (content > 0) {
+                    result.append(',');
+                }
+                result.append("{\"inhalt\":{\"type\":\"uri\",\"value\":\"").append(contentId)
+                        .append("\"},\"vorschau\":{\"type\":\"literal\",\"value\":\"")
+                        .append(content).append(".png\"},\"i\":{\"type\":\"uri\",\"value\":\"")
+                        .append(id).append("\"}}");
+            }
+            result.append("]}}");
+            sessionIds.add(ids);
+            results.put(CONTENTS.bind().iris("ids", ids).render(), result.toString(),
+                    results.getEpoch());
+            profiles.put("user" + session, new UserProfile(Collections.<String> emptySet(),
+                    Collections.<String> emptySet(), null, "Anlagenbediener"));
+        }
+    }
+
+    /**
+     * Profile lookup, query rendering, cache hit, decoding and label lookups of one session.
+     */
+    @Benchmark
+    public int cachedMainActivity() throws IOException
+    {
+        int session = ThreadLocalRandom.current().nextInt(sessionCount);
+        profiles.get("user" + session);
+        String result = results.get(CONTENTS.bind().iris("ids", sessionIds.get(session)).render());
+        Map<String, String> contents = new HashMap<String, String>();
+        DECODER.decode(result, SparQLResultDecoder.map(contents, 0, 1, "default.png"));
+        int labelled = 0;
+        for (String contentId : contents.keySet()) {
+            if (null != labels.getLabel(contentId)) {
+                labelled++;
+            }
+        }
+        return labelled;
+    }
+}
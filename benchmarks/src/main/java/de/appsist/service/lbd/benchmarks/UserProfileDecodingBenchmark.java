@@ -0,0 +1,78 @@
+package de.appsist.service.lbd.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.cache.UserProfile;
+
+/**
+ * Decoding of the user information received from the user model, as done by
+ * <code>processUserInformation</code> of the verticle. The workplace groups, development goals and
+ * the contents and items of the development goals object are encoded JSON strings within the
+ * message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserProfileDecodingBenchmark
+{
+    private static final String ONTOLOGY = "http://www.appsist.de/ontology/";
+
+    // number of workplace groups, development goals, contents and items of the user
+    @Param({ "10", "100", "1000", "10000" })
+    public int cardinality;
+
+    private JsonObject messageBody;
+
+    @Setup
+    public void setUp()
+    {
+        JsonArray workplaceGroups = new JsonArray();
+        JsonArray developmentGoals = new JsonArray();
+        JsonArray contents = new JsonArray();
+        JsonArray items = new JsonArray();
+        for (int i = 0; i < cardinality; i++) {
+            workplaceGroups.addString(ONTOLOGY + "Arbeitsplatzgruppe" + i);
+            developmentGoals.addString(ONTOLOGY + "Entwicklungsziel" + i);
+            contents.addString("file:///static/Inhalt" + i + "/index.html");
+            items.addString(ONTOLOGY + "Station" + i);
+        }
+        JsonObject developmentGoalsObject = new JsonObject()
+                .putString("position", ONTOLOGY + "Anlagenbediener")
+                .putArray("contents", contents).putArray("items", items);
+        JsonObject userInformation = new JsonObject()
+                .putString("workplaceGroups", workplaceGroups.encode())
+                .putString("developmentGoals", developmentGoals.encode())
+                .putString("developmentGoalsObject", developmentGoalsObject.encode())
+                .putString("employeeType", ONTOLOGY + "Anlagenbediener");
+        messageBody = new JsonObject().putObject("userInformation", userInformation);
+    }
+
+    /**
+     * Decoding of the profile.
+     */
+    @Benchmark
+    public UserProfile decode() throws IOException
+    {
+        return UserProfile.decode(messageBody.getObject("userInformation"));
+    }
+
+    /**
+     * Decoding of the profile preceded by the encoding of the message for the debug log, which
+     * <code>processUserInformation</code> builds regardless of the log level.
+     */
+    @Benchmark
+    public UserProfile decodeWithDebugMessage(Blackhole blackhole) throws IOException
+    {
+        blackhole.consume("[Lernbedarf-Dienst] - processUserInformation" + messageBody);
+        return UserProfile.decode(messageBody.getObject("userInformation"));
+    }
+}
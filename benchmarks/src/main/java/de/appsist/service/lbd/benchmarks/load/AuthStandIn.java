@@ -0,0 +1,36 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.connector.AuthServiceConnector;
+
+/**
+ * Stand-in for the authentication service, answering the requests of the
+ * {@link AuthServiceConnector} for sessions. Every session exists and belongs to the user given
+ * by {@link LoadSimulator#userIdOf(String)}, other actions fail.
+ */
+public class AuthStandIn extends StandIn
+{
+    @Override
+    protected String getAddress()
+    {
+        return AuthServiceConnector.SERVICE_ID;
+    }
+
+    @Override
+    protected void respond(Message<JsonObject> message)
+    {
+        JsonObject request = message.body();
+        if (!"getSession".equals(request.getString("action"))
+                || null == request.getString("sessionId")) {
+            reply(message, new JsonObject().putString("status", "error").putString("message",
+                    "Not supported by the stand-in: " + request.getString("action")));
+            return;
+        }
+        String sessionId = request.getString("sessionId");
+        JsonObject session = new JsonObject().putString("id", sessionId).putString("userId",
+                LoadSimulator.userIdOf(sessionId));
+        reply(message, new JsonObject().putString("status", "ok").putObject("session", session));
+    }
+}
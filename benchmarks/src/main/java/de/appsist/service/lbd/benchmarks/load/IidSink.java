@@ -0,0 +1,51 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.iid.server.connector.IIDConnector;
+
+/**
+ * Stand-in for the IID capturing the service items sent by the {@link IIDConnector}. Every list
+ * of service items added is published to {@link LoadSimulator#PUBLISHED} with the session id and
+ * the number of items, so the driver can measure the time until the items of a session arrive.
+ */
+public class IidSink extends StandIn
+{
+    private long added;
+    private long purged;
+    private long items;
+
+    @Override
+    protected String getAddress()
+    {
+        return IIDConnector.DEFAULT_ADDRESS;
+    }
+
+    @Override
+    protected void respond(Message<JsonObject> message)
+    {
+        JsonObject request = message.body();
+        String action = request.getString("action", "");
+        if ("addServiceItems".equals(action)) {
+            JsonArray serviceItems = request.getArray("items", new JsonArray());
+            added++;
+            items += serviceItems.size();
+            vertx.eventBus().publish(LoadSimulator.PUBLISHED, new JsonObject()
+                    .putString("sessionId", request.getString("sessionId"))
+                    .putNumber("items", serviceItems.size()));
+        }
+        else if ("purgeServiceItems".equals(action)) {
+            purged++;
+        }
+        reply(message, new JsonObject().putString("status", "ok"));
+    }
+
+    @Override
+    protected JsonObject getStatistics()
+    {
+        return new JsonObject().putNumber("added", added).putNumber("purged", purged)
+                .putNumber("items", items);
+    }
+}
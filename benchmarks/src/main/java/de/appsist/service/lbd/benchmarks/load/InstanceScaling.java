@@ -0,0 +1,74 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.io.File;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Scaling of the lbd service over the number of verticle instances. The load test is run with 1,
+ * 2, 4, ... and N instances of the service, N being the number of processors, each run on a new
+ * Vert.x instance. The events of all sessions arrive at the first instance, which routes them to
+ * the instance handling the session, so the runs include the routing and the state shared by the
+ * instances. The stand-ins answer without latency and the sessions are started faster than the
+ * service can handle them, so the throughput is bound by the service. The throughput of every run
+ * and the scaling relative to a single instance are printed.
+ */
+public class InstanceScaling
+{
+    /**
+     * Runs the load test for each number of instances and prints the scaling.
+     *
+     * @param args Optional maximum number of instances and the path of a JSON file with the
+     *            configuration of the load test, see {@link LoadDriver}.
+     * @throws Exception If the configuration or a report cannot be read or a run is interrupted.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int maxInstances = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime()
+                .availableProcessors();
+        JsonObject baseConfig = args.length > 1 ? LoadSimulator.readConfig(args[1])
+                : defaultConfiguration();
+        // 1, 2, 4, ... and the maximum
+        SortedSet<Integer> instanceCounts = new TreeSet<Integer>();
+        for (int instances = 1; instances < maxInstances; instances *= 2) {
+            instanceCounts.add(instances);
+        }
+        instanceCounts.add(maxInstances);
+
+        File reportFile = File.createTempFile("lbd-scaling", ".json");
+        reportFile.deleteOnExit();
+        double single = 0;
+        StringBuilder summary = new StringBuilder("instances\tsessions/s\titems/s\tscaling\n");
+        for (int instances : instanceCounts) {
+            JsonObject config = baseConfig.copy();
+            config.putString("report", reportFile.getPath());
+            JsonObject serviceConfig = config.getObject("lbd", new JsonObject());
+            serviceConfig.putNumber("instances", instances);
+            config.putObject("lbd", serviceConfig);
+            LoadSimulator.run(LoadDriver.class.getName(), config);
+
+            JsonObject report = LoadSimulator.readConfig(reportFile.getPath());
+            double sessionsPerSecond = report.getNumber("sessionsPerSecond").doubleValue();
+            if (instances == 1) {
+                single = sessionsPerSecond;
+            }
+            summary.append(instances).append('\t')
+                    .append(String.format("%.1f", sessionsPerSecond)).append('\t')
+                    .append(String.format("%.1f", report.getNumber("publishedPerSecond")
+                            .doubleValue())).append('\t')
+                    .append(String.format("%.2f", sessionsPerSecond / single)).append('\n');
+        }
+        System.out.println(summary);
+    }
+
+    private static JsonObject defaultConfiguration()
+    {
+        JsonObject config = new JsonObject();
+        config.putNumber("sessions", 2000);
+        config.putNumber("rate", 1000);
+        config.putNumber("switches", 2);
+        return config;
+    }
+}
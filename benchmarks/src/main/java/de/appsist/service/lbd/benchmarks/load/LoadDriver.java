@@ -0,0 +1,351 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Verticle;
+
+import de.appsist.service.lbd.LBDMainVerticle;
+import de.appsist.service.lbd.addresses.Addresses;
+import de.appsist.service.lbd.metrics.LatencyHistogram;
+
+/**
+ * Deploys the stand-ins and the lbd service and drives synthetic sessions through the service.
+ * Every session goes online, starts a learning session and switches "switches" times between side
+ * and main activity before it goes offline. Each step waits for the service items of the session
+ * to arrive at the IID stand-in, at most "timeout" ms, and "thinkTime" ms more. The sessions are
+ * started at "rate" sessions per second until "sessions" sessions have been started, beginning
+ * "startDelay" ms after the deployment, when the topology and labels have been loaded.
+ * The report contains the throughput and the percentiles of the time from each step until the
+ * service items arrived, it is printed and written to the file "report" if configured.
+ *
+ * The configurations of the stand-ins are "semwiki", "usermodel", "auth" and "iid", the
+ * configuration of the service is "lbd". The number of instances of the service is read from
+ * "instances" of the latter. Note that the times of the activity switches include the debounce
+ * time of the service.
+ */
+public class LoadDriver extends Verticle
+{
+    private static final String PHASE_START = "startLearningSession";
+    private static final String PHASE_SIDE = "switchToSide";
+    private static final String PHASE_MAIN = "switchToMain";
+
+    // stand-ins deployed with their configuration
+    private static final String[][] STAND_INS = { { SemwikiStandIn.class.getName(), "semwiki" },
+            { UserModelStandIn.class.getName(), "usermodel" },
+            { AuthStandIn.class.getName(), "auth" }, { IidSink.class.getName(), "iid" } };
+
+    // a session driven through the service
+    private class SyntheticSession
+    {
+        private final String sessionId;
+        private int step;
+        private String phase;
+        private long sendTime;
+        private long timeoutTimer = -1;
+
+        private SyntheticSession(String sessionId)
+        {
+            this.sessionId = sessionId;
+        }
+    }
+
+    private JsonObject config;
+    private EventBus eb;
+
+    private int sessionCount;
+    private double rate;
+    private int switches;
+    private long thinkTime;
+    private long timeout;
+
+    private final Map<String, SyntheticSession> running = new HashMap<String, SyntheticSession>();
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+    private final Map<String, Long> timeouts = new HashMap<String, Long>();
+    private int started;
+    private int finished;
+    private long published;
+    private long startTime;
+
+    @Override
+    public void start()
+    {
+        config = container.config();
+        eb = vertx.eventBus();
+        sessionCount = config.getInteger("sessions", 1000);
+        rate = config.getNumber("rate", 100).doubleValue();
+        switches = config.getInteger("switches", 2);
+        thinkTime = config.getLong("thinkTime", 0);
+        timeout = config.getLong("timeout", 30000);
+        for (String phase : new String[] { PHASE_START, PHASE_SIDE, PHASE_MAIN }) {
+            latencies.put(phase, new LatencyHistogram());
+            timeouts.put(phase, 0L);
+        }
+        eb.registerHandler(LoadSimulator.PUBLISHED, new Handler<Message<JsonObject>>()
+        {
+            @Override
+            public void handle(Message<JsonObject> message)
+            {
+                published(message.body().getString("sessionId"));
+            }
+        });
+        deployStandIn(0);
+    }
+
+    // deploys the stand-ins one after the other, followed by the service
+    private void deployStandIn(final int index)
+    {
+        if (index == STAND_INS.length) {
+            deployService();
+            return;
+        }
+        container.deployVerticle(STAND_INS[index][0], config.getObject(STAND_INS[index][1],
+                new JsonObject()), 1, new Handler<AsyncResult<String>>()
+        {
+            @Override
+            public void handle(AsyncResult<String> result)
+            {
+                if (failed(result)) {
+                    return;
+                }
+                deployStandIn(index + 1);
+            }
+        });
+    }
+
+    private void deployService()
+    {
+        JsonObject serviceConfig = config.getObject("lbd", new JsonObject());
+        if (null == serviceConfig.getObject("webserver")) {
+            serviceConfig.putObject("webserver", new JsonObject().putNumber("port", 7088)
+                    .putString("basePath", "/services/lbd").putString("statics", "www"));
+        }
+        container.deployVerticle(LBDMainVerticle.class.getName(), serviceConfig, Math.max(1,
+                serviceConfig.getInteger("instances", 1)), new Handler<AsyncResult<String>>()
+        {
+            @Override
+            public void handle(AsyncResult<String> result)
+            {
+                if (failed(result)) {
+                    return;
+                }
+                vertx.setTimer(Math.max(1, config.getLong("startDelay", 3000)),
+                        new Handler<Long>()
+                        {
+                            @Override
+                            public void handle(Long timerId)
+                            {
+                                drive();
+                            }
+                        });
+            }
+        });
+    }
+
+    private boolean failed(AsyncResult<String> result)
+    {
+        if (result.failed()) {
+            container.logger().error("Deployment of the load test failed", result.cause());
+            container.exit();
+        }
+        return result.failed();
+    }
+
+    // starts the sessions at the configured rate
+    private void drive()
+    {
+        container.logger().info("Starting " + sessionCount + " sessions at " + rate + "/s");
+        startTime = System.nanoTime();
+        vertx.setPeriodic(10, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long timerId)
+            {
+                double elapsed = (System.nanoTime() - startTime) / 1e9;
+                int due = (int) Math.min(sessionCount, Math.ceil(elapsed * rate));
+                while (started < due) {
+                    SyntheticSession session = new SyntheticSession("load-" + started++);
+                    running.put(session.sessionId, session);
+                    step(session);
+                }
+                if (started == sessionCount) {
+                    vertx.cancelTimer(timerId);
+                }
+            }
+        });
+    }
+
+    // sends the event of the next step of a session
+    private void step(final SyntheticSession session)
+    {
+        String sessionId = session.sessionId;
+        if (session.step == 0) {
+            JsonObject payload = new JsonObject().putString("userId",
+                    LoadSimulator.userIdOf(sessionId)).putString("deviceId", "load");
+            eb.publish(Addresses.USER_ONLINE, new JsonObject()
+                    .putString("id", UUID.randomUUID().toString())
+                    .putString("modelId", "userOnline").putString("session", sessionId)
+                    .putObject("payload", payload));
+            expect(session, PHASE_START);
+            eb.send(Addresses.START_LEARNING_SESSION, new JsonObject().putString("sid", sessionId)
+                    .putString("token", "token"));
+        }
+        else if (session.step <= switches) {
+            boolean side = session.step % 2 == 1;
+            expect(session, side ? PHASE_SIDE : PHASE_MAIN);
+            eb.publish(Addresses.USER_ACTIVITY_SWITCH, new JsonObject()
+                    .putString("sessionId", sessionId)
+                    .putString("activity", side ? "side" : "main"));
+        }
+        else {
+            JsonObject payload = new JsonObject().putString("userId",
+                    LoadSimulator.userIdOf(sessionId)).putString("deviceId", "load");
+            eb.publish(Addresses.USER_OFFLINE, new JsonObject()
+                    .putString("id", UUID.randomUUID().toString())
+                    .putString("modelId", "userOffline").putString("session", sessionId)
+                    .putObject("payload", payload));
+            running.remove(sessionId);
+            if (++finished == sessionCount) {
+                finish();
+            }
+            return;
+        }
+        session.step++;
+    }
+
+    // waits for the service items of a session
+    private void expect(final SyntheticSession session, final String phase)
+    {
+        session.phase = phase;
+        session.sendTime = System.nanoTime();
+        session.timeoutTimer = vertx.setTimer(timeout, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long timerId)
+            {
+                session.timeoutTimer = -1;
+                session.phase = null;
+                timeouts.put(phase, timeouts.get(phase) + 1);
+                next(session);
+            }
+        });
+    }
+
+    private void published(String sessionId)
+    {
+        published++;
+        SyntheticSession session = running.get(sessionId);
+        if (null == session || null == session.phase) {
+            // items of an earlier step arriving after its timeout
+            return;
+        }
+        latencies.get(session.phase).record(System.nanoTime() - session.sendTime);
+        session.phase = null;
+        vertx.cancelTimer(session.timeoutTimer);
+        session.timeoutTimer = -1;
+        next(session);
+    }
+
+    private void next(final SyntheticSession session)
+    {
+        if (thinkTime <= 0) {
+            step(session);
+            return;
+        }
+        vertx.setTimer(thinkTime, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long timerId)
+            {
+                step(session);
+            }
+        });
+    }
+
+    // collects the statistics of the stand-ins and reports the results
+    private void finish()
+    {
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        final JsonObject standIns = new JsonObject();
+        final List<String> names = new ArrayList<String>();
+        for (String[] standIn : STAND_INS) {
+            names.add(standIn[0].substring(standIn[0].lastIndexOf('.') + 1));
+        }
+        for (final String name : names) {
+            eb.send(LoadSimulator.STATISTICS + name, new JsonObject(),
+                    new Handler<Message<JsonObject>>()
+                    {
+                        @Override
+                        public void handle(Message<JsonObject> reply)
+                        {
+                            standIns.putObject(name, reply.body());
+                            if (standIns.size() == names.size()) {
+                                report(seconds, standIns);
+                            }
+                        }
+                    });
+        }
+    }
+
+    private void report(double seconds, JsonObject standIns)
+    {
+        JsonObject report = new JsonObject();
+        report.putNumber("sessions", sessionCount);
+        report.putNumber("seconds", seconds);
+        report.putNumber("published", published);
+        report.putNumber("publishedPerSecond", published / seconds);
+        report.putNumber("sessionsPerSecond", sessionCount / seconds);
+        JsonObject phases = new JsonObject();
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%d sessions in %.1f s, %.1f sessions/s, %d item lists "
+                + "published, %.1f/s%n", sessionCount, seconds, sessionCount / seconds,
+                published, published / seconds));
+        text.append(String.format("%-22s %8s %8s %10s %10s %10s %10s%n", "step", "count",
+                "timeouts", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, LatencyHistogram> phase : latencies.entrySet()) {
+            LatencyHistogram histogram = phase.getValue();
+            JsonObject summary = new JsonObject()
+                    .putNumber("count", histogram.getCount())
+                    .putNumber("timeouts", timeouts.get(phase.getKey()))
+                    .putNumber("p50", histogram.getQuantile(0.5) / 1000.0)
+                    .putNumber("p90", histogram.getQuantile(0.9) / 1000.0)
+                    .putNumber("p99", histogram.getQuantile(0.99) / 1000.0)
+                    .putNumber("max", histogram.getQuantile(1) / 1000.0);
+            phases.putObject(phase.getKey(), summary);
+            text.append(String.format("%-22s %8d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                    phase.getKey(), histogram.getCount(), timeouts.get(phase.getKey()),
+                    summary.getNumber("p50").doubleValue(), summary.getNumber("p90")
+                            .doubleValue(), summary.getNumber("p99").doubleValue(), summary
+                            .getNumber("max").doubleValue()));
+        }
+        report.putObject("steps", phases);
+        report.putObject("standIns", standIns);
+        text.append("stand-ins: ").append(standIns.encode());
+        System.out.println(text);
+
+        String reportFile = config.getString("report");
+        if (null != reportFile) {
+            try {
+                Files.write(Paths.get(reportFile), report.encodePrettily().getBytes(
+                        StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                container.logger().error("Report could not be written to " + reportFile, e);
+            }
+        }
+        container.exit();
+    }
+}
@@ -0,0 +1,100 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+/**
+ * Load test of the lbd service on a single machine. The verticle of the service is deployed next
+ * to stand-ins for the semantic wiki, the user model, the authentication service and the IID, all
+ * communicating over the local event bus, and {@link LoadDriver} drives synthetic sessions through
+ * the service. See {@link LoadDriver} for the configuration.
+ */
+public class LoadSimulator
+{
+    // address the IID stand-in publishes the service items received to
+    static final String PUBLISHED = "lbd.load:published";
+    // prefix of the addresses the stand-ins answer requests for their statistics on
+    static final String STATISTICS = "lbd.load:statistics:";
+
+    static final String ONTOLOGY = "http://www.appsist.de/ontology/";
+
+    /**
+     * Returns the id of the user of a synthetic session, known to the stand-ins of the user model
+     * and the authentication service as well.
+     *
+     * @param sessionId Id of the session.
+     * @return Id of the user.
+     */
+    static String userIdOf(String sessionId)
+    {
+        return "user-" + sessionId;
+    }
+
+    /**
+     * Runs the load test and prints the report.
+     *
+     * @param args Optional path of a JSON file with the configuration of the test.
+     * @throws Exception If the configuration cannot be read or the test is interrupted.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        JsonObject config = new JsonObject();
+        if (args.length > 0) {
+            config = readConfig(args[0]);
+        }
+        run(LoadDriver.class.getName(), config);
+    }
+
+    static JsonObject readConfig(String path) throws IOException
+    {
+        return new JsonObject(new String(Files.readAllBytes(Paths.get(path)),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deploys a driver and waits until it exits.
+     *
+     * @param driver Class name of the driver verticle.
+     * @param config Configuration of the driver.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    static void run(String driver, JsonObject config) throws InterruptedException
+    {
+        PlatformManager platform = PlatformLocator.factory.createPlatformManager();
+        final CountDownLatch exited = new CountDownLatch(1);
+        platform.registerExitHandler(new Handler<Void>()
+        {
+            @Override
+            public void handle(Void event)
+            {
+                exited.countDown();
+            }
+        });
+        URL[] classpath = { LoadSimulator.class.getProtectionDomain().getCodeSource()
+                .getLocation() };
+        platform.deployVerticle(driver, config, classpath, 1, null,
+                new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> result)
+                    {
+                        if (result.failed()) {
+                            result.cause().printStackTrace();
+                            exited.countDown();
+                        }
+                    }
+                });
+        exited.await();
+        platform.stop();
+    }
+}
@@ -0,0 +1,84 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.connector.AuthServiceConnector;
+import de.appsist.service.lbd.addresses.Addresses;
+import de.appsist.service.lbd.capture.CaptureReader;
+import de.appsist.service.lbd.capture.TrafficRecorder;
+
+/**
+ * Stand-in for the authentication service answering the requests for sessions with the users
+ * recorded in the capture "capture", taken from the session records or the user online events.
+ * A session without a recorded user belongs to the user given by
+ * {@link LoadSimulator#userIdOf(String)} and is counted as missing.
+ */
+public class ReplayAuth extends StandIn
+{
+    private final Map<String, String> users = new HashMap<String, String>();
+
+    private long missing;
+
+    @Override
+    protected String getAddress()
+    {
+        return AuthServiceConnector.SERVICE_ID;
+    }
+
+    @Override
+    protected void configure(JsonObject config)
+    {
+        try (CaptureReader reader = new CaptureReader(config.getString("capture"))) {
+            for (JsonObject record = reader.next(); null != record; record = reader.next()) {
+                String kind = record.getString("k");
+                if (TrafficRecorder.KIND_SESSION.equals(kind)) {
+                    users.put(record.getString("s"), record.getString("u"));
+                }
+                else if (TrafficRecorder.KIND_EVENT.equals(kind)
+                        && Addresses.USER_ONLINE.equals(record.getString("a"))) {
+                    JsonObject event = record.getObject("b");
+                    JsonObject payload = event.getObject("payload", new JsonObject());
+                    if (null != event.getString("session") && null != payload.getString("userId")
+                            && !users.containsKey(event.getString("session"))) {
+                        users.put(event.getString("session"), payload.getString("userId"));
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Capture cannot be read", e);
+        }
+    }
+
+    @Override
+    protected void respond(Message<JsonObject> message)
+    {
+        JsonObject request = message.body();
+        if (!"getSession".equals(request.getString("action"))
+                || null == request.getString("sessionId")) {
+            reply(message, new JsonObject().putString("status", "error").putString("message",
+                    "Not supported by the stand-in: " + request.getString("action")));
+            return;
+        }
+        String sessionId = request.getString("sessionId");
+        String userId = users.get(sessionId);
+        if (null == userId) {
+            missing++;
+            userId = LoadSimulator.userIdOf(sessionId);
+        }
+        JsonObject session = new JsonObject().putString("id", sessionId).putString("userId",
+                userId);
+        reply(message, new JsonObject().putString("status", "ok").putObject("session", session));
+    }
+
+    @Override
+    protected JsonObject getStatistics()
+    {
+        return new JsonObject().putNumber("missing", missing);
+    }
+}
@@ -0,0 +1,484 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Verticle;
+
+import de.appsist.service.lbd.LBDMainVerticle;
+import de.appsist.service.lbd.addresses.Addresses;
+import de.appsist.service.lbd.capture.CaptureReader;
+import de.appsist.service.lbd.capture.TrafficRecorder;
+import de.appsist.service.lbd.metrics.LatencyHistogram;
+
+/**
+ * Replays a capture written by the service against the build on the classpath. The stand-ins
+ * answer the requests of the service with the recorded replies, and the recorded events are sent
+ * at their recorded times divided by "speed", beginning "startDelay" ms after the deployment. The
+ * replay ends when the items of all events have arrived at the IID stand-in, or "timeout" ms
+ * after the last event.
+ * Like the load test, the report contains the time from each event starting a pipeline, i.e.,
+ * starting a learning session or switching the activity, until the service items of its session
+ * have been published, next to the same times in the capture and their differences, and the
+ * throughput in both. If the report of an earlier replay is given as "baseline", the differences
+ * to its times are reported as well. The report is printed and written to the file "report" if
+ * configured.
+ *
+ * The path of the capture is "capture". The configurations of the stand-ins are "semwiki",
+ * "usermodel", "auth" and "iid", where "latencyFactor" scales the recorded latencies, and the
+ * configuration of the service is "lbd" as for the {@link LoadDriver}. Note that the debounce
+ * times of the service are not scaled, so activity switches close to each other may be merged
+ * when replayed faster than recorded.
+ */
+public class ReplayDriver extends Verticle
+{
+    private static final String PHASE_START = "startLearningSession";
+    private static final String PHASE_SIDE = "switchToSide";
+    private static final String PHASE_MAIN = "switchToMain";
+
+    private static final String[][] STAND_INS = { { ReplaySemwiki.class.getName(), "semwiki" },
+            { ReplayUserModel.class.getName(), "usermodel" },
+            { ReplayAuth.class.getName(), "auth" }, { IidSink.class.getName(), "iid" } };
+
+    // an event of the capture
+    private static class RecordedEvent
+    {
+        private final long time;
+        private final String address;
+        private final JsonObject body;
+
+        private RecordedEvent(long time, String address, JsonObject body)
+        {
+            this.time = time;
+            this.address = address;
+            this.body = body;
+        }
+    }
+
+    // an event waiting for the service items of its session
+    private static class PendingEvent
+    {
+        private final String phase;
+        private final long time;
+
+        private PendingEvent(String phase, long time)
+        {
+            this.phase = phase;
+            this.time = time;
+        }
+    }
+
+    private JsonObject config;
+    private EventBus eb;
+    private String capture;
+    private double speed;
+    private long timeout;
+
+    private final List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+    private final Map<String, LatencyHistogram> recorded = new LinkedHashMap<String, LatencyHistogram>();
+    private long recordedPublished;
+    private double recordedSeconds;
+
+    private final Map<String, PendingEvent> pending = new HashMap<String, PendingEvent>();
+    private final Map<String, LatencyHistogram> replayed = new LinkedHashMap<String, LatencyHistogram>();
+    private final Map<String, Long> timeouts = new HashMap<String, Long>();
+    private int sent;
+    private long published;
+    private long startTime;
+    private long lastSendTime;
+
+    @Override
+    public void start()
+    {
+        config = container.config();
+        eb = vertx.eventBus();
+        capture = config.getString("capture");
+        speed = Math.max(0.001, config.getNumber("speed", 1).doubleValue());
+        timeout = config.getLong("timeout", 30000);
+        for (String phase : new String[] { PHASE_START, PHASE_SIDE, PHASE_MAIN }) {
+            recorded.put(phase, new LatencyHistogram());
+            replayed.put(phase, new LatencyHistogram());
+            timeouts.put(phase, 0L);
+        }
+        try {
+            load();
+        }
+        catch (IOException | RuntimeException e) {
+            container.logger().error("Capture " + capture + " cannot be read", e);
+            container.exit();
+            return;
+        }
+        if (events.isEmpty()) {
+            container.logger().error("Capture " + capture + " contains no events");
+            container.exit();
+            return;
+        }
+        eb.registerHandler(LoadSimulator.PUBLISHED, new Handler<Message<JsonObject>>()
+        {
+            @Override
+            public void handle(Message<JsonObject> message)
+            {
+                published(message.body().getString("sessionId"));
+            }
+        });
+        deployStandIn(0);
+    }
+
+    // reads the events and derives the recorded times until the items were published
+    private void load() throws IOException
+    {
+        Map<String, PendingEvent> recordedPending = new HashMap<String, PendingEvent>();
+        long first = -1;
+        long last = 0;
+        try (CaptureReader reader = new CaptureReader(capture)) {
+            for (JsonObject record = reader.next(); null != record; record = reader.next()) {
+                String kind = record.getString("k");
+                long time = record.getLong("t", 0);
+                if (TrafficRecorder.KIND_EVENT.equals(kind)) {
+                    RecordedEvent event = new RecordedEvent(time, record.getString("a"), record
+                            .getObject("b"));
+                    events.add(event);
+                    first = first < 0 ? time : first;
+                    last = time;
+                    track(recordedPending, event, time);
+                }
+                else if (TrafficRecorder.KIND_PUBLISHED.equals(kind)) {
+                    recordedPublished++;
+                    last = time;
+                    PendingEvent event = recordedPending.remove(record.getString("s"));
+                    if (null != event) {
+                        recorded.get(event.phase).record((time - event.time) * 1000000);
+                    }
+                }
+            }
+            if (reader.isTruncated()) {
+                container.logger().warn("Capture " + capture + " is truncated");
+            }
+        }
+        recordedSeconds = Math.max(0.001, (last - Math.max(0, first)) / 1000.0);
+        container.logger().info("Read " + events.size() + " events covering " + recordedSeconds
+                + " s from " + capture);
+    }
+
+    // registers an event starting a pipeline or drops the pending event of a session gone offline,
+    // an event superseded by the next event of its session before its items arrived is not measured
+    private static void track(Map<String, PendingEvent> pendingEvents, RecordedEvent event,
+            long time)
+    {
+        String sessionId = sessionOf(event);
+        if (null == sessionId) {
+            return;
+        }
+        String phase = phaseOf(event);
+        if (null != phase) {
+            pendingEvents.put(sessionId, new PendingEvent(phase, time));
+        }
+        else if (Addresses.USER_OFFLINE.equals(event.address)) {
+            pendingEvents.remove(sessionId);
+        }
+    }
+
+    private static String sessionOf(RecordedEvent event)
+    {
+        switch (event.address) {
+            case Addresses.START_LEARNING_SESSION :
+                return event.body.getString("sid");
+            case Addresses.USER_ONLINE :
+            case Addresses.USER_OFFLINE :
+                return event.body.getString("session");
+            default :
+                return event.body.getString("sessionId", event.body.getString("sid"));
+        }
+    }
+
+    private static String phaseOf(RecordedEvent event)
+    {
+        switch (event.address) {
+            case Addresses.START_LEARNING_SESSION :
+                return PHASE_START;
+            case Addresses.USER_ACTIVITY_SWITCH :
+                return "side".equals(event.body.getString("activity")) ? PHASE_SIDE : PHASE_MAIN;
+            default :
+                return null;
+        }
+    }
+
+    // deploys the stand-ins one after the other, followed by the service
+    private void deployStandIn(final int index)
+    {
+        if (index == STAND_INS.length) {
+            deployService();
+            return;
+        }
+        JsonObject standInConfig = config.getObject(STAND_INS[index][1], new JsonObject()).copy()
+                .putString("capture", capture);
+        container.deployVerticle(STAND_INS[index][0], standInConfig, 1,
+                new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> result)
+                    {
+                        if (failed(result)) {
+                            return;
+                        }
+                        deployStandIn(index + 1);
+                    }
+                });
+    }
+
+    private void deployService()
+    {
+        JsonObject serviceConfig = config.getObject("lbd", new JsonObject());
+        if (null == serviceConfig.getObject("webserver")) {
+            serviceConfig.putObject("webserver", new JsonObject().putNumber("port", 7088)
+                    .putString("basePath", "/services/lbd").putString("statics", "www"));
+        }
+        container.deployVerticle(LBDMainVerticle.class.getName(), serviceConfig, Math.max(1,
+                serviceConfig.getInteger("instances", 1)), new Handler<AsyncResult<String>>()
+        {
+            @Override
+            public void handle(AsyncResult<String> result)
+            {
+                if (failed(result)) {
+                    return;
+                }
+                vertx.setTimer(Math.max(1, config.getLong("startDelay", 3000)),
+                        new Handler<Long>()
+                        {
+                            @Override
+                            public void handle(Long timerId)
+                            {
+                                replay();
+                            }
+                        });
+            }
+        });
+    }
+
+    private boolean failed(AsyncResult<String> result)
+    {
+        if (result.failed()) {
+            container.logger().error("Deployment of the replay failed", result.cause());
+            container.exit();
+        }
+        return result.failed();
+    }
+
+    // sends the events at their recorded times divided by the speed
+    private void replay()
+    {
+        container.logger().info("Replaying " + events.size() + " events at " + speed + "x");
+        startTime = System.nanoTime();
+        final long offset = events.get(0).time;
+        vertx.setPeriodic(10, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long timerId)
+            {
+                long now = System.nanoTime();
+                double elapsed = (now - startTime) / 1e6 * speed;
+                while (sent < events.size() && events.get(sent).time - offset <= elapsed) {
+                    send(events.get(sent++), now);
+                }
+                if (sent == events.size()) {
+                    vertx.cancelTimer(timerId);
+                    lastSendTime = now;
+                    drain();
+                }
+            }
+        });
+    }
+
+    private void send(RecordedEvent event, long now)
+    {
+        track(pending, event, now);
+        if (Addresses.START_LEARNING_SESSION.equals(event.address)) {
+            eb.send(event.address, event.body.copy());
+        }
+        else {
+            eb.publish(event.address, event.body.copy());
+        }
+    }
+
+    private void published(String sessionId)
+    {
+        published++;
+        PendingEvent event = pending.remove(sessionId);
+        if (null != event) {
+            replayed.get(event.phase).record(System.nanoTime() - event.time);
+        }
+    }
+
+    // waits for the items of the pending events
+    private void drain()
+    {
+        vertx.setPeriodic(100, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long timerId)
+            {
+                if (pending.isEmpty() || System.nanoTime() - lastSendTime > timeout * 1000000) {
+                    vertx.cancelTimer(timerId);
+                    for (PendingEvent event : pending.values()) {
+                        timeouts.put(event.phase, timeouts.get(event.phase) + 1);
+                    }
+                    finish();
+                }
+            }
+        });
+    }
+
+    // collects the statistics of the stand-ins and reports the results
+    private void finish()
+    {
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        final JsonObject standIns = new JsonObject();
+        final List<String> names = new ArrayList<String>();
+        for (String[] standIn : STAND_INS) {
+            names.add(standIn[0].substring(standIn[0].lastIndexOf('.') + 1));
+        }
+        for (final String name : names) {
+            eb.send(LoadSimulator.STATISTICS + name, new JsonObject(),
+                    new Handler<Message<JsonObject>>()
+                    {
+                        @Override
+                        public void handle(Message<JsonObject> reply)
+                        {
+                            standIns.putObject(name, reply.body());
+                            if (standIns.size() == names.size()) {
+                                report(seconds, standIns);
+                            }
+                        }
+                    });
+        }
+    }
+
+    private void report(double seconds, JsonObject standIns)
+    {
+        JsonObject baseline = readBaseline();
+        double recordedRate = recordedPublished / recordedSeconds;
+        double replayedRate = published / seconds;
+        JsonObject report = new JsonObject();
+        report.putString("capture", capture);
+        report.putNumber("speed", speed);
+        report.putNumber("events", events.size());
+        report.putObject("recorded", new JsonObject().putNumber("seconds", recordedSeconds)
+                .putNumber("published", recordedPublished)
+                .putNumber("publishedPerSecond", recordedRate));
+        report.putObject("replay", new JsonObject().putNumber("seconds", seconds)
+                .putNumber("published", published).putNumber("publishedPerSecond", replayedRate));
+        // the replayed throughput relative to the recorded throughput at the same speed
+        report.putNumber("throughputRatio", replayedRate / (recordedRate * speed));
+
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%d events replayed at %.1fx in %.1f s (recorded %.1f s), "
+                + "%d item lists published, %.1f/s (recorded %.1f/s at 1x, ratio %.2f)%n",
+                events.size(), speed, seconds, recordedSeconds, published, replayedRate,
+                recordedRate, report.getNumber("throughputRatio").doubleValue()));
+        if (null != baseline) {
+            double baselineRate = baseline.getObject("replay", new JsonObject()).getNumber(
+                    "publishedPerSecond", 0).doubleValue();
+            report.putNumber("baselineThroughputRatio", baselineRate > 0 ? replayedRate
+                    / baselineRate : 0);
+            text.append(String.format("baseline %.1f/s, ratio %.2f%n", baselineRate, report
+                    .getNumber("baselineThroughputRatio").doubleValue()));
+        }
+        text.append(String.format("%-22s %8s %8s %10s %10s %10s %10s %10s%n", "step", "count",
+                "timeouts", "p50 ms", "p90 ms", "p99 ms", "max ms", "source"));
+        JsonObject steps = new JsonObject();
+        for (String phase : replayed.keySet()) {
+            JsonObject replaySummary = summarize(replayed.get(phase)).putNumber("timeouts",
+                    timeouts.get(phase));
+            JsonObject recordedSummary = summarize(recorded.get(phase));
+            JsonObject step = new JsonObject().putObject("replay", replaySummary)
+                    .putObject("recorded", recordedSummary)
+                    .putObject("delta", delta(replaySummary, recordedSummary));
+            appendRow(text, phase, recordedSummary, "recorded");
+            appendRow(text, "", replaySummary, "replay");
+            appendRow(text, "", step.getObject("delta"), "delta");
+            if (null != baseline) {
+                JsonObject baselineStep = baseline.getObject("steps", new JsonObject())
+                        .getObject(phase, new JsonObject());
+                JsonObject baselineSummary = baselineStep.getObject("replay", new JsonObject());
+                step.putObject("baselineDelta", delta(replaySummary, baselineSummary));
+                appendRow(text, "", step.getObject("baselineDelta"), "vs base");
+            }
+            steps.putObject(phase, step);
+        }
+        report.putObject("steps", steps);
+        report.putObject("standIns", standIns);
+        text.append("stand-ins: ").append(standIns.encode());
+        System.out.println(text);
+
+        String reportFile = config.getString("report");
+        if (null != reportFile) {
+            try {
+                Files.write(Paths.get(reportFile), report.encodePrettily().getBytes(
+                        StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                container.logger().error("Report could not be written to " + reportFile, e);
+            }
+        }
+        container.exit();
+    }
+
+    private JsonObject readBaseline()
+    {
+        String baselineFile = config.getString("baseline");
+        if (null == baselineFile) {
+            return null;
+        }
+        try {
+            return new JsonObject(new String(Files.readAllBytes(Paths.get(baselineFile)),
+                    StandardCharsets.UTF_8));
+        }
+        catch (IOException | RuntimeException e) {
+            container.logger().error("Baseline " + baselineFile + " cannot be read", e);
+            return null;
+        }
+    }
+
+    private static JsonObject summarize(LatencyHistogram histogram)
+    {
+        return new JsonObject().putNumber("count", histogram.getCount())
+                .putNumber("p50", histogram.getQuantile(0.5) / 1000.0)
+                .putNumber("p90", histogram.getQuantile(0.9) / 1000.0)
+                .putNumber("p99", histogram.getQuantile(0.99) / 1000.0)
+                .putNumber("max", histogram.getQuantile(1) / 1000.0);
+    }
+
+    // differences of the percentiles in ms, positive if the replay was slower
+    private static JsonObject delta(JsonObject summary, JsonObject reference)
+    {
+        JsonObject delta = new JsonObject();
+        delta.putNumber("count", summary.getLong("count", 0) - reference.getLong("count", 0));
+        for (String percentile : new String[] { "p50", "p90", "p99", "max" }) {
+            delta.putNumber(percentile, summary.getNumber(percentile, 0).doubleValue()
+                    - reference.getNumber(percentile, 0).doubleValue());
+        }
+        return delta;
+    }
+
+    private static void appendRow(StringBuilder text, String phase, JsonObject summary,
+            String source)
+    {
+        text.append(String.format("%-22s %8d %8s %10.1f %10.1f %10.1f %10.1f %10s%n", phase,
+                summary.getLong("count", 0), null != summary.getNumber("timeouts") ? summary
+                        .getNumber("timeouts") : "", summary.getNumber("p50").doubleValue(),
+                summary.getNumber("p90").doubleValue(), summary.getNumber("p99").doubleValue(),
+                summary.getNumber("max").doubleValue(), source));
+    }
+}
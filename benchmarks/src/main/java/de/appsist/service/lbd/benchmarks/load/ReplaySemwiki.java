@@ -0,0 +1,193 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.capture.CaptureReader;
+import de.appsist.service.lbd.capture.TrafficRecorder;
+import de.appsist.service.lbd.queries.SparQLDispatcher;
+import de.appsist.service.lbd.queries.ValuesBlock;
+
+/**
+ * Stand-in for the semantic wiki answering the SparQL queries with the replies recorded in the
+ * capture "capture", after the recorded latency multiplied with "latencyFactor".
+ * A query is looked up by its normalized form first. Since the build replayed may merge or split
+ * queries differently than the recorded build, a query with a single VALUES block missing the
+ * capture is assembled from the recorded rows of all queries which only differ in their VALUES
+ * block: every binding of a recorded reply is assigned to the row of the block it binds the
+ * variables of. Rows never recorded are missing from the reply and counted.
+ */
+public class ReplaySemwiki extends StandIn
+{
+    // the recorded replies of the queries which only differ in their VALUES block
+    private static class Skeleton
+    {
+        private List<String> variables;
+        private JsonArray head;
+        private final Map<String, List<JsonObject>> bindingsByRow = new HashMap<String, List<JsonObject>>();
+        private long latency;
+        private int queries;
+    }
+
+    private final Map<String, String> replies = new HashMap<String, String>();
+    private final Map<String, Long> latencies = new HashMap<String, Long>();
+    private final Map<String, Skeleton> skeletons = new HashMap<String, Skeleton>();
+    private double latencyFactor;
+
+    private long hits;
+    private long assembled;
+    private long missing;
+    private long missingRows;
+
+    @Override
+    protected String getAddress()
+    {
+        return SparQLDispatcher.SPARQLREQUESTS;
+    }
+
+    @Override
+    protected void configure(JsonObject config)
+    {
+        latencyFactor = config.getNumber("latencyFactor", 1).doubleValue();
+        try (CaptureReader reader = new CaptureReader(config.getString("capture"))) {
+            for (JsonObject record = reader.next(); null != record; record = reader.next()) {
+                if (TrafficRecorder.KIND_QUERY.equals(record.getString("k"))) {
+                    index(record.getString("q"), record.getString("r"), record.getLong("d", 0));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Capture cannot be read", e);
+        }
+        container.logger().info("Replaying " + replies.size() + " SparQL replies");
+    }
+
+    private void index(String query, String reply, long micros)
+    {
+        String key = ValuesBlock.normalize(query);
+        replies.put(key, reply);
+        latencies.put(key, micros / 1000);
+        List<ValuesBlock> blocks = ValuesBlock.findAll(query);
+        if (blocks.size() != 1) {
+            return;
+        }
+        ValuesBlock block = blocks.get(0);
+        String skeletonKey = skeletonKey(query, block);
+        Skeleton skeleton = skeletons.get(skeletonKey);
+        if (null == skeleton) {
+            skeleton = new Skeleton();
+            skeleton.variables = block.getVariables();
+            skeletons.put(skeletonKey, skeleton);
+        }
+        skeleton.latency += micros / 1000;
+        skeleton.queries++;
+        for (List<String> row : block.getRows()) {
+            if (!skeleton.bindingsByRow.containsKey(rowKey(row))) {
+                skeleton.bindingsByRow.put(rowKey(row), new ArrayList<JsonObject>());
+            }
+        }
+        JsonObject result = new JsonObject(reply);
+        skeleton.head = result.getObject("head", new JsonObject()).getArray("vars");
+        for (Object element : result.getObject("results", new JsonObject()).getArray("bindings",
+                new JsonArray())) {
+            JsonObject binding = (JsonObject) element;
+            List<JsonObject> bindings = skeleton.bindingsByRow.get(bindingKey(skeleton.variables,
+                    binding));
+            if (null != bindings) {
+                bindings.add(binding);
+            }
+        }
+    }
+
+    @Override
+    protected void respond(Message<JsonObject> message)
+    {
+        JsonObject sparql = message.body().getObject("sparql");
+        String query = null != sparql ? sparql.getString("query", "") : "";
+        String key = ValuesBlock.normalize(query);
+        String reply = replies.get(key);
+        if (null != reply) {
+            hits++;
+            reply(message, reply, Math.round(latencies.get(key) * latencyFactor));
+            return;
+        }
+        List<ValuesBlock> blocks = ValuesBlock.findAll(query);
+        Skeleton skeleton = blocks.size() == 1 ? skeletons.get(skeletonKey(query, blocks.get(0)))
+                : null;
+        if (null == skeleton) {
+            missing++;
+            reply(message, new JsonObject().putObject("head", new JsonObject().putArray("vars",
+                    new JsonArray())).putObject("results", new JsonObject().putArray("bindings",
+                    new JsonArray())).encode());
+            return;
+        }
+        assembled++;
+        JsonArray bindings = new JsonArray();
+        for (List<String> row : blocks.get(0).getRows()) {
+            List<JsonObject> rowBindings = skeleton.bindingsByRow.get(rowKey(row));
+            if (null == rowBindings) {
+                missingRows++;
+                continue;
+            }
+            for (JsonObject binding : rowBindings) {
+                bindings.addObject(binding);
+            }
+        }
+        JsonObject result = new JsonObject().putObject("head", new JsonObject().putArray("vars",
+                null != skeleton.head ? skeleton.head : new JsonArray())).putObject("results",
+                new JsonObject().putArray("bindings", bindings));
+        reply(message, result.encode(), Math.round(skeleton.latency / skeleton.queries
+                * latencyFactor));
+    }
+
+    @Override
+    protected JsonObject getStatistics()
+    {
+        return new JsonObject().putNumber("hits", hits).putNumber("assembled", assembled)
+                .putNumber("missing", missing).putNumber("missingRows", missingRows);
+    }
+
+    // the normalized query without the rows of its VALUES block
+    private static String skeletonKey(String query, ValuesBlock block)
+    {
+        return ValuesBlock.normalize(query.substring(0, block.getStart()) + " VALUES "
+                + query.substring(block.getEnd()));
+    }
+
+    // the values of a row of a VALUES block, IRIs without angle brackets and literals unquoted
+    private static String rowKey(List<String> row)
+    {
+        StringBuilder key = new StringBuilder();
+        for (String term : row) {
+            if (term.startsWith("<") && term.endsWith(">")) {
+                term = term.substring(1, term.length() - 1);
+            }
+            else if (term.startsWith("\"") && term.lastIndexOf('"') > 0) {
+                term = term.substring(1, term.lastIndexOf('"'));
+            }
+            key.append(term).append('\n');
+        }
+        return key.toString();
+    }
+
+    // the values a binding assigns to the variables of a VALUES block
+    private static String bindingKey(List<String> variables, JsonObject binding)
+    {
+        StringBuilder key = new StringBuilder();
+        for (String variable : variables) {
+            JsonObject value = binding.getObject(variable.substring(1));
+            if (null == value) {
+                return null;
+            }
+            key.append(value.getString("value")).append('\n');
+        }
+        return key.toString();
+    }
+}
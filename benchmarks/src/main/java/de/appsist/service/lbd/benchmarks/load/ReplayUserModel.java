@@ -0,0 +1,82 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.addresses.Addresses;
+import de.appsist.service.lbd.capture.CaptureReader;
+import de.appsist.service.lbd.capture.TrafficRecorder;
+
+/**
+ * Stand-in for the user model answering requests for the information of a user with the reply
+ * recorded for the user in the capture "capture", after the recorded latency multiplied with
+ * "latencyFactor". A user without a recorded reply gets the first reply recorded, which is
+ * counted as missing.
+ */
+public class ReplayUserModel extends StandIn
+{
+    private final Map<String, JsonObject> replies = new HashMap<String, JsonObject>();
+    private final Map<String, Long> latencies = new HashMap<String, Long>();
+    private JsonObject fallback;
+    private double latencyFactor;
+
+    private long hits;
+    private long missing;
+
+    @Override
+    protected String getAddress()
+    {
+        return Addresses.USER_GET_INFORMATION;
+    }
+
+    @Override
+    protected void configure(JsonObject config)
+    {
+        latencyFactor = config.getNumber("latencyFactor", 1).doubleValue();
+        try (CaptureReader reader = new CaptureReader(config.getString("capture"))) {
+            for (JsonObject record = reader.next(); null != record; record = reader.next()) {
+                if (!TrafficRecorder.KIND_USER_INFORMATION.equals(record.getString("k"))) {
+                    continue;
+                }
+                JsonObject reply = new JsonObject();
+                if (null != record.getObject("r")) {
+                    reply.putString("status", "ok").putObject("userInformation",
+                            record.getObject("r"));
+                }
+                replies.put(record.getString("u"), reply);
+                latencies.put(record.getString("u"), record.getLong("d", 0) / 1000);
+                if (null == fallback) {
+                    fallback = reply;
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Capture cannot be read", e);
+        }
+        container.logger().info("Replaying the information of " + replies.size() + " users");
+    }
+
+    @Override
+    protected void respond(Message<JsonObject> message)
+    {
+        String userId = message.body().getString("userId", "");
+        JsonObject reply = replies.get(userId);
+        if (null == reply) {
+            missing++;
+            reply(message, null != fallback ? fallback.copy() : new JsonObject());
+            return;
+        }
+        hits++;
+        reply(message, reply.copy(), Math.round(latencies.get(userId) * latencyFactor));
+    }
+
+    @Override
+    protected JsonObject getStatistics()
+    {
+        return new JsonObject().putNumber("hits", hits).putNumber("missing", missing);
+    }
+}
@@ -0,0 +1,189 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.queries.SparQLDispatcher;
+import de.appsist.service.lbd.queries.ValuesBlock;
+
+/**
+ * Stand-in for the semantic wiki answering every SparQL query with synthetic bindings of the
+ * variables it selects. The results are consistent with the queries, so the result of a query
+ * merged by the batcher can be split again and the pipelines continue with the bindings:
+ * <ul>
+ * <li>A query with VALUES blocks is answered with "rowsPerValue" rows for every row of the
+ * blocks, the variables of the blocks are bound to the values of that row.</li>
+ * <li>Any other query is answered with "rows" rows.</li>
+ * <li>A variable bound to literals with BIND in the query is bound to these literals in turn, a
+ * variable listed in "literals" to a literal and any other variable to one of "pool" IRIs.</li>
+ * <li>LIMIT and OFFSET select the page of the result.</li>
+ * </ul>
+ */
+public class SemwikiStandIn extends StandIn
+{
+    private static final Pattern SELECT = Pattern.compile(
+            "(?is)\\bSELECT\\s+(?:DISTINCT\\s+|REDUCED\\s+)?(.*?)\\s*(?:\\bFROM\\b|\\bWHERE\\b|\\{)");
+    private static final Pattern VARIABLE = Pattern.compile("\\?(\\w+)");
+    private static final Pattern BIND_LITERAL = Pattern.compile(
+            "(?i)BIND\\s*\\(\\s*\"([^\"]*)\"\\s+AS\\s+\\?(\\w+)\\s*\\)");
+    private static final Pattern LIMIT = Pattern.compile("(?i)\\bLIMIT\\s+(\\d+)");
+    private static final Pattern OFFSET = Pattern.compile("(?i)\\bOFFSET\\s+(\\d+)");
+
+    private int rows;
+    private int rowsPerValue;
+    private int pool;
+    private Set<String> literals;
+
+    private long resultRows;
+
+    @Override
+    protected String getAddress()
+    {
+        return SparQLDispatcher.SPARQLREQUESTS;
+    }
+
+    @Override
+    protected void configure(JsonObject config)
+    {
+        rows = config.getInteger("rows", 50);
+        rowsPerValue = config.getInteger("rowsPerValue", 2);
+        pool = Math.max(1, config.getInteger("pool", 1000));
+        literals = new HashSet<String>();
+        JsonArray literalVariables = config.getArray("literals", new JsonArray(new Object[] {
+                "label", "vorschau", "p" }));
+        for (Object variable : literalVariables) {
+            literals.add(String.valueOf(variable));
+        }
+    }
+
+    @Override
+    protected void respond(Message<JsonObject> message)
+    {
+        JsonObject sparql = message.body().getObject("sparql");
+        String query = null != sparql ? sparql.getString("query", "") : "";
+        reply(message, answer(query));
+    }
+
+    @Override
+    protected JsonObject getStatistics()
+    {
+        return new JsonObject().putNumber("rows", resultRows);
+    }
+
+    // builds the result of a query in the SparQL JSON results format
+    private String answer(String query)
+    {
+        List<String> variables = new ArrayList<String>();
+        Matcher select = SELECT.matcher(query);
+        if (select.find()) {
+            Matcher variable = VARIABLE.matcher(select.group(1));
+            while (variable.find()) {
+                if (!variables.contains(variable.group(1))) {
+                    variables.add(variable.group(1));
+                }
+            }
+        }
+        Map<String, List<String>> boundLiterals = new HashMap<String, List<String>>();
+        Matcher bind = BIND_LITERAL.matcher(query);
+        while (bind.find()) {
+            if (!boundLiterals.containsKey(bind.group(2))) {
+                boundLiterals.put(bind.group(2), new ArrayList<String>());
+            }
+            boundLiterals.get(bind.group(2)).add(bind.group(1));
+        }
+
+        // rows of all VALUES blocks, each mapping the variables of its block to their terms
+        List<Map<String, String>> valueRows = new ArrayList<Map<String, String>>();
+        for (ValuesBlock block : ValuesBlock.findAll(query)) {
+            for (List<String> row : block.getRows()) {
+                Map<String, String> terms = new HashMap<String, String>();
+                for (int i = 0; i < row.size(); i++) {
+                    terms.put(block.getVariables().get(i).substring(1), row.get(i));
+                }
+                valueRows.add(terms);
+            }
+        }
+        int total = valueRows.isEmpty() ? rows : valueRows.size() * rowsPerValue;
+        int offset = find(OFFSET, query, 0);
+        int end = Math.min(total, offset + find(LIMIT, query, total));
+
+        StringBuilder result = new StringBuilder(256 + Math.max(0, end - offset) * 64
+                * Math.max(1, variables.size()));
+        result.append("{\"head\":{\"vars\":[");
+        for (int i = 0; i < variables.size(); i++) {
+            result.append(i > 0 ? "," : "").append('"').append(variables.get(i)).append('"');
+        }
+        result.append("]},\"results\":{\"bindings\":[");
+        for (int row = offset; row < end; row++) {
+            Map<String, String> terms = valueRows.isEmpty() ? null : valueRows.get(row
+                    / rowsPerValue);
+            result.append(row > offset ? ",{" : "{");
+            for (int i = 0; i < variables.size(); i++) {
+                String variable = variables.get(i);
+                result.append(i > 0 ? "," : "").append('"').append(variable).append("\":");
+                if (null != terms && terms.containsKey(variable)) {
+                    appendTerm(result, terms.get(variable));
+                }
+                else if (boundLiterals.containsKey(variable)) {
+                    List<String> values = boundLiterals.get(variable);
+                    appendBinding(result, "literal", values.get(row % values.size()));
+                }
+                else if (literals.contains(variable)) {
+                    appendBinding(result, "literal", variable + " " + (row % pool));
+                }
+                else {
+                    appendBinding(result, "uri", LoadSimulator.ONTOLOGY
+                            + Character.toUpperCase(variable.charAt(0)) + variable.substring(1)
+                            + (row % pool));
+                }
+            }
+            result.append('}');
+        }
+        result.append("]}}");
+        resultRows += Math.max(0, end - offset);
+        return result.toString();
+    }
+
+    private static int find(Pattern pattern, String query, int defaultValue)
+    {
+        Matcher matcher = pattern.matcher(query);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : defaultValue;
+    }
+
+    // binds a term of a VALUES block, an IRI in angle brackets or a literal
+    private static void appendTerm(StringBuilder result, String term)
+    {
+        if (term.startsWith("<") && term.endsWith(">")) {
+            appendBinding(result, "uri", term.substring(1, term.length() - 1));
+        }
+        else if (term.startsWith("\"") && term.lastIndexOf('"') > 0) {
+            appendBinding(result, "literal", term.substring(1, term.lastIndexOf('"')));
+        }
+        else {
+            appendBinding(result, "uri", term);
+        }
+    }
+
+    private static void appendBinding(StringBuilder result, String type, String value)
+    {
+        result.append("{\"type\":\"").append(type).append("\",\"value\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ('"' == c || '\\' == c) {
+                result.append('\\');
+            }
+            result.append(c);
+        }
+        result.append("\"}");
+    }
+}
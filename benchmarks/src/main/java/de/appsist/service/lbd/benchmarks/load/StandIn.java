@@ -0,0 +1,154 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Verticle;
+
+/**
+ * Verticle standing in for a service the lbd service depends on. Requests are answered after the
+ * configured latency, "latency" (ms) plus a random time up to "jitter" (ms), and counted. If
+ * "capacity" is set, at most that many requests are served at a time, the others wait for a
+ * request to be answered, so the latency grows with the load like the latency of an overloaded
+ * service.
+ */
+abstract class StandIn extends Verticle
+{
+    private long latency;
+    private long jitter;
+    private int capacity;
+    private long requests;
+
+    // replies waiting for capacity, each a message, a reply and a delay
+    private final Queue<Object[]> backlog = new ArrayDeque<Object[]>();
+    private int serving;
+    private int maxBacklog;
+
+    @Override
+    public void start()
+    {
+        JsonObject config = container.config();
+        latency = config.getLong("latency", 0);
+        jitter = config.getLong("jitter", 0);
+        capacity = config.getInteger("capacity", 0);
+        configure(config);
+        vertx.eventBus().registerHandler(getAddress(), new Handler<Message<JsonObject>>()
+        {
+            @Override
+            public void handle(Message<JsonObject> message)
+            {
+                requests++;
+                respond(message);
+            }
+        });
+        vertx.eventBus().registerHandler(LoadSimulator.STATISTICS + getClass().getSimpleName(),
+                new Handler<Message<JsonObject>>()
+                {
+                    @Override
+                    public void handle(Message<JsonObject> message)
+                    {
+                        message.reply(getStatistics().putNumber("requests", requests)
+                                .putNumber("maxBacklog", maxBacklog));
+                    }
+                });
+    }
+
+    /**
+     * Returns the address of the service.
+     */
+    protected abstract String getAddress();
+
+    /**
+     * Reads the configuration of the stand-in.
+     *
+     * @param config Configuration of the verticle.
+     */
+    protected void configure(JsonObject config)
+    {
+    }
+
+    /**
+     * Responds to a request, usually by calling {@link #reply(Message, Object)}.
+     *
+     * @param message Request.
+     */
+    protected abstract void respond(Message<JsonObject> message);
+
+    /**
+     * Returns the statistics of the stand-in besides the number of requests.
+     */
+    protected JsonObject getStatistics()
+    {
+        return new JsonObject();
+    }
+
+    /**
+     * Replies to a request after the latency of the service.
+     *
+     * @param message Request.
+     * @param reply Reply.
+     */
+    protected void reply(Message<JsonObject> message, Object reply)
+    {
+        reply(message, reply, latency
+                + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0));
+    }
+
+    /**
+     * Replies to a request after the given delay.
+     *
+     * @param message Request.
+     * @param reply Reply.
+     * @param delay Delay in milliseconds.
+     */
+    protected void reply(Message<JsonObject> message, Object reply, long delay)
+    {
+        if (capacity <= 0) {
+            serve(message, reply, delay);
+            return;
+        }
+        if (serving >= capacity) {
+            backlog.add(new Object[] {message, reply, delay });
+            maxBacklog = Math.max(maxBacklog, backlog.size());
+            return;
+        }
+        serving++;
+        serve(message, reply, delay);
+    }
+
+    private void serve(final Message<JsonObject> message, final Object reply, long delay)
+    {
+        if (delay <= 0) {
+            message.reply(reply);
+            served();
+            return;
+        }
+        vertx.setTimer(delay, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long timerId)
+            {
+                message.reply(reply);
+                served();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void served()
+    {
+        if (capacity <= 0) {
+            return;
+        }
+        Object[] next = backlog.poll();
+        if (null == next) {
+            serving--;
+            return;
+        }
+        serve((Message<JsonObject>) next[0], next[1], (Long) next[2]);
+    }
+}
@@ -0,0 +1,38 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Replays a capture of the traffic of the lbd service, recorded with POST /capture/start and
+ * /capture/stop, against the build on the classpath and prints the differences of the latencies
+ * and the throughput to the capture. See {@link ReplayDriver} for the configuration.
+ */
+public class TrafficReplayer
+{
+    /**
+     * Runs the replay and prints the report.
+     *
+     * @param args Path of the capture, optionally followed by the speed, e.g., 2 to replay the
+     *            events twice as fast as recorded, the path of the report of an earlier replay to
+     *            compare with and the path of a JSON file with the configuration of the replay.
+     * @throws Exception If the configuration cannot be read or the replay is interrupted.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0) {
+            System.err.println("Usage: TrafficReplayer <capture> [speed] [baseline report] "
+                    + "[config]");
+            System.exit(1);
+        }
+        JsonObject config = args.length > 3 ? LoadSimulator.readConfig(args[3])
+                : new JsonObject();
+        config.putString("capture", args[0]);
+        if (args.length > 1) {
+            config.putNumber("speed", Double.parseDouble(args[1]));
+        }
+        if (args.length > 2 && !args[2].isEmpty() && !"-".equals(args[2])) {
+            config.putString("baseline", args[2]);
+        }
+        LoadSimulator.run(ReplayDriver.class.getName(), config);
+    }
+}
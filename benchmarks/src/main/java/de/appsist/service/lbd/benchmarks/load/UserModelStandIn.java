@@ -0,0 +1,68 @@
+package de.appsist.service.lbd.benchmarks.load;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.addresses.Addresses;
+
+/**
+ * Stand-in for the user model answering requests for the information of a user. Every user has
+ * "workplaceGroups" workplace groups, "developmentGoals" development goals and a development goals
+ * object with "items" items and "contents" contents, chosen by the hash of the user id from pools
+ * of "pool" entries each, so users share some of them.
+ */
+public class UserModelStandIn extends StandIn
+{
+    private int workplaceGroups;
+    private int developmentGoals;
+    private int items;
+    private int contents;
+    private int pool;
+
+    @Override
+    protected String getAddress()
+    {
+        return Addresses.USER_GET_INFORMATION;
+    }
+
+    @Override
+    protected void configure(JsonObject config)
+    {
+        workplaceGroups = config.getInteger("workplaceGroups", 3);
+        developmentGoals = config.getInteger("developmentGoals", 5);
+        items = config.getInteger("items", 10);
+        contents = config.getInteger("contents", 10);
+        pool = Math.max(1, config.getInteger("pool", 100));
+    }
+
+    @Override
+    protected void respond(Message<JsonObject> message)
+    {
+        String userId = message.body().getString("userId", "");
+        int seed = userId.hashCode() & Integer.MAX_VALUE;
+        JsonObject developmentGoalsObject = new JsonObject()
+                .putString("position", LoadSimulator.ONTOLOGY + "Anlagenbediener")
+                .putArray("items", entries("Station", items, seed))
+                .putArray("contents", entries("Inhalt", contents, seed));
+        JsonObject userInformation = new JsonObject()
+                .putString("workplaceGroups", entries("Arbeitsplatzgruppe", workplaceGroups, seed)
+                        .encode())
+                .putString("developmentGoals", entries("Entwicklungsziel", developmentGoals, seed)
+                        .encode())
+                .putString("developmentGoalsObject", developmentGoalsObject.encode())
+                .putString("employeeType", LoadSimulator.ONTOLOGY + "Anlagenbediener");
+        reply(message, new JsonObject().putString("status", "ok").putObject("userInformation",
+                userInformation));
+    }
+
+    // consecutive entries of a pool, starting at the seed
+    private JsonArray entries(String name, int count, int seed)
+    {
+        JsonArray entries = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            entries.addString(LoadSimulator.ONTOLOGY + name + ((seed + i) % pool));
+        }
+        return entries;
+    }
+}
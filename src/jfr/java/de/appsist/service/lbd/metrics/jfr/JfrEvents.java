@@ -0,0 +1,52 @@
+package de.appsist.service.lbd.metrics.jfr;
+
+import jdk.jfr.EventType;
+
+import de.appsist.service.lbd.metrics.FlightRecorderEvents;
+
+/**
+ * Flight Recorder events of the pipelines, loaded by {@link FlightRecorderEvents#load()} on JDK 11
+ * or later. The events are committed when a stage or query completes and carry their duration
+ * in a field, the start of an asynchronous stage is not known to the recorder.
+ */
+public class JfrEvents
+    extends FlightRecorderEvents
+{
+    private final EventType stageType = EventType.getEventType(StageEvent.class);
+    private final EventType queryType = EventType.getEventType(QueryEvent.class);
+
+    @Override
+    public boolean isStageEnabled()
+    {
+        return stageType.isEnabled();
+    }
+
+    @Override
+    public boolean isQueryEnabled()
+    {
+        return queryType.isEnabled();
+    }
+
+    @Override
+    public void stage(int sessionHash, String stage, int rows, long nanos)
+    {
+        StageEvent event = new StageEvent();
+        event.sessionHash = sessionHash;
+        event.stage = stage;
+        event.rows = rows;
+        event.elapsed = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void query(int sessionHash, String stage, int values, int resultLength, long nanos)
+    {
+        QueryEvent event = new QueryEvent();
+        event.sessionHash = sessionHash;
+        event.stage = stage;
+        event.values = values;
+        event.resultLength = resultLength;
+        event.elapsed = nanos;
+        event.commit();
+    }
+}
@@ -0,0 +1,37 @@
+package de.appsist.service.lbd.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A completed SparQL query, answered by a cache or the semantic wiki service.
+ */
+@Name("de.appsist.lbd.Query")
+@Label("SparQL Query")
+@Category({ "APPsist", "Lernbedarfsdienst" })
+@StackTrace(false)
+class QueryEvent
+    extends Event
+{
+    @Label("Session Hash")
+    int sessionHash;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("VALUES Rows")
+    int values;
+
+    @Label("Result Length")
+    @Description("Characters of the JSON encoded result, -1 if the query failed")
+    int resultLength;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}
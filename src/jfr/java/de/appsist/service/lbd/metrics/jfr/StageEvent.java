@@ -0,0 +1,34 @@
+package de.appsist.service.lbd.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A completed stage of a pipeline run.
+ */
+@Name("de.appsist.lbd.Stage")
+@Label("Pipeline Stage")
+@Category({ "APPsist", "Lernbedarfsdienst" })
+@StackTrace(false)
+class StageEvent
+    extends Event
+{
+    @Label("Session Hash")
+    int sessionHash;
+
+    @Label("Stage")
+    @Description("Rule of the document \"Adaptionsregeln\" or other stage of the pipeline")
+    String stage;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}
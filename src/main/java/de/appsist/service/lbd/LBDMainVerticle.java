@@ -1,19 +1,25 @@
 package de.appsist.service.lbd;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
 
 import org.vertx.java.core.*;
 import org.vertx.java.core.eventbus.EventBus;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.impl.DefaultFutureResult;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.core.logging.impl.LoggerFactory;
 import org.vertx.java.platform.Verticle;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import de.appsist.commons.event.MachineStateChangedEvent;
+import de.appsist.commons.event.UserOfflineEvent;
 import de.appsist.commons.event.UserOnlineEvent;
 import de.appsist.commons.misc.StatusSignalConfiguration;
 import de.appsist.commons.misc.StatusSignalSender;
@@ -23,9 +29,30 @@ import de.appsist.service.auth.connector.model.Session;
 import de.appsist.service.iid.server.connector.IIDConnector;
 import de.appsist.service.iid.server.model.*;
 import de.appsist.service.lbd.addresses.Addresses;
+import de.appsist.service.lbd.cache.LabelCache;
+import de.appsist.service.lbd.cache.TopologyIndex;
+import de.appsist.service.lbd.cache.UserProfile;
+import de.appsist.service.lbd.cache.UserProfileCache;
+import de.appsist.service.lbd.capture.TrafficRecorder;
+import de.appsist.service.lbd.cluster.ClusterMembership;
+import de.appsist.service.lbd.cluster.ConsistentHashRing;
+import de.appsist.service.lbd.items.ServiceItemDelta;
+import de.appsist.service.lbd.items.ServiceItemFactory;
+import de.appsist.service.lbd.metrics.FlightRecorderEvents;
+import de.appsist.service.lbd.metrics.FlightRecording;
+import de.appsist.service.lbd.metrics.PipelineMetrics;
+import de.appsist.service.lbd.queries.DispatchQueue;
 import de.appsist.service.lbd.queries.LBDSparQLQueries;
+import de.appsist.service.lbd.queries.QueryBatcher;
+import de.appsist.service.lbd.queries.SparQLDispatcher;
+import de.appsist.service.lbd.queries.SparQLResultDecoder;
+import de.appsist.service.lbd.resilience.CircuitBreaker;
+import de.appsist.service.lbd.rules.RuleGraph;
+import de.appsist.service.lbd.session.SessionContext;
+import de.appsist.service.lbd.session.SessionRegistry;
+import de.appsist.service.lbd.session.StationSessionIndex;
+import de.appsist.service.lbd.session.StationStateTable;
 import de.appsist.service.measuresservice.model.LocalState;
-import de.appsist.service.measuresservice.queries.BasicSparQLQueries;
 import de.appsist.service.usermodel.model.EmployeeDevelopmentGoals;
 
 /*
@@ -45,24 +72,37 @@ public class LBDMainVerticle
     private static final Logger log = LoggerFactory.getLogger(LBDMainVerticle.class);
 
     private IIDConnector conn;
-    // this map stores sessionIds(keys) and userIds (values)
-    private final Map<String, String> sessionUserID = new HashMap<String, String>();
-
-    // this map stores items to search learningcontents for
-    private final Map<String, LinkedHashMap<String, String>> sessionSideContents = new HashMap<String, LinkedHashMap<String, String>>();
-
-    private final Map<String, String> sessionCurrentPosition = new HashMap<String, String>();
-    private final Map<String, Set<String>> sessionWorkplaceGroups = new HashMap<String, Set<String>>();
-    private final Map<String, Set<String>> sessionDevelopmentGoals = new HashMap<String, Set<String>>();
-    private final Map<String, Set<String>> sessionStations = new HashMap<String, Set<String>>();
-    private final Map<String, Set<String>> sessionMachines = new HashMap<String, Set<String>>();
-    private final Map<String, Set<String>> sessionStates = new HashMap<String, Set<String>>();
-    private final Map<String, Set<LocalState>> sessionLocalStates = new HashMap<String, Set<LocalState>>();
-
-    private final Set<String> usersInNebenzeit = new HashSet<String>();
-
-    // storage objects for Nebenzeit
-    private final Map<String, EmployeeDevelopmentGoals> sessionDGobject = new HashMap<String, EmployeeDevelopmentGoals>();
+    private SparQLDispatcher dispatcher;
+
+    // state of all sessions handled by this instance, one context per session
+    private SessionRegistry sessions;
+
+    // state shared with the other instances of the verticle
+    private SharedState shared;
+    // number of instances and index of this instance, every session is handled by the instance
+    // its id is assigned to, the first instance receives all events and forwards them
+    private int instances;
+    private int instanceIndex;
+    // members of the cluster, set for the first instance only and null if Vert.x is not
+    // clustered, sessions are assigned to nodes before they are assigned to instances
+    private ClusterMembership cluster;
+
+    // actions forwarded to the instance handling a session
+    private static final String ACTION_START_LEARNING_SESSION = "startLearningSession";
+    private static final String ACTION_USER_ONLINE = "userOnline";
+    private static final String ACTION_USER_OFFLINE = "userOffline";
+    private static final String ACTION_ACTIVITY_SWITCH = "activitySwitch";
+    private static final String ACTION_STATION_UPDATE = "stationUpdate";
+    private static final String ACTION_INVALIDATE_CACHES = "invalidateCaches";
+    private static final String ACTION_REBALANCE = "rebalance";
+    private static final String ACTION_HAND_OVER = "handOver";
+    private static final String ACTION_CLAIM = "claim";
+
+    // namespace of the ontology and its prefix in the ids sent by the stations
+    private static final String ONTOLOGY_IRI = "http://www.appsist.de/ontology/";
+    private static final String ONTOLOGY_PREFIX_NAME = "app:";
+    // IRI with a scheme and an authority, e.g., http://www.appsist.de/ontology/S20
+    private static final Pattern ABSOLUTE_IRI = Pattern.compile("[A-Za-z][A-Za-z0-9+.-]*://.*");
 
     // eventbus adress to receive and trigger the start of a learning session
     public final String LBDTRIGGERADRESS = Addresses.START_LEARNING_SESSION;
@@ -70,12 +110,63 @@ public class LBDMainVerticle
     // default preview image
     private final static String defaultPreviewImage = "defaultLIPreview.jpg";
 
+    // decoders for the results of the SparQL queries, only the variables listed are read
+    private final static SparQLResultDecoder contentDecoder = new SparQLResultDecoder("inhalt",
+            "vorschau");
+    private final static SparQLResultDecoder mainContentDecoder = new SparQLResultDecoder(
+            "inhalt", "vorschau", "i");
+    private final static SparQLResultDecoder localStateDecoder = new SparQLResultDecoder("z",
+            "station", "p");
+    private final static SparQLResultDecoder labelDecoder = new SparQLResultDecoder("oc", "label");
+    private final static SparQLResultDecoder sideActivityDecoder = new SparQLResultDecoder(
+            "regel", "inhalt", "vorschau", "label");
+
+    // page sizes for queries with large results, 0 to retrieve the result at once
+    private int contentPageSize;
+    private int labelPageSize;
+
     // to reduce calls to the ontology we store already retrieved labels in
-    private Map<String, String> knowledgeItemLabels = new HashMap<String, String>();
+    private LabelCache knowledgeItemLabels;
+    // builds the service items of the contents found, titled with the labels above
+    private ServiceItemFactory serviceItemFactory;
+
+    // durations of the pipeline stages, shared by all instances
+    private PipelineMetrics metrics;
+    // Flight Recorder events of the stages and queries, and the recording started over HTTP
+    private FlightRecorderEvents events;
+    private FlightRecording recording;
+    // captures the traffic to replay it, started over HTTP
+    private TrafficRecorder recorder;
+
+    // current states of the stations and the sessions to update when they change
+    private StationStateTable stationStates;
+    private StationSessionIndex stationSessions;
+    // stations with a pending update, changes within the debounce time are handled at once
+    private final Map<String, Long> stationUpdateTimers = new HashMap<String, Long>();
+    private long stationDebounceTime;
+
+    // profiles of the users, an activity switch does not require a request to the user model
+    private UserProfileCache userProfiles;
+
+    // the first activity switch starts a pipeline run at once, the switches following within the
+    // debounce time start a single run at its end
+    private long activitySwitchDebounceTime;
+
+    // time in ms a pipeline run may take until the items published before are published again,
+    // 0 to wait for the run as long as it takes
+    private long pipelineDeadline;
+    // the user model is not requested while its breaker is open
+    private CircuitBreaker userModelBreaker;
+    private long userModelTimeout;
 
     // activate debugging
     private final boolean isDebug = true;
 
+    // retrieve the contents for Nebenzeit with a single query instead of one query per rule
+    private boolean consolidatedSideQuery;
+    // publish the contents for Nebenzeit as soon as each rule has finished
+    private boolean progressiveSideList;
+
     // specifiy directory for external content
     // String externalContentDirectory =
     // "/Users/midi01/Work/svn_repositories/AppSist-svn/content/allsorts/externalContent/";
@@ -94,6 +185,124 @@ public class LBDMainVerticle
 		 * In this method the verticle is registered at the event bus in order to receive messages. 
 		 */
         this.eb = vertx.eventBus();
+        shared = SharedState.acquire(vertx, config);
+        instances = Math.max(1, config.getInteger("instances", 1));
+        try {
+            instanceIndex = shared.acquireInstanceIndex(instances);
+        }
+        catch (IllegalStateException e) {
+            // sessions routed by their hash would be missed or handled twice
+            SharedState.release(vertx);
+            shared = null;
+            throw e;
+        }
+        dispatcher = new SparQLDispatcher(this.eb, shared.getSparqlCache());
+        JsonObject batchingConfig = config.getObject("batching", new JsonObject());
+        if (batchingConfig.getBoolean("enabled", true)) {
+            dispatcher.setBatcher(new QueryBatcher(vertx, dispatcher, batchingConfig));
+        }
+        dispatcher.setClusterCache(shared.getClusterResults());
+        dispatcher.setTimeout(shared.getSemwikiTimeout());
+        dispatcher.setCircuitBreaker(shared.getSemwikiBreaker());
+        dispatcher.setQueue(shared.getDispatchQueue());
+        userModelBreaker = shared.getUserModelBreaker();
+        userModelTimeout = config.getObject("usermodel", new JsonObject()).getLong("timeout",
+                5000);
+        // the deadline does not cut off the requests before their timeouts
+        pipelineDeadline = config.getObject("pipeline", new JsonObject()).getLong("deadline",
+                Math.max(shared.getSemwikiTimeout(), userModelTimeout));
+        JsonObject sideActivityConfig = config.getObject("sideActivity", new JsonObject());
+        consolidatedSideQuery = sideActivityConfig.getBoolean("consolidatedQuery", true);
+        progressiveSideList = sideActivityConfig.getBoolean("progressive", false);
+        JsonObject pagingConfig = config.getObject("paging", new JsonObject());
+        contentPageSize = pagingConfig.getInteger("contents", 0);
+        labelPageSize = pagingConfig.getInteger("labels", 2000);
+        sessions = new SessionRegistry(vertx, config.getObject("sessions", new JsonObject()));
+        sessions.setEvictionHandler(new Handler<SessionContext>()
+        {
+            @Override
+            public void handle(SessionContext session)
+            {
+                stationSessions.remove(session.getSessionId());
+                if (session.getActivitySwitchTimer() >= 0) {
+                    vertx.cancelTimer(session.getActivitySwitchTimer());
+                }
+                cancelDeadline(session);
+                if (isDebug)
+                    log.debug("[Lernbedarf-Dienst] - session evicted: " + session.getSessionId());
+            }
+        });
+        sessions.start();
+        stationDebounceTime = config.getObject("stationStates", new JsonObject()).getLong(
+                "debounceTime", 2000);
+        stationStates = shared.getStationStates();
+        stationSessions = shared.getStationSessions();
+        userProfiles = shared.getUserProfiles();
+        knowledgeItemLabels = shared.getLabels();
+        serviceItemFactory = new ServiceItemFactory(externalContentDirectory,
+                knowledgeItemLabels, isDebug);
+        metrics = shared.getMetrics();
+        events = FlightRecorderEvents.load();
+        dispatcher.setEvents(events);
+        recording = shared.getRecording();
+        recorder = shared.getRecorder();
+        dispatcher.setRecorder(recorder);
+        activitySwitchDebounceTime = config.getObject("activitySwitch", new JsonObject())
+                .getLong("debounceTime", 1000);
+        if (isRouter()) {
+            cluster = ClusterMembership.fromConfiguration(vertx, config.getObject("cluster",
+                    new JsonObject()));
+            if (null != cluster) {
+                shared.setCluster(cluster);
+                cluster.setChangeHandler(new Handler<ConsistentHashRing>()
+                {
+                    @Override
+                    public void handle(ConsistentHashRing ring)
+                    {
+                        // every instance hands over the sessions now belonging to other nodes
+                        for (int i = 0; i < instances; i++) {
+                            route(ACTION_REBALANCE, i, new JsonObject());
+                        }
+                        // sessions handed over by nodes which left now belong to this node
+                        claimSessions();
+                    }
+                });
+                cluster.start();
+            }
+            if (null != shared.getClusterResults()) {
+                shared.getClusterResults().start();
+            }
+        }
+        // the shared topology and labels are loaded by the first instance
+        JsonObject topologyConfig = config.getObject("topology", new JsonObject());
+        if (isRouter() && topologyConfig.getBoolean("enabled", true)) {
+            final TopologyIndex topology = new TopologyIndex(dispatcher, topologyConfig.getInteger(
+                    "pageSize", 5000));
+            shared.setTopology(topology);
+            topology.refresh();
+            vertx.setPeriodic(topologyConfig.getLong("refreshInterval", 86400000),
+                    new Handler<Long>()
+                    {
+                        @Override
+                        public void handle(Long timerId)
+                        {
+                            topology.refresh();
+                        }
+                    });
+        }
+        if (isRouter()) {
+            preloadLabels();
+            // labels are refreshed before they expire
+            vertx.setPeriodic(config.getObject("labelCache", new JsonObject()).getLong(
+                    "refreshInterval", 1800000), new Handler<Long>()
+            {
+                @Override
+                public void handle(Long timerId)
+                {
+                    preloadLabels();
+                }
+            });
+        }
         // initialize Authentication Service Connector
         authConn = new AuthServiceConnector(this.eb, AuthServiceConnector.SERVICE_ID);
 
@@ -117,7 +326,7 @@ public class LBDMainVerticle
         // wpgTest.add("app:Großserien_6:_Normzylinder");
         // wpgTest.add("app:Großserien_4:_Stromregelventile_1");
         // sessionWorkplaceGroups.put(sid, wpgTest);
-        // requestStationsInWorkplaceGroups(sid);
+        // requestLearningMaterialListMain(sid);
         JsonObject statusSignalObject = config.getObject("statusSignal");
         StatusSignalConfiguration statusSignalConfig;
         if (statusSignalObject != null) {
@@ -134,6 +343,20 @@ public class LBDMainVerticle
 	
 	@Override
 	public void stop() {
+        if (null != sessions) {
+            sessions.stop();
+            if (null != shared.getCluster()) {
+                // sessions are continued by the remaining nodes
+                handOverSessions(shared.getCluster().getRingWithoutLocalNode());
+            }
+        }
+        if (isRouter() && null != cluster) {
+            cluster.stop();
+        }
+        if (null != shared) {
+            shared.releaseInstanceIndex(instanceIndex);
+            SharedState.release(vertx);
+        }
         if (isDebug)
             log.info("APPsist service \"Lernbedarfsdienst\" has been stopped.");
 	}
@@ -157,6 +380,38 @@ public class LBDMainVerticle
 	 */
 	private void initializeEventBusHandler() {
 
+        // handler for the actions forwarded to this instance
+        Handler<Message<JsonObject>> instanceHandler = new Handler<Message<JsonObject>>()
+        {
+            @Override
+            public void handle(Message<JsonObject> message)
+            {
+                JsonObject messageBody = message.body();
+                handleAction(messageBody.getString("action"), messageBody.getObject("body"));
+            }
+        };
+        this.eb.registerHandler(instanceAddress(instanceIndex), instanceHandler);
+        if (!isRouter()) {
+            // events are received by the first instance only
+            return;
+        }
+
+        if (null != cluster) {
+            // handler for the actions forwarded by other nodes of the cluster
+            Handler<Message<JsonObject>> nodeHandler = new Handler<Message<JsonObject>>()
+            {
+                @Override
+                public void handle(Message<JsonObject> message)
+                {
+                    JsonObject messageBody = message.body();
+                    // handled even if the rings of the nodes differ while the members change
+                    route(messageBody.getString("action"), messageBody.getString("sessionId"),
+                            messageBody.getObject("body"));
+                }
+            };
+            this.eb.registerHandler(nodeAddress(cluster.getNodeId()), nodeHandler);
+        }
+
         // handler which reacts on Trigger message
         Handler<Message<JsonObject>> lbdTriggeredHandler = new Handler<Message<JsonObject>>()
         {
@@ -164,11 +419,13 @@ public class LBDMainVerticle
 			@Override
 			public void handle(Message<JsonObject> message) {
 				JsonObject messageBody = message.body();
+                if (recorder.isCapturing()) {
+                    recorder.recordEvent(message.address(), messageBody);
+                }
                 String sessionId = messageBody.getString("sid");
-                String token = messageBody.getString("token");
                 switch (message.address()) {
                     case LBDTRIGGERADRESS :
-                        getUserId(sessionId, token);
+                        dispatch(ACTION_START_LEARNING_SESSION, sessionId, messageBody, false);
 					break;
                     default :
                         // TODO store unregistered access attempts
@@ -190,14 +447,36 @@ public class LBDMainVerticle
                     log.debug("[Lernbedarfs-Dienst] - MainVerticle content of user online event: "
                             + jsonMessage.body());
                 }
+                if (recorder.isCapturing()) {
+                    recorder.recordEvent(Addresses.USER_ONLINE, jsonMessage.body());
+                }
                 UserOnlineEvent uoe = EventUtil.parseEvent(jsonMessage.body().toMap(),
                         UserOnlineEvent.class);
-                sessionUserID.put(uoe.getSessionId(), uoe.getUserId());
+                dispatch(ACTION_USER_ONLINE, uoe.getSessionId(), new JsonObject().putString(
+                        "sessionId", uoe.getSessionId()).putString("userId", uoe.getUserId()),
+                        true);
             }
         };
         vertx.eventBus().registerHandler(Addresses.USER_ONLINE,
                 userOnlineEventHandler);
 
+        // handler for users going offline, the state of the session is dropped
+        Handler<Message<JsonObject>> userOfflineEventHandler = new Handler<Message<JsonObject>>()
+        {
+            @Override
+            public void handle(Message<JsonObject> jsonMessage)
+            {
+                if (recorder.isCapturing()) {
+                    recorder.recordEvent(Addresses.USER_OFFLINE, jsonMessage.body());
+                }
+                UserOfflineEvent uoe = EventUtil.parseEvent(jsonMessage.body().toMap(),
+                        UserOfflineEvent.class);
+                dispatch(ACTION_USER_OFFLINE, uoe.getSessionId(), new JsonObject().putString(
+                        "sessionId", uoe.getSessionId()), true);
+            }
+        };
+        this.eb.registerHandler(Addresses.USER_OFFLINE, userOfflineEventHandler);
+
         // handler for users switching workstate
         Handler<Message<JsonObject>> userActivitySwitchHandler = new Handler<Message<JsonObject>>()
         {
@@ -205,32 +484,309 @@ public class LBDMainVerticle
             public void handle(Message<JsonObject> jsonMessage)
             {
                 JsonObject body = jsonMessage.body();
-                String sessionId = body.getString("sessionId");
-                String userId = sessionUserID.get(sessionId);
-                boolean isNebenzeit = body.getString("activity").equals("side");
-                if (isNebenzeit) {
-                    usersInNebenzeit.add(sessionId);
-                }
-                else {
-                    usersInNebenzeit.remove(sessionId);
+                if (recorder.isCapturing()) {
+                    recorder.recordEvent(Addresses.USER_ACTIVITY_SWITCH, body);
                 }
-                if (isDebug) {
-                    log.debug("[Lernbedarfs-Dienst] userActivitySwitchHandler jsonMessage"
-                            + jsonMessage.body());
-                    if (isNebenzeit) {
-                        log.debug("[Lernbedarfs-Dienst] Mitarbeiter '" + userId
-                                + "' befindet sich in Nebenzeit");
+                dispatch(ACTION_ACTIVITY_SWITCH, body.getString("sessionId"), body, true);
+            }
+        };
+        this.eb.registerHandler(Addresses.USER_ACTIVITY_SWITCH, userActivitySwitchHandler);
+
+        // handler for reloads of the ontology, cached query results are outdated; no service of the
+        // platform publishes this event yet, until then the caches are invalidated by a POST to
+        // /cache/invalidate or expire
+        Handler<Message<JsonObject>> ontologyReloadedHandler = new Handler<Message<JsonObject>>()
+        {
+            @Override
+            public void handle(Message<JsonObject> jsonMessage)
+            {
+                invalidateCaches();
+            }
+        };
+        this.eb.registerHandler(Addresses.ONTOLOGY_RELOADED, ontologyReloadedHandler);
+
+        // handler for invalidations of the cluster cache by other nodes
+        if (isRouter() && null != shared.getClusterResults()) {
+            Handler<Message<JsonObject>> cacheInvalidatedHandler = new Handler<Message<JsonObject>>()
+            {
+                @Override
+                public void handle(Message<JsonObject> jsonMessage)
+                {
+                    long generation = jsonMessage.body().getLong("generation", 0);
+                    // the node invalidating the cache has already adopted the generation
+                    if (shared.getClusterResults().adoptGeneration(generation)) {
+                        invalidateLocalCaches();
                     }
-                    else {
-                        log.debug("[Lernbedarfs-Dienst] Mitarbeiter '" + userId
-                                + "' befindet sich in Haupttätigkeit");
+                }
+            };
+            this.eb.registerHandler(Addresses.LBD_CACHE_INVALIDATED, cacheInvalidatedHandler);
+        }
+
+        // handler for state changes of machines, e.g., a station running out of Loctite
+        Handler<Message<JsonObject>> machineStateChangedHandler = new Handler<Message<JsonObject>>()
+        {
+            @Override
+            public void handle(Message<JsonObject> jsonMessage)
+            {
+                JsonObject body = jsonMessage.body();
+                MachineStateChangedEvent event;
+                try {
+                    event = EventUtil.parseEvent(body.toMap(), MachineStateChangedEvent.class);
+                }
+                catch (IllegalArgumentException e) {
+                    log.warn("[Lernbedarf-Dienst] - malformed machine state event: "
+                            + e.getMessage());
+                    return;
+                }
+                if (null == event.getStationId()) {
+                    // the station of a machine is not known without its id
+                    log.warn("[Lernbedarf-Dienst] - machine state event without station: " + body);
+                    return;
+                }
+                String station = ontologyIri(event.getStationId());
+                if (null == station) {
+                    log.warn("[Lernbedarf-Dienst] - machine state event with unknown station id: "
+                            + body);
+                    return;
+                }
+                // getMachineId() of the event returns the user id
+                Object machineId = event.getPayload().get("machineId");
+                String machine = null != machineId ? String.valueOf(machineId) : "";
+                String state = null;
+                String machineState = event.getMachineState();
+                if (null != machineState && !machineState.trim().isEmpty()) {
+                    state = ontologyIri(machineState);
+                    if (null == state) {
+                        log.warn("[Lernbedarf-Dienst] - ignoring unknown state id " + machineState
+                                + " of station " + station);
+                        return;
                     }
                 }
-                requestUserInformation(sessionId, userId, "token");
+                if (stationStates.setState(station, machine, state)) {
+                    scheduleStationUpdate(station);
+                }
             }
         };
-        this.eb.registerHandler(Addresses.USER_ACTIVITY_SWITCH, userActivitySwitchHandler);
+        this.eb.registerHandler(Addresses.MACHINE_STATE_CHANGED, machineStateChangedHandler);
 	}
+
+    // the first instance receives all events
+    private boolean isRouter()
+    {
+        return instanceIndex == 0;
+    }
+
+    private static String instanceAddress(int index)
+    {
+        return Addresses.LBD_INSTANCE + ":" + index;
+    }
+
+    // the instance handling a session, the same session is always handled by the same instance
+    private int instanceOf(String sessionId)
+    {
+        if (null == sessionId) {
+            return 0;
+        }
+        return (sessionId.hashCode() & Integer.MAX_VALUE) % instances;
+    }
+
+    private static String nodeAddress(String nodeId)
+    {
+        return Addresses.LBD_NODE + ":" + nodeId;
+    }
+
+    // handles an event for a session on the node of the cluster the session belongs to
+    // published events are received by every node and only handled by the node of the session,
+    // events sent to a single node are forwarded to the node of the session
+    private void dispatch(String action, String sessionId, JsonObject body, boolean published)
+    {
+        if (null != cluster && null != sessionId && !cluster.isLocal(sessionId)) {
+            if (!published) {
+                sendToNode(cluster.getRing().getOwner(sessionId), action, sessionId, body);
+            }
+            return;
+        }
+        route(action, sessionId, body);
+    }
+
+    private void sendToNode(String nodeId, String action, String sessionId, JsonObject body)
+    {
+        JsonObject message = new JsonObject();
+        message.putString("action", action);
+        message.putString("sessionId", sessionId);
+        message.putObject("body", body);
+        this.eb.send(nodeAddress(nodeId), message);
+    }
+
+    // handles an action on the instance handling the session, forwarded actions are received in
+    // the order they have been sent
+    private void route(String action, String sessionId, JsonObject body)
+    {
+        route(action, instanceOf(sessionId), body);
+    }
+
+    private void route(String action, int instance, JsonObject body)
+    {
+        if (instance == instanceIndex) {
+            handleAction(action, body);
+            return;
+        }
+        JsonObject message = new JsonObject();
+        message.putString("action", action);
+        message.putObject("body", body);
+        this.eb.send(instanceAddress(instance), message);
+    }
+
+    // hands the sessions of this instance belonging to other nodes over to these nodes: the
+    // sessions are stored in the cluster before this call returns, and the nodes are asked to
+    // claim them
+    private void handOverSessions(ConsistentHashRing ring)
+    {
+        ClusterMembership membership = shared.getCluster();
+        Map<String, String> states = new HashMap<String, String>();
+        Set<String> owners = new HashSet<String>();
+        for (SessionContext session : sessions.getSessions()) {
+            String owner = ring.getOwner(session.getSessionId());
+            if (null == owner || owner.equals(membership.getNodeId())) {
+                continue;
+            }
+            JsonObject state = new JsonObject();
+            state.putString("sessionId", session.getSessionId());
+            state.putString("userId", session.getUserId());
+            state.putBoolean("inNebenzeit", session.isInNebenzeit());
+            states.put(session.getSessionId(), state.encode());
+            owners.add(owner);
+        }
+        if (states.isEmpty()) {
+            return;
+        }
+        try {
+            membership.handOver(states);
+        }
+        catch (RuntimeException e) {
+            log.error("[Lernbedarf-Dienst] - handing over " + states.size() + " sessions failed",
+                    e);
+            return;
+        }
+        for (String sessionId : states.keySet()) {
+            sessions.handOver(sessionId);
+        }
+        for (String owner : owners) {
+            sendToNode(owner, ACTION_CLAIM, null, new JsonObject());
+        }
+    }
+
+    // takes over the sessions handed over to this node, on the instances handling them
+    private void claimSessions()
+    {
+        for (Map.Entry<String, String> claimed : shared.getCluster().claim().entrySet()) {
+            route(ACTION_HAND_OVER, claimed.getKey(), new JsonObject(claimed.getValue()));
+        }
+    }
+
+    // continues a session handed over by another node, the pipeline of the session is restarted
+    // to restore its workplace groups, development goals and stations and to publish its items
+    private void takeOverSession(JsonObject state)
+    {
+        SessionContext session = sessions.getOrCreate(state.getString("sessionId"));
+        session.setInNebenzeit(state.getBoolean("inNebenzeit", false));
+        if (null != state.getString("userId")) {
+            session.setUserId(state.getString("userId"));
+            session.setTriggerTime(System.nanoTime());
+            requestUserInformation(session, "token");
+        }
+    }
+
+    private void handleAction(String action, JsonObject body)
+    {
+        switch (action) {
+            case ACTION_START_LEARNING_SESSION :
+                getUserId(body.getString("sid"), body.getString("token"), System.nanoTime());
+                break;
+            case ACTION_USER_ONLINE :
+                sessions.getOrCreate(body.getString("sessionId")).setUserId(
+                        body.getString("userId"));
+                // the user model does not report changes, a new session gets the current profile
+                userProfiles.invalidate(body.getString("userId"));
+                break;
+            case ACTION_USER_OFFLINE :
+                sessions.remove(body.getString("sessionId"));
+                break;
+            case ACTION_ACTIVITY_SWITCH :
+                switchActivity(body);
+                break;
+            case ACTION_STATION_UPDATE :
+                updateSession(body.getString("sessionId"));
+                break;
+            case ACTION_INVALIDATE_CACHES :
+                invalidateCaches();
+                break;
+            case ACTION_REBALANCE :
+                handOverSessions(shared.getCluster().getRing());
+                break;
+            case ACTION_HAND_OVER :
+                takeOverSession(body);
+                break;
+            case ACTION_CLAIM :
+                claimSessions();
+                break;
+            default :
+                log.warn("[Lernbedarf-Dienst] - unknown action " + action);
+                break;
+        }
+    }
+
+    // handles a switch between main and side activity
+    private void switchActivity(JsonObject body)
+    {
+        final SessionContext session = sessions.getOrCreate(body.getString("sessionId"));
+        String userId = session.getUserId();
+        boolean isNebenzeit = body.getString("activity").equals("side");
+        session.setInNebenzeit(isNebenzeit);
+        session.setTriggerTime(System.nanoTime());
+        // runs for the previous activity must not publish anymore
+        session.nextGeneration();
+        if (isDebug) {
+            log.debug("[Lernbedarfs-Dienst] userActivitySwitchHandler jsonMessage" + body);
+            if (isNebenzeit) {
+                log.debug("[Lernbedarfs-Dienst] Mitarbeiter '" + userId
+                        + "' befindet sich in Nebenzeit");
+            }
+            else {
+                log.debug("[Lernbedarfs-Dienst] Mitarbeiter '" + userId
+                        + "' befindet sich in Haupttätigkeit");
+            }
+        }
+        // switches following within the debounce time are handled by a single run at its end
+        if (session.getActivitySwitchTimer() >= 0) {
+            session.setActivitySwitchPending(true);
+            return;
+        }
+        requestUserInformation(session, "token");
+        startActivitySwitchDebounce(session);
+    }
+
+    // starts the debounce time after a run for an activity switch has been started
+    private void startActivitySwitchDebounce(final SessionContext session)
+    {
+        if (activitySwitchDebounceTime <= 0) {
+            return;
+        }
+        session.setActivitySwitchTimer(vertx.setTimer(activitySwitchDebounceTime,
+                new Handler<Long>()
+                {
+                    @Override
+                    public void handle(Long timerId)
+                    {
+                        session.setActivitySwitchTimer(-1);
+                        if (session.isActivitySwitchPending() && !session.isEvicted()) {
+                            session.setActivitySwitchPending(false);
+                            requestUserInformation(session, "token");
+                            startActivitySwitchDebounce(session);
+                        }
+                    }
+                }));
+    }
 	
 	/**
 	 * In this method the HTTP API build using a route matcher.
@@ -245,43 +801,194 @@ public class LBDMainVerticle
             @Override
             public void handle(final HttpServerRequest request)
             {
-                Handler<Message<String>> stringHandler = new Handler<Message<String>>(){
+                AsyncResultHandler<String> stringHandler = new AsyncResultHandler<String>(){
 
                     @Override
-                    public void handle(Message<String> messageString)
+                    public void handle(AsyncResult<String> messageString)
                     {
+                        if (messageString.failed()) {
+                            request.response().setStatusCode(500)
+                                    .end(messageString.cause().getMessage());
+                            return;
+                        }
                         if (isDebug)
-                            log.debug(messageString.body());
-                        JsonObject result = new JsonObject(messageString.body());
+                            log.debug(messageString.result());
                         Set<String> resultSet = new HashSet<String>();
-                        JsonArray messageArray = result.getObject("results").getArray("bindings");
-                        Iterator<Object> messageArrayIterator = messageArray.iterator();
-                        while (messageArrayIterator.hasNext()) {
-                            Object currentArrayEntry = messageArrayIterator.next();
-                            if (currentArrayEntry instanceof JsonObject) {
-                                resultSet.add(((JsonObject) currentArrayEntry).getObject("inhalt")
-                                        .getString("value"));
-                            }
-                            else {
-                                if (isDebug)
-                                    log.error("Expected JsonObject. Found "
-                                        + currentArrayEntry.getClass());
-                            }
+                        try {
+                            contentDecoder.decode(messageString.result(),
+                                    SparQLResultDecoder.values(resultSet, 0));
+                        }
+                        catch (IOException e) {
+                            request.response().setStatusCode(500).end(e.getMessage());
+                            return;
                         }
                         if (isDebug)
                             log.debug(resultSet);
-                        request.response().end(messageString.body());
+                        request.response().end(messageString.result());
 
                     }
                     
                 };
+                // relative IRIs are resolved against the base of the queries, i.e., app:
                 LBDSparQLQueries.getContentsForStatesMachinesStations(
-                        "{app:LoctiteLeer app:FettWenig app:S20 app:S10}",
-                        sparqlPrefix("festo/AnlagenoperatorGPZ"), eb, stringHandler);
+                        Arrays.asList("LoctiteLeer", "FettWenig", "S20", "S10"),
+                        "festo/AnlagenoperatorGPZ", dispatcher, stringHandler);
             }
 		    
         });
 		
+        routeMatcher.get("/cache/statistics", new Handler<HttpServerRequest>()
+        {
+            @Override
+            public void handle(HttpServerRequest request)
+            {
+                JsonObject statistics = new JsonObject();
+                statistics.putNumber("instance", instanceIndex);
+                statistics.putNumber("instances", instances);
+                if (null != shared.getCluster()) {
+                    statistics.putObject("cluster", shared.getCluster().getStatistics());
+                }
+                statistics.putObject("dispatcher", dispatcher.getStatistics());
+                statistics.putObject("sessions", sessions.getStatistics());
+                statistics.putObject("labels", knowledgeItemLabels.getStatistics());
+                statistics.putObject("userProfiles", userProfiles.getStatistics());
+                statistics.putObject("userModelBreaker", userModelBreaker.getStatistics());
+                statistics.putObject("pipeline", metrics.getStatistics());
+                JsonObject stationStatistics = stationStates.getStatistics();
+                stationStatistics.putNumber("indexedStations", stationSessions.size());
+                statistics.putObject("stationStates", stationStatistics);
+                if (null != shared.getTopology()) {
+                    statistics.putObject("topology", shared.getTopology().getStatistics());
+                }
+                if (null != dispatcher.getCache()) {
+                    statistics.putObject("sparql", dispatcher.getCache().getStatistics());
+                }
+                if (null != shared.getClusterResults()) {
+                    statistics.putObject("sparqlCluster", shared.getClusterResults()
+                            .getStatistics());
+                }
+                request.response().putHeader("Content-Type", "application/json")
+                        .end(statistics.encodePrettily());
+            }
+        });
+
+        routeMatcher.get("/metrics", new Handler<HttpServerRequest>()
+        {
+            @Override
+            public void handle(HttpServerRequest request)
+            {
+                request.response().putHeader("Content-Type", "text/plain; version=0.0.4")
+                        .end(metrics.toPrometheus());
+            }
+        });
+
+        routeMatcher.post("/recording/start", new Handler<HttpServerRequest>()
+        {
+            @Override
+            public void handle(HttpServerRequest request)
+            {
+                String duration = request.params().get("duration");
+                try {
+                    String output = recording.start(null != duration ? Long.parseLong(duration)
+                            : 0);
+                    request.response().end(output);
+                }
+                catch (IllegalStateException e) {
+                    request.response().setStatusCode(409).end(e.getMessage());
+                }
+                catch (NumberFormatException e) {
+                    request.response().setStatusCode(400).end("Invalid duration: " + duration);
+                }
+                catch (JMException e) {
+                    log.warn("[Lernbedarf-Dienst] - starting the recording failed", e);
+                    request.response().setStatusCode(503).end(String.valueOf(e.getMessage()));
+                }
+            }
+        });
+
+        routeMatcher.post("/recording/stop", new Handler<HttpServerRequest>()
+        {
+            @Override
+            public void handle(final HttpServerRequest request)
+            {
+                recording.stop(new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> file)
+                    {
+                        if (file.succeeded()) {
+                            request.response().end(file.result());
+                        }
+                        else if (file.cause() instanceof IllegalStateException) {
+                            request.response().setStatusCode(409).end(file.cause().getMessage());
+                        }
+                        else {
+                            log.warn("[Lernbedarf-Dienst] - stopping the recording failed",
+                                    file.cause());
+                            request.response().setStatusCode(503)
+                                    .end(String.valueOf(file.cause().getMessage()));
+                        }
+                    }
+                });
+            }
+        });
+
+        routeMatcher.post("/capture/start", new Handler<HttpServerRequest>()
+        {
+            @Override
+            public void handle(HttpServerRequest request)
+            {
+                String duration = request.params().get("duration");
+                try {
+                    String file = recorder.start(null != duration ? Long.parseLong(duration) : 0);
+                    request.response().end(file);
+                }
+                catch (IllegalStateException e) {
+                    request.response().setStatusCode(409).end(e.getMessage());
+                }
+                catch (NumberFormatException e) {
+                    request.response().setStatusCode(400).end("Invalid duration: " + duration);
+                }
+            }
+        });
+
+        routeMatcher.post("/capture/stop", new Handler<HttpServerRequest>()
+        {
+            @Override
+            public void handle(final HttpServerRequest request)
+            {
+                recorder.stop(new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> file)
+                    {
+                        if (file.succeeded()) {
+                            request.response().end(file.result());
+                        }
+                        else if (file.cause() instanceof IllegalStateException) {
+                            request.response().setStatusCode(409).end(file.cause().getMessage());
+                        }
+                        else {
+                            log.warn("[Lernbedarf-Dienst] - stopping the capture failed",
+                                    file.cause());
+                            request.response().setStatusCode(503)
+                                    .end(String.valueOf(file.cause().getMessage()));
+                        }
+                    }
+                });
+            }
+        });
+
+        routeMatcher.post("/cache/invalidate", new Handler<HttpServerRequest>()
+        {
+            @Override
+            public void handle(HttpServerRequest request)
+            {
+                invalidateCaches();
+                request.response().end();
+            }
+        });
+
 		/*
 		 * The following rules are applied in the order given during the initialization.
 		 * The first rule which matches the request is applied and the latter rules are ignored. 
@@ -334,11 +1041,103 @@ public class LBDMainVerticle
 		});
 	}
 	
-		private void addSproutKnowledgeItem() {
-		// TODO Auto-generated method stub
-			for (String sessionId: sessionUserID.keySet()){
-				List<ServiceItem> serviceItemList = new ArrayList<ServiceItem>();
-				LearningObjectItemBuilder loib = new LearningObjectItemBuilder();
+    // recomputes the main activity contents of the sessions with the station after the debounce
+    // time
+    private void scheduleStationUpdate(final String station)
+    {
+        if (stationUpdateTimers.containsKey(station)) {
+            return;
+        }
+        long timerId = vertx.setTimer(stationDebounceTime, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long timerId)
+            {
+                stationUpdateTimers.remove(station);
+                for (String sessionId : stationSessions.getSessions(station)) {
+                    if (isDebug) {
+                        log.debug("[Lernbedarf-Dienst] - state of station " + station
+                                + " changed, updating session " + sessionId);
+                    }
+                    route(ACTION_STATION_UPDATE, sessionId,
+                            new JsonObject().putString("sessionId", sessionId));
+                }
+            }
+        });
+        stationUpdateTimers.put(station, timerId);
+    }
+
+    // recomputes the main activity contents of a session after a station state has changed,
+    // starting at rule 3.1.1.1 since the stations of the workplace groups stay the same
+    private void updateSession(String sessionId)
+    {
+        SessionContext session = sessions.get(sessionId);
+        if (null == session || session.isInNebenzeit() || null == session.getWorkplaceGroups()) {
+            return;
+        }
+        session.setTriggerTime(System.nanoTime());
+        requestLearningMaterialListMain(session, startRun(session), session.getStations());
+    }
+
+    // returns the IRI of a station or state sent by an event as an IRI, with or without angle
+    // brackets, as a name prefixed with "app:" or as a name of the ontology without prefix, null
+    // if the id has another prefix
+    private static String ontologyIri(String id)
+    {
+        String iri = id.trim();
+        if (iri.length() > 2 && iri.startsWith("<") && iri.endsWith(">")) {
+            iri = iri.substring(1, iri.length() - 1);
+            // relative IRIs are resolved against the ontology, the base of all queries
+            return iri.indexOf(':') >= 0 ? iri : ONTOLOGY_IRI + iri;
+        }
+        if (iri.startsWith(ONTOLOGY_PREFIX_NAME)) {
+            return ONTOLOGY_IRI + iri.substring(ONTOLOGY_PREFIX_NAME.length());
+        }
+        if (ABSOLUTE_IRI.matcher(iri).matches()) {
+            return iri;
+        }
+        return iri.isEmpty() || iri.indexOf(':') >= 0 || iri.indexOf('<') >= 0 ? null
+                : ONTOLOGY_IRI + iri;
+    }
+
+    // drops all results retrieved from the ontology
+    private void invalidateCaches()
+    {
+        if (!isRouter()) {
+            // the shared caches are reloaded by the first instance
+            this.eb.send(instanceAddress(0),
+                    new JsonObject().putString("action", ACTION_INVALIDATE_CACHES));
+            return;
+        }
+        if (null != shared.getClusterResults()) {
+            // results stored by the other nodes are outdated as well
+            long generation = shared.getClusterResults().invalidate();
+            this.eb.publish(Addresses.LBD_CACHE_INVALIDATED,
+                    new JsonObject().putNumber("generation", generation));
+        }
+        invalidateLocalCaches();
+    }
+
+    // drops the results retrieved from the ontology cached by this node, run by the first instance
+    private void invalidateLocalCaches()
+    {
+        if (null != dispatcher.getCache()) {
+            long epoch = dispatcher.getCache().invalidate();
+            log.info("[Lernbedarf-Dienst] - SparQL result cache invalidated, epoch " + epoch);
+        }
+        knowledgeItemLabels.invalidate();
+        preloadLabels();
+        if (null != shared.getTopology()) {
+            shared.getTopology().refresh();
+        }
+    }
+
+		private void addSproutKnowledgeItem() {
+		// TODO Auto-generated method stub
+			for (SessionContext session : sessions.getSessions()){
+				String sessionId = session.getSessionId();
+				List<ServiceItem> serviceItemList = new ArrayList<ServiceItem>();
+				LearningObjectItemBuilder loib = new LearningObjectItemBuilder();
 	            String sendMessageActionAddress = Addresses.OPEN_EXTERNAL_CONTENT;
 	            String contentId = "/services/cds/static/externalContent/5_DSBC_Basiswissen/index.html?skipcheck";
 	            JsonObject jo = new JsonObject();
@@ -352,17 +1151,19 @@ public class LBDMainVerticle
 	            SendMessageAction sma = new SendMessageAction(sendMessageActionAddress, bo);
 	            loib.setId("lbd-14").setPriority(14)
 	            	.isExternal()
-	            	.setMimeType(detectMimeType(contentId))
+	            	.setMimeType(ServiceItemFactory.detectMimeType(contentId))
 	                    .setTitle("DSBC Basiswissen")
 	                    .setService("lbd")
 	                    .setImageUrl(externalContentDirectory + "thumbnails/5_DSBC_Basiswissen.jpg")
 	                    .setAction(sma);
 	            serviceItemList.add(loib.build());
+	            // the items shown no longer match the items published, the next list replaces them
+	            session.setPublishedItems(null);
 	            conn.addServiceItems(sessionId, serviceItemList, null);			}
 			// Build Learning Service Item
 			// add to KnowledgeItem Catalogue
 		}
-    private void getUserId(String sessionId, final String token)
+    private void getUserId(String sessionId, final String token, final long triggerTime)
     {
         AsyncResultHandler<Session> sessionHandler = new AsyncResultHandler<Session>()
         {
@@ -373,7 +1174,10 @@ public class LBDMainVerticle
                 if (sessionRequest.succeeded()) {
                     Session session = sessionRequest.result();
                     if (null != session) {
-                        requestUserInformation(session, token);
+                        if (recorder.isCapturing()) {
+                            recorder.recordSession(session.getId(), session.getUserId());
+                        }
+                        requestUserInformation(session, token, triggerTime);
                     }
                 }
             }
@@ -382,372 +1186,678 @@ public class LBDMainVerticle
         authConn.getSession(sessionId, token, sessionHandler);
     }
 
-    private void requestUserInformation(String sessionId, String userId, String token)
+    private void requestUserInformation(final SessionContext session, String token)
     {
-        this.sessionUserID.put(sessionId, userId);
+        final int generation = startRun(session);
+        UserProfile profile = userProfiles.get(session.getUserId());
+        if (null != profile) {
+            applyUserProfile(session, generation, profile);
+            return;
+        }
+        try {
+            userModelBreaker.allowRequest();
+        }
+        catch (CircuitBreaker.OpenException e) {
+            failRun(session, generation, "requesting the user information failed", e);
+            return;
+        }
         JsonObject request = new JsonObject();
-        request.putString("sid", sessionId);
-        request.putString("userId", userId);
+        request.putString("sid", session.getSessionId());
+        request.putString("userId", session.getUserId());
         request.putString("token", token);
-        Handler<Message<JsonObject>> userInformationHandler = new Handler<Message<JsonObject>>()
+        final long requestTime = System.nanoTime();
+        Handler<AsyncResult<Message<JsonObject>>> userInformationHandler = new Handler<AsyncResult<Message<JsonObject>>>()
         {
 
             @Override
-            public void handle(Message<JsonObject> message)
+            public void handle(AsyncResult<Message<JsonObject>> reply)
             {
+                long elapsed = System.nanoTime() - requestTime;
+                if (reply.failed()) {
+                    userModelBreaker.recordFailure();
+                    failRun(session, generation, "requesting the user information failed for "
+                            + "session " + session.getSessionId(), reply.cause());
+                    return;
+                }
+                userModelBreaker.recordSuccess();
+                Message<JsonObject> message = reply.result();
+                metrics.record(PipelineMetrics.STAGE_USER_INFORMATION, elapsed);
+                traceStage(session, PipelineMetrics.STAGE_USER_INFORMATION, elapsed, 1);
                 JsonObject messageBody = message.body();
+                if (recorder.isCapturing()) {
+                    recorder.recordUserInformation(session.getUserId(), messageBody, elapsed);
+                }
                 if (isDebug)
                     log.debug("lbd - requestUserInformation");
-                processUserInformation(messageBody);
+                processUserInformation(session, generation, messageBody);
 
             }
 
         };
         if (isDebug)
             log.debug("Sending request for userInformation" + request);
-        eb.send(Addresses.USER_GET_INFORMATION, request, userInformationHandler);
+        // a timeout of -1 waits for the reply as long as it takes
+        eb.sendWithTimeout(Addresses.USER_GET_INFORMATION, request, userModelTimeout > 0
+                ? userModelTimeout : -1, userInformationHandler);
     }
 
-    private void requestUserInformation(Session session, String token)
+    private void requestUserInformation(Session session, String token, long triggerTime)
     {
-        this.sessionUserID.put(session.getId(), session.getUserId());
-        JsonObject request = new JsonObject();
-        request.putString("sid", session.getId());
-        request.putString("userId", session.getUserId());
-        request.putString("token", token);
-        Handler<Message<JsonObject>> userInformationHandler = new Handler<Message<JsonObject>>(){
-
-            @Override
-            public void handle(Message<JsonObject> message)
-            {
-                JsonObject messageBody = message.body();
-                processUserInformation(messageBody);
-
-            }
-            
-        };
-        eb.send(Addresses.USER_GET_INFORMATION, request, userInformationHandler);
+        SessionContext context = sessions.getOrCreate(session.getId());
+        context.setUserId(session.getUserId());
+        context.setTriggerTime(triggerTime);
+        requestUserInformation(context, token);
     }
 
-    private void processUserInformation(JsonObject messageBody)
+    private void processUserInformation(SessionContext session, int generation,
+            JsonObject messageBody)
     {
             log.debug("[Lernbedarf-Dienst] - processUserInformation" + messageBody);
 
+        if (isAbandoned(session, generation)) {
+            // user has gone offline or switched activity in the meantime
+            return;
+        }
         JsonObject userInformation = messageBody.getObject("userInformation");
-        // store information about user in corresponding maps
-        String sessionId = messageBody.getString("sid");
+        // store information about user in the session context
+        UserProfile profile;
         try {
-            // de.appsist.service.usermodel.model.User user = new ObjectMapper().readValue(
-            // userInformation.getString("userObject"),
-            // de.appsist.service.usermodel.model.User.class);
-            Set<String> apgs;
-            Set<String> devgoals;
-            EmployeeDevelopmentGoals edg;
-            String employeeType;
-            // if (null != user) {
-            // apgs = user.getWorkplaceGroups();
-            // devgoals = user.getDevelopmentGoals();
-            // edg = user.getDevelopmentGoalsObject();
-            // employeeType = user.getEmployeeType();
-            //
-            // }
-            // else {
-                apgs = new ObjectMapper().readValue(userInformation.getString("workplaceGroups"),
-                        Set.class);
-                devgoals = new ObjectMapper()
-                        .readValue(userInformation.getString("developmentGoals"), Set.class);
-                edg = new ObjectMapper().readValue(
-                        userInformation.getString("developmentGoalsObject"),
-                        EmployeeDevelopmentGoals.class);
-            employeeType = userInformation.getString("employeeType");
-            // }
-            
-            if (isDebug) {
-                // log.debug("[Lernbedarf-Dienst] - user" + user.toString());
-                log.debug("[Lernbedarf-Dienst] - currentPosition: " + employeeType);
-                log.debug("[lbd] - developmentgoals: " + devgoals);
-                log.debug("[lbd] - workplaceGroups: " + apgs);
-                log.debug("[lbd] - employeeDevelopmentGoals: " + edg.getItems());
-            }
-
-            sessionCurrentPosition.put(sessionId, employeeType);
-            sessionDevelopmentGoals.put(sessionId, devgoals);
-            sessionWorkplaceGroups.put(sessionId, apgs);
-            sessionDGobject.put(sessionId, edg);
-
+            profile = UserProfile.decode(userInformation);
         }
         catch (Exception e) {
             e.printStackTrace();
+            startPipeline(session, generation);
+            return;
+        }
+        if (null != session.getUserId()) {
+            userProfiles.put(session.getUserId(), profile);
         }
+        applyUserProfile(session, generation, profile);
+    }
+
+    private void applyUserProfile(SessionContext session, int generation, UserProfile profile)
+    {
+        if (isDebug) {
+            log.debug("[Lernbedarf-Dienst] - currentPosition: " + profile.getEmployeeType());
+            log.debug("[lbd] - developmentgoals: " + profile.getDevelopmentGoals());
+            log.debug("[lbd] - workplaceGroups: " + profile.getWorkplaceGroups());
+            log.debug("[lbd] - employeeDevelopmentGoals: "
+                    + profile.getDevelopmentGoalsObject().getItems());
+        }
+
+        session.setCurrentPosition(profile.getEmployeeType());
+        session.setDevelopmentGoals(profile.getDevelopmentGoals());
+        session.setWorkplaceGroups(profile.getWorkplaceGroups());
+        session.setDevelopmentGoalsObject(profile.getDevelopmentGoalsObject());
+        startPipeline(session, generation);
+    }
+
+    // starts the pipeline of the current activity of the user
+    private void startPipeline(SessionContext session, int generation)
+    {
         if (isDebug) {
             log.debug("[Lernbedarfs-Dienst] - userInformation currentWorkstate: "
-                    + usersInNebenzeit.contains(sessionId));
+                    + session.isInNebenzeit());
 
         }
 
-        if (!usersInNebenzeit.contains(sessionId)) {
-            requestStationsInWorkplaceGroups(sessionId);
+        if (!session.isInNebenzeit()) {
+            requestLearningMaterialListMain(session, generation);
         }
         else {
-            buildLearningMaterialListSide(sessionId);
+            buildLearningMaterialListSide(session, generation);
         }
     }
 
-    // rule 3.1.1
-    private void requestStationsInWorkplaceGroups(final String sessionId)
+    // starts a pipeline run superseding the runs started before, the items published before are
+    // published in the meantime if the run has not published its items at the deadline
+    private int startRun(final SessionContext session)
     {
-        try{
-            // transform JsonString to JavaObject
-            
-            String workplaceGroups = "{";
-                for (String workplaceGroup: sessionWorkplaceGroups.get(sessionId)){
-                workplaceGroups += " " + sparqlPrefix(workplaceGroup);
-                }
-            workplaceGroups+="}";
-            
-            Handler<Message<String>> stationsInWorkplaceGroupsHandler = new Handler<Message<String>>() {
-
+        final int generation = session.nextGeneration();
+        cancelDeadline(session);
+        session.setDeadline(pipelineDeadline > 0 ? System.nanoTime() + pipelineDeadline * 1000000
+                : 0);
+        if (pipelineDeadline > 0) {
+            session.setDeadlineTimer(vertx.setTimer(pipelineDeadline, new Handler<Long>()
+            {
                 @Override
-                public void handle(Message<String> stringMessage)
+                public void handle(Long timerId)
                 {
-                    JsonObject result = new JsonObject(stringMessage.body());
-                    Set<String> resultSet = new HashSet<String>();
-                    JsonArray messageArray = result.getObject("results").getArray("bindings");
-                    Iterator<Object> messageArrayIterator = messageArray.iterator();
-                    while (messageArrayIterator.hasNext()) {
-                        Object currentArrayEntry = messageArrayIterator.next();
-                        if (currentArrayEntry instanceof JsonObject) {
-                            resultSet.add(((JsonObject) currentArrayEntry).getObject("device")
-                                    .getString("value"));
-                        }
-                        else {
-                            if (isDebug)
-                                log.debug("Expected JsonObject. Found "
-                                        + currentArrayEntry.getClass());
-                        }
-                    }
-                    sessionStations.put(sessionId, resultSet);
-                    requestCurrentStatesForStations(sessionId, resultSet);
+                    session.setDeadlineTimer(-1);
+                    expire(session, generation);
                 }
-                
-            };
-            
+            }));
+        }
+        return generation;
+    }
 
-            BasicSparQLQueries.getStationsInWorkplaceGroups(workplaceGroups, eb,
-                    stationsInWorkplaceGroupsHandler);
-            
-        } catch(Exception e){
-            e.printStackTrace();
+    private void cancelDeadline(SessionContext session)
+    {
+        if (session.getDeadlineTimer() >= 0) {
+            vertx.cancelTimer(session.getDeadlineTimer());
+            session.setDeadlineTimer(-1);
         }
-        
     }
 
-    private void requestCurrentStatesForStations(String sessionId, Set<String> stationSet)
+    // publishes the items published before as interim result of a run which missed its deadline,
+    // the run goes on and publishes its own result if it completes
+    private void expire(SessionContext session, int generation)
     {
-        String stateStation = "{";
-        for (String station : stationSet) {
+        if (!session.isCurrent(generation)) {
+            return;
+        }
+        if (null == session.getLastItems(session.isInNebenzeit())) {
+            // nothing to fall back to, the run continues, bounded by the timeouts of its requests
+            return;
+        }
+        metrics.countExpired();
+        if (isDebug) {
+            log.debug("[Lernbedarf-Dienst] - run " + generation + " of session "
+                    + session.getSessionId() + " missed its deadline");
+        }
+        fallBack(session);
+    }
 
-            stateStation += "(<http://www.appsist.de/ontology/FunkionsfaehigerZustand> "
-                    + sparqlPrefix(station) + ")";
+    // ends a run which failed, unless it has been superseded or cut off before
+    private void failRun(SessionContext session, int generation, String message, Throwable cause)
+    {
+        if (isAbandoned(session, generation)) {
+            return;
+        }
+        metrics.countFailed();
+        if (cause instanceof CircuitBreaker.OpenException
+                || cause instanceof DispatchQueue.ShedException) {
+            if (isDebug) {
+                log.debug("[Lernbedarf-Dienst] - " + message + ": " + cause.getMessage());
+            }
         }
-        stateStation += "}";
-        requestLocalStates(sessionId, stateStation);
+        else {
+            log.error("[Lernbedarf-Dienst] - " + message, cause);
+        }
+        fallBack(session);
     }
 
-    // Rule 3.1.1.1 in document "Adaptionsregeln" ("Lokale Zustaende")
-    private void requestLocalStates(final String sessionId, String stateStation)
+    // publishes the items published last for the current activity of the session instead of the
+    // result of a run, if there are any
+    private void fallBack(SessionContext session)
     {
-        Handler<Message<String>> localStatesHandler = new Handler<Message<String>>(){
+        cancelDeadline(session);
+        List<ServiceItem> lastItems = session.getLastItems(session.isInNebenzeit());
+        if (null == lastItems) {
+            return;
+        }
+        metrics.countFallback();
+        publishServiceItems(session, lastItems);
+    }
 
-            @Override
-            public void handle(Message<String> messageString)
-            {
-                JsonObject result = new JsonObject(messageString.body());
-                JsonArray messageArray = result.getObject("results").getArray("bindings");
-                // log.debug(messageArray.encodePrettily());
-                Iterator<Object> jsonArrayIterator = messageArray.iterator();
-                Set<LocalState> lsSet = new HashSet<LocalState>();
-
-                Set<String> localStates = new HashSet<String>();
-                while (jsonArrayIterator.hasNext()) {
-                    Object iteratorObject = jsonArrayIterator.next();
-                    if (iteratorObject instanceof JsonObject) {
-                        JsonObject jsonObject = (JsonObject) iteratorObject;
-                        LocalState ls = new LocalState(
-                                sparqlPrefix(jsonObject.getObject("z").getString("value")),
-                                sparqlPrefix(jsonObject.getObject("station").getString("value")),
-                                jsonObject.getObject("p").getString("value"));
-                        lsSet.add(ls);
-                        localStates.add(ls.getState());
-                    }
-                }
-                sessionLocalStates.put(sessionId, lsSet);
-                sessionStates.put(sessionId, localStates);
-                requestMachinesInWorkplaceGroups(sessionId);
-            }
-        };
+    // whether a pipeline run has been superseded by a newer run or its session has been evicted
+    private boolean isAbandoned(SessionContext session, int generation)
+    {
+        if (session.isCurrent(generation)) {
+            return false;
+        }
+        if (session.markAbandoned(generation)) {
+            metrics.countAbandoned();
+        }
         if (isDebug) {
-            log.debug("[Lernbedarfsdienst] zustand station tupel: " + stateStation);
+            log.debug("[Lernbedarf-Dienst] - abandoning superseded run " + generation
+                    + " of session " + session.getSessionId());
+        }
+        return true;
+    }
+
+    // sets the session, stage and priority of the next query, and the deadline of the current run
+    // if there are items to publish in the meantime, see expire. The queries of a run going on
+    // after the items have been published in the meantime give way to the queries of other runs.
+    private void traceNextQuery(SessionContext session, String stage,
+            DispatchQueue.Priority priority)
+    {
+        long deadline = 0;
+        if (0 != session.getDeadline() && null != session.getLastItems(session.isInNebenzeit())) {
+            deadline = session.getDeadline();
+            if (System.nanoTime() - deadline >= 0) {
+                priority = DispatchQueue.Priority.BACKGROUND;
+            }
+        }
+        dispatcher.traceNextQuery(session.getSessionId().hashCode(), stage, priority, deadline);
+    }
+
+    // commits the Flight Recorder event of a stage while a recording is running
+    private void traceStage(SessionContext session, String stage, long nanos, int rows)
+    {
+        if (events.isStageEnabled()) {
+            events.stage(session.getSessionId().hashCode(), stage, rows, nanos);
         }
-        BasicSparQLQueries.getLocalStates(stateStation, eb, localStatesHandler);
     }
 
-    // Rule 1.2 in document "Adaptionsregeln"
-    private void requestMachinesInWorkplaceGroups(final String sessionId)
+    // records the durations of the rules evaluated for a session
+    private class StageTimer
+        implements RuleGraph.Timer
     {
+        private final SessionContext session;
 
-        Handler<Message<String>> machinesInWorkplaceGroupsHandler = new Handler<Message<String>>()
+        private StageTimer(SessionContext session)
         {
+            this.session = session;
+        }
 
+        @Override
+        public void record(String ruleId, long nanos, Object result)
+        {
+            metrics.record(ruleId, nanos);
+            if (events.isStageEnabled()) {
+                int rows = 0;
+                if (result instanceof Collection) {
+                    rows = ((Collection<?>) result).size();
+                }
+                else if (result instanceof Map) {
+                    rows = ((Map<?, ?>) result).size();
+                }
+                events.stage(session.getSessionId().hashCode(), ruleId, rows, nanos);
+            }
+        }
+    }
+
+    // rules of the main activity pipeline, see document "Adaptionsregeln"
+    private static final String RULE_STATIONS = "3.1.1";
+    private static final String RULE_LOCAL_STATES = "3.1.1.1";
+    private static final String RULE_MACHINES = "1.2";
+    private static final String RULE_MAIN_CONTENTS = "contents";
+    private static final String RULE_LABELS = "labels";
+
+    // all stages timed by the pipeline metrics
+    static final String[] PIPELINE_STAGES = { PipelineMetrics.STAGE_USER_INFORMATION, RULE_MACHINES,
+            RULE_STATIONS, RULE_LOCAL_STATES, RULE_MAIN_CONTENTS, RULE_LABELS,
+            PipelineMetrics.STAGE_ITEMS_CONTENT, PipelineMetrics.STAGE_PRODUCTION_ITEMS,
+            PipelineMetrics.STAGE_PRODUCTION_ITEMS_MEASURES,
+            PipelineMetrics.STAGE_SIDE_ACTIVITY_CONTENTS, PipelineMetrics.STAGE_MANDATORY_CONTENTS,
+            PipelineMetrics.STAGE_IID_PUBLISH };
+
+    // builds and executes the rule graph for users in main activity
+    // rules 3.1.1 and 1.2 send the same query, rule 1.2 receives the result of rule 3.1.1
+    private void requestLearningMaterialListMain(SessionContext session, int generation)
+    {
+        requestLearningMaterialListMain(session, generation, null);
+    }
+
+    // stations are the known result of rule 3.1.1, null to evaluate it
+    private void requestLearningMaterialListMain(final SessionContext session,
+            final int generation, Set<String> stations)
+    {
+        RuleGraph ruleGraph = new RuleGraph().setTimer(new StageTimer(session));
+        if (null != stations) {
+            ruleGraph.addResult(RULE_STATIONS, stations);
+        }
+        else {
+            // sorted to send the same query for the same workplace groups
+            Set<String> workplaceGroups = new TreeSet<String>(session.getWorkplaceGroups());
+            ruleGraph.addRule(RULE_STATIONS, stationsInWorkplaceGroupsRule(session, generation,
+                    workplaceGroups));
+        }
+        ruleGraph.addAlias(RULE_MACHINES, RULE_STATIONS);
+        ruleGraph.addRule(RULE_LOCAL_STATES, localStatesRule(session, generation), RULE_STATIONS);
+        ruleGraph.addRule(RULE_MAIN_CONTENTS,
+                contentsForStatesMachinesStationsRule(session, generation), RULE_STATIONS,
+                RULE_LOCAL_STATES, RULE_MACHINES);
+        ruleGraph.addRule(RULE_LABELS, labelsRule(session, generation), RULE_MAIN_CONTENTS);
+
+        AsyncResultHandler<Map<String, Object>> ruleGraphHandler = new AsyncResultHandler<Map<String, Object>>()
+        {
             @Override
-            public void handle(Message<String> stringMessage)
+            public void handle(AsyncResult<Map<String, Object>> ruleResults)
             {
-                JsonObject result = new JsonObject(stringMessage.body());
-                Set<String> resultSet = new HashSet<String>();
-                JsonArray messageArray = result.getObject("results").getArray("bindings");
-                // log.debug("[Lernbedarf-Dienst] - Anlagen und Stationen in der APG: "
-                // + messageArray.encodePrettily());
-                Iterator<Object> messageArrayIterator = messageArray.iterator();
-                while (messageArrayIterator.hasNext()) {
-                    Object currentArrayEntry = messageArrayIterator.next();
-                    if (currentArrayEntry instanceof JsonObject) {
-                        resultSet.add(((JsonObject) currentArrayEntry).getObject("device")
-                                .getString("value"));
-                    }
-                    else {
-                        if (isDebug)
-                            log.debug("Expected JsonObject. Found " + currentArrayEntry.getClass());
+                if (ruleResults.failed()) {
+                    if (!(ruleResults.cause() instanceof CancellationException)) {
+                        failRun(session, generation, "main activity rules failed for session "
+                                + session.getSessionId(), ruleResults.cause());
                     }
+                    return;
                 }
-                sessionMachines.put(sessionId, resultSet);
-                requestLearningMaterialListMain(sessionId);
+                @SuppressWarnings("unchecked")
+                Map<String, String> contents = (Map<String, String>) ruleResults.result()
+                        .get(RULE_MAIN_CONTENTS);
+                buildLearningMaterialList(session, generation, contents);
             }
+        };
+        ruleGraph.execute(ruleGraphHandler);
+    }
 
+    // rule 3.1.1
+    private RuleGraph.Rule stationsInWorkplaceGroupsRule(final SessionContext session,
+            final int generation, final Set<String> workplaceGroups)
+    {
+        return new RuleGraph.Rule()
+        {
+            @Override
+            public void evaluate(Map<String, Object> inputs,
+                    final AsyncResultHandler<Object> resultHandler)
+            {
+                if (isAbandoned(session, generation)) {
+                    resultHandler.handle(new DefaultFutureResult<Object>(new CancellationException()));
+                    return;
+                }
+                TopologyIndex topology = shared.getTopology();
+                Set<String> devices = null != topology ? topology.getDevices(workplaceGroups) : null;
+                if (null != devices) {
+                    setStations(session, devices);
+                    resultHandler.handle(new DefaultFutureResult<Object>(devices));
+                    return;
+                }
+                AsyncResultHandler<String> stationsInWorkplaceGroupsHandler = new AsyncResultHandler<String>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> stringMessage)
+                    {
+                        if (stringMessage.failed()) {
+                            resultHandler.handle(new DefaultFutureResult<Object>(stringMessage.cause()));
+                            return;
+                        }
+                        Set<String> resultSet;
+                        try {
+                            resultSet = bindingValues(stringMessage.result(), "device");
+                        }
+                        catch (IOException e) {
+                            resultHandler.handle(new DefaultFutureResult<Object>(e));
+                            return;
+                        }
+                        setStations(session, resultSet);
+                        resultHandler.handle(new DefaultFutureResult<Object>(resultSet));
+                    }
+                };
+                traceNextQuery(session, RULE_STATIONS, DispatchQueue.Priority.MAIN);
+                LBDSparQLQueries.getStationsInWorkplaceGroups(workplaceGroups, dispatcher,
+                        stationsInWorkplaceGroupsHandler);
+            }
         };
-        Set<String> workplaceGroups = this.sessionWorkplaceGroups.get(sessionId);
-        String workplaceGroupsString = "{";
-        for (String workplaceGroup : workplaceGroups) {
-            workplaceGroupsString += " " + sparqlPrefix(workplaceGroup);
-        }
-        workplaceGroupsString += "}";
-        BasicSparQLQueries.getStationsInWorkplaceGroups(workplaceGroupsString, eb,
-                machinesInWorkplaceGroupsHandler);
     }
 
-    private void requestLearningMaterialListMain(final String sessionId)
+    private void setStations(SessionContext session, Set<String> stations)
     {
-        Handler<Message<String>> learningMaterialListMainHandler = new Handler<Message<String>>(){
+        session.setStations(stations);
+        stationSessions.update(session.getSessionId(), stations);
+    }
 
+    // Rule 3.1.1.1 in document "Adaptionsregeln" ("Lokale Zustaende")
+    private RuleGraph.Rule localStatesRule(final SessionContext session, final int generation)
+    {
+        return new RuleGraph.Rule()
+        {
             @Override
-            public void handle(Message<String> messageString)
+            public void evaluate(Map<String, Object> inputs,
+                    final AsyncResultHandler<Object> resultHandler)
             {
-                JsonObject result = new JsonObject(messageString.body());
-                Map<String, String> resultMap = new HashMap<String, String>();
-                log.debug("[Lernbedarf-Dienst] - messageString: " + result.encodePrettily());
-                JsonArray messageArray = result.getObject("results").getArray("bindings");
-                Iterator<Object> messageArrayIterator = messageArray.iterator();
-                while (messageArrayIterator.hasNext()) {
-                    Object currentArrayEntry = messageArrayIterator.next();
-                    if (currentArrayEntry instanceof JsonObject) {
-                        JsonObject currentArrayEntryJson = (JsonObject) currentArrayEntry;
-                        String inhalt = currentArrayEntryJson.getObject("inhalt")
-                                .getString("value");
-                        String vorschau = currentArrayEntryJson.getObject("vorschau")
-                                .getString("value", defaultPreviewImage);
-                        resultMap.put(inhalt, vorschau);
+                if (isAbandoned(session, generation)) {
+                    resultHandler.handle(new DefaultFutureResult<Object>(new CancellationException()));
+                    return;
+                }
+                @SuppressWarnings("unchecked")
+                final Set<String> stationSet = (Set<String>) inputs.get(RULE_STATIONS);
+                List<String[]> stateStation = new ArrayList<String[]>(stationSet.size());
+                for (String station : stationSet) {
+                    stateStation.add(new String[] {
+                            "http://www.appsist.de/ontology/FunkionsfaehigerZustand", station });
+                }
+
+                AsyncResultHandler<String> localStatesHandler = new AsyncResultHandler<String>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> messageString)
+                    {
+                        if (messageString.failed()) {
+                            resultHandler.handle(new DefaultFutureResult<Object>(messageString.cause()));
+                            return;
+                        }
+                        final Set<LocalState> lsSet = new HashSet<LocalState>();
+                        final Set<String> localStates = new HashSet<String>();
+                        SparQLResultDecoder.RowSink localStateSink = new SparQLResultDecoder.RowSink()
+                        {
+                            @Override
+                            public void row(String[] values)
+                            {
+                                LocalState ls = new LocalState(
+                                        LBDSparQLQueries.sparqlPrefix(values[0]),
+                                        LBDSparQLQueries.sparqlPrefix(values[1]), values[2]);
+                                lsSet.add(ls);
+                                localStates.add(ls.getState());
+                            }
+                        };
+                        try {
+                            localStateDecoder.decode(messageString.result(), localStateSink);
+                        }
+                        catch (IOException e) {
+                            resultHandler.handle(new DefaultFutureResult<Object>(e));
+                            return;
+                        }
+                        // states reported by the stations since the ontology has been loaded
+                        localStates.addAll(stationStates.getStates(stationSet));
+                        session.setLocalStates(lsSet);
+                        session.setStates(localStates);
+                        resultHandler.handle(new DefaultFutureResult<Object>(localStates));
                     }
-                    else {
-                        if (isDebug)
-                            log.error("Expected JsonObject. Found "
-                                + currentArrayEntry.getClass());
+                };
+                if (isDebug) {
+                    log.debug("[Lernbedarfsdienst] zustand station tupel: " + stationSet);
+                }
+                traceNextQuery(session, RULE_LOCAL_STATES, DispatchQueue.Priority.MAIN);
+                LBDSparQLQueries.getLocalStates(stateStation, dispatcher, localStatesHandler);
+            }
+        };
+    }
+
+    // contents informing about the states, machines and stations of the user
+    private RuleGraph.Rule contentsForStatesMachinesStationsRule(final SessionContext session,
+            final int generation)
+    {
+        return new RuleGraph.Rule()
+        {
+            @SuppressWarnings("unchecked")
+            @Override
+            public void evaluate(Map<String, Object> inputs,
+                    final AsyncResultHandler<Object> resultHandler)
+            {
+                if (isAbandoned(session, generation)) {
+                    resultHandler.handle(new DefaultFutureResult<Object>(new CancellationException()));
+                    return;
+                }
+                final Map<String, String> resultMap = new HashMap<String, String>();
+                AsyncResultHandler<Integer> learningMaterialListMainHandler = new AsyncResultHandler<Integer>()
+                {
+                    @Override
+                    public void handle(AsyncResult<Integer> rows)
+                    {
+                        if (rows.failed()) {
+                            resultHandler.handle(new DefaultFutureResult<Object>(rows.cause()));
+                            return;
+                        }
+
+                        log.debug("[Lernbedarf-Dienst resultMap=" + resultMap);
+                        resultHandler.handle(new DefaultFutureResult<Object>(resultMap));
                     }
+                };
+                Set<String> idSet = new HashSet<String>();
+                idSet.addAll((Set<String>) inputs.get(RULE_LOCAL_STATES));
+                idSet.addAll((Set<String>) inputs.get(RULE_MACHINES));
+                idSet.addAll((Set<String>) inputs.get(RULE_STATIONS));
+                String stelle = session.getCurrentPosition();
+                if (isDebug) {
+                    log.debug("[Lernbedarf-Dienst] - ids: " + idSet);
+                    log.debug("[Lernbedarf-Dienst] - stelle: " + stelle);
                 }
 
-                log.debug("[Lernbedarf-Dienst resultMap=" + resultMap);
-                retrieveLabelsFor(sessionId, resultMap);
-                // buildLearningMaterialList(sessionId, resultSet);
+                traceNextQuery(session, RULE_MAIN_CONTENTS, DispatchQueue.Priority.MAIN);
+                LBDSparQLQueries.getContentsForStatesMachinesStations(idSet, stelle,
+                        contentPageSize, mainContentDecoder,
+                        SparQLResultDecoder.map(resultMap, 0, 1, defaultPreviewImage), dispatcher,
+                        learningMaterialListMainHandler);
             }
         };
-        Set<String> idSet = new HashSet<String>();
-        idSet.addAll(this.sessionStates.get(sessionId));
-        idSet.addAll(this.sessionMachines.get(sessionId));
-        idSet.addAll(this.sessionStations.get(sessionId));
-        String ids = "{";
-        for (String id : idSet) {
-            ids += " " + sparqlPrefix(id);
-        }
-        ids += "}";
-        String stelle = this.sessionCurrentPosition.get(sessionId);
-        if (isDebug) {
-            log.debug("[Lernbedarf-Dienst] - ids: " + ids);
-            log.debug("[Lernbedarf-Dienst] - stelle: " + stelle);
-        }
+    }
+
+    // retrieves the labels of the contents found by the input rule
+    private RuleGraph.Rule labelsRule(final SessionContext session, final int generation)
+    {
+        return new RuleGraph.Rule()
+        {
+            @Override
+            public void evaluate(Map<String, Object> inputs,
+                    final AsyncResultHandler<Object> resultHandler)
+            {
+                if (isAbandoned(session, generation)) {
+                    resultHandler.handle(new DefaultFutureResult<Object>(new CancellationException()));
+                    return;
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, String> contents = (Map<String, String>) inputs.get(RULE_MAIN_CONTENTS);
+                Handler<Void> labelsHandler = new Handler<Void>()
+                {
+                    @Override
+                    public void handle(Void event)
+                    {
+                        resultHandler.handle(new DefaultFutureResult<Object>((Object) null));
+                    }
+                };
+                requestLabelsFor(session, contents.keySet(), labelsHandler);
+            }
+        };
+    }
 
-        LBDSparQLQueries.getContentsForStatesMachinesStations(ids, sparqlPrefix(stelle), eb,
-                learningMaterialListMainHandler);
+    // collects the values bound to the given variable in a SparQL result
+    private Set<String> bindingValues(String sparqlResult, String variable) throws IOException
+    {
+        Set<String> resultSet = new HashSet<String>();
+        new SparQLResultDecoder(variable).decode(sparqlResult,
+                SparQLResultDecoder.values(resultSet, 0));
+        return resultSet;
     }
 
-    private void buildLearningMaterialList(String sessionId, Map<String, String> contentIds)
+    private void buildLearningMaterialList(SessionContext session, int generation,
+            Map<String, String> contentIds)
     {
+        if (isAbandoned(session, generation)) {
+            // user has gone offline or a newer run has been started while the contents were
+            // retrieved, only the newest run publishes its list
+            return;
+        }
+        String sessionId = session.getSessionId();
         if (isDebug) {
             log.debug("[lbd] - Finished learning material lookup");
             log.debug("[lbd] - Found: " + contentIds);
         }
 
-        List<ServiceItem> serviceItemList = new ArrayList<ServiceItem>();
-        int priority = 1;
-        for (String contentId : contentIds.keySet()) {
-            LearningObjectItemBuilder loib = new LearningObjectItemBuilder();
-            String sendMessageActionAddress = Addresses.OPEN_EXTERNAL_CONTENT;
-            String originalContentId = contentId;
-            if (contentId.startsWith("http://www.appsist.de/ontology/")) {
-                sendMessageActionAddress = Addresses.START_LEARNING_OBJECT;
-            }
-            else {
-                loib.isExternal();
-                loib.setMimeType(detectMimeType(contentId));
-                if (!contentId.startsWith("http")) {
-                    // according to specification contentId has to be of the form
-                    // file:///static/xxx
-                    // and has to be expanded to file://path/to/content/xxx
-                    contentId = contentId.replaceFirst("file:///static/", externalContentDirectory);
+        List<ServiceItem> serviceItemList = serviceItemFactory.buildLearningMaterialList(
+                sessionId, contentIds);
+        session.setLastItems(session.isInNebenzeit(), serviceItemList);
+        publishServiceItems(session, serviceItemList);
+    }
+
+    // replaces the service items of the session, the publication is the last stage of every run
+    private void publishServiceItems(final SessionContext session,
+            final List<ServiceItem> serviceItems)
+    {
+        cancelDeadline(session);
+        final long publishTime = System.nanoTime();
+        final long triggerTime = session.getTriggerTime();
+        AsyncResultHandler<Void> publishHandler = new AsyncResultHandler<Void>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> result)
+            {
+                if (result.failed()) {
+                    metrics.countFailed();
+                    log.warn("[Lernbedarf-Dienst] - publishing service items failed for session "
+                            + session.getSessionId(), result.cause());
+                    return;
                 }
+                long now = System.nanoTime();
+                metrics.record(PipelineMetrics.STAGE_IID_PUBLISH, now - publishTime);
+                traceStage(session, PipelineMetrics.STAGE_IID_PUBLISH, now - publishTime,
+                        serviceItems.size());
+                metrics.recordPublished(now - triggerTime);
             }
-            JsonObject jo = new JsonObject();
-            jo.putString("sessionId", sessionId).putString("token", "token").putString("processId",
-                    contentId);
-            JsonObject bo = new JsonObject();
-            bo.putObject("body", jo);
-            if (isDebug) {
-                log.debug("[lbd] bo: " + bo.encodePrettily());
-            }
-
-            SendMessageAction sma = new SendMessageAction(sendMessageActionAddress, bo);
-            loib.setId("lbd-" + priority).setPriority(priority++)
-                    .setTitle(prettifyContentId(contentId))
-                    .setService("lbd")
-                    .setImageUrl(
-externalContentDirectory + "thumbnails/"
-                            + contentIds.get(originalContentId))
-                    .setAction(sma);
+        };
+        if (!sendServiceItems(session, serviceItems, publishHandler)) {
+            metrics.recordPublished(System.nanoTime() - triggerTime);
+            return;
+        }
+        if (recorder.isCapturing()) {
+            recorder.recordPublished(session.getSessionId(), serviceItems.size());
+        }
+    }
 
-            serviceItemList.add(loib.build());
+    // publishes the contents a run for the side activity has found so far, while its next rule is
+    // evaluated; contents whose label is not known yet are titled with their ids until the
+    // complete list is published
+    private void publishPartialList(SessionContext session, int generation,
+            Map<String, String> contentIds, final boolean first)
+    {
+        if (!progressiveSideList || isAbandoned(session, generation)) {
+            return;
         }
-        if (isDebug) {
-            log.debug("[lbd] - ServiceItemList #entries " + serviceItemList.size());
+        final long triggerTime = session.getTriggerTime();
+        final String sessionId = session.getSessionId();
+        AsyncResultHandler<Void> publishHandler = new AsyncResultHandler<Void>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> result)
+            {
+                if (result.failed()) {
+                    // the run goes on, its complete list replaces the items
+                    log.warn("[Lernbedarf-Dienst] - publishing partial service items failed for "
+                            + "session " + sessionId, result.cause());
+                    return;
+                }
+                if (first) {
+                    metrics.recordFirstItems(System.nanoTime() - triggerTime);
+                }
+            }
+        };
+        if (!sendServiceItems(session, serviceItemFactory.buildLearningMaterialList(sessionId,
+                contentIds), publishHandler) && first) {
+            metrics.recordFirstItems(System.nanoTime() - triggerTime);
         }
-        // always add assessment test service item
-        serviceItemList.add(buildSproutAssessmentServiceItem(sessionId));
-        
-        conn.purgeServiceItems(sessionId, "lbd", null);
-        conn.addServiceItems(sessionId, serviceItemList, null);
+    }
 
+    // sends the difference of the items to the items sent last to the IID
+    // returns false if the items did not change and nothing has been sent
+    private boolean sendServiceItems(final SessionContext session,
+            final List<ServiceItem> serviceItems, final AsyncResultHandler<Void> publishHandler)
+    {
+        ServiceItemDelta delta = ServiceItemDelta.compute(session.getPublishedItems(),
+                serviceItems);
+        metrics.countUpdate(delta.getUpdate());
+        if (isDebug) {
+            log.debug("[Lernbedarf-Dienst] - service items of session " + session.getSessionId()
+                    + ": " + delta.getUpdate() + ", " + delta.getItems().size() + " sent, "
+                    + delta.getRemoved() + " removed, " + delta.getChanged() + " changed");
+        }
+        if (delta.getUpdate() == ServiceItemDelta.Update.NONE) {
+            return false;
+        }
+        session.setPublishedItems(serviceItems);
+        AsyncResultHandler<Void> sendHandler = new AsyncResultHandler<Void>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> result)
+            {
+                // the items shown are unknown, the next list replaces them
+                if (result.failed() && session.getPublishedItems() == serviceItems) {
+                    session.setPublishedItems(null);
+                }
+                publishHandler.handle(result);
+            }
+        };
+        if (delta.getUpdate() == ServiceItemDelta.Update.REPLACE) {
+            conn.purgeServiceItems(session.getSessionId(), "lbd", null);
+        }
+        conn.addServiceItems(session.getSessionId(), delta.getItems(), sendHandler);
+        return true;
     }
 
-    private void buildLearningMaterialListSide(final String sessionId)
+    private void buildLearningMaterialListSide(final SessionContext session, final int generation)
     {
-        EmployeeDevelopmentGoals edg = this.sessionDGobject.get(sessionId);
+        EmployeeDevelopmentGoals edg = session.getDevelopmentGoalsObject();
         // rule 3.1.2.5 add mandatory contents for user
+        long mandatoryStart = System.nanoTime();
 
         LinkedHashMap<String, String> contentIDPreviewMap = new LinkedHashMap<String, String>();
         String previewFilename ="MPSStationRoboterProgrammierhandbuch.png";
@@ -764,150 +1874,251 @@ externalContentDirectory + "thumbnails/"
                       
             contentIDPreviewMap.put(contentId, previewFilename);
         }
-        this.sessionSideContents.put(sessionId, contentIDPreviewMap);
+        session.setSideContents(contentIDPreviewMap);
+        long mandatoryTime = System.nanoTime() - mandatoryStart;
+        metrics.record(PipelineMetrics.STAGE_MANDATORY_CONTENTS, mandatoryTime);
+        traceStage(session, PipelineMetrics.STAGE_MANDATORY_CONTENTS, mandatoryTime,
+                contentIDPreviewMap.size());
+        // the mandatory contents are known without querying the ontology
+        publishPartialList(session, generation, contentIDPreviewMap, true);
 
         final LinkedHashMap<String, String> finalLhm = contentIDPreviewMap;
 
-        Handler<Message<String>> handleItemsContent = new Handler<Message<String>>()
+        List<String> sideItems = new ArrayList<String>();
+        sideItems.add(edg.getPosition());
+        sideItems.addAll(edg.getItems());
+
+        if (consolidatedSideQuery) {
+            requestSideActivityContents(session, generation, sideItems, finalLhm);
+            return;
+        }
+
+        final long queryStart = System.nanoTime();
+        AsyncResultHandler<String> handleItemsContent = new AsyncResultHandler<String>()
         {
 
             @Override
-            public void handle(Message<String> arg0)
+            public void handle(AsyncResult<String> arg0)
             {
+                final long elapsed = System.nanoTime() - queryStart;
+                metrics.record(PipelineMetrics.STAGE_ITEMS_CONTENT, elapsed);
+                if (arg0.failed()) {
+                    failRun(session, generation, "handleItemsContent failed", arg0.cause());
+                    return;
+                }
+                if (isAbandoned(session, generation)) {
+                    return;
+                }
                 if (isDebug) {
-                    log.debug("[Lernbedarf-Dienst] - handleItemsContent:" + arg0.body());
+                    log.debug("[Lernbedarf-Dienst] - handleItemsContent:" + arg0.result());
                 }
 
-                // build HashMap with measure/label
-                JsonObject jsonObject = new JsonObject(arg0.body());
-                JsonArray jsonArray = jsonObject.getObject("results").getArray("bindings");
+                // add contents with their previews
+                int rows;
+                try {
+                    rows = contentDecoder.decode(arg0.result(),
+                            SparQLResultDecoder.map(finalLhm, 0, 1, defaultPreviewImage));
+                }
+                catch (IOException e) {
+                    failRun(session, generation, "handleItemsContent failed", e);
+                    return;
+                }
+                traceStage(session, PipelineMetrics.STAGE_ITEMS_CONTENT, elapsed, rows);
 
-                Iterator<Object> jsonArrayIterator = jsonArray.iterator();
-                while (jsonArrayIterator.hasNext()) {
-                    Object currentObject = jsonArrayIterator.next();
-                    if (currentObject instanceof JsonObject) {
-                        JsonObject currentJsonObject = (JsonObject) currentObject;
-                        String item, vorschau = "";
-                        if (null != currentJsonObject.getObject("inhalt")) {
-                            item = currentJsonObject.getObject("inhalt").getString("value");
-                        }
-                        else {
-                            continue;
+                // published before the next query, whose result may be cached
+                publishPartialList(session, generation, finalLhm, false);
+                requestProductionItemsRelevantForPosition(session, generation, finalLhm);
+            }
+        };
+        log.debug("calling adaption rule 3.1.2.2 with items: " + sideItems);
+        // call rule 3.1.2.2
+        traceNextQuery(session, PipelineMetrics.STAGE_ITEMS_CONTENT,
+                DispatchQueue.Priority.SIDE);
+        LBDSparQLQueries.getItemsContent(sideItems, session.getCurrentPosition(), dispatcher,
+                handleItemsContent);
+    }
+
+    // rules 3.1.2.2, 3.1.2.3, 3.1.2.4 and the labels of all contents in a single query
+    private void requestSideActivityContents(final SessionContext session, final int generation,
+            List<String> sideItems, final LinkedHashMap<String, String> suggestedLearningItems)
+    {
+        final long queryStart = System.nanoTime();
+        AsyncResultHandler<String> handleSideActivityContents = new AsyncResultHandler<String>()
+        {
+
+            @Override
+            public void handle(AsyncResult<String> arg0)
+            {
+                final long elapsed = System.nanoTime() - queryStart;
+                metrics.record(PipelineMetrics.STAGE_SIDE_ACTIVITY_CONTENTS, elapsed);
+                if (arg0.failed()) {
+                    failRun(session, generation, "handleSideActivityContents failed", arg0.cause());
+                    return;
+                }
+                if (isAbandoned(session, generation)) {
+                    return;
+                }
+                if (isDebug) {
+                    log.debug("[Lernbedarf-Dienst] - handleSideActivityContents:" + arg0.result());
+                }
+                // rows of each rule in the order they are returned
+                final Map<String, LinkedHashMap<String, String>> ruleContents = new HashMap<String, LinkedHashMap<String, String>>();
+                ruleContents.put(LBDSparQLQueries.RULE_ITEMS_CONTENT, new LinkedHashMap<String, String>());
+                ruleContents.put(LBDSparQLQueries.RULE_PRODUCTION_ITEMS, new LinkedHashMap<String, String>());
+                ruleContents.put(LBDSparQLQueries.RULE_PRODUCTION_ITEMS_MEASURES, new LinkedHashMap<String, String>());
+
+                // values are regel, inhalt, vorschau and label
+                SparQLResultDecoder.RowSink sideActivitySink = new SparQLResultDecoder.RowSink()
+                {
+                    @Override
+                    public void row(String[] values)
+                    {
+                        if (null == values[1] || null == values[0]) {
+                            return;
                         }
-                        if (null != currentJsonObject.getObject("vorschau")) {
-                            vorschau = currentJsonObject.getObject("vorschau").getString("value",
-                                    defaultPreviewImage);
+                        String item = values[1];
+                        if (null != values[3]) {
+                            addKnowledgeItemLabel(item, values[3]);
                         }
                         else {
-                            vorschau = defaultPreviewImage;
+                            knowledgeItemLabels.putMissing(labelKey(item));
                         }
-
-                        finalLhm.put(item, vorschau);
+                        LinkedHashMap<String, String> contents = ruleContents.get(values[0]);
+                        if (null == contents) {
+                            // rule 3.1.2.5, contents are already part of the list
+                            return;
+                        }
+                        contents.put(item, null != values[2] ? values[2] : defaultPreviewImage);
                     }
+                };
+                int rows;
+                try {
+                    rows = sideActivityDecoder.decode(arg0.result(), sideActivitySink);
+                }
+                catch (IOException e) {
+                    failRun(session, generation, "handleSideActivityContents failed", e);
+                    return;
                 }
+                traceStage(session, PipelineMetrics.STAGE_SIDE_ACTIVITY_CONTENTS, elapsed, rows);
+
+                // same order as the rules are evaluated one after another
+                suggestedLearningItems.putAll(ruleContents.get(LBDSparQLQueries.RULE_ITEMS_CONTENT));
+                suggestedLearningItems.putAll(ruleContents.get(LBDSparQLQueries.RULE_PRODUCTION_ITEMS));
+                suggestedLearningItems.putAll(ruleContents
+                        .get(LBDSparQLQueries.RULE_PRODUCTION_ITEMS_MEASURES));
 
-                requestProductionItemsRelevantForPosition(sessionId, finalLhm);
+                // labels have been retrieved with the contents
+                session.setSideContents(suggestedLearningItems);
+                buildLearningMaterialList(session, generation, suggestedLearningItems);
             }
         };
-        String sideItems = "{";
-        sideItems = sideItems + sparqlPrefix(edg.getPosition());
-        for (String prodItem : edg.getItems()) {
-            sideItems += sparqlPrefix(prodItem);
-        }
-        sideItems += "}";
-        log.debug("calling adaption rule 3.1.2.2 with items: " + sideItems);
-        // call rule 3.1.2.2
-        LBDSparQLQueries.getItemsContent(sideItems,
-                sparqlPrefix(this.sessionCurrentPosition.get(sessionId)), eb, handleItemsContent);
+        log.debug("calling adaption rules 3.1.2.2 - 3.1.2.4 with items: " + sideItems);
+        traceNextQuery(session, PipelineMetrics.STAGE_SIDE_ACTIVITY_CONTENTS,
+                DispatchQueue.Priority.SIDE);
+        LBDSparQLQueries.getSideActivityContents(sideItems, session.getCurrentPosition(),
+                session.getDevelopmentGoalsObject().getPosition(),
+                suggestedLearningItems.keySet(), "de", dispatcher, handleSideActivityContents);
     }
 
-    private void requestProductionItemsRelevantForPosition(final String sessionId,
-            final LinkedHashMap<String, String> suggestedLearningItems)
+    private void requestProductionItemsRelevantForPosition(final SessionContext session,
+            final int generation, final LinkedHashMap<String, String> suggestedLearningItems)
     {
 
-        Handler<Message<String>> handleProductionItemsRelevantForPositions = new Handler<Message<String>>()
+        final long queryStart = System.nanoTime();
+        AsyncResultHandler<String> handleProductionItemsRelevantForPositions = new AsyncResultHandler<String>()
         {
 
             @Override
-            public void handle(Message<String> arg0)
+            public void handle(AsyncResult<String> arg0)
             {
+                final long elapsed = System.nanoTime() - queryStart;
+                metrics.record(PipelineMetrics.STAGE_PRODUCTION_ITEMS, elapsed);
+                if (arg0.failed()) {
+                    failRun(session, generation, "handleProductionItemsRelevantForPositions failed", arg0.cause());
+                    return;
+                }
+                if (isAbandoned(session, generation)) {
+                    return;
+                }
                 if (isDebug)
-                    log.debug("handleContentRelevantForPositions:" + arg0.body());
-                // build HashMap with measure/label
-                JsonObject jsonObject = new JsonObject(arg0.body());
-                JsonArray jsonArray = jsonObject.getObject("results").getArray("bindings");
-
-                Iterator<Object> jsonArrayIterator = jsonArray.iterator();
-                while (jsonArrayIterator.hasNext()) {
-                    Object currentObject = jsonArrayIterator.next();
-                    if (currentObject instanceof JsonObject) {
-                        JsonObject currentJsonObject = (JsonObject) currentObject;
-                        String item = currentJsonObject.getObject("inhalt").getString("value");
-                        String vorschau = currentJsonObject.getObject("vorschau").getString("value",
-                                defaultPreviewImage);
-                        suggestedLearningItems.put(item, vorschau);
-                    }
+                    log.debug("handleContentRelevantForPositions:" + arg0.result());
+                // add contents with their previews
+                int rows;
+                try {
+                    rows = contentDecoder.decode(arg0.result(), SparQLResultDecoder.map(
+                            suggestedLearningItems, 0, 1, defaultPreviewImage));
+                }
+                catch (IOException e) {
+                    failRun(session, generation, "handleProductionItemsRelevantForPositions failed", e);
+                    return;
                 }
+                traceStage(session, PipelineMetrics.STAGE_PRODUCTION_ITEMS, elapsed, rows);
 
-                requestProductionItemsUsedInMeasuresRelevantForPosition(sessionId,
+                publishPartialList(session, generation, suggestedLearningItems, false);
+                requestProductionItemsUsedInMeasuresRelevantForPosition(session, generation,
                         suggestedLearningItems);
             }
         };
-        String positions = "{";
-        EmployeeDevelopmentGoals edg = this.sessionDGobject.get(sessionId);
-        positions += sparqlPrefix(edg.getPosition());
-        positions += "}";
-        // log.debug("[LBD] - calling adaption rule 3.1.2.3 with items: " + positions);
+        EmployeeDevelopmentGoals edg = session.getDevelopmentGoalsObject();
+        // log.debug("[LBD] - calling adaption rule 3.1.2.3 with items: " + edg.getPosition());
         // call rule 3.1.2.2
-        LBDSparQLQueries.getProductionItemsRelevantForPosition(positions, eb,
+        traceNextQuery(session, PipelineMetrics.STAGE_PRODUCTION_ITEMS,
+                DispatchQueue.Priority.SIDE);
+        LBDSparQLQueries.getProductionItemsRelevantForPosition(edg.getPosition(), dispatcher,
                 handleProductionItemsRelevantForPositions);
     }
 
-    private void requestProductionItemsUsedInMeasuresRelevantForPosition(final String sessionId,
-            final LinkedHashMap<String, String> suggestedLearningItems)
+    private void requestProductionItemsUsedInMeasuresRelevantForPosition(final SessionContext session,
+            final int generation, final LinkedHashMap<String, String> suggestedLearningItems)
     {
 
-        Handler<Message<String>> handleProductionItemsRelevantForPositionMeasures = new Handler<Message<String>>()
+        final long queryStart = System.nanoTime();
+        AsyncResultHandler<String> handleProductionItemsRelevantForPositionMeasures = new AsyncResultHandler<String>()
         {
 
             @Override
-            public void handle(Message<String> arg0)
+            public void handle(AsyncResult<String> arg0)
             {
+                final long elapsed = System.nanoTime() - queryStart;
+                metrics.record(PipelineMetrics.STAGE_PRODUCTION_ITEMS_MEASURES, elapsed);
+                if (arg0.failed()) {
+                    failRun(session, generation, "handleProductionItemsRelevantForPositionMeasures failed", arg0.cause());
+                    return;
+                }
+                if (isAbandoned(session, generation)) {
+                    return;
+                }
                 if (isDebug)
-                    log.debug("handleContentRelevantForPositions:" + arg0.body());
-                // build HashMap with measure/label
-                JsonObject jsonObject = new JsonObject(arg0.body());
-                JsonArray jsonArray = jsonObject.getObject("results").getArray("bindings");
-
-                Iterator<Object> jsonArrayIterator = jsonArray.iterator();
-                while (jsonArrayIterator.hasNext()) {
-                    Object currentObject = jsonArrayIterator.next();
-                    if (currentObject instanceof JsonObject) {
-                        JsonObject currentJsonObject = (JsonObject) currentObject;
-                        String item = currentJsonObject.getObject("inhalt").getString("value");
-                        String vorschau = currentJsonObject.getObject("vorschau").getString("value",
-                                defaultPreviewImage);
-                        suggestedLearningItems.put(item, vorschau);
-                    }
+                    log.debug("handleContentRelevantForPositions:" + arg0.result());
+                // add contents with their previews
+                int rows;
+                try {
+                    rows = contentDecoder.decode(arg0.result(), SparQLResultDecoder.map(
+                            suggestedLearningItems, 0, 1, defaultPreviewImage));
+                }
+                catch (IOException e) {
+                    failRun(session, generation, "handleProductionItemsRelevantForPositionMeasures failed", e);
+                    return;
                 }
+                traceStage(session, PipelineMetrics.STAGE_PRODUCTION_ITEMS_MEASURES, elapsed, rows);
 
-                orderSuggestedLearningItems(sessionId, suggestedLearningItems);
+                publishPartialList(session, generation, suggestedLearningItems, false);
+                orderSuggestedLearningItems(session, generation, suggestedLearningItems);
             }
         };
-        String positions = "{";
-        EmployeeDevelopmentGoals edg = this.sessionDGobject.get(sessionId);
-        positions += sparqlPrefix(edg.getPosition());
-        positions += "}";
-        // log.debug("[LBD] - calling adaption rule 3.1.2.4 with items: " + positions);
+        EmployeeDevelopmentGoals edg = session.getDevelopmentGoalsObject();
+        // log.debug("[LBD] - calling adaption rule 3.1.2.4 with items: " + edg.getPosition());
         // call rule 3.1.2.4
-        LBDSparQLQueries.getProductionItemsRelevantForPositionMeasures(positions, eb,
+        traceNextQuery(session, PipelineMetrics.STAGE_PRODUCTION_ITEMS_MEASURES,
+                DispatchQueue.Priority.SIDE);
+        LBDSparQLQueries.getProductionItemsRelevantForPositionMeasures(edg.getPosition(), dispatcher,
                 handleProductionItemsRelevantForPositionMeasures);
     }
 
     // requests which entries of suggestedLearningItems have already been read from usermodel
     // reorders entries in suggestedLearningItems
     // (Unread mandatory, Unread, Read)
-    private void orderSuggestedLearningItems(String sessionId,
+    private void orderSuggestedLearningItems(SessionContext session, int generation,
             LinkedHashMap<String, String> suggestedLearningItems)
     {
         // TODO
@@ -915,128 +2126,129 @@ externalContentDirectory + "thumbnails/"
         // usermodel
         // remove read entries from suggestedLearningItems
         // re-insert read entries
-        this.sessionSideContents.put(sessionId, suggestedLearningItems);
+        session.setSideContents(suggestedLearningItems);
 
         // find labels for entries
-        retrieveLabelsFor(sessionId, suggestedLearningItems);
+        retrieveLabelsFor(session, generation, suggestedLearningItems);
     }
 
-    // this method surrounds full Ontology URIs with less/greater than characters
-
-    private String sparqlPrefix(String original)
-    {
-        if (null == original) {
-            return "";
-        }
-        original = original.trim();
-        String result = "";
-        if (!original.startsWith("<")) {
-            result = "<" + original;
-        }
-        if (!original.endsWith(">")) {
-            result += ">";
-        }
-        return result;
+    private void addKnowledgeItemLabel(String itemId, String itemLabel){
+        this.knowledgeItemLabels.put(labelKey(itemId), itemLabel);
     }
 
-    private String prettifyContentId(String contentId)
+    // labels are stored for the content ids as used in the service items
+    private String labelKey(String itemId)
     {
-        if (this.knowledgeItemLabels.keySet().contains(contentId)) {
-            return this.knowledgeItemLabels.get(contentId);
-        }
-        else {
-            return contentId;
-        }
-    }
-
-    private void addKnowledgeItemLabel(String itemId, String itemLabel){
-        this.knowledgeItemLabels.put(itemId.replace("file:///static/", externalContentDirectory),
-                itemLabel);
+        return itemId.replace("file:///static/", externalContentDirectory);
     }
 
-    private void retrieveLabelsFor(final String sessionId,
-            final Map<String, String> finalMeasureMap)
+    // retrieves the labels of all content items, renewing the labels cached
+    private void preloadLabels()
     {
-        Handler<Message<String>> handleMeasureLabels = new Handler<Message<String>>()
+        final Map<String, String> labels = new HashMap<String, String>();
+        SparQLResultDecoder.RowSink labelSink = new SparQLResultDecoder.RowSink()
         {
-
             @Override
-            public void handle(Message<String> arg0)
+            public void row(String[] values)
             {
-                // build HashMap with measure/label
-                JsonObject jsonObject = new JsonObject(arg0.body());
-                JsonArray jsonArray = jsonObject.getObject("results").getArray("bindings");
-                Iterator<Object> jsonArrayIterator = jsonArray.iterator();
-                while (jsonArrayIterator.hasNext()) {
-                    Object currentObject = jsonArrayIterator.next();
-                    if (currentObject instanceof JsonObject) {
-                        JsonObject currentJsonObject = (JsonObject) currentObject;
-                        String measure = currentJsonObject.getObject("oc").getString("value");
-                        String label = currentJsonObject.getObject("label").getString("value");
-                        addKnowledgeItemLabel(measure, label);
-                    }
+                if (null != values[0] && null != values[1]) {
+                    labels.put(labelKey(values[0]), values[1]);
                 }
-
-                buildLearningMaterialList(sessionId, finalMeasureMap);
             }
         };
-        List<String> finalMeasureList = new ArrayList<String>();
-        for (String m : finalMeasureMap.keySet()) {
-            if (!this.knowledgeItemLabels.containsKey(m)) {
-                finalMeasureList.add(m);
-                // this.knowledgeItemLabels.put(m, m);
+        AsyncResultHandler<Integer> handleContentLabels = new AsyncResultHandler<Integer>()
+        {
+            @Override
+            public void handle(AsyncResult<Integer> rows)
+            {
+                if (rows.failed()) {
+                    log.warn("[Lernbedarf-Dienst] - preloading labels failed", rows.cause());
+                    return;
+                }
+                knowledgeItemLabels.putAll(labels);
+                if (isDebug)
+                    log.debug("[Lernbedarf-Dienst] - labels preloaded: " + labels.size());
             }
-        }
-
-        String measuresForQuery = "{";
-        for (String measure : finalMeasureList) {
-            measuresForQuery = measuresForQuery + " <" + measure + ">";
-        }
-        measuresForQuery += "}";
-        BasicSparQLQueries.getLabelFor(measuresForQuery, "de", eb, handleMeasureLabels);
+        };
+        LBDSparQLQueries.getContentLabels("de", labelPageSize, labelDecoder, labelSink,
+                dispatcher, handleContentLabels);
     }
 
-    private String detectMimeType(String contentId)
+    private void retrieveLabelsFor(final SessionContext session, final int generation,
+            final Map<String, String> finalMeasureMap)
     {
-        String result = "unknown";
-        String fileExtension = contentId.substring(contentId.lastIndexOf(".") + 1).toLowerCase();
+        Handler<Void> labelsHandler = new Handler<Void>()
+        {
+            @Override
+            public void handle(Void event)
+            {
+                buildLearningMaterialList(session, generation, finalMeasureMap);
+            }
+        };
+        requestLabelsFor(session, finalMeasureMap.keySet(), labelsHandler);
+    }
 
-        switch (fileExtension) {
-            case "pdf" :
-                result = "application/pdf";
-                break;
-            case "doc" :
-                result = "application/msword";
-                break;
-            default :
-                result = "text/html";
-                break;
+    // stores the labels of the given contents in knowledgeItemLabels
+    // the ontology is only queried for contents whose label is not known
+    private void requestLabelsFor(SessionContext session, Collection<String> contentIds,
+            final Handler<Void> doneHandler)
+    {
+        final Map<String, String> missingContents = new HashMap<String, String>();
+        for (String m : contentIds) {
+            missingContents.put(labelKey(m), m);
         }
-        return result;
-    }
-    
-    private ServiceItem buildSproutAssessmentServiceItem(String sessionId){
-            LearningObjectItemBuilder loib = new LearningObjectItemBuilder();
-            String sendMessageActionAddress = Addresses.OPEN_EXTERNAL_CONTENT;
-            String contentId = "/services/cds/static/externalContent/d69a640a-5526-42dd-b121-d8102b1ad4be/index.html";
-            JsonObject jo = new JsonObject();
-            jo.putString("sessionId", sessionId).putString("token", "token").putString("processId", contentId);
-            JsonObject bo = new JsonObject();
-            bo.putObject("body", jo);
-            if (isDebug) {
-                log.debug("[lbd] bo: " + bo.encodePrettily());
-            }
+        missingContents.keySet().retainAll(
+                this.knowledgeItemLabels.getMissing(missingContents.keySet()));
+        if (missingContents.isEmpty()) {
+            doneHandler.handle(null);
+            return;
+        }
+
+        AsyncResultHandler<String> handleMeasureLabels = new AsyncResultHandler<String>()
+        {
 
-            SendMessageAction sma = new SendMessageAction(sendMessageActionAddress, bo);
-            loib.setId("lbd-13").setPriority(13)
-            	.isExternal()
-            	.setMimeType(detectMimeType(contentId))
-                    .setTitle("Übung: Bauteile des Zylinders")
-                    .setService("lbd")
-                    .setImageUrl(externalContentDirectory + "thumbnails/d69a640a-5526-42dd-b121-d8102b1ad4be.png")
-                    .setAction(sma);
+            @Override
+            public void handle(AsyncResult<String> arg0)
+            {
+                if (arg0.failed()) {
+                    // the contents missing a label are published with their prettified ids
+                    log.error("[Lernbedarf-Dienst] - handleMeasureLabels failed", arg0.cause());
+                    doneHandler.handle(null);
+                    return;
+                }
+                // store measure/label
+                SparQLResultDecoder.RowSink labelSink = new SparQLResultDecoder.RowSink()
+                {
+                    @Override
+                    public void row(String[] values)
+                    {
+                        if (null != values[0] && null != values[1]) {
+                            addKnowledgeItemLabel(values[0], values[1]);
+                            missingContents.remove(labelKey(values[0]));
+                        }
+                    }
+                };
+                try {
+                    labelDecoder.decode(arg0.result(), labelSink);
+                }
+                catch (IOException e) {
+                    log.error("[Lernbedarf-Dienst] - handleMeasureLabels failed", e);
+                    doneHandler.handle(null);
+                    return;
+                }
+                // remember contents without label
+                for (String itemId : missingContents.keySet()) {
+                    knowledgeItemLabels.putMissing(itemId);
+                }
+
+                doneHandler.handle(null);
+            }
+        };
 
-            return loib.build();
+        traceNextQuery(session, RULE_LABELS, session.isInNebenzeit() ? DispatchQueue.Priority.SIDE
+                : DispatchQueue.Priority.MAIN);
+        LBDSparQLQueries.getLabelFor(new ArrayList<String>(missingContents.values()), "de",
+                dispatcher, handleMeasureLabels);
     }
 }
 
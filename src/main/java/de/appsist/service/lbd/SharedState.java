@@ -0,0 +1,247 @@
+package de.appsist.service.lbd;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.cache.ClusterResultCache;
+import de.appsist.service.lbd.cache.LabelCache;
+import de.appsist.service.lbd.cache.SparQLResultCache;
+import de.appsist.service.lbd.cache.TopologyIndex;
+import de.appsist.service.lbd.cache.UserProfileCache;
+import de.appsist.service.lbd.capture.TrafficRecorder;
+import de.appsist.service.lbd.cluster.ClusterMembership;
+import de.appsist.service.lbd.metrics.FlightRecording;
+import de.appsist.service.lbd.metrics.PipelineMetrics;
+import de.appsist.service.lbd.queries.DispatchQueue;
+import de.appsist.service.lbd.resilience.CircuitBreaker;
+import de.appsist.service.lbd.session.StationSessionIndex;
+import de.appsist.service.lbd.session.StationStateTable;
+
+/**
+ * State shared by all instances of the verticle running in the same module, i.e., the caches of
+ * ontology results and user profiles, the states of the stations, the pipeline metrics, the
+ * circuit breakers of the services the pipelines depend on and the queue admitting the queries
+ * to the semantic wiki service. If Vert.x is clustered, the ontology results are also shared with
+ * the other nodes. The state of the sessions is not shared, every session is handled by a single
+ * instance.
+ * The state is kept per Vert.x instance, so several nodes of a cluster running in the same JVM,
+ * e.g., in tests, each have their own state. The first instance started on a Vert.x instance
+ * creates its shared state, it is dropped when the last instance has been stopped. The node
+ * leaves the members of the cluster at that point.
+ */
+class SharedState
+{
+    // state of each Vert.x instance running the verticle
+    private static final Map<Vertx, SharedState> states =
+            new IdentityHashMap<Vertx, SharedState>();
+
+    private int references;
+
+    // null if results are not cached
+    private final SparQLResultCache sparqlCache;
+    // null if Vert.x is not clustered or results are not shared
+    private final ClusterResultCache clusterResults;
+    private final LabelCache labels;
+    private final UserProfileCache userProfiles;
+    private final StationStateTable stationStates = new StationStateTable();
+    private final StationSessionIndex stationSessions = new StationSessionIndex();
+    private final PipelineMetrics metrics = new PipelineMetrics(LBDMainVerticle.PIPELINE_STAGES);
+    // the recording covers the whole JVM
+    private final FlightRecording recording;
+    // the capture covers the traffic of all instances
+    private final TrafficRecorder recorder;
+    // breakers of the services queried by the pipelines
+    private final CircuitBreaker semwikiBreaker;
+    private final CircuitBreaker userModelBreaker;
+    // timeout of the queries to the semantic wiki service in ms, 0 if they do not time out
+    private final long semwikiTimeout;
+    // null if the queries are not limited
+    private final DispatchQueue dispatchQueue;
+    // set by the instance refreshing the index
+    private volatile TopologyIndex topology;
+    // set by the instance checking the members, null if Vert.x is not clustered
+    private volatile ClusterMembership cluster;
+
+    // indexes of the instances running
+    private final BitSet instanceIndexes = new BitSet();
+
+    private SharedState(Vertx vertx, JsonObject config)
+    {
+        JsonObject sparqlCacheConfig = config.getObject("sparqlCache", new JsonObject());
+        sparqlCache = sparqlCacheConfig.getBoolean("enabled", true) ? SparQLResultCache
+                .fromConfiguration(sparqlCacheConfig) : null;
+        clusterResults = null != sparqlCache ? ClusterResultCache.fromConfiguration(vertx,
+                sparqlCacheConfig.getObject("cluster", new JsonObject())) : null;
+        labels = LabelCache.fromConfiguration(config.getObject("labelCache", new JsonObject()));
+        userProfiles = UserProfileCache.fromConfiguration(config.getObject("userProfileCache",
+                new JsonObject()));
+        recording = new FlightRecording(vertx, config.getObject("recording", new JsonObject()));
+        recorder = new TrafficRecorder(vertx, config.getObject("capture", new JsonObject()));
+        JsonObject semwikiConfig = config.getObject("semwiki", new JsonObject());
+        semwikiBreaker = CircuitBreaker.fromConfiguration("semwiki", semwikiConfig.getObject(
+                "circuitBreaker", new JsonObject()));
+        semwikiTimeout = semwikiConfig.getLong("timeout", 10000);
+        JsonObject admissionConfig = semwikiConfig.getObject("admission", new JsonObject());
+        dispatchQueue = admissionConfig.getBoolean("enabled", true) ? new DispatchQueue(vertx,
+                admissionConfig, semwikiTimeout, metrics) : null;
+        userModelBreaker = CircuitBreaker.fromConfiguration("usermodel", config.getObject(
+                "usermodel", new JsonObject()).getObject("circuitBreaker", new JsonObject()));
+    }
+
+    /**
+     * Returns the shared state of a Vert.x instance, creating it for the first instance of the
+     * verticle.
+     *
+     * @param vertx Vert.x instance of the module.
+     * @param config Configuration of the module.
+     * @return Shared state, to be released when the instance is stopped.
+     */
+    static SharedState acquire(Vertx vertx, JsonObject config)
+    {
+        synchronized (states) {
+            SharedState state = states.get(vertx);
+            if (null == state) {
+                state = new SharedState(vertx, config);
+                states.put(vertx, state);
+            }
+            state.references++;
+            return state;
+        }
+    }
+
+    /**
+     * Releases the shared state acquired by an instance.
+     *
+     * @param vertx Vert.x instance the state has been acquired for.
+     */
+    static void release(Vertx vertx)
+    {
+        synchronized (states) {
+            SharedState state = states.get(vertx);
+            if (null != state && --state.references == 0) {
+                states.remove(vertx);
+                // the other nodes take over the sessions handed over by all instances
+                if (null != state.cluster) {
+                    state.cluster.leave();
+                }
+            }
+        }
+    }
+
+    /**
+     * Assigns the lowest index not used by a running instance.
+     *
+     * @param instances Number of instances configured.
+     * @return Index of the instance.
+     * @throws IllegalStateException If more instances are started than configured.
+     */
+    synchronized int acquireInstanceIndex(int instances)
+    {
+        int index = instanceIndexes.nextClearBit(0);
+        if (index >= instances) {
+            throw new IllegalStateException("More instances started than configured ("
+                    + instances + "), set \"instances\" to the number of instances deployed");
+        }
+        instanceIndexes.set(index);
+        return index;
+    }
+
+    /**
+     * Releases the index of an instance stopped.
+     *
+     * @param index Index of the instance.
+     */
+    synchronized void releaseInstanceIndex(int index)
+    {
+        instanceIndexes.clear(index);
+    }
+
+    SparQLResultCache getSparqlCache()
+    {
+        return sparqlCache;
+    }
+
+    ClusterResultCache getClusterResults()
+    {
+        return clusterResults;
+    }
+
+    LabelCache getLabels()
+    {
+        return labels;
+    }
+
+    UserProfileCache getUserProfiles()
+    {
+        return userProfiles;
+    }
+
+    StationStateTable getStationStates()
+    {
+        return stationStates;
+    }
+
+    StationSessionIndex getStationSessions()
+    {
+        return stationSessions;
+    }
+
+    PipelineMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    FlightRecording getRecording()
+    {
+        return recording;
+    }
+
+    TrafficRecorder getRecorder()
+    {
+        return recorder;
+    }
+
+    CircuitBreaker getSemwikiBreaker()
+    {
+        return semwikiBreaker;
+    }
+
+    CircuitBreaker getUserModelBreaker()
+    {
+        return userModelBreaker;
+    }
+
+    long getSemwikiTimeout()
+    {
+        return semwikiTimeout;
+    }
+
+    DispatchQueue getDispatchQueue()
+    {
+        return dispatchQueue;
+    }
+
+    TopologyIndex getTopology()
+    {
+        return topology;
+    }
+
+    void setTopology(TopologyIndex topology)
+    {
+        this.topology = topology;
+    }
+
+    ClusterMembership getCluster()
+    {
+        return cluster;
+    }
+
+    void setCluster(ClusterMembership cluster)
+    {
+        this.cluster = cluster;
+    }
+}
@@ -4,13 +4,20 @@ public class Addresses {
 	
 	public final static String START_LEARNING_SESSION = "appsist:service:lernbedarfsdienst#startLearningSession";
 	public final static String START_LEARNING_OBJECT = "appsist:content-navigation-service#learningObjectStart";
+	public final static String LBD_INSTANCE = "appsist:service:lernbedarfsdienst#instance";
+	public final static String LBD_NODE = "appsist:service:lernbedarfsdienst#node";
 	
 	public final static String USER_ONLINE = "appsist:event:userOnline";
+	public final static String USER_OFFLINE = "appsist:event:userOffline";
 	public final static String USER_ACTIVITY_SWITCH = "appsist:event:userActivitySwitch";
 	public final static String USER_GET_INFORMATION = "appsist:service:usermodel#getUserInformation";
 	
 	public final static String OPEN_EXTERNAL_CONTENT = "appsist:openExternalContent";
 	
+	public final static String ONTOLOGY_RELOADED = "appsist:event:ontologyReloaded";
+	public final static String LBD_CACHE_INVALIDATED = "appsist:event:lbdCacheInvalidated";
+	public final static String MACHINE_STATE_CHANGED = "appsist:event:machinestateChangedEvent";
+	
 	
 	
 }
@@ -0,0 +1,321 @@
+package de.appsist.service.lbd.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.java.core.spi.cluster.AsyncMap;
+import org.vertx.java.core.spi.cluster.ClusterManager;
+
+/**
+ * Results of SparQL queries shared by all nodes of the Vert.x cluster, stored in a distributed
+ * map of the cluster manager (a Hazelcast map by default). It is the second tier behind the
+ * {@link SparQLResultCache} of each node: a node started later answers queries from the results
+ * retrieved by the other nodes instead of sending them to the semantic wiki service again.
+ * <p>
+ * Every result is stored with the generation of the cache and the time it expires. Invalidating
+ * the cache starts a new generation, which is stored in a second map and announced to the other
+ * nodes by the caller; results of older generations are ignored and overwritten. Results found
+ * outdated or expired by a lookup are removed from the map. Results which are not looked up again
+ * are only removed by the cluster manager: the Hazelcast configuration in src/main/conf sets a
+ * time to live and a maximum size for the map of the results, the map of the generation must not
+ * expire its entries.
+ * The handlers are called on the context of the caller, the cache may be used by all instances of
+ * the verticle.
+ */
+public class ClusterResultCache
+{
+    private static final Logger log = LoggerFactory.getLogger(ClusterResultCache.class);
+
+    // key of the current generation in the map of the generation
+    private static final String GENERATION_KEY = "#generation";
+
+    private final AsyncMap<String, String> map;
+    private final AsyncMap<String, String> generationMap;
+    private final long timeToLive;
+
+    // 0 until the generation has been read from the map, no results are stored before
+    private volatile long generation;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outdated = new AtomicLong();
+    private final AtomicLong removals = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param map Distributed map storing the results.
+     * @param generationMap Distributed map storing the current generation, its entries must not
+     *            expire.
+     * @param timeToLive Time in milliseconds a result is valid.
+     */
+    public ClusterResultCache(AsyncMap<String, String> map,
+            AsyncMap<String, String> generationMap, long timeToLive)
+    {
+        this.map = map;
+        this.generationMap = generationMap;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Creates the cache if Vert.x is running clustered.
+     *
+     * @param vertx Vert.x instance of the verticle.
+     * @param config Configuration with the optional fields "enabled", "map" (name of the
+     *            distributed map of the results), "generationMap" (name of the distributed map of
+     *            the generation) and "timeToLive" (ms).
+     * @return Cache or <code>null</code> if Vert.x is not clustered or the cache is disabled.
+     */
+    public static ClusterResultCache fromConfiguration(Vertx vertx, JsonObject config)
+    {
+        if (!config.getBoolean("enabled", true) || !(vertx instanceof VertxInternal)) {
+            return null;
+        }
+        ClusterManager clusterManager = ((VertxInternal) vertx).clusterManager();
+        if (null == clusterManager) {
+            return null;
+        }
+        AsyncMap<String, String> map = clusterManager.getAsyncMap(config.getString("map",
+                "lbd.sparqlResults"));
+        AsyncMap<String, String> generationMap = clusterManager.getAsyncMap(config.getString(
+                "generationMap", "lbd.sparqlResultsGeneration"));
+        return new ClusterResultCache(map, generationMap, config.getLong("timeToLive", 600000));
+    }
+
+    /**
+     * Reads the current generation from the map. Until it has been read, all lookups miss.
+     */
+    public void start()
+    {
+        generationMap.get(GENERATION_KEY, new Handler<AsyncResult<String>>()
+        {
+            @Override
+            public void handle(AsyncResult<String> stored)
+            {
+                if (stored.failed()) {
+                    // the cache stays unused until a generation is announced
+                    failures.incrementAndGet();
+                    log.warn("[Lernbedarf-Dienst] - reading the cluster cache generation failed",
+                            stored.cause());
+                }
+                else if (null == stored.result()) {
+                    // first node of the cluster
+                    invalidate();
+                }
+                else {
+                    adoptGeneration(Long.parseLong(stored.result()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks up the result of a query.
+     *
+     * @param key Normalized query.
+     * @param resultHandler Handler for the result, <code>null</code> if the result is not stored,
+     *            outdated or the lookup failed.
+     */
+    public void get(final String key, final Handler<String> resultHandler)
+    {
+        final long currentGeneration = generation;
+        if (0 == currentGeneration) {
+            misses.incrementAndGet();
+            resultHandler.handle(null);
+            return;
+        }
+        map.get(key, new Handler<AsyncResult<String>>()
+        {
+            @Override
+            public void handle(AsyncResult<String> stored)
+            {
+                if (stored.failed()) {
+                    failures.incrementAndGet();
+                    resultHandler.handle(null);
+                    return;
+                }
+                String value = stored.result();
+                String result = decode(value, currentGeneration);
+                if (null == result) {
+                    misses.incrementAndGet();
+                    if (null != value && isObsolete(value, currentGeneration)) {
+                        remove(key);
+                    }
+                }
+                else {
+                    hits.incrementAndGet();
+                }
+                resultHandler.handle(result);
+            }
+        });
+    }
+
+    /**
+     * Stores the result of a query.
+     *
+     * @param key Normalized query.
+     * @param result Result of the query.
+     * @param queryGeneration Generation when the query was sent, see {@link #getGeneration()}.
+     *            The result is discarded if the cache has been invalidated since.
+     */
+    public void put(String key, String result, long queryGeneration)
+    {
+        if (0 == queryGeneration || queryGeneration != generation) {
+            return;
+        }
+        stores.incrementAndGet();
+        String value = queryGeneration + " " + (System.currentTimeMillis() + timeToLive) + "\n"
+                + result;
+        map.put(key, value, new Handler<AsyncResult<Void>>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> stored)
+            {
+                if (stored.failed()) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the current generation of the cache.
+     *
+     * @return Generation, <code>0</code> if it has not been read yet.
+     */
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Starts a new generation, invalidating the results stored by all nodes. The new generation
+     * is stored in the map, the caller announces it to the other nodes.
+     *
+     * @return The new generation.
+     */
+    public synchronized long invalidate()
+    {
+        // based on the time, so generations started concurrently by different nodes are ordered
+        long newGeneration = Math.max(System.currentTimeMillis(), generation + 1);
+        generation = newGeneration;
+        generationMap.put(GENERATION_KEY, String.valueOf(newGeneration),
+                new Handler<AsyncResult<Void>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<Void> stored)
+                    {
+                        if (stored.failed()) {
+                            failures.incrementAndGet();
+                            log.warn("[Lernbedarf-Dienst] - storing the cluster cache generation "
+                                    + "failed", stored.cause());
+                        }
+                    }
+                });
+        return newGeneration;
+    }
+
+    /**
+     * Adopts a generation announced by another node.
+     *
+     * @param announcedGeneration Generation started by the other node.
+     * @return <code>true</code> if the generation is newer than the current one, i.e., the
+     *         results cached by this node are outdated.
+     */
+    public synchronized boolean adoptGeneration(long announcedGeneration)
+    {
+        if (announcedGeneration <= generation) {
+            return false;
+        }
+        generation = announcedGeneration;
+        return true;
+    }
+
+    /**
+     * Returns the statistics of the cache.
+     *
+     * @return Object with the fields generation, hits, misses, outdated, removals, stores and
+     *         failures.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("generation", generation);
+        statistics.putNumber("hits", hits.get());
+        statistics.putNumber("misses", misses.get());
+        statistics.putNumber("outdated", outdated.get());
+        statistics.putNumber("removals", removals.get());
+        statistics.putNumber("stores", stores.get());
+        statistics.putNumber("failures", failures.get());
+        return statistics;
+    }
+
+    // removes a result which will never be valid again; a result stored by another node in the
+    // meantime may be removed as well, which only costs a miss
+    private void remove(String key)
+    {
+        map.remove(key, new Handler<AsyncResult<Void>>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> removed)
+            {
+                if (removed.failed()) {
+                    failures.incrementAndGet();
+                }
+                else {
+                    removals.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    // returns the result of a stored value if it belongs to the generation and has not expired
+    private String decode(String value, long currentGeneration)
+    {
+        if (null == value) {
+            return null;
+        }
+        long[] header = header(value);
+        if (null == header) {
+            return null;
+        }
+        if (header[0] != currentGeneration || header[1] < System.currentTimeMillis()) {
+            outdated.incrementAndGet();
+            return null;
+        }
+        return value.substring(value.indexOf('\n') + 1);
+    }
+
+    // whether a stored value is malformed, expired or of an older generation; values of a newer
+    // generation are kept, this node has not adopted it yet
+    private static boolean isObsolete(String value, long currentGeneration)
+    {
+        long[] header = header(value);
+        return null == header || header[0] < currentGeneration
+                || header[1] < System.currentTimeMillis();
+    }
+
+    // returns the generation and the expiry time of a stored value, null if it is malformed
+    private static long[] header(String value)
+    {
+        int separator = value.indexOf(' ');
+        int end = value.indexOf('\n', separator + 1);
+        if (separator < 0 || end < 0) {
+            return null;
+        }
+        try {
+            return new long[] { Long.parseLong(value.substring(0, separator)),
+                    Long.parseLong(value.substring(separator + 1, end)) };
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package de.appsist.service.lbd.cache;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Size bounded cache for the labels of content items.
+ * Besides labels the cache stores negative entries for items known to have no label, so these
+ * items are not queried again. Negative entries expire earlier than labels. Labels are meant to be
+ * refreshed in bulk before they expire, see {@link #putAll(Map)}.
+ * The cache is thread safe, it is shared by all instances of the verticle.
+ */
+public class LabelCache
+{
+    private static class Entry
+    {
+        // null for items without label
+        private final String label;
+        private final long expires;
+
+        private Entry(String label, long expires)
+        {
+            this.label = label;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+    private final LruStripes<Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries Maximum number of items to store.
+     * @param timeToLive Time in milliseconds a label is valid.
+     * @param negativeTimeToLive Time in milliseconds an item is known to have no label.
+     * @param stripes Number of independently locked parts of the cache.
+     */
+    public LabelCache(int maxEntries, long timeToLive, long negativeTimeToLive, int stripes)
+    {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.entries = new LruStripes<Entry>(maxEntries, stripes);
+    }
+
+    /**
+     * Creates a cache configured by the given object.
+     *
+     * @param config Configuration with the optional fields "maxEntries", "timeToLive" (ms),
+     *            "negativeTimeToLive" (ms) and "stripes".
+     * @return Cache.
+     */
+    public static LabelCache fromConfiguration(JsonObject config)
+    {
+        return new LabelCache(config.getInteger("maxEntries", 20000), config.getLong("timeToLive",
+                7200000), config.getLong("negativeTimeToLive", 600000), config.getInteger(
+                "stripes", 16));
+    }
+
+    /**
+     * Returns the label of an item.
+     *
+     * @param itemId Item to return the label for.
+     * @return Label or <code>null</code> if the item has no label or is not cached.
+     */
+    public String getLabel(String itemId)
+    {
+        Entry entry = lookup(itemId);
+        if (null == entry) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (null == entry.label) {
+            negativeHits.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.label;
+    }
+
+    /**
+     * Returns the items whose label is not known, i.e., neither a label nor a negative entry is
+     * cached.
+     *
+     * @param itemIds Items to check.
+     * @return Items to query the labels for, empty if all items are known.
+     */
+    public List<String> getMissing(Collection<String> itemIds)
+    {
+        List<String> missing = new ArrayList<String>();
+        for (String itemId : itemIds) {
+            if (null == lookup(itemId)) {
+                missing.add(itemId);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Stores the label of an item.
+     *
+     * @param itemId Item.
+     * @param label Label of the item.
+     */
+    public void put(String itemId, String label)
+    {
+        entries.put(itemId, new Entry(label, System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Stores a negative entry for an item, unless a label is cached for the item.
+     *
+     * @param itemId Item without label.
+     */
+    public void putMissing(String itemId)
+    {
+        synchronized (entries.lockFor(itemId)) {
+            Entry entry = lookup(itemId);
+            if (null == entry || null == entry.label) {
+                entries.put(itemId, new Entry(null, System.currentTimeMillis()
+                        + negativeTimeToLive));
+            }
+        }
+    }
+
+    /**
+     * Stores the result of a bulk retrieval of labels, renewing the time to live of all labels
+     * contained.
+     *
+     * @param labels Labels mapped by item.
+     */
+    public void putAll(Map<String, String> labels)
+    {
+        long expires = System.currentTimeMillis() + timeToLive;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            entries.put(label.getKey(), new Entry(label.getValue(), expires));
+        }
+        refreshes.incrementAndGet();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void invalidate()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Returns the statistics of the cache.
+     *
+     * @return Object with the fields size, maxEntries, hits, negativeHits, misses, evictions and
+     *         refreshes.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("size", entries.size());
+        statistics.putNumber("maxEntries", maxEntries);
+        statistics.putNumber("hits", hits.get());
+        statistics.putNumber("negativeHits", negativeHits.get());
+        statistics.putNumber("misses", misses.get());
+        statistics.putNumber("evictions", entries.getEvictions());
+        statistics.putNumber("refreshes", refreshes.get());
+        return statistics;
+    }
+
+    // returns the entry of an item unless it has expired
+    private Entry lookup(String itemId)
+    {
+        Entry entry = entries.get(itemId);
+        if (null != entry && entry.expires < System.currentTimeMillis()) {
+            entries.remove(itemId, entry);
+            return null;
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,143 @@
+package de.appsist.service.lbd.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded map with least recently used eviction, divided into stripes guarded by their own
+ * locks. Used by the caches shared by all instances of the verticle, so lookups from different
+ * event loops only contend if they hit the same stripe.
+ *
+ * @param <V> Type of the values.
+ */
+class LruStripes<V>
+{
+    private final Stripe<V>[] stripes;
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Stripe<V>
+        extends LinkedHashMap<String, V>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private final AtomicLong evictions;
+
+        private Stripe(int maxEntries, AtomicLong evictions)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+        {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Creates a map.
+     *
+     * @param maxEntries Maximum number of entries, divided evenly among the stripes.
+     * @param stripeCount Number of stripes, rounded up to a power of two.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    LruStripes(int maxEntries, int stripeCount)
+    {
+        int count = 1;
+        while (count < stripeCount) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        int stripeEntries = Math.max(1, (maxEntries + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe<V>(stripeEntries, evictions);
+        }
+    }
+
+    /**
+     * Returns the lock guarding the stripe of a key. Callers may hold it to combine several
+     * operations on the key atomically.
+     */
+    Object lockFor(String key)
+    {
+        return stripeFor(key);
+    }
+
+    V get(String key)
+    {
+        Stripe<V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    void put(String key, V value)
+    {
+        Stripe<V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    V remove(String key)
+    {
+        Stripe<V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.remove(key);
+        }
+    }
+
+    // removes the entry only if it is still mapped to the given value, e.g., an expired entry
+    boolean remove(String key, V value)
+    {
+        Stripe<V> stripe = stripeFor(key);
+        synchronized (stripe) {
+            if (stripe.get(key) == value) {
+                stripe.remove(key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    void clear()
+    {
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    int size()
+    {
+        int size = 0;
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    private Stripe<V> stripeFor(String key)
+    {
+        int hash = key.hashCode();
+        // spread the higher bits, the number of stripes is small
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,150 @@
+package de.appsist.service.lbd.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Size bounded cache for results of SparQL queries.
+ * Entries are evicted in least recently used order when the cache is full and expire after a
+ * fixed time to live. Invalidating the cache starts a new epoch: results of queries sent before
+ * the invalidation are not stored anymore.
+ * The cache is thread safe, it is shared by all instances of the verticle.
+ */
+public class SparQLResultCache
+{
+    private static class Entry
+    {
+        private final String result;
+        private final long expires;
+
+        private Entry(String result, long expires)
+        {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final LruStripes<Entry> entries;
+
+    private volatile long epoch;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries Maximum number of results to store.
+     * @param timeToLive Time in milliseconds a result is valid.
+     * @param stripes Number of independently locked parts of the cache.
+     */
+    public SparQLResultCache(int maxEntries, long timeToLive, int stripes)
+    {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.entries = new LruStripes<Entry>(maxEntries, stripes);
+    }
+
+    /**
+     * Creates a cache configured by the given object.
+     *
+     * @param config Configuration with the optional fields "maxEntries", "timeToLive" (ms) and
+     *            "stripes".
+     * @return Cache.
+     */
+    public static SparQLResultCache fromConfiguration(JsonObject config)
+    {
+        return new SparQLResultCache(config.getInteger("maxEntries", 2000), config.getLong(
+                "timeToLive", 600000), config.getInteger("stripes", 16));
+    }
+
+    /**
+     * Returns the cached result for a query.
+     *
+     * @param key Normalized query.
+     * @return Result of the query or <code>null</code> if the result is not cached.
+     */
+    public String get(String key)
+    {
+        Entry entry = entries.get(key);
+        if (null == entry) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            if (entries.remove(key, entry)) {
+                expirations.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * Stores the result of a query.
+     *
+     * @param key Normalized query.
+     * @param result Result of the query.
+     * @param queryEpoch Epoch when the query was sent, see {@link #getEpoch()}. The result is
+     *            discarded if the cache has been invalidated since.
+     */
+    public void put(String key, String result, long queryEpoch)
+    {
+        if (queryEpoch != epoch) {
+            return;
+        }
+        Entry entry = new Entry(result, System.currentTimeMillis() + timeToLive);
+        entries.put(key, entry);
+        if (queryEpoch != epoch) {
+            // invalidated concurrently, the result may be outdated
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Returns the current epoch of the cache.
+     *
+     * @return Number of invalidations since the cache has been created.
+     */
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Removes all entries and starts a new epoch.
+     *
+     * @return The new epoch.
+     */
+    public synchronized long invalidate()
+    {
+        // the epoch is changed first, so results of queries sent before are not stored anymore
+        long newEpoch = ++epoch;
+        entries.clear();
+        return newEpoch;
+    }
+
+    /**
+     * Returns the statistics of the cache.
+     *
+     * @return Object with the fields size, maxEntries, epoch, hits, misses, evictions and
+     *         expirations.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("size", entries.size());
+        statistics.putNumber("maxEntries", maxEntries);
+        statistics.putNumber("epoch", epoch);
+        statistics.putNumber("hits", hits.get());
+        statistics.putNumber("misses", misses.get());
+        statistics.putNumber("evictions", entries.getEvictions());
+        statistics.putNumber("expirations", expirations.get());
+        return statistics;
+    }
+}
@@ -0,0 +1,147 @@
+package de.appsist.service.lbd.cache;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import de.appsist.service.lbd.queries.LBDSparQLQueries;
+import de.appsist.service.lbd.queries.SparQLDispatcher;
+import de.appsist.service.lbd.queries.SparQLResultDecoder;
+
+/**
+ * Index of the stations and machines of all workplace groups of the plant.
+ * The index is loaded with a single query and replaced as a whole on every refresh. Until it has
+ * been loaded, and for workplace groups it does not contain, rules 3.1.1 and 1.2 have to be
+ * evaluated by querying the ontology.
+ * The index may be read by all instances of the verticle, but has to be refreshed by a single
+ * instance, the one whose dispatcher it uses.
+ */
+public class TopologyIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(TopologyIndex.class);
+
+    private final SparQLDispatcher dispatcher;
+    private final int pageSize;
+
+    // replaced as a whole and never modified afterwards
+    private volatile Map<String, Set<String>> devices = Collections.emptyMap();
+    private volatile long loaded;
+    private boolean refreshing;
+    private boolean refreshAgain;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long refreshes;
+    private volatile long failures;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param dispatcher Dispatcher to send the query with.
+     * @param pageSize Number of rows to retrieve per query, 0 to retrieve the relation at once.
+     */
+    public TopologyIndex(SparQLDispatcher dispatcher, int pageSize)
+    {
+        this.dispatcher = dispatcher;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the stations and machines of the given workplace groups.
+     *
+     * @param workplaceGroups IRIs of the workplace groups.
+     * @return Stations and machines or <code>null</code> if a workplace group is not in the index.
+     */
+    public Set<String> getDevices(Collection<String> workplaceGroups)
+    {
+        Map<String, Set<String>> currentDevices = devices;
+        Set<String> result = new HashSet<String>();
+        for (String workplaceGroup : workplaceGroups) {
+            Set<String> groupDevices = currentDevices.get(workplaceGroup);
+            if (null == groupDevices) {
+                misses.incrementAndGet();
+                return null;
+            }
+            result.addAll(groupDevices);
+        }
+        hits.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Loads the index again. If a refresh is running, another refresh is started after it, so
+     * the index reflects the ontology at the time of the call.
+     */
+    public void refresh()
+    {
+        if (refreshing) {
+            refreshAgain = true;
+            return;
+        }
+        refreshing = true;
+        final Map<String, Set<String>> newDevices = new HashMap<String, Set<String>>();
+        SparQLResultDecoder.RowSink deviceSink = new SparQLResultDecoder.RowSink()
+        {
+            @Override
+            public void row(String[] values)
+            {
+                if (null == values[0] || null == values[1]) {
+                    return;
+                }
+                Set<String> groupDevices = newDevices.get(values[0]);
+                if (null == groupDevices) {
+                    groupDevices = new HashSet<String>();
+                    newDevices.put(values[0], groupDevices);
+                }
+                groupDevices.add(values[1]);
+            }
+        };
+        AsyncResultHandler<Integer> refreshHandler = new AsyncResultHandler<Integer>()
+        {
+            @Override
+            public void handle(AsyncResult<Integer> rows)
+            {
+                refreshing = false;
+                if (rows.failed()) {
+                    failures++;
+                    log.warn("[Lernbedarf-Dienst] - loading plant topology failed", rows.cause());
+                }
+                else {
+                    devices = newDevices;
+                    loaded = System.currentTimeMillis();
+                    refreshes++;
+                    log.info("[Lernbedarf-Dienst] - plant topology loaded, " + newDevices.size()
+                            + " workplace groups");
+                }
+                if (refreshAgain) {
+                    refreshAgain = false;
+                    refresh();
+                }
+            }
+        };
+        LBDSparQLQueries.getWorkplaceGroupDevices(pageSize, deviceSink, dispatcher, refreshHandler);
+    }
+
+    /**
+     * Returns the statistics of the index.
+     *
+     * @return Object with the fields workplaceGroups, loaded, hits, misses, refreshes and
+     *         failures.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("workplaceGroups", devices.size());
+        statistics.putNumber("loaded", loaded);
+        statistics.putNumber("hits", hits.get());
+        statistics.putNumber("misses", misses.get());
+        statistics.putNumber("refreshes", refreshes);
+        statistics.putNumber("failures", failures);
+        return statistics;
+    }
+}
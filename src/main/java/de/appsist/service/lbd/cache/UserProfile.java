@@ -0,0 +1,81 @@
+package de.appsist.service.lbd.cache;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.vertx.java.core.json.JsonObject;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import de.appsist.service.usermodel.model.EmployeeDevelopmentGoals;
+
+/**
+ * Information about a user as retrieved from the user model service.
+ */
+public class UserProfile
+{
+    // readers are immutable and bound to the target types, i.e., they are built once
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectReader stringSetReader = mapper
+            .reader(new TypeReference<Set<String>>()
+            {
+            });
+    private static final ObjectReader developmentGoalsReader = mapper
+            .reader(EmployeeDevelopmentGoals.class);
+
+    private final Set<String> workplaceGroups;
+    private final Set<String> developmentGoals;
+    private final EmployeeDevelopmentGoals developmentGoalsObject;
+    private final String employeeType;
+
+    public UserProfile(Set<String> workplaceGroups, Set<String> developmentGoals,
+            EmployeeDevelopmentGoals developmentGoalsObject, String employeeType)
+    {
+        this.workplaceGroups = workplaceGroups;
+        this.developmentGoals = developmentGoals;
+        this.developmentGoalsObject = developmentGoalsObject;
+        this.employeeType = employeeType;
+    }
+
+    /**
+     * Decodes the user information sent by the user model service.
+     *
+     * @param userInformation Object with the fields workplaceGroups, developmentGoals and
+     *            developmentGoalsObject, each containing JSON, and the field employeeType.
+     * @return Profile.
+     * @throws IOException If a field cannot be decoded.
+     */
+    public static UserProfile decode(JsonObject userInformation) throws IOException
+    {
+        Set<String> workplaceGroups = stringSetReader.readValue(userInformation
+                .getString("workplaceGroups"));
+        Set<String> developmentGoals = stringSetReader.readValue(userInformation
+                .getString("developmentGoals"));
+        EmployeeDevelopmentGoals developmentGoalsObject = developmentGoalsReader
+                .readValue(userInformation.getString("developmentGoalsObject"));
+        return new UserProfile(workplaceGroups, developmentGoals, developmentGoalsObject,
+                userInformation.getString("employeeType"));
+    }
+
+    public Set<String> getWorkplaceGroups()
+    {
+        return workplaceGroups;
+    }
+
+    public Set<String> getDevelopmentGoals()
+    {
+        return developmentGoals;
+    }
+
+    public EmployeeDevelopmentGoals getDevelopmentGoalsObject()
+    {
+        return developmentGoalsObject;
+    }
+
+    public String getEmployeeType()
+    {
+        return employeeType;
+    }
+}
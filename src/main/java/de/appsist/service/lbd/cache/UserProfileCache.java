@@ -0,0 +1,132 @@
+package de.appsist.service.lbd.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Size bounded cache for the profiles of users, so activity switches do not require a request to
+ * the user model service. The user model service does not report changes of the profiles, so they
+ * expire after a short time; a profile is also removed when its user starts a new session.
+ * The cache is thread safe, it is shared by all instances of the verticle.
+ */
+public class UserProfileCache
+{
+    private static class Entry
+    {
+        private final UserProfile profile;
+        private final long expires;
+
+        private Entry(UserProfile profile, long expires)
+        {
+            this.profile = profile;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final LruStripes<Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries Maximum number of profiles to store.
+     * @param timeToLive Time in milliseconds a profile is valid.
+     * @param stripes Number of independently locked parts of the cache.
+     */
+    public UserProfileCache(int maxEntries, long timeToLive, int stripes)
+    {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.entries = new LruStripes<Entry>(maxEntries, stripes);
+    }
+
+    /**
+     * Creates a cache configured by the given object.
+     *
+     * @param config Configuration with the optional fields "maxEntries", "timeToLive" (ms) and
+     *            "stripes".
+     * @return Cache.
+     */
+    public static UserProfileCache fromConfiguration(JsonObject config)
+    {
+        return new UserProfileCache(config.getInteger("maxEntries", 10000), config.getLong(
+                "timeToLive", 60000), config.getInteger("stripes", 16));
+    }
+
+    /**
+     * Returns the profile of a user.
+     *
+     * @param userId User to return the profile for.
+     * @return Profile or <code>null</code> if the profile is not cached or has expired.
+     */
+    public UserProfile get(String userId)
+    {
+        Entry entry = null != userId ? entries.get(userId) : null;
+        if (null != entry && entry.expires < System.currentTimeMillis()) {
+            entries.remove(userId, entry);
+            entry = null;
+        }
+        if (null == entry) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.profile;
+    }
+
+    /**
+     * Stores the profile of a user.
+     *
+     * @param userId User.
+     * @param profile Profile of the user.
+     */
+    public void put(String userId, UserProfile profile)
+    {
+        entries.put(userId, new Entry(profile, System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Removes the profile of a user.
+     *
+     * @param userId User whose profile may have changed.
+     */
+    public void invalidate(String userId)
+    {
+        if (null != userId && null != entries.remove(userId)) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all profiles.
+     */
+    public void invalidate()
+    {
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }
+
+    /**
+     * Returns the statistics of the cache.
+     *
+     * @return Object with the fields size, maxEntries, hits, misses, evictions and
+     *         invalidations.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("size", entries.size());
+        statistics.putNumber("maxEntries", maxEntries);
+        statistics.putNumber("hits", hits.get());
+        statistics.putNumber("misses", misses.get());
+        statistics.putNumber("evictions", entries.getEvictions());
+        statistics.putNumber("invalidations", invalidations.get());
+        return statistics;
+    }
+}
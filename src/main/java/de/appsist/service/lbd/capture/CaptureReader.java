@@ -0,0 +1,93 @@
+package de.appsist.service.lbd.capture;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Reads the records of a capture written by {@link TrafficRecorder}. A capture cut off while it
+ * was written, e.g., by a crash of the service, is read up to the last complete record.
+ */
+public class CaptureReader
+    implements Closeable
+{
+    private final BufferedReader reader;
+    private boolean truncated;
+    private boolean ended;
+
+    /**
+     * Opens a capture and reads its header.
+     *
+     * @param path Path of the capture file.
+     * @throws IOException If the file cannot be read or is not a capture of a supported version.
+     */
+    public CaptureReader(String path) throws IOException
+    {
+        reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                new FileInputStream(path)), StandardCharsets.UTF_8));
+        JsonObject header = next();
+        if (null == header || !TrafficRecorder.KIND_CAPTURE.equals(header.getString("k"))) {
+            reader.close();
+            throw new IOException("Not a capture: " + path);
+        }
+        if (header.getInteger("version", 0) > TrafficRecorder.VERSION) {
+            reader.close();
+            throw new IOException("Unsupported version " + header.getInteger("version")
+                    + " of the capture " + path);
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return Record or <code>null</code> at the end of the capture.
+     * @throws IOException If the capture cannot be read.
+     */
+    public JsonObject next() throws IOException
+    {
+        if (truncated) {
+            return null;
+        }
+        try {
+            String line = reader.readLine();
+            while (null != line && line.isEmpty()) {
+                line = reader.readLine();
+            }
+            if (null == line) {
+                truncated = !ended;
+                return null;
+            }
+            JsonObject record = new JsonObject(line);
+            ended = TrafficRecorder.KIND_END.equals(record.getString("k"));
+            return record;
+        }
+        catch (EOFException | DecodeException e) {
+            // the last record has not been written completely
+            truncated = true;
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the capture ended before its end record, valid after the last record has
+     * been read.
+     */
+    public boolean isTruncated()
+    {
+        return truncated;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
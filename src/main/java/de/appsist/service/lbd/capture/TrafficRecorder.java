@@ -0,0 +1,401 @@
+package de.appsist.service.lbd.capture;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Captures the traffic of the service to replay it against another build: the events starting
+ * pipeline runs, the SparQL queries and user information requests with their replies, and the
+ * publication of the service items. Session and user ids are replaced by salted hashes, tokens are
+ * dropped.
+ * The capture is a gzip compressed file with one JSON object per line, appended by a writer
+ * thread. Every record contains its kind "k" and its time "t" in milliseconds since the start of
+ * the capture. Records are dropped rather than blocking the event loop if the writer falls behind.
+ * The file is flushed every second, so a capture cut off by a crash can be read up to the last
+ * flush.
+ */
+public class TrafficRecorder
+{
+    private static final Logger log = LoggerFactory.getLogger(TrafficRecorder.class);
+
+    public static final int VERSION = 1;
+
+    // kinds of the records
+    public static final String KIND_CAPTURE = "capture";
+    public static final String KIND_EVENT = "event";
+    public static final String KIND_QUERY = "query";
+    public static final String KIND_USER_INFORMATION = "userInformation";
+    public static final String KIND_SESSION = "session";
+    public static final String KIND_PUBLISHED = "published";
+    public static final String KIND_END = "end";
+
+    // fields of the events containing session or user ids
+    private static final String[] ID_FIELDS = { "sid", "sessionId", "session", "userId" };
+    // fields of the user information used by the service, other fields are not captured
+    private static final String[] USER_INFORMATION_FIELDS = { "workplaceGroups",
+            "developmentGoals", "developmentGoalsObject", "employeeType" };
+
+    private static final long FLUSH_INTERVAL = 1000;
+
+    // a running capture
+    private class Capture extends Thread
+    {
+        private final File file;
+        private final byte[] salt;
+        private final long startTime = System.currentTimeMillis();
+        private final long deadline;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(queueSize);
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean stopping;
+        private Context stopContext;
+        private Handler<AsyncResult<String>> stopHandler;
+
+        private Capture(File file, byte[] salt, long duration)
+        {
+            super("lbd-capture");
+            setDaemon(true);
+            this.file = file;
+            this.salt = salt;
+            this.deadline = duration > 0 ? startTime + duration : Long.MAX_VALUE;
+        }
+
+        private void offer(JsonObject record)
+        {
+            record.putNumber("t", System.currentTimeMillis() - startTime);
+            if (queue.offer(record.encode())) {
+                records.incrementAndGet();
+            }
+            else {
+                dropped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            IOException failure = null;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+                    new FileOutputStream(file, true), 65536, true), StandardCharsets.UTF_8))) {
+                writer.write(new JsonObject().putString("k", KIND_CAPTURE)
+                        .putNumber("version", VERSION).putNumber("started", startTime)
+                        .putNumber("t", 0).encode());
+                writer.write('\n');
+                long lastFlush = System.currentTimeMillis();
+                while (!stopping && System.currentTimeMillis() < deadline) {
+                    String line = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (null != line) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                    if ((null == line && queue.isEmpty())
+                            || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                        writer.flush();
+                        lastFlush = System.currentTimeMillis();
+                    }
+                }
+                finish();
+                for (String line = queue.poll(); null != line; line = queue.poll()) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                writer.write(new JsonObject().putString("k", KIND_END)
+                        .putNumber("t", System.currentTimeMillis() - startTime)
+                        .putNumber("records", records.get()).putNumber("dropped", dropped.get())
+                        .encode());
+                writer.write('\n');
+            }
+            catch (IOException e) {
+                failure = e;
+                log.warn("[Lernbedarf-Dienst] - writing the capture " + file + " failed", e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                finish();
+            }
+            log.info("[Lernbedarf-Dienst] - capture " + file + " finished with " + records.get()
+                    + " records, " + dropped.get() + " dropped");
+            final DefaultFutureResult<String> result = null != failure
+                    ? new DefaultFutureResult<String>(failure)
+                    : new DefaultFutureResult<String>(file.getAbsolutePath());
+            final Handler<AsyncResult<String>> handler;
+            final Context context;
+            synchronized (TrafficRecorder.this) {
+                handler = stopHandler;
+                context = stopContext;
+            }
+            if (null != handler) {
+                context.runOnContext(new Handler<Void>()
+                {
+                    @Override
+                    public void handle(Void event)
+                    {
+                        handler.handle(result);
+                    }
+                });
+            }
+        }
+
+        // no records are accepted anymore
+        private void finish()
+        {
+            synchronized (TrafficRecorder.this) {
+                if (capture == this) {
+                    capture = null;
+                }
+            }
+        }
+    }
+
+    private final Vertx vertx;
+    private final File directory;
+    private final int queueSize;
+    private final String configuredSalt;
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private volatile Capture capture;
+
+    /**
+     * Creates a recorder.
+     *
+     * @param vertx Vert.x instance of the verticle.
+     * @param config Configuration with the optional fields "directory", "queueSize" (records
+     *            waiting to be written) and "salt" for the hashes of the ids. Without a salt, a
+     *            random salt is chosen for every capture, i.e., the ids of different captures
+     *            cannot be related.
+     */
+    public TrafficRecorder(Vertx vertx, JsonObject config)
+    {
+        this.vertx = vertx;
+        this.directory = new File(config.getString("directory", "captures"));
+        this.queueSize = Math.max(1, config.getInteger("queueSize", 10000));
+        this.configuredSalt = config.getString("salt");
+    }
+
+    /**
+     * Starts a capture.
+     *
+     * @param duration Time in milliseconds after which the capture ends by itself, 0 to capture
+     *            until {@link #stop(Handler)} is called.
+     * @return Path of the capture file.
+     * @throws IllegalStateException If a capture is already running.
+     */
+    public synchronized String start(long duration)
+    {
+        if (null != capture) {
+            throw new IllegalStateException("Capture already running");
+        }
+        directory.mkdirs();
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File file = new File(directory, "lbd-" + timestamp + ".capture.gz");
+        byte[] salt;
+        if (null != configuredSalt) {
+            salt = configuredSalt.getBytes(StandardCharsets.UTF_8);
+        }
+        else {
+            salt = new byte[16];
+            new SecureRandom().nextBytes(salt);
+        }
+        capture = new Capture(file, salt, duration);
+        capture.start();
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Stops the capture. The remaining records are written by the writer thread, the handler is
+     * called on the context of the caller when the file has been closed.
+     *
+     * @param resultHandler Handler for the path of the file.
+     */
+    public void stop(Handler<AsyncResult<String>> resultHandler)
+    {
+        Capture running;
+        synchronized (this) {
+            running = capture;
+            if (null == running) {
+                resultHandler.handle(new DefaultFutureResult<String>(new IllegalStateException(
+                        "No capture running")));
+                return;
+            }
+            running.stopContext = vertx.currentContext();
+            running.stopHandler = resultHandler;
+        }
+        running.stopping = true;
+    }
+
+    /**
+     * Returns whether a capture is running. The callers check this before building a record.
+     */
+    public boolean isCapturing()
+    {
+        return null != capture;
+    }
+
+    /**
+     * Records an inbound event.
+     *
+     * @param address Address the event has been received on.
+     * @param body Body of the event.
+     */
+    public void recordEvent(String address, JsonObject body)
+    {
+        Capture running = capture;
+        if (null != running) {
+            running.offer(new JsonObject().putString("k", KIND_EVENT).putString("a", address)
+                    .putObject("b", anonymize(running, body.copy())));
+        }
+    }
+
+    /**
+     * Records a SparQL query sent to the semantic wiki and its reply.
+     *
+     * @param query SparQL query.
+     * @param reply JSON encoded result.
+     * @param nanos Time until the reply has been received in nanoseconds.
+     */
+    public void recordQuery(String query, String reply, long nanos)
+    {
+        Capture running = capture;
+        if (null != running) {
+            running.offer(new JsonObject().putString("k", KIND_QUERY).putString("q", query)
+                    .putString("r", reply).putNumber("d", nanos / 1000));
+        }
+    }
+
+    /**
+     * Records a request for the information of a user and its reply. Only the fields of the user
+     * information used by the service are recorded.
+     *
+     * @param userId Id of the user.
+     * @param reply Reply of the user model.
+     * @param nanos Time until the reply has been received in nanoseconds.
+     */
+    public void recordUserInformation(String userId, JsonObject reply, long nanos)
+    {
+        Capture running = capture;
+        if (null == running) {
+            return;
+        }
+        JsonObject userInformation = null != reply ? reply.getObject("userInformation") : null;
+        JsonObject recorded = null;
+        if (null != userInformation) {
+            recorded = new JsonObject();
+            for (String field : USER_INFORMATION_FIELDS) {
+                if (null != userInformation.getValue(field)) {
+                    recorded.putValue(field, userInformation.getValue(field));
+                }
+            }
+        }
+        running.offer(new JsonObject().putString("k", KIND_USER_INFORMATION)
+                .putString("u", hash(running, userId)).putObject("r", recorded)
+                .putNumber("d", nanos / 1000));
+    }
+
+    /**
+     * Records the user a session belongs to, as returned by the authentication service.
+     *
+     * @param sessionId Id of the session.
+     * @param userId Id of the user.
+     */
+    public void recordSession(String sessionId, String userId)
+    {
+        Capture running = capture;
+        if (null != running) {
+            running.offer(new JsonObject().putString("k", KIND_SESSION)
+                    .putString("s", hash(running, sessionId)).putString("u", hash(running, userId)));
+        }
+    }
+
+    /**
+     * Records the publication of the service items of a session.
+     *
+     * @param sessionId Id of the session.
+     * @param items Number of service items.
+     */
+    public void recordPublished(String sessionId, int items)
+    {
+        Capture running = capture;
+        if (null != running) {
+            running.offer(new JsonObject().putString("k", KIND_PUBLISHED)
+                    .putString("s", hash(running, sessionId)).putNumber("n", items));
+        }
+    }
+
+    // replaces the ids of an event, also within nested objects like the payload, and drops tokens
+    private JsonObject anonymize(Capture running, JsonObject body)
+    {
+        for (String field : ID_FIELDS) {
+            Object value = body.getValue(field);
+            if (value instanceof String) {
+                body.putString(field, hash(running, (String) value));
+            }
+        }
+        if (null != body.getValue("token")) {
+            body.putString("token", "token");
+        }
+        for (String field : body.getFieldNames()) {
+            Object value = body.getValue(field);
+            if (value instanceof JsonObject) {
+                anonymize(running, (JsonObject) value);
+            }
+        }
+        return body;
+    }
+
+    // salted hash of an id, 16 hex digits
+    private String hash(Capture running, String id)
+    {
+        if (null == id) {
+            return null;
+        }
+        MessageDigest digest = digests.get();
+        digest.reset();
+        digest.update(running.salt);
+        byte[] hash = digest.digest(id.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(16);
+        for (int i = 0; i < 8; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(
+                    Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
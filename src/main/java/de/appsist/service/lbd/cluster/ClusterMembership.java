@@ -0,0 +1,242 @@
+package de.appsist.service.lbd.cluster;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.java.core.spi.cluster.ClusterManager;
+
+/**
+ * Members of the Vert.x cluster the service is running in, and the assignment of sessions to them.
+ * A member is a node of the cluster running the service: every node registers in a distributed
+ * map while the service is running on it. The members are read periodically, the node listener of
+ * the cluster manager is reserved for Vert.x itself. Whenever the members change, a new
+ * {@link ConsistentHashRing} is built and passed to the change handler, on the context that
+ * started the membership.
+ * <p>
+ * Sessions handed over to other nodes are stored in a second distributed map until the node the
+ * session belongs to claims them. Since the map is written synchronously, sessions handed over by
+ * a node leaving the cluster are not lost: a node leaves the members only after it has stored
+ * them, and the remaining nodes claim them when the members change.
+ */
+public class ClusterMembership
+{
+    private static final Logger log = LoggerFactory.getLogger(ClusterMembership.class);
+
+    // names of the distributed maps of the nodes running the service and the sessions handed over
+    private static final String NODES_MAP = "lbd.nodes";
+    private static final String HAND_OVER_MAP = "lbd.handOver";
+
+    private final Vertx vertx;
+    private final ClusterManager clusterManager;
+    private final int virtualNodes;
+    private final long checkInterval;
+    // ids of the nodes running the service
+    private final Map<String, String> nodes;
+    // states of the sessions handed over by their ids
+    private final Map<String, String> handedOver;
+
+    private volatile ConsistentHashRing ring;
+    private Handler<ConsistentHashRing> changeHandler;
+    private long timerId = -1;
+    private long changes;
+
+    private ClusterMembership(Vertx vertx, ClusterManager clusterManager, JsonObject config)
+    {
+        this.vertx = vertx;
+        this.clusterManager = clusterManager;
+        this.virtualNodes = config.getInteger("virtualNodes", 64);
+        this.checkInterval = config.getLong("membershipCheckInterval", 1000);
+        this.nodes = clusterManager.getSyncMap(NODES_MAP);
+        this.handedOver = clusterManager.getSyncMap(HAND_OVER_MAP);
+        this.ring = new ConsistentHashRing(readMembers(), virtualNodes);
+    }
+
+    /**
+     * Creates the membership if Vert.x is running clustered.
+     *
+     * @param vertx Vert.x instance of the verticle.
+     * @param config Configuration with the optional fields "enabled", "virtualNodes" and
+     *            "membershipCheckInterval" (ms).
+     * @return Membership or <code>null</code> if Vert.x is not clustered or clustering is
+     *         disabled.
+     */
+    public static ClusterMembership fromConfiguration(Vertx vertx, JsonObject config)
+    {
+        if (!config.getBoolean("enabled", true) || !(vertx instanceof VertxInternal)) {
+            return null;
+        }
+        ClusterManager clusterManager = ((VertxInternal) vertx).clusterManager();
+        if (null == clusterManager) {
+            return null;
+        }
+        return new ClusterMembership(vertx, clusterManager, config);
+    }
+
+    /**
+     * Sets the handler called with the new ring whenever the members of the cluster change.
+     *
+     * @param changeHandler Handler for new rings.
+     */
+    public void setChangeHandler(Handler<ConsistentHashRing> changeHandler)
+    {
+        this.changeHandler = changeHandler;
+    }
+
+    /**
+     * Registers this node as a member and starts checking the members of the cluster.
+     */
+    public void start()
+    {
+        nodes.put(getNodeId(), getNodeId());
+        check();
+        timerId = vertx.setPeriodic(checkInterval, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long event)
+            {
+                check();
+            }
+        });
+    }
+
+    /**
+     * Stops checking the members of the cluster.
+     */
+    public void stop()
+    {
+        if (timerId >= 0) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+    }
+
+    /**
+     * Removes this node from the members. The other nodes take over its sessions when they notice
+     * that it has left.
+     */
+    public void leave()
+    {
+        nodes.remove(getNodeId());
+    }
+
+    /**
+     * Stores the states of sessions handed over to other nodes until the nodes claim them. The
+     * call blocks until the states are stored in the cluster.
+     *
+     * @param states States of the sessions, mapped by session id.
+     */
+    public void handOver(Map<String, String> states)
+    {
+        handedOver.putAll(states);
+    }
+
+    /**
+     * Removes the sessions handed over which belong to this node from the cluster.
+     *
+     * @return States of the sessions claimed, mapped by session id.
+     */
+    public Map<String, String> claim()
+    {
+        Map<String, String> claimed = new HashMap<String, String>();
+        for (String sessionId : new HashSet<String>(handedOver.keySet())) {
+            if (isLocal(sessionId)) {
+                // another node may claim the session while the rings of the nodes differ
+                String state = handedOver.remove(sessionId);
+                if (null != state) {
+                    claimed.put(sessionId, state);
+                }
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Returns the id of this node.
+     *
+     * @return Node id assigned by the cluster manager.
+     */
+    public String getNodeId()
+    {
+        return clusterManager.getNodeID();
+    }
+
+    /**
+     * Returns the current assignment of sessions to nodes.
+     *
+     * @return Ring of the current members.
+     */
+    public ConsistentHashRing getRing()
+    {
+        return ring;
+    }
+
+    /**
+     * Returns whether a session belongs to this node.
+     *
+     * @param sessionId Id of the session.
+     * @return <code>true</code> if this node handles the session.
+     */
+    public boolean isLocal(String sessionId)
+    {
+        String owner = ring.getOwner(sessionId);
+        // while the node is not yet part of the ring, it handles its sessions itself
+        return null == owner || owner.equals(getNodeId());
+    }
+
+    /**
+     * Returns the ring without this node, i.e., the assignment after this node has left.
+     *
+     * @return Ring of the other members.
+     */
+    public ConsistentHashRing getRingWithoutLocalNode()
+    {
+        Set<String> nodes = new HashSet<String>(ring.getNodes());
+        nodes.remove(getNodeId());
+        return new ConsistentHashRing(nodes, virtualNodes);
+    }
+
+    /**
+     * Returns the statistics of the membership.
+     *
+     * @return Object with the fields nodeId, nodes and changes.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putString("nodeId", getNodeId());
+        statistics.putNumber("nodes", ring.getNodes().size());
+        statistics.putNumber("changes", changes);
+        return statistics;
+    }
+
+    // nodes of the cluster running the service, a node which failed without leaving is dropped
+    // by the cluster manager
+    private Set<String> readMembers()
+    {
+        Set<String> members = new HashSet<String>(clusterManager.getNodes());
+        members.retainAll(nodes.keySet());
+        return members;
+    }
+
+    private void check()
+    {
+        Set<String> members = readMembers();
+        if (members.equals(ring.getNodes())) {
+            return;
+        }
+        log.info("[Lernbedarf-Dienst] - cluster members changed: " + members);
+        ring = new ConsistentHashRing(members, virtualNodes);
+        changes++;
+        if (null != changeHandler) {
+            changeHandler.handle(ring);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package de.appsist.service.lbd.cluster;
+
+import java.util.*;
+
+/**
+ * Assignment of sessions to the nodes of a cluster by consistent hashing.
+ * Every node is placed on the ring at a number of virtual positions. A session belongs to the
+ * node at the first position following the hash of its id. When a node joins or leaves, only the
+ * sessions between its positions and the preceding positions change their node.
+ * Rings are immutable.
+ */
+public class ConsistentHashRing
+{
+    private final int[] positions;
+    private final String[] owners;
+    private final Set<String> nodes;
+
+    /**
+     * Creates a ring.
+     *
+     * @param nodes Ids of the nodes of the cluster.
+     * @param virtualNodes Number of positions per node.
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes)
+    {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<String>(nodes));
+        TreeMap<Integer, String> ring = new TreeMap<Integer, String>();
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                int position = hash(node + "#" + i);
+                String owner = ring.get(position);
+                // on collisions the same node wins on every member of the cluster
+                if (null == owner || owner.compareTo(node) > 0) {
+                    ring.put(position, node);
+                }
+            }
+        }
+        positions = new int[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : ring.entrySet()) {
+            positions[i] = entry.getKey();
+            owners[i++] = entry.getValue();
+        }
+    }
+
+    /**
+     * Returns the node a session belongs to.
+     *
+     * @param sessionId Id of the session.
+     * @return Id of the node or <code>null</code> if the ring is empty.
+     */
+    public String getOwner(String sessionId)
+    {
+        if (positions.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(positions, hash(sessionId));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == positions.length ? 0 : index];
+    }
+
+    /**
+     * Returns the nodes of the ring.
+     *
+     * @return Ids of the nodes.
+     */
+    public Set<String> getNodes()
+    {
+        return nodes;
+    }
+
+    // FNV-1a, mixed with the finalizer of MurmurHash3 to spread similar ids over the ring
+    static int hash(String key)
+    {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
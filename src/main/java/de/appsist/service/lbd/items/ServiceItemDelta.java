@@ -0,0 +1,110 @@
+package de.appsist.service.lbd.items;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.iid.server.model.ServiceItem;
+
+/**
+ * Difference between the service items published for a session and the items to publish next.
+ * Items are matched by their ids. The IID only allows to add items and to purge all items of a
+ * service, so an item can neither be removed nor updated by itself: if items have been removed
+ * or changed, e.g., reprioritized, all items are replaced, if items have only been added, only
+ * the new items are sent, and if nothing changed, nothing is sent.
+ */
+public class ServiceItemDelta
+{
+    /**
+     * Update of the IID needed to publish the items.
+     */
+    public enum Update
+    {
+        // the items published are the same
+        NONE,
+        // the new items are added to the items published
+        ADD,
+        // the items published are purged and all items are added
+        REPLACE
+    }
+
+    private final Update update;
+    private final List<ServiceItem> items;
+    private final int removed;
+    private final int changed;
+
+    private ServiceItemDelta(Update update, List<ServiceItem> items, int removed, int changed)
+    {
+        this.update = update;
+        this.items = items;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    /**
+     * Computes the difference of two lists of service items.
+     *
+     * @param published Items published last, <code>null</code> if the items in the IID are not
+     *            known.
+     * @param items Items to publish.
+     * @return Difference.
+     */
+    public static ServiceItemDelta compute(List<ServiceItem> published, List<ServiceItem> items)
+    {
+        if (null == published) {
+            return new ServiceItemDelta(Update.REPLACE, items, 0, 0);
+        }
+        Map<String, JsonObject> publishedById = new HashMap<String, JsonObject>();
+        for (ServiceItem item : published) {
+            publishedById.put(item.getId(), item.asJson());
+        }
+        List<ServiceItem> added = new ArrayList<ServiceItem>();
+        int changed = 0;
+        int kept = 0;
+        for (ServiceItem item : items) {
+            JsonObject publishedItem = publishedById.get(item.getId());
+            if (null == publishedItem) {
+                added.add(item);
+            }
+            else if (publishedItem.equals(item.asJson())) {
+                kept++;
+            }
+            else {
+                changed++;
+            }
+        }
+        int removed = publishedById.size() - kept - changed;
+        if (removed > 0 || changed > 0) {
+            return new ServiceItemDelta(Update.REPLACE, items, removed, changed);
+        }
+        return new ServiceItemDelta(added.isEmpty() ? Update.NONE : Update.ADD, added, 0, 0);
+    }
+
+    public Update getUpdate()
+    {
+        return update;
+    }
+
+    /**
+     * Returns the items to send to the IID.
+     *
+     * @return All items for {@link Update#REPLACE}, the new items for {@link Update#ADD}.
+     */
+    public List<ServiceItem> getItems()
+    {
+        return items;
+    }
+
+    public int getRemoved()
+    {
+        return removed;
+    }
+
+    public int getChanged()
+    {
+        return changed;
+    }
+}
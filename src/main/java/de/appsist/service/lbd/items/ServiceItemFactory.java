@@ -0,0 +1,188 @@
+package de.appsist.service.lbd.items;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import de.appsist.service.iid.server.model.LearningObjectItemBuilder;
+import de.appsist.service.iid.server.model.SendMessageAction;
+import de.appsist.service.iid.server.model.ServiceItem;
+import de.appsist.service.lbd.addresses.Addresses;
+import de.appsist.service.lbd.cache.LabelCache;
+
+/**
+ * Builds the service items of the learning materials found for a session, i.e., the list the
+ * verticle publishes at the end of every pipeline run. The id of an item is derived from its
+ * content, so the item of a content keeps its id when the list is recomputed.
+ */
+public class ServiceItemFactory
+{
+    private static final Logger log = LoggerFactory.getLogger(ServiceItemFactory.class);
+
+    private static final String ONTOLOGY_PREFIX = "http://www.appsist.de/ontology/";
+    private static final String STATIC_PREFIX = "file:///static/";
+
+    private final String externalContentDirectory;
+    private final LabelCache labels;
+    private final boolean debug;
+
+    /**
+     * Creates a factory.
+     *
+     * @param externalContentDirectory Directory of the external contents and their thumbnails,
+     *            ending with a slash.
+     * @param labels Labels of the contents, used as titles of the items.
+     * @param debug Whether the actions of the items are logged.
+     */
+    public ServiceItemFactory(String externalContentDirectory, LabelCache labels, boolean debug)
+    {
+        this.externalContentDirectory = externalContentDirectory;
+        this.labels = labels;
+        this.debug = debug;
+    }
+
+    /**
+     * Builds the items of the learning materials of a session, followed by the assessment item.
+     *
+     * @param sessionId Id of the session.
+     * @param contentIds Preview images mapped by content id, in the order of the items.
+     * @return Service items, prioritized in the order of the contents.
+     * @see #itemId(String)
+     */
+    public List<ServiceItem> buildLearningMaterialList(String sessionId,
+            Map<String, String> contentIds)
+    {
+        List<ServiceItem> serviceItemList = new ArrayList<ServiceItem>(contentIds.size() + 1);
+        int priority = 1;
+        for (Map.Entry<String, String> content : contentIds.entrySet()) {
+            String contentId = content.getKey();
+            String itemId = itemId(contentId);
+            LearningObjectItemBuilder loib = new LearningObjectItemBuilder();
+            String sendMessageActionAddress = Addresses.OPEN_EXTERNAL_CONTENT;
+            if (contentId.startsWith(ONTOLOGY_PREFIX)) {
+                sendMessageActionAddress = Addresses.START_LEARNING_OBJECT;
+            }
+            else {
+                loib.isExternal();
+                loib.setMimeType(detectMimeType(contentId));
+                if (!contentId.startsWith("http")) {
+                    // according to specification contentId has to be of the form
+                    // file:///static/xxx
+                    // and has to be expanded to file://path/to/content/xxx
+                    contentId = contentId.replaceFirst(STATIC_PREFIX, externalContentDirectory);
+                }
+            }
+            SendMessageAction sma = new SendMessageAction(sendMessageActionAddress,
+                    messageBody(sessionId, contentId));
+            loib.setId(itemId).setPriority(priority++)
+                    .setTitle(prettifyContentId(contentId))
+                    .setService("lbd")
+                    .setImageUrl(externalContentDirectory + "thumbnails/" + content.getValue())
+                    .setAction(sma);
+
+            serviceItemList.add(loib.build());
+        }
+        if (debug) {
+            log.debug("[lbd] - ServiceItemList #entries " + serviceItemList.size());
+        }
+        // always add assessment test service item
+        serviceItemList.add(buildSproutAssessmentServiceItem(sessionId));
+        return serviceItemList;
+    }
+
+    /**
+     * Builds the item of the assessment test, which is part of every list.
+     *
+     * @param sessionId Id of the session.
+     * @return Service item of the assessment test.
+     */
+    public ServiceItem buildSproutAssessmentServiceItem(String sessionId)
+    {
+        LearningObjectItemBuilder loib = new LearningObjectItemBuilder();
+        String contentId = "/services/cds/static/externalContent/d69a640a-5526-42dd-b121-d8102b1ad4be/index.html";
+        SendMessageAction sma = new SendMessageAction(Addresses.OPEN_EXTERNAL_CONTENT,
+                messageBody(sessionId, contentId));
+        loib.setId(itemId(contentId)).setPriority(13)
+                .isExternal()
+                .setMimeType(detectMimeType(contentId))
+                .setTitle("Übung: Bauteile des Zylinders")
+                .setService("lbd")
+                .setImageUrl(externalContentDirectory
+                        + "thumbnails/d69a640a-5526-42dd-b121-d8102b1ad4be.png")
+                .setAction(sma);
+        return loib.build();
+    }
+
+    /**
+     * Returns the id of the service item of a content.
+     *
+     * @param contentId Content id as found by the rules.
+     * @return Id starting with "lbd-", equal for equal contents.
+     */
+    public static String itemId(String contentId)
+    {
+        return "lbd-" + UUID.nameUUIDFromBytes(contentId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the label of a content, or the content id if no label is known.
+     *
+     * @param contentId Content id as used in the service items.
+     * @return Title of the content.
+     */
+    public String prettifyContentId(String contentId)
+    {
+        String label = labels.getLabel(contentId);
+        if (null != label) {
+            return label;
+        }
+        else {
+            return contentId;
+        }
+    }
+
+    /**
+     * Returns the MIME type of an external content, derived from its file extension.
+     *
+     * @param contentId Path or URL of the content.
+     * @return MIME type, "text/html" if the extension is not known.
+     */
+    public static String detectMimeType(String contentId)
+    {
+        String result = "unknown";
+        String fileExtension = contentId.substring(contentId.lastIndexOf(".") + 1).toLowerCase();
+
+        switch (fileExtension) {
+            case "pdf" :
+                result = "application/pdf";
+                break;
+            case "doc" :
+                result = "application/msword";
+                break;
+            default :
+                result = "text/html";
+                break;
+        }
+        return result;
+    }
+
+    // body of the message sent when the item is selected
+    private JsonObject messageBody(String sessionId, String contentId)
+    {
+        JsonObject jo = new JsonObject();
+        jo.putString("sessionId", sessionId).putString("token", "token").putString("processId",
+                contentId);
+        JsonObject bo = new JsonObject();
+        bo.putObject("body", jo);
+        if (debug) {
+            log.debug("[lbd] bo: " + bo.encodePrettily());
+        }
+        return bo;
+    }
+}
@@ -0,0 +1,101 @@
+package de.appsist.service.lbd.metrics;
+
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Custom Java Flight Recorder events of the pipelines, used to correlate the stages and queries of
+ * a session with garbage collection pauses and blocked event loops in a recording.
+ * The events are implemented in <code>src/jfr/java</code>, which is only compiled by the "jfr"
+ * profile, activated with <code>-Djfr</code> on JDK 11 or later, and loaded reflectively. In
+ * builds without the profile, on older JDKs, or while no recording is running, the events are
+ * disabled and the callers skip them after a single check.
+ */
+public abstract class FlightRecorderEvents
+{
+    private static final Logger log = LoggerFactory.getLogger(FlightRecorderEvents.class);
+
+    private static final String IMPLEMENTATION = "de.appsist.service.lbd.metrics.jfr.JfrEvents";
+
+    /**
+     * Events which are never enabled.
+     */
+    public static final FlightRecorderEvents NONE = new FlightRecorderEvents()
+    {
+        @Override
+        public boolean isStageEnabled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isQueryEnabled()
+        {
+            return false;
+        }
+
+        @Override
+        public void stage(int sessionHash, String stage, int rows, long nanos)
+        {
+        }
+
+        @Override
+        public void query(int sessionHash, String stage, int values, int resultLength,
+                long nanos)
+        {
+        }
+    };
+
+    /**
+     * Loads the events of the Flight Recorder if they are available.
+     *
+     * @return Flight Recorder events or {@link #NONE}.
+     */
+    public static FlightRecorderEvents load()
+    {
+        try {
+            return (FlightRecorderEvents) Class.forName(IMPLEMENTATION).newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            // built without the jfr profile
+            return NONE;
+        }
+        catch (Exception | LinkageError e) {
+            // running on a JDK without the jdk.jfr module
+            log.info("[Lernbedarf-Dienst] - Flight Recorder events not available: " + e);
+            return NONE;
+        }
+    }
+
+    /**
+     * Returns whether stage events are recorded.
+     */
+    public abstract boolean isStageEnabled();
+
+    /**
+     * Returns whether query events are recorded.
+     */
+    public abstract boolean isQueryEnabled();
+
+    /**
+     * Commits the event of a completed stage.
+     *
+     * @param sessionHash Hash of the session id.
+     * @param stage Rule or stage, see {@link PipelineMetrics}.
+     * @param rows Number of rows or items produced by the stage.
+     * @param nanos Duration in nanoseconds.
+     */
+    public abstract void stage(int sessionHash, String stage, int rows, long nanos);
+
+    /**
+     * Commits the event of a completed SparQL query.
+     *
+     * @param sessionHash Hash of the session id, 0 if the query has not been sent for a session.
+     * @param stage Rule or stage sending the query, <code>null</code> if unknown.
+     * @param values Number of rows in the VALUES blocks of the query.
+     * @param resultLength Length of the JSON encoded result, -1 if the query failed.
+     * @param nanos Duration in nanoseconds.
+     */
+    public abstract void query(int sessionHash, String stage, int values, int resultLength,
+            long nanos);
+}
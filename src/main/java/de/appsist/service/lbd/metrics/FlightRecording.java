@@ -0,0 +1,159 @@
+package de.appsist.service.lbd.metrics;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A Flight Recorder recording of this JVM, started and stopped through the DiagnosticCommand
+ * MBean, so no agent has to be attached. The recording is bounded by its maximum size and age and
+ * dumped to a file in the configured directory when it is stopped. Only one recording is run at a
+ * time.
+ * On JDK 8 the JVM has to be started with <code>-XX:+UnlockCommercialFeatures</code>.
+ */
+public class FlightRecording
+{
+    private static final String RECORDING_NAME = "lbd";
+
+    private final Vertx vertx;
+    private final File directory;
+    private final long maxSize;
+    private final long maxAge;
+    private final String settings;
+
+    private boolean recording;
+
+    /**
+     * Creates a recording.
+     *
+     * @param vertx Vert.x instance of the verticle.
+     * @param config Configuration with the optional fields "directory", "maxSize" (bytes),
+     *            "maxAge" (ms) and "settings" (name of the JFR settings, e.g., "profile").
+     */
+    public FlightRecording(Vertx vertx, JsonObject config)
+    {
+        this.vertx = vertx;
+        this.directory = new File(config.getString("directory", "recordings"));
+        this.maxSize = config.getLong("maxSize", 100 * 1024 * 1024);
+        this.maxAge = config.getLong("maxAge", 600000);
+        this.settings = config.getString("settings", "profile");
+    }
+
+    /**
+     * Starts the recording.
+     *
+     * @param duration Time in milliseconds after which the recording stops and is dumped by
+     *            itself, 0 to record until {@link #stop(Handler)} is called.
+     * @return Output of the diagnostic command.
+     * @throws JMException If the command is not available or fails.
+     * @throws IllegalStateException If a recording is already running.
+     */
+    public synchronized String start(long duration) throws JMException
+    {
+        if (recording) {
+            throw new IllegalStateException("Recording already running");
+        }
+        List<String> arguments = new ArrayList<String>();
+        arguments.add("name=" + RECORDING_NAME);
+        arguments.add("settings=" + settings);
+        arguments.add("maxsize=" + maxSize);
+        arguments.add("maxage=" + (maxAge / 1000) + "s");
+        if (duration > 0) {
+            directory.mkdirs();
+            arguments.add("duration=" + (duration / 1000) + "s");
+            arguments.add("filename=" + nextFile().getAbsolutePath());
+        }
+        String output = execute("jfrStart", arguments);
+        // a recording with a duration ends by itself
+        recording = duration <= 0;
+        return output;
+    }
+
+    /**
+     * Stops the recording and dumps it to a new file. The file is written outside the event loop,
+     * the handler is called on the context of the caller.
+     *
+     * @param resultHandler Handler for the path of the file.
+     */
+    public void stop(final Handler<AsyncResult<String>> resultHandler)
+    {
+        synchronized (this) {
+            if (!recording) {
+                resultHandler.handle(new DefaultFutureResult<String>(new IllegalStateException(
+                        "No recording running")));
+                return;
+            }
+            recording = false;
+        }
+        final Context context = vertx.currentContext();
+        final File file = nextFile();
+        Thread dumpThread = new Thread("lbd-jfr-dump")
+        {
+            @Override
+            public void run()
+            {
+                DefaultFutureResult<String> result;
+                try {
+                    directory.mkdirs();
+                    List<String> arguments = new ArrayList<String>();
+                    arguments.add("name=" + RECORDING_NAME);
+                    arguments.add("filename=" + file.getAbsolutePath());
+                    execute("jfrStop", arguments);
+                    result = new DefaultFutureResult<String>(file.getAbsolutePath());
+                }
+                catch (JMException e) {
+                    result = new DefaultFutureResult<String>(e);
+                }
+                final DefaultFutureResult<String> stopResult = result;
+                context.runOnContext(new Handler<Void>()
+                {
+                    @Override
+                    public void handle(Void event)
+                    {
+                        resultHandler.handle(stopResult);
+                    }
+                });
+            }
+        };
+        dumpThread.setDaemon(true);
+        dumpThread.start();
+    }
+
+    /**
+     * Returns whether a recording started without a duration is running.
+     */
+    public synchronized boolean isRecording()
+    {
+        return recording;
+    }
+
+    private File nextFile()
+    {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        return new File(directory, "lbd-" + timestamp + ".jfr");
+    }
+
+    private static String execute(String command, List<String> arguments) throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName diagnosticCommand = new ObjectName("com.sun.management:type=DiagnosticCommand");
+        Object output = server.invoke(diagnosticCommand, command, new Object[] {
+                arguments.toArray(new String[arguments.size()]) }, new String[] {
+                String[].class.getName() });
+        return String.valueOf(output);
+    }
+}
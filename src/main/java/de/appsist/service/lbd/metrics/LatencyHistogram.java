@@ -0,0 +1,140 @@
+package de.appsist.service.lbd.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with logarithmic buckets, each divided into linear sub-buckets like an
+ * HDR histogram. Durations are recorded in microseconds with a relative error below 1/16 up to
+ * about 19 hours, longer durations are counted in the last bucket.
+ * Recording is thread safe and does not allocate, the histogram may be shared by all instances of
+ * the verticle.
+ */
+public class LatencyHistogram
+{
+    // linear sub-buckets per power of two
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // highest power of two of a duration in microseconds
+    private static final int MAX_MAGNITUDE = 36;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    // upper bounds in seconds of the buckets exported to Prometheus
+    private static final String[] EXPORTED_BOUNDS = { "0.0005", "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30" };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos Duration in nanoseconds, e.g., the difference of two calls to
+     *            {@link System#nanoTime()}.
+     */
+    public void record(long nanos)
+    {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Returns the duration below which the given fraction of the recorded durations lie.
+     *
+     * @param quantile Fraction between 0 and 1, e.g., 0.99.
+     * @return Upper bound of the bucket containing the quantile in microseconds, 0 if nothing
+     *         has been recorded.
+     */
+    public long getQuantile(double quantile)
+    {
+        long total = count.get();
+        if (0 == total) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(bucket), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, without the HELP and TYPE lines.
+     *
+     * @param out Buffer to append to.
+     * @param name Name of the metric, in seconds.
+     * @param labels Labels of the histogram, e.g., <code>stage="3.1.1"</code>, or an empty
+     *            string.
+     */
+    public void appendPrometheus(StringBuilder out, String name, String labels)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            snapshot[bucket] = counts.get(bucket);
+            total += snapshot[bucket];
+        }
+        String separator = labels.isEmpty() ? "" : ",";
+        int bucket = 0;
+        long cumulative = 0;
+        for (String bound : EXPORTED_BOUNDS) {
+            long boundMicros = Math.round(Double.parseDouble(bound) * 1000000);
+            // buckets lying completely below the bound
+            while (bucket < BUCKETS && upperBoundOf(bucket) <= boundMicros) {
+                cumulative += snapshot[bucket++];
+            }
+            out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"")
+                    .append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labels).append(separator)
+                .append("le=\"+Inf\"} ").append(total).append('\n');
+        String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braced).append(' ')
+                .append(sumMicros.get() / 1000000.0).append('\n');
+        out.append(name).append("_count").append(braced).append(' ').append(total).append('\n');
+    }
+
+    private static int bucketOf(long micros)
+    {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // exclusive upper bound of a bucket in microseconds
+    private static long upperBoundOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket + 1) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
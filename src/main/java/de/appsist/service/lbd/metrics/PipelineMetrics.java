@@ -0,0 +1,295 @@
+package de.appsist.service.lbd.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.items.ServiceItemDelta;
+import de.appsist.service.lbd.queries.DispatchQueue;
+
+/**
+ * Durations of the stages of the recommendation pipelines and the number of pipeline runs, shared
+ * by all instances of the verticle. The stages are the rules of the document "Adaptionsregeln",
+ * the retrieval of the user information and labels, and the publication of the service items. The
+ * metrics also cover the dispatch queues of the SparQL queries of all instances. The durations are
+ * exported in the Prometheus text format.
+ */
+public class PipelineMetrics
+{
+    // stages not evaluated as part of a rule graph
+    public static final String STAGE_USER_INFORMATION = "userInformation";
+    public static final String STAGE_ITEMS_CONTENT = "3.1.2.2";
+    public static final String STAGE_PRODUCTION_ITEMS = "3.1.2.3";
+    public static final String STAGE_PRODUCTION_ITEMS_MEASURES = "3.1.2.4";
+    public static final String STAGE_SIDE_ACTIVITY_CONTENTS = "3.1.2.2-3.1.2.4";
+    public static final String STAGE_MANDATORY_CONTENTS = "3.1.2.5";
+    public static final String STAGE_IID_PUBLISH = "iidPublish";
+
+    private final Map<String, LatencyHistogram> stages = new LinkedHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram triggerToPublish = new LatencyHistogram();
+    private final LatencyHistogram triggerToFirstItems = new LatencyHistogram();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    // updates of the IID by kind
+    private final AtomicLongArray updates = new AtomicLongArray(
+            ServiceItemDelta.Update.values().length);
+
+    // dispatch queues, by priority label
+    private final Map<String, LatencyHistogram> queueWaits = new LinkedHashMap<String, LatencyHistogram>();
+    private final Map<String, AtomicLong> queueShed = new LinkedHashMap<String, AtomicLong>();
+    private final Map<String, AtomicLong> queueExpired = new LinkedHashMap<String, AtomicLong>();
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * Creates the metrics for the given stages.
+     *
+     * @param stageNames Names of all stages, durations of other stages are ignored.
+     */
+    public PipelineMetrics(String... stageNames)
+    {
+        // the map is not modified afterwards, so it may be read concurrently
+        for (String stageName : stageNames) {
+            stages.put(stageName, new LatencyHistogram());
+        }
+        for (DispatchQueue.Priority priority : DispatchQueue.Priority.values()) {
+            queueWaits.put(priority.getLabel(), new LatencyHistogram());
+            queueShed.put(priority.getLabel(), new AtomicLong());
+            queueExpired.put(priority.getLabel(), new AtomicLong());
+        }
+    }
+
+    /**
+     * Records the duration of a stage.
+     *
+     * @param stage Name of the stage.
+     * @param nanos Duration in nanoseconds.
+     */
+    public void record(String stage, long nanos)
+    {
+        LatencyHistogram histogram = stages.get(stage);
+        if (null != histogram) {
+            histogram.record(nanos);
+        }
+    }
+
+    /**
+     * Records the publication of the result of a pipeline run.
+     *
+     * @param nanos Time from the event triggering the run until the service items have been
+     *            published, in nanoseconds.
+     */
+    public void recordPublished(long nanos)
+    {
+        published.incrementAndGet();
+        triggerToPublish.record(nanos);
+    }
+
+    /**
+     * Records the publication of the first items of a run publishing its items progressively.
+     *
+     * @param nanos Time from the event triggering the run until the first items have been
+     *            published, in nanoseconds.
+     */
+    public void recordFirstItems(long nanos)
+    {
+        triggerToFirstItems.record(nanos);
+    }
+
+    /**
+     * Counts a run superseded by a newer run of the same session.
+     */
+    public void countAbandoned()
+    {
+        abandoned.incrementAndGet();
+    }
+
+    /**
+     * Counts a run which failed before publishing.
+     */
+    public void countFailed()
+    {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Counts a run which missed its deadline. The run goes on and is counted again with the
+     * outcome it ends with.
+     */
+    public void countExpired()
+    {
+        expired.incrementAndGet();
+    }
+
+    /**
+     * Counts the publication of the items published before, instead of the result of a run
+     * which failed or in the meantime if it missed its deadline.
+     */
+    public void countFallback()
+    {
+        fallbacks.incrementAndGet();
+    }
+
+    /**
+     * Counts the update of the IID publishing the items of a run.
+     *
+     * @param update Kind of the update, {@link ServiceItemDelta.Update#NONE} if the items did not
+     *            change and nothing has been sent.
+     */
+    public void countUpdate(ServiceItemDelta.Update update)
+    {
+        updates.incrementAndGet(update.ordinal());
+    }
+
+    /**
+     * Changes the number of queries waiting in the dispatch queues.
+     *
+     * @param delta Number of queries queued, negative for queries leaving a queue.
+     */
+    public void addQueued(int delta)
+    {
+        queued.addAndGet(delta);
+    }
+
+    /**
+     * Records the time a query waited in a dispatch queue.
+     *
+     * @param priority Label of the priority of the query.
+     * @param nanos Wait time in nanoseconds.
+     */
+    public void recordQueueWait(String priority, long nanos)
+    {
+        queueWaits.get(priority).record(nanos);
+    }
+
+    /**
+     * Counts a query shed by a full dispatch queue.
+     *
+     * @param priority Label of the priority of the query.
+     */
+    public void countShed(String priority)
+    {
+        queueShed.get(priority).incrementAndGet();
+    }
+
+    /**
+     * Counts a query which waited too long in a dispatch queue to be sent.
+     *
+     * @param priority Label of the priority of the query.
+     */
+    public void countQueueExpired(String priority)
+    {
+        queueExpired.get(priority).incrementAndGet();
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text format.
+     *
+     * @return Text of all metrics.
+     */
+    public String toPrometheus()
+    {
+        StringBuilder out = new StringBuilder(16384);
+        out.append("# HELP lbd_stage_duration_seconds Duration of the stages of the pipelines.\n");
+        out.append("# TYPE lbd_stage_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) {
+            stage.getValue().appendPrometheus(out, "lbd_stage_duration_seconds",
+                    "stage=\"" + stage.getKey() + "\"");
+        }
+        out.append("# HELP lbd_trigger_to_publish_seconds Time from the triggering event until "
+                + "the service items have been published.\n");
+        out.append("# TYPE lbd_trigger_to_publish_seconds histogram\n");
+        triggerToPublish.appendPrometheus(out, "lbd_trigger_to_publish_seconds", "");
+        out.append("# HELP lbd_trigger_to_first_items_seconds Time from the triggering event "
+                + "until the first items of a run publishing progressively have been published.\n");
+        out.append("# TYPE lbd_trigger_to_first_items_seconds histogram\n");
+        triggerToFirstItems.appendPrometheus(out, "lbd_trigger_to_first_items_seconds", "");
+        out.append("# HELP lbd_pipeline_runs_total Pipeline runs by outcome, runs which missed "
+                + "their deadline are counted as expired and with the outcome they end with.\n");
+        out.append("# TYPE lbd_pipeline_runs_total counter\n");
+        out.append("lbd_pipeline_runs_total{outcome=\"published\"} ").append(published.get())
+                .append('\n');
+        out.append("lbd_pipeline_runs_total{outcome=\"abandoned\"} ").append(abandoned.get())
+                .append('\n');
+        out.append("lbd_pipeline_runs_total{outcome=\"failed\"} ").append(failed.get())
+                .append('\n');
+        out.append("lbd_pipeline_runs_total{outcome=\"expired\"} ").append(expired.get())
+                .append('\n');
+        out.append("# HELP lbd_fallbacks_total Publications of the items published before "
+                + "instead of the result of a failed or expired run.\n");
+        out.append("# TYPE lbd_fallbacks_total counter\n");
+        out.append("lbd_fallbacks_total ").append(fallbacks.get()).append('\n');
+        out.append("# HELP lbd_iid_updates_total Updates of the IID by kind, none if the items "
+                + "published did not change.\n");
+        out.append("# TYPE lbd_iid_updates_total counter\n");
+        for (ServiceItemDelta.Update update : ServiceItemDelta.Update.values()) {
+            out.append("lbd_iid_updates_total{update=\"").append(update.name().toLowerCase())
+                    .append("\"} ").append(updates.get(update.ordinal())).append('\n');
+        }
+        out.append("# HELP lbd_dispatch_queue_depth SparQL queries waiting for admission.\n");
+        out.append("# TYPE lbd_dispatch_queue_depth gauge\n");
+        out.append("lbd_dispatch_queue_depth ").append(queued.get()).append('\n');
+        out.append("# HELP lbd_dispatch_queue_wait_seconds Time SparQL queries waited for "
+                + "admission.\n");
+        out.append("# TYPE lbd_dispatch_queue_wait_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> wait : queueWaits.entrySet()) {
+            wait.getValue().appendPrometheus(out, "lbd_dispatch_queue_wait_seconds",
+                    "priority=\"" + wait.getKey() + "\"");
+        }
+        out.append("# HELP lbd_dispatch_dropped_total SparQL queries dropped before they were "
+                + "sent.\n");
+        out.append("# TYPE lbd_dispatch_dropped_total counter\n");
+        for (String priority : queueShed.keySet()) {
+            out.append("lbd_dispatch_dropped_total{reason=\"shed\",priority=\"").append(priority)
+                    .append("\"} ").append(queueShed.get(priority).get()).append('\n');
+            out.append("lbd_dispatch_dropped_total{reason=\"expired\",priority=\"")
+                    .append(priority).append("\"} ").append(queueExpired.get(priority).get())
+                    .append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the statistics of the metrics.
+     *
+     * @return Object with the counts of the runs and the count, median and 99th percentile (µs)
+     *         of every stage.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("published", published.get());
+        statistics.putNumber("abandoned", abandoned.get());
+        statistics.putNumber("failed", failed.get());
+        statistics.putNumber("expired", expired.get());
+        statistics.putNumber("fallbacks", fallbacks.get());
+        JsonObject updateStatistics = new JsonObject();
+        for (ServiceItemDelta.Update update : ServiceItemDelta.Update.values()) {
+            updateStatistics.putNumber(update.name().toLowerCase(), updates.get(update.ordinal()));
+        }
+        statistics.putObject("iidUpdates", updateStatistics);
+        statistics.putObject("triggerToPublish", summarize(triggerToPublish));
+        statistics.putObject("triggerToFirstItems", summarize(triggerToFirstItems));
+        JsonObject stageStatistics = new JsonObject();
+        for (Map.Entry<String, LatencyHistogram> stage : stages.entrySet()) {
+            stageStatistics.putObject(stage.getKey(), summarize(stage.getValue()));
+        }
+        statistics.putObject("stages", stageStatistics);
+        return statistics;
+    }
+
+    private static JsonObject summarize(LatencyHistogram histogram)
+    {
+        JsonObject summary = new JsonObject();
+        summary.putNumber("count", histogram.getCount());
+        summary.putNumber("p50", histogram.getQuantile(0.5));
+        summary.putNumber("p99", histogram.getQuantile(0.99));
+        return summary;
+    }
+}
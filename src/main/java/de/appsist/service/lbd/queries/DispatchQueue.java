@@ -0,0 +1,382 @@
+package de.appsist.service.lbd.queries;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.metrics.LatencyHistogram;
+import de.appsist.service.lbd.metrics.PipelineMetrics;
+
+/**
+ * Admission control for the queries sent to the semantic wiki service.
+ * At most "limit" queries are outstanding, further queries wait in a queue per priority and are
+ * sent highest priority first, in the order they arrived. The limit adapts to the observed latency
+ * (AIMD): it grows by one per limit of replies faster than the target latency and is multiplied
+ * by the backoff factor if a reply takes longer or the query times out, at most once per round
+ * trip. The target latency defaults to 2 s, well below the default timeout of the queries but
+ * above the latency of the semantic wiki service while it is not overloaded, which varies a lot
+ * with the query. While the queue is full, a query of a lower priority is shed in favor of a query
+ * of a higher priority, queries of the main activity are never shed. The priority of a query
+ * waiting in the queue can be raised, e.g., when a caller of a higher priority waits for its reply.
+ * Queries which waited longer than the maximum wait time fail instead of being sent.
+ * The queue is shared by the dispatchers of all instances of the verticle, so the limit applies
+ * to the module as a whole. It is thread safe, the admission handlers are called on the context
+ * of the instance which submitted the query.
+ */
+public class DispatchQueue
+{
+    /**
+     * Priorities of the queries, highest first.
+     */
+    public enum Priority
+    {
+        // fault-driven recommendations for the main activity
+        MAIN,
+        // recommendations for side activities (Nebenzeit)
+        SIDE,
+        // refreshes not waited for by a user, e.g., label preloading
+        BACKGROUND;
+
+        // label of the metrics, computed once to keep the dispatch free of allocations
+        private final String label;
+
+        private Priority()
+        {
+            label = name().toLowerCase();
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    /**
+     * Failure of a query shed or expired before it was sent.
+     */
+    public static class ShedException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        private ShedException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * Query submitted to the queue.
+     */
+    public interface Ticket
+    {
+        /**
+         * Raises the priority of the query while it waits for admission. The query is queued
+         * behind the queries waiting with the new priority.
+         *
+         * @param priority New priority, ignored if it is not higher than the current one or the
+         *            query does not wait anymore.
+         */
+        void raise(Priority priority);
+    }
+
+    // query waiting for admission
+    private class Entry implements Handler<Void>, Ticket
+    {
+        private Priority priority;
+        private final AsyncResultHandler<Void> admissionHandler;
+        // context of the instance which submitted the query, null outside of a verticle
+        private final Context context;
+        private final long enqueued = System.nanoTime();
+        // set if the query is shed or expired
+        private Throwable failure;
+
+        private Entry(Priority priority, AsyncResultHandler<Void> admissionHandler,
+                Context context)
+        {
+            this.priority = priority;
+            this.admissionHandler = admissionHandler;
+            this.context = context;
+        }
+
+        @Override
+        public void raise(Priority higher)
+        {
+            synchronized (DispatchQueue.this) {
+                if (higher.compareTo(priority) >= 0 || !queues[priority.ordinal()].remove(this)) {
+                    return;
+                }
+                priority = higher;
+                queues[priority.ordinal()].addLast(this);
+            }
+        }
+
+        // passes the decision on the query to the admission handler
+        @Override
+        public void handle(Void event)
+        {
+            if (null == failure) {
+                admissionHandler.handle(new DefaultFutureResult<Void>((Void) null));
+            }
+            else {
+                admissionHandler.handle(new DefaultFutureResult<Void>(failure));
+            }
+        }
+    }
+
+    private final Vertx vertx;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatency;
+    private final double backoff;
+    private final int maxQueued;
+    private final long maxWait;
+    private final PipelineMetrics metrics;
+
+    private final Deque<Entry>[] queues;
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private double limit;
+    private int outstanding;
+    private int queued;
+    // send time of the last query before the limit was decreased
+    private long lastDecrease = System.nanoTime();
+
+    private long admitted;
+    private long delayed;
+    private final long[] shed = new long[Priority.values().length];
+    private long expired;
+    private long decreases;
+
+    /**
+     * Creates a queue.
+     *
+     * @param vertx Vert.x instance of the verticles submitting queries.
+     * @param config Configuration with the optional fields "minConcurrent", "maxConcurrent",
+     *            "targetLatency" (ms), "backoff", "maxQueued" and "maxWait" (ms).
+     * @param timeout Timeout of the queries in milliseconds, 0 if they do not time out.
+     * @param metrics Metrics the depth and wait times are exported with, <code>null</code> to
+     *            only keep the statistics of this queue.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public DispatchQueue(Vertx vertx, JsonObject config, long timeout, PipelineMetrics metrics)
+    {
+        this.vertx = vertx;
+        this.maxLimit = Math.max(1, config.getInteger("maxConcurrent", 16));
+        this.minLimit = Math.min(maxLimit, Math.max(1, config.getInteger("minConcurrent", 2)));
+        this.targetLatency = config.getLong("targetLatency", timeout > 0 ? Math.min(timeout,
+                2000) : 2000);
+        Number backoff = config.getNumber("backoff");
+        this.backoff = null != backoff ? Math.min(0.95, Math.max(0.1, backoff.doubleValue()))
+                : 0.9;
+        this.maxQueued = Math.max(0, config.getInteger("maxQueued", 200));
+        this.maxWait = config.getLong("maxWait", 5000);
+        this.metrics = metrics;
+        this.limit = maxLimit;
+        queues = new Deque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<Entry>();
+        }
+    }
+
+    /**
+     * Returns the statistics of the queue.
+     *
+     * @return Object with the fields limit, outstanding, queued (per priority), admitted, delayed,
+     *         shed (per priority), expired, decreases and the wait times (count, median and 99th
+     *         percentile in µs) of the queries delayed.
+     */
+    public synchronized JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("limit", Math.round(limit * 100) / 100.0);
+        statistics.putNumber("outstanding", outstanding);
+        JsonObject queuedStatistics = new JsonObject();
+        JsonObject shedStatistics = new JsonObject();
+        for (Priority priority : Priority.values()) {
+            queuedStatistics.putNumber(priority.getLabel(), queues[priority.ordinal()].size());
+            shedStatistics.putNumber(priority.getLabel(), shed[priority.ordinal()]);
+        }
+        statistics.putObject("queued", queuedStatistics);
+        statistics.putNumber("admitted", admitted);
+        statistics.putNumber("delayed", delayed);
+        statistics.putObject("shed", shedStatistics);
+        statistics.putNumber("expired", expired);
+        statistics.putNumber("decreases", decreases);
+        JsonObject waitStatistics = new JsonObject();
+        waitStatistics.putNumber("count", waitTimes.getCount());
+        waitStatistics.putNumber("p50", waitTimes.getQuantile(0.5));
+        waitStatistics.putNumber("p99", waitTimes.getQuantile(0.99));
+        statistics.putObject("waitTime", waitStatistics);
+        return statistics;
+    }
+
+    /**
+     * Submits a query. The handler succeeds once the query may be sent, at once if less than limit
+     * queries are outstanding, and fails with a {@link ShedException} if the query is shed or
+     * expires in the queue. A query admitted must be followed by a call to {@link #complete(long)}
+     * or {@link #release()}.
+     *
+     * @param priority Priority of the query.
+     * @param admissionHandler Handler called when the query is admitted or dropped.
+     * @return Ticket to raise the priority of the query with.
+     */
+    public Ticket submit(Priority priority, AsyncResultHandler<Void> admissionHandler)
+    {
+        Entry entry = new Entry(priority, admissionHandler, vertx.currentContext());
+        List<Entry> decided = new ArrayList<Entry>(2);
+        synchronized (this) {
+            if (queued == 0 && outstanding < (int) limit) {
+                admit(entry, decided);
+            }
+            else {
+                enqueue(entry, decided);
+            }
+        }
+        deliver(decided);
+        return entry;
+    }
+
+    private void enqueue(Entry entry, List<Entry> decided)
+    {
+        if (queued >= maxQueued) {
+            // the newest query of the lowest priority below this one makes room
+            Deque<Entry> victims = null;
+            for (int i = queues.length - 1; i > entry.priority.ordinal() && null == victims; i--) {
+                if (!queues[i].isEmpty()) {
+                    victims = queues[i];
+                }
+            }
+            if (null != victims) {
+                Entry victim = victims.pollLast();
+                dequeued();
+                shed(victim, decided);
+            }
+            else if (entry.priority != Priority.MAIN) {
+                shed(entry, decided);
+                return;
+            }
+        }
+        queues[entry.priority.ordinal()].addLast(entry);
+        queued++;
+        delayed++;
+        if (null != metrics) {
+            metrics.addQueued(1);
+        }
+    }
+
+    /**
+     * Records the reply to an admitted query, or its failure, and admits the next queries.
+     *
+     * @param sendTime Time the query has been sent, as returned by {@link System#nanoTime()}.
+     */
+    public void complete(long sendTime)
+    {
+        List<Entry> decided = new ArrayList<Entry>(2);
+        synchronized (this) {
+            outstanding--;
+            long now = System.nanoTime();
+            if ((now - sendTime) / 1000000 > targetLatency) {
+                // replies of queries sent before the last decrease were slowed by the same load
+                if (sendTime - lastDecrease > 0) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    lastDecrease = now;
+                    decreases++;
+                }
+            }
+            else if (limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            drain(decided);
+        }
+        deliver(decided);
+    }
+
+    /**
+     * Releases an admitted query which has not been sent and admits the next queries.
+     */
+    public void release()
+    {
+        List<Entry> decided = new ArrayList<Entry>(2);
+        synchronized (this) {
+            outstanding--;
+            drain(decided);
+        }
+        deliver(decided);
+    }
+
+    // admits queued queries up to the limit, dropping those which waited too long
+    private void drain(List<Entry> decided)
+    {
+        long now = System.nanoTime();
+        for (int i = 0; i < queues.length && outstanding < (int) limit; i++) {
+            while (!queues[i].isEmpty() && outstanding < (int) limit) {
+                Entry entry = queues[i].pollFirst();
+                dequeued();
+                long waited = now - entry.enqueued;
+                waitTimes.record(waited);
+                if (null != metrics) {
+                    metrics.recordQueueWait(entry.priority.getLabel(), waited);
+                }
+                if (maxWait > 0 && waited / 1000000 > maxWait) {
+                    expired++;
+                    if (null != metrics) {
+                        metrics.countQueueExpired(entry.priority.getLabel());
+                    }
+                    entry.failure = new ShedException("Query expired after waiting " + waited
+                            / 1000000 + " ms for admission");
+                    decided.add(entry);
+                    continue;
+                }
+                admit(entry, decided);
+            }
+        }
+    }
+
+    private void admit(Entry entry, List<Entry> decided)
+    {
+        outstanding++;
+        admitted++;
+        decided.add(entry);
+    }
+
+    private void dequeued()
+    {
+        queued--;
+        if (null != metrics) {
+            metrics.addQueued(-1);
+        }
+    }
+
+    private void shed(Entry entry, List<Entry> decided)
+    {
+        shed[entry.priority.ordinal()]++;
+        if (null != metrics) {
+            metrics.countShed(entry.priority.getLabel());
+        }
+        entry.failure = new ShedException("Query of priority " + entry.priority.getLabel()
+                + " shed, dispatch queue full");
+        decided.add(entry);
+    }
+
+    // calls the admission handlers outside of the lock, on the context of their instances
+    private void deliver(List<Entry> decided)
+    {
+        Context current = vertx.currentContext();
+        for (Entry entry : decided) {
+            if (null == entry.context || entry.context == current) {
+                entry.handle(null);
+            }
+            else {
+                entry.context.runOnContext(entry);
+            }
+        }
+    }
+}
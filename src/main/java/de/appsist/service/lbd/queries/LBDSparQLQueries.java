@@ -1,9 +1,9 @@
 package de.appsist.service.lbd.queries;
 
-import org.vertx.java.core.Handler;
-import org.vertx.java.core.eventbus.EventBus;
-import org.vertx.java.core.eventbus.Message;
-import org.vertx.java.core.json.JsonObject;
+import java.util.Collection;
+
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.impl.DefaultFutureResult;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.core.logging.impl.LoggerFactory;
 
@@ -12,58 +12,263 @@ public class LBDSparQLQueries
     // needed prefix string to build SparQL queries
     private static final String PREFIXSTRING = "BASE <http://www.appsist.de/ontology/> PREFIX app: <http://www.appsist.de/ontology/>";
 
-    // Eventbus address
-    private static final String SPARQLREQUESTS = "appsist:requests:semwiki";
-    
     private static final Logger log = LoggerFactory.getLogger(LBDSparQLQueries.class);
-    
-    public static void getMeasuresForStates(String states, EventBus eb,
-            Handler<Message<String>> stringHandler)
+
+    // values of ?regel in the result of getSideActivityContents
+    public static final String RULE_ITEMS_CONTENT = "3.1.2.2";
+    public static final String RULE_PRODUCTION_ITEMS = "3.1.2.3";
+    public static final String RULE_PRODUCTION_ITEMS_MEASURES = "3.1.2.4";
+    public static final String RULE_MANDATORY_CONTENTS = "3.1.2.5";
+
+    // ---------------------------------------------------------------
+    //
+    // Query templates, see QueryTemplate for the syntax of the slots
+    //
+    // ---------------------------------------------------------------
+
+    private static final QueryTemplate MEASURES_FOR_STATES = QueryTemplate.compile(PREFIXSTRING
+            + "SELECT DISTINCT ?massnahme ?zustand "
+            + "WHERE { VALUES ?zustand ${iris:states} ?zustand app:bedingt ?massnahme .}");
+
+    private static final QueryTemplate CONTENTS_FOR_STATES_MACHINES_STATIONS = QueryTemplate
+            .compile(PREFIXSTRING + " SELECT DISTINCT ?inhalt ?vorschau ?i WHERE { VALUES ?i "
+                    + "${iris:ids}{ ?inhalt app:informiertUeber ?i . ?inhalt app:hasPreview ?vorschau "
+                    + "{{ ?inhalt app:informiertUeber ?i . FILTER NOT EXISTS {?inhalt app:hatZielgruppe ?y}}"
+                    + "UNION {?inhalt app:informiertUeber ?i . ?inhalt app:hatZielgruppe ${iri:stelle}"
+                    + " }}}}");
+
+    private static final QueryTemplate CONTENTS_FOR_OCCUPATIONGROUP_PRODUCTS = QueryTemplate
+            .compile(PREFIXSTRING + "SELECT DISTINCT ?inhalt " + "WHERE { VALUES ?items "
+                    + "${iris:items} ?inhalt app:informiertUeber ?item .} "
+                    + " UNION { ?item rdfs:subClassOf* app:Beschaeftigungsgruppe ."
+                    + "?bgsubclass rdfe:subClassOf* ?bg; app:hatFunktion ?fkt . ?inhalt app:informiertUeber ?fkt . } }");
+
+    private static final QueryTemplate CONTENT_LABELS = QueryTemplate.compile(PREFIXSTRING
+            + " SELECT DISTINCT ?oc ?label WHERE { ?oc app:informiertUeber ?item . "
+            + " ?oc rdfs:label ?label FILTER(langMatches(lang(?label), \"${literal:language}\")) }");
+
+    private static final QueryTemplate ITEMS_CONTENT = QueryTemplate.compile(PREFIXSTRING
+            + " SELECT DISTINCT ?inhalt ?vorschau  WHERE { VALUES ?item ${iris:items}"
+            + " {{ ?inhalt app:informiertUeber ?item . FILTER NOT EXISTS {?inhalt app:hatZielgruppe ?y} OPTIONAL {?inhalt app:hasPreview ?vorschau}} "
+            + " UNION { ?inhalt app:informiertUeber ?item . ?inhalt app:hatZielgruppe ${iri:stelle}"
+            + " OPTIONAL {?inhalt app:hasPreview ?vorschau}"
+            + "}}"
+            + " UNION { ?item rdfs:subClassOf* app:Stelle . ?item rdfs:subClassOf* ?bg . "
+            + " ?bg app:hatAufgabe ?fkt . ?inhalt app:informiertUeber ?fkt . OPTIONAL {?inhalt app:hasPreview ?vorschau} }}");
+
+    private static final QueryTemplate PRODUCTION_ITEMS_RELEVANT_FOR_POSITION = QueryTemplate
+            .compile(PREFIXSTRING
+                    + " SELECT DISTINCT ?inhalt ?vorschau  WHERE { VALUES ?stelle {${iri:position}}"
+                    + " ?stelle app:interagiertMit ?pg . { "
+                    + "{ ?inhalt app:informiertUeber ?pg . ?inhalt app:hasPreview ?vorschau } UNION {"
+                    + " ?pgs app:isPartOf ?pg . ?inhalt app:informiertUeber ?pgs . ?inhalt app:hasPreview ?vorschau}}}");
+
+    private static final QueryTemplate PRODUCTION_ITEMS_RELEVANT_FOR_POSITION_MEASURES = QueryTemplate
+            .compile(PREFIXSTRING
+                    + " SELECT DISTINCT ?inhalt ?vorschau WHERE { VALUES ?stelle {${iri:position}}"
+                    + " ?stelle app:hatAufgabe ?aufgabe . "
+                    + " ?aufgabe app:hatMassnahme ?massnahme . " + " ?massnahme app:benoetigt ?pg ."
+                    + " ?inhalt app:informiertUeber ?pg . ?inhalt app:hasPreview ?vorschau}");
+
+    private static final QueryTemplate SIDE_ACTIVITY_CONTENTS = QueryTemplate.compile(PREFIXSTRING
+            + " SELECT DISTINCT ?regel ?inhalt ?vorschau ?label WHERE { {"
+            // rule 3.1.2.2
+            + " { VALUES ?item ${iris:items}"
+            + " {{ ?inhalt app:informiertUeber ?item . FILTER NOT EXISTS {?inhalt app:hatZielgruppe ?y} OPTIONAL {?inhalt app:hasPreview ?vorschau}} "
+            + " UNION { ?inhalt app:informiertUeber ?item . ?inhalt app:hatZielgruppe ${iri:stelle}"
+            + " OPTIONAL {?inhalt app:hasPreview ?vorschau}"
+            + "}}"
+            + " UNION { ?item rdfs:subClassOf* app:Stelle . ?item rdfs:subClassOf* ?bg . "
+            + " ?bg app:hatAufgabe ?fkt . ?inhalt app:informiertUeber ?fkt . OPTIONAL {?inhalt app:hasPreview ?vorschau} }"
+            + " BIND(\"" + RULE_ITEMS_CONTENT + "\" AS ?regel) }"
+            // rule 3.1.2.3
+            + " UNION { VALUES ?stelle {${iri:position}} ?stelle app:interagiertMit ?pg . { "
+            + "{ ?inhalt app:informiertUeber ?pg . ?inhalt app:hasPreview ?vorschau } UNION {"
+            + " ?pgs app:isPartOf ?pg . ?inhalt app:informiertUeber ?pgs . ?inhalt app:hasPreview ?vorschau}}"
+            + " BIND(\"" + RULE_PRODUCTION_ITEMS + "\" AS ?regel) }"
+            // rule 3.1.2.4
+            + " UNION { VALUES ?stelle {${iri:position}} ?stelle app:hatAufgabe ?aufgabe . "
+            + " ?aufgabe app:hatMassnahme ?massnahme . " + " ?massnahme app:benoetigt ?pg ."
+            + " ?inhalt app:informiertUeber ?pg . ?inhalt app:hasPreview ?vorschau"
+            + " BIND(\"" + RULE_PRODUCTION_ITEMS_MEASURES + "\" AS ?regel) }"
+            // rule 3.1.2.5, labels only
+            + " UNION { VALUES ?inhalt ${iris:contents}"
+            + " BIND(\"" + RULE_MANDATORY_CONTENTS + "\" AS ?regel) }"
+            + " } OPTIONAL { ?inhalt rdfs:label ?label FILTER(langMatches(lang(?label), \""
+            + "${literal:language}\")) } }");
+
+    // queries of rules 3.1.1, 1.2 and 3.1.1.1 and of the labels, as sent by the measures service
+    private static final QueryTemplate STATIONS_IN_WORKPLACE_GROUPS = QueryTemplate
+            .compile(PREFIXSTRING + " SELECT DISTINCT ?device WHERE { VALUES ?apg "
+                    + "${iris:workplaceGroups}{ ?device app:isPartOf* ?apg . "
+                    + "{ { ?device a <http://www.appsist.de/ontology/Anlage> . }"
+                    + "UNION {?device a <http://www.appsist.de/ontology/Station> . } } }"
+                    + "OPTIONAL  {?device app:hatPrioritaet ?p .} } ORDER BY DESC(?p)");
+
+    // without the ORDER BY of the measures service: the states are collected in a set, and the
+    // queries of several sessions can be batched
+    private static final QueryTemplate LOCAL_STATES = QueryTemplate.compile(PREFIXSTRING
+            + " SELECT DISTINCT ?z ?station ?p  WHERE { VALUES (?z ?station) "
+            + "${tuples:stateStation} ?z  app:hatPrioritaet ?p}");
+
+    private static final QueryTemplate LABEL_FOR = QueryTemplate.compile(PREFIXSTRING
+            + " SELECT DISTINCT ?oc ?label WHERE { VALUES ?oc ${iris:items} ?oc rdfs:label ?label "
+            + "FILTER(LANGMATCHES(LANG(?label), \"${literal:language}\")) }");
+
+    // rules 3.1.1 and 1.2 for all workplace groups, ordered to page through a stable result
+    private static final String WORKPLACE_GROUP_VARIABLE = "apg";
+    private static final String WORKPLACE_GROUP_DEVICES = PREFIXSTRING
+            + " SELECT DISTINCT ?apg ?device WHERE { ?device app:isPartOf* ?apg . "
+            + "{ { ?device a <http://www.appsist.de/ontology/Anlage> . }"
+            + " UNION { ?device a <http://www.appsist.de/ontology/Station> . } } }"
+            + " ORDER BY ?apg ?device";
+
+    public static void getMeasuresForStates(Collection<String> states, SparQLDispatcher dispatcher,
+            AsyncResultHandler<String> resultHandler)
     // corresponds to SPARQL rule in "APPsist Adaptionsregeln" document section 1.1
     {
-        String sparqlQuery = PREFIXSTRING + "SELECT DISTINCT ?massnahme ?zustand "
-                + "WHERE { VALUES ?zustand " + states + " ?zustand app:bedingt ?massnahme .}";
-        sendSparQLQuery(sparqlQuery, eb, stringHandler);
+        query(MEASURES_FOR_STATES.bind().iris("states", states), dispatcher, resultHandler);
     }
 
 
 
-    // find all stations which are part of a list of workplace groups
-    // String apg looks like {app:state1 ... app:statem app:machine1 ... app:machinen
-    // app:station1 ... stationo}
-    public static void getContentsForStatesMachinesStations(String ids, String stelle, EventBus eb,
-            Handler<Message<String>> stringHandler)
+    // find all contents informing about a list of states, machines and stations
+    // ?i is projected to allow merging the query with the queries of other sessions
+    public static void getContentsForStatesMachinesStations(Collection<String> ids, String stelle,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
     {
-        String sparqlQuery = PREFIXSTRING + " SELECT DISTINCT ?inhalt ?vorschau WHERE { VALUES ?i "
-                + ids + "{ ?inhalt app:informiertUeber ?i . ?inhalt app:hasPreview ?vorschau "
-                + "{{ ?inhalt app:informiertUeber ?i . FILTER NOT EXISTS {?inhalt app:hatZielgruppe ?y}}"
-                + "UNION {?inhalt app:informiertUeber ?i . ?inhalt app:hatZielgruppe " + stelle
-                + " }}}}";
-        
-        sendSparQLQuery(sparqlQuery, eb, stringHandler);
+        query(bindContentsForStatesMachinesStations(ids, stelle), dispatcher, resultHandler);
     }
 
-    // find all stations which are part of a list of workplace groups
-    // String items looks like {app:occupationgroup}
-    public static void getContentsForOccupationgroupProducts(String items, EventBus eb,
-            Handler<Message<String>> stringHandler)
+    // parameters of the query above, the rendered query is the key of the result caches
+    public static QueryTemplate.Bindings bindContentsForStatesMachinesStations(
+            Collection<String> ids, String stelle)
+    {
+        return CONTENTS_FOR_STATES_MACHINES_STATIONS.bind().iris("ids", ids).iri("stelle", stelle);
+    }
+
+    // same query as above, retrieved in pages of pageSize rows (0 for a single page) which are
+    // decoded into the sink
+    public static void getContentsForStatesMachinesStations(Collection<String> ids, String stelle,
+            int pageSize, SparQLResultDecoder decoder, SparQLResultDecoder.RowSink sink,
+            SparQLDispatcher dispatcher, AsyncResultHandler<Integer> resultHandler)
+    {
+        String sparqlQuery = render(bindContentsForStatesMachinesStations(ids, stelle),
+                resultHandler);
+        if (null == sparqlQuery) {
+            return;
+        }
+        dispatcher.queryPaged(sparqlQuery, pageSize, true, decoder, sink, resultHandler);
+    }
+
+    // find all contents for a list of occupation groups
+    public static void getContentsForOccupationgroupProducts(Collection<String> items,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
+    {
+        query(CONTENTS_FOR_OCCUPATIONGROUP_PRODUCTS.bind().iris("items", items), dispatcher,
+                resultHandler);
+    }
+
+    // find the labels of all content items in the given language
+    // the result is retrieved in pages of pageSize rows which are decoded into the sink, it is not
+    // cached by the dispatcher but used to fill the label cache
+    public static void getContentLabels(String language, int pageSize,
+            SparQLResultDecoder decoder, SparQLResultDecoder.RowSink sink,
+            SparQLDispatcher dispatcher, AsyncResultHandler<Integer> resultHandler)
+    {
+        String sparqlQuery = render(CONTENT_LABELS.bind().literal("language", language),
+                resultHandler);
+        if (null == sparqlQuery) {
+            return;
+        }
+        dispatcher.queryPaged(sparqlQuery, pageSize, false, decoder, sink, resultHandler);
+    }
+
+    // renders a query and sends it
+    private static void query(QueryTemplate.Bindings bindings, SparQLDispatcher dispatcher,
+            AsyncResultHandler<String> resultHandler)
+    {
+        String sparqlQuery = render(bindings, resultHandler);
+        if (null != sparqlQuery) {
+            dispatcher.query(sparqlQuery, resultHandler);
+        }
+    }
+
+    // renders a query, if the parameters are invalid the handler fails and null is returned
+    private static <T> String render(QueryTemplate.Bindings bindings,
+            AsyncResultHandler<T> resultHandler)
+    {
+        try {
+            return bindings.render();
+        }
+        catch (RuntimeException e) {
+            resultHandler.handle(new DefaultFutureResult<T>(e));
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------
+    //
+    // Queries also sent by the measures service
+    //
+    // ---------------------------------------------------------------
+
+    // Rules 3.1.1 and 1.2 in document "Adaptionsregeln"
+    public static void getStationsInWorkplaceGroups(Collection<String> workplaceGroups,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
+    {
+        query(STATIONS_IN_WORKPLACE_GROUPS.bind().iris("workplaceGroups", workplaceGroups),
+                dispatcher, resultHandler);
+    }
+
+    // Rule 3.1.1.1 in document "Adaptionsregeln" ("Lokale Zustaende")
+    // each tuple contains a state and a station
+    public static void getLocalStates(Collection<String[]> stateStation,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
     {
+        query(bindLocalStates(stateStation), dispatcher, resultHandler);
+    }
+
+    // parameters of the query above
+    public static QueryTemplate.Bindings bindLocalStates(Collection<String[]> stateStation)
+    {
+        return LOCAL_STATES.bind().tuples("stateStation", stateStation);
+    }
 
-        String sparqlQuery = PREFIXSTRING + "SELECT DISTINCT ?inhalt " + "WHERE { VALUES ?items "
-                + items + " ?inhalt app:informiertUeber ?item .} "
-                + " UNION { ?item rdfs:subClassOf* app:Beschaeftigungsgruppe ."
-                + "?bgsubclass rdfe:subClassOf* ?bg; app:hatFunktion ?fkt . ?inhalt app:informiertUeber ?fkt . } }";
+    // surrounds a full ontology URI of a result binding with less/greater than characters
+    // note that for a URI already starting with "<" only the missing closing character is returned
+    public static String sparqlPrefix(String original)
+    {
+        if (null == original) {
+            return "";
+        }
+        original = original.trim();
+        String result = "";
+        if (!original.startsWith("<")) {
+            result = "<" + original;
+        }
+        if (!original.endsWith(">")) {
+            result += ">";
+        }
+        return result;
+    }
 
-        sendSparQLQuery(sparqlQuery, eb, stringHandler);
+    // find the stations and machines of all workplace groups, rules 3.1.1 and 1.2 for all groups
+    // the result is retrieved in pages of pageSize rows, the rows passed to the sink contain the
+    // workplace group and the station or machine
+    public static void getWorkplaceGroupDevices(int pageSize, SparQLResultDecoder.RowSink sink,
+            SparQLDispatcher dispatcher, AsyncResultHandler<Integer> resultHandler)
+    {
+        dispatcher.queryPaged(WORKPLACE_GROUP_DEVICES, pageSize, false, new SparQLResultDecoder(
+                WORKPLACE_GROUP_VARIABLE, "device"), sink, resultHandler);
     }
 
-    private static void sendSparQLQuery(String sparQLQuery, EventBus eb,
-            Handler<Message<String>> stringHandler)
+    // find labels for a list of items in the given language
+    public static void getLabelFor(Collection<String> items, String language,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
     {
-        JsonObject sQuery = new JsonObject().putString("query", sparQLQuery);
-        //System.out.println("[LBD] - sending query:"+sparQLQuery );
-        eb.send(SPARQLREQUESTS, new JsonObject().putObject("sparql", sQuery),
-                stringHandler);
+        query(LABEL_FOR.bind().iris("items", items).literal("language", language), dispatcher,
+                resultHandler);
     }
 
     // ---------------------------------------------------------------
@@ -74,47 +279,57 @@ public class LBDSparQLQueries
 
     // find all stations which are part of a list of workplace groups
     // Rule 3.1.2.2 in document "Adaptionsregeln"
-    // String items looks like {<http://www.appsist.de/ontology/Maschinenbediener> ...}
-    public static void getItemsContent(String items, String stelle, EventBus eb,
-            Handler<Message<String>> stringHandler)
-    {
-        String sparqlQuery = PREFIXSTRING
-                + " SELECT DISTINCT ?inhalt ?vorschau  WHERE { VALUES ?item " + items
-                + " {{ ?inhalt app:informiertUeber ?item . FILTER NOT EXISTS {?inhalt app:hatZielgruppe ?y} OPTIONAL {?inhalt app:hasPreview ?vorschau}} "
-                + " UNION { ?inhalt app:informiertUeber ?item . ?inhalt app:hatZielgruppe " + stelle
-                + " OPTIONAL {?inhalt app:hasPreview ?vorschau}"
-                + "}}"
-                + " UNION { ?item rdfs:subClassOf* app:Stelle . ?item rdfs:subClassOf* ?bg . "
-                + " ?bg app:hatAufgabe ?fkt . ?inhalt app:informiertUeber ?fkt . OPTIONAL {?inhalt app:hasPreview ?vorschau} }}";
+    // items are e.g. http://www.appsist.de/ontology/Maschinenbediener
+    public static void getItemsContent(Collection<String> items, String stelle,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
+    {
+        String sparqlQuery = render(ITEMS_CONTENT.bind().iris("items", items).iri("stelle", stelle),
+                resultHandler);
+        if (null == sparqlQuery) {
+            return;
+        }
         log.info("getItemsContent SPARQL: " + sparqlQuery);
-        sendSparQLQuery(sparqlQuery, eb, stringHandler);
+        dispatcher.query(sparqlQuery, resultHandler);
     }
-    
+
     // find all stations which are part of a list of workplace groups
     // Rule 3.1.2.3 in document "Adaptionsregeln"
-    // String items looks like {<http://www.appsist.de/ontology/Maschinenbediener> ...}
-    public static void getProductionItemsRelevantForPosition(String stelle, EventBus eb,
-            Handler<Message<String>> stringHandler)
+    // position is e.g. http://www.appsist.de/ontology/Maschinenbediener
+    public static void getProductionItemsRelevantForPosition(String position,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
     {
-        String sparqlQuery = PREFIXSTRING
-                + " SELECT DISTINCT ?inhalt ?vorschau  WHERE { VALUES ?stelle "
-                + stelle + " ?stelle app:interagiertMit ?pg . { "
-                + "{ ?inhalt app:informiertUeber ?pg . ?inhalt app:hasPreview ?vorschau } UNION {"
-                + " ?pgs app:isPartOf ?pg . ?inhalt app:informiertUeber ?pgs . ?inhalt app:hasPreview ?vorschau}}}";
-        sendSparQLQuery(sparqlQuery, eb, stringHandler);
+        query(PRODUCTION_ITEMS_RELEVANT_FOR_POSITION.bind().iri("position", position), dispatcher,
+                resultHandler);
     }
 
     // find all stations which are part of a list of workplace groups
     // Rule 3.1.2.4 in document "Adaptionsregeln"
-    // String items looks like {<http://www.appsist.de/ontology/Maschinenbediener> ...}
-    public static void getProductionItemsRelevantForPositionMeasures(String stelle, EventBus eb,
-            Handler<Message<String>> stringHandler)
-    {
-        String sparqlQuery = PREFIXSTRING
-                + " SELECT DISTINCT ?inhalt ?vorschau WHERE { VALUES ?stelle "
-                + stelle + " ?stelle app:hatAufgabe ?aufgabe . "
-                + " ?aufgabe app:hatMassnahme ?massnahme . " + " ?massnahme app:benoetigt ?pg ."
-                + " ?inhalt app:informiertUeber ?pg . ?inhalt app:hasPreview ?vorschau}";
-        sendSparQLQuery(sparqlQuery, eb, stringHandler);
+    // position is e.g. http://www.appsist.de/ontology/Maschinenbediener
+    public static void getProductionItemsRelevantForPositionMeasures(String position,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
+    {
+        query(PRODUCTION_ITEMS_RELEVANT_FOR_POSITION_MEASURES.bind().iri("position", position),
+                dispatcher, resultHandler);
+    }
+
+    // rules 3.1.2.2, 3.1.2.3 and 3.1.2.4 in document "Adaptionsregeln" in a single query
+    // every row is tagged with the rule it originates from in ?regel
+    // ?label contains the label of ?inhalt if available, the mandatory contents (rule 3.1.2.5)
+    // are only part of the query to retrieve their labels
+    public static void getSideActivityContents(Collection<String> items, String stelle,
+            String position, Collection<String> contents, String language,
+            SparQLDispatcher dispatcher, AsyncResultHandler<String> resultHandler)
+    {
+        query(bindSideActivityContents(items, stelle, position, contents, language), dispatcher,
+                resultHandler);
+    }
+
+    // parameters of the query above
+    public static QueryTemplate.Bindings bindSideActivityContents(Collection<String> items,
+            String stelle, String position, Collection<String> contents, String language)
+    {
+        return SIDE_ACTIVITY_CONTENTS.bind().iris("items", items).iri("stelle", stelle)
+                .iri("position", position).iris("contents", contents)
+                .literal("language", language);
     }
 }
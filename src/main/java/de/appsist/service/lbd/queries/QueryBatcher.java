@@ -0,0 +1,434 @@
+package de.appsist.service.lbd.queries;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Merges queries which only differ in their VALUES block.
+ * Queries offered within a short window are combined into a single query with the union of their
+ * rows. The bindings of the result are assigned to the original queries by the VALUES variables,
+ * which therefore have to be projected and bound to absolute IRIs: the values of relative IRIs
+ * returned by the endpoint are resolved against the base of the query and cannot be assigned.
+ * If the result contains bindings which cannot be assigned anyway, e.g., because the endpoint
+ * rewrote an IRI, the queries of the batch are sent again on their own.
+ * Large VALUES blocks are split into chunks sent in parallel.
+ * The chunk size adapts to the observed latency: it is halved if a chunk takes longer than the
+ * target latency and grows slowly otherwise.
+ */
+public class QueryBatcher
+{
+    private static final Logger log = LoggerFactory.getLogger(QueryBatcher.class);
+
+    private static final Pattern SELECT_CLAUSE = Pattern.compile(
+            "(?is)\\bSELECT\\s+(?:DISTINCT\\s+|REDUCED\\s+)?(.*?)(?:\\bWHERE\\b|\\{)");
+    private static final Pattern VARIABLE = Pattern.compile("[?$](\\w+)");
+    private static final Pattern UNSUPPORTED = Pattern.compile(
+            "(?i)\\b(LIMIT|OFFSET|ORDER\\s+BY|GROUP\\s+BY|HAVING)\\b");
+    private static final Pattern DISTINCT = Pattern.compile("(?i)\\bSELECT\\s+DISTINCT\\b");
+    // IRI with a scheme, e.g., <http://www.appsist.de/ontology/S20>
+    private static final Pattern ABSOLUTE_IRI = Pattern.compile("<[A-Za-z][A-Za-z0-9+.-]*:[^>]*>");
+
+    /**
+     * Structure of a query the batcher can handle.
+     */
+    private static class QueryShape
+    {
+        private String prefix;
+        private String suffix;
+        private ValuesBlock block;
+        private boolean distinct;
+        // indexes of the VALUES variables which are projected
+        private int[] keyColumns;
+        // key for batches, null if the query cannot be merged with others
+        private String batchKey;
+
+        private static QueryShape analyze(String query)
+        {
+            List<ValuesBlock> blocks = ValuesBlock.findAll(query);
+            if (blocks.size() != 1 || UNSUPPORTED.matcher(query).find()
+                    || query.toUpperCase().indexOf("SELECT") != query.toUpperCase().lastIndexOf(
+                            "SELECT")) {
+                return null;
+            }
+            QueryShape shape = new QueryShape();
+            shape.block = blocks.get(0);
+            shape.prefix = query.substring(0, shape.block.getStart());
+            shape.suffix = query.substring(shape.block.getEnd());
+            // rows only combine independently if the block is part of the top level pattern
+            String before = shape.prefix.trim();
+            if (!before.endsWith("{") || before.indexOf('{') != before.length() - 1) {
+                return null;
+            }
+            shape.distinct = DISTINCT.matcher(query).find();
+
+            Matcher selectMatcher = SELECT_CLAUSE.matcher(query);
+            if (!selectMatcher.find() || selectMatcher.group(1).indexOf('(') >= 0) {
+                return shape;
+            }
+            String projection = selectMatcher.group(1);
+            Set<String> projected = new HashSet<String>();
+            Matcher variableMatcher = VARIABLE.matcher(projection);
+            while (variableMatcher.find()) {
+                projected.add(variableMatcher.group(1));
+            }
+            boolean all = "*".equals(projection.trim());
+
+            List<String> variables = shape.block.getVariables();
+            List<Integer> keyColumns = new ArrayList<Integer>();
+            StringBuilder constants = new StringBuilder();
+            for (int column = 0; column < variables.size(); column++) {
+                if (all || projected.contains(variables.get(column).substring(1))) {
+                    for (List<String> row : shape.block.getRows()) {
+                        if (!ABSOLUTE_IRI.matcher(row.get(column)).matches()) {
+                            // the term cannot be compared with the bound value
+                            return shape;
+                        }
+                    }
+                    keyColumns.add(column);
+                }
+                else {
+                    // columns not projected have to be equal for all rows of all merged queries
+                    String constant = null;
+                    for (List<String> row : shape.block.getRows()) {
+                        if (null == constant) {
+                            constant = row.get(column);
+                        }
+                        else if (!constant.equals(row.get(column))) {
+                            return shape;
+                        }
+                    }
+                    constants.append(' ').append(constant);
+                }
+            }
+            if (keyColumns.isEmpty()) {
+                return shape;
+            }
+            shape.keyColumns = new int[keyColumns.size()];
+            for (int i = 0; i < shape.keyColumns.length; i++) {
+                shape.keyColumns[i] = keyColumns.get(i);
+            }
+            shape.batchKey = ValuesBlock.normalize(shape.prefix) + " VALUES "
+                    + variables + constants + " " + ValuesBlock.normalize(shape.suffix);
+            return shape;
+        }
+
+        // key of a row of the VALUES block
+        private String rowKey(List<String> row)
+        {
+            StringBuilder key = new StringBuilder();
+            for (int column : keyColumns) {
+                String term = row.get(column);
+                key.append(term, 1, term.length() - 1).append(' ');
+            }
+            return key.toString();
+        }
+
+        // key of a binding of the result, null if a key variable is unbound
+        private String bindingKey(JsonObject binding)
+        {
+            StringBuilder key = new StringBuilder();
+            for (int column : keyColumns) {
+                JsonObject value = binding.getObject(block.getVariables().get(column).substring(1));
+                if (null == value) {
+                    return null;
+                }
+                key.append(value.getString("value")).append(' ');
+            }
+            return key.toString();
+        }
+
+        private String render(Collection<List<String>> rows)
+        {
+            return prefix + block.render(rows) + suffix;
+        }
+    }
+
+    /**
+     * Query waiting for the result of a batch.
+     */
+    private static class Caller
+    {
+        private final QueryShape shape;
+        private final DispatchQueue.Priority priority;
+        private final long deadline;
+        private final AsyncResultHandler<String> resultHandler;
+        private final Set<String> rowKeys = new HashSet<String>();
+
+        private Caller(QueryShape shape, DispatchQueue.Priority priority, long deadline,
+                AsyncResultHandler<String> resultHandler)
+        {
+            this.shape = shape;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.resultHandler = resultHandler;
+            if (null != shape.keyColumns) {
+                for (List<String> row : shape.block.getRows()) {
+                    rowKeys.add(shape.rowKey(row));
+                }
+            }
+        }
+    }
+
+    private final Vertx vertx;
+    private final SparQLDispatcher dispatcher;
+    private final long window;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long targetLatency;
+
+    private final Map<String, List<Caller>> openBatches = new HashMap<String, List<Caller>>();
+    private int chunkSize;
+
+    private long batchedQueries;
+    private long batches;
+    private long chunks;
+    private long unassigned;
+
+    /**
+     * Creates a batcher.
+     *
+     * @param vertx Vert.x instance to schedule batches with.
+     * @param dispatcher Dispatcher to send the merged queries with.
+     * @param config Configuration with the optional fields "window" (ms), "minValues",
+     *            "maxValues" and "targetLatency" (ms).
+     */
+    public QueryBatcher(Vertx vertx, SparQLDispatcher dispatcher, JsonObject config)
+    {
+        this.vertx = vertx;
+        this.dispatcher = dispatcher;
+        this.window = config.getLong("window", 5);
+        this.maxChunkSize = Math.max(1, config.getInteger("maxValues", 200));
+        this.minChunkSize = Math.min(maxChunkSize, Math.max(1, config.getInteger("minValues", 20)));
+        this.targetLatency = config.getLong("targetLatency", 200);
+        this.chunkSize = maxChunkSize;
+    }
+
+    /**
+     * Returns the statistics of the batcher.
+     *
+     * @return Object with the fields batched, batches, chunks, chunkSize and unassigned, the
+     *         number of batches sent again since bindings could not be assigned.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("batched", batchedQueries);
+        statistics.putNumber("batches", batches);
+        statistics.putNumber("chunks", chunks);
+        statistics.putNumber("chunkSize", chunkSize);
+        statistics.putNumber("unassigned", unassigned);
+        return statistics;
+    }
+
+    /**
+     * Offers a query to the batcher.
+     *
+     * @param query SparQL query.
+     * @param priority Priority of the query, a batch is sent with the highest priority of its
+     *            queries.
+     * @param deadline Deadline of the run sending the query as returned by
+     *            {@link System#nanoTime()}, 0 if there is none. A batch is waited for until the
+     *            latest deadline of its queries.
+     * @param resultHandler Handler for the result of the query.
+     * @return <code>true</code> if the batcher takes care of the query, <code>false</code> if it
+     *         has to be sent as it is.
+     */
+    public boolean offer(String query, DispatchQueue.Priority priority, long deadline,
+            AsyncResultHandler<String> resultHandler)
+    {
+        QueryShape shape = QueryShape.analyze(query);
+        if (null == shape) {
+            return false;
+        }
+        if (null == shape.batchKey) {
+            if (shape.block.getRows().size() <= chunkSize) {
+                return false;
+            }
+            // cannot be merged, but split
+            send(shape, Collections.singletonList(new Caller(shape, priority, deadline,
+                    resultHandler)), shape.block.getRows());
+            return true;
+        }
+        batchedQueries++;
+        final String batchKey = shape.batchKey;
+        List<Caller> callers = openBatches.get(batchKey);
+        if (null == callers) {
+            callers = new ArrayList<Caller>();
+            openBatches.put(batchKey, callers);
+            vertx.setTimer(window, new Handler<Long>()
+            {
+                @Override
+                public void handle(Long timerId)
+                {
+                    flush(batchKey);
+                }
+            });
+        }
+        callers.add(new Caller(shape, priority, deadline, resultHandler));
+        return true;
+    }
+
+    private void flush(String batchKey)
+    {
+        List<Caller> callers = openBatches.remove(batchKey);
+        Set<List<String>> rows = new LinkedHashSet<List<String>>();
+        for (Caller caller : callers) {
+            rows.addAll(caller.shape.block.getRows());
+        }
+        send(callers.get(0).shape, callers, rows);
+    }
+
+    // sends the rows in chunks and passes the result to the callers
+    private void send(final QueryShape shape, final List<Caller> callers,
+            Collection<List<String>> rows)
+    {
+        batches++;
+        DispatchQueue.Priority priority = DispatchQueue.Priority.BACKGROUND;
+        long deadline = callers.get(0).deadline;
+        for (Caller caller : callers) {
+            if (caller.priority.compareTo(priority) < 0) {
+                priority = caller.priority;
+            }
+            // 0 waits for the timeout, which no deadline extends
+            if (0 == caller.deadline || (0 != deadline && caller.deadline - deadline > 0)) {
+                deadline = caller.deadline;
+            }
+        }
+        List<List<List<String>>> chunkRows = new ArrayList<List<List<String>>>();
+        List<List<String>> currentChunk = null;
+        for (List<String> row : rows) {
+            if (null == currentChunk || currentChunk.size() >= chunkSize) {
+                currentChunk = new ArrayList<List<String>>(chunkSize);
+                chunkRows.add(currentChunk);
+            }
+            currentChunk.add(row);
+        }
+        if (chunkRows.isEmpty()) {
+            // empty VALUES block
+            chunkRows.add(new ArrayList<List<String>>());
+        }
+
+        final String[] replies = new String[chunkRows.size()];
+        final int[] outstanding = new int[]{chunkRows.size()};
+        final boolean[] failed = new boolean[1];
+        for (int i = 0; i < chunkRows.size(); i++) {
+            final int chunk = i;
+            final long sent = System.nanoTime();
+            chunks++;
+            dispatcher.send(shape.render(chunkRows.get(i)), priority, deadline,
+                    new AsyncResultHandler<String>()
+            {
+                @Override
+                public void handle(AsyncResult<String> result)
+                {
+                    adaptChunkSize((System.nanoTime() - sent) / 1000000);
+                    if (failed[0]) {
+                        return;
+                    }
+                    if (result.failed()) {
+                        failed[0] = true;
+                        for (Caller caller : callers) {
+                            caller.resultHandler.handle(new DefaultFutureResult<String>(result
+                                    .cause()));
+                        }
+                        return;
+                    }
+                    replies[chunk] = result.result();
+                    if (--outstanding[0] == 0) {
+                        demultiplex(shape, callers, replies);
+                    }
+                }
+            });
+        }
+    }
+
+    private void adaptChunkSize(long latency)
+    {
+        if (latency > targetLatency) {
+            chunkSize = Math.max(minChunkSize, chunkSize / 2);
+        }
+        else if (chunkSize < maxChunkSize) {
+            chunkSize = Math.min(maxChunkSize, chunkSize + Math.max(1, minChunkSize / 4));
+        }
+    }
+
+    // assigns the bindings of the replies to the callers
+    private void demultiplex(QueryShape shape, List<Caller> callers, String[] replies)
+    {
+        JsonObject head = null;
+        List<JsonObject> bindings = new ArrayList<JsonObject>();
+        // chunks of a DISTINCT query may return the same binding
+        Set<String> encodedBindings = new HashSet<String>();
+        for (String reply : replies) {
+            JsonObject result = new JsonObject(reply);
+            if (null == head) {
+                head = result.getObject("head");
+            }
+            JsonArray replyBindings = result.getObject("results").getArray("bindings");
+            for (Object binding : replyBindings) {
+                if (binding instanceof JsonObject
+                        && (!shape.distinct || encodedBindings.add(((JsonObject) binding).encode()))) {
+                    bindings.add((JsonObject) binding);
+                }
+            }
+        }
+        List<String> bindingKeys = new ArrayList<String>(bindings.size());
+        for (JsonObject binding : bindings) {
+            String bindingKey = null == shape.keyColumns ? null : shape.bindingKey(binding);
+            if (null != bindingKey && !isAssigned(callers, bindingKey)) {
+                resend(callers, bindingKey);
+                return;
+            }
+            bindingKeys.add(bindingKey);
+        }
+        for (Caller caller : callers) {
+            JsonArray callerBindings = new JsonArray();
+            for (int i = 0; i < bindings.size(); i++) {
+                String bindingKey = bindingKeys.get(i);
+                // bindings with unbound key variables are passed to all callers
+                if (null == bindingKey || caller.rowKeys.contains(bindingKey)) {
+                    callerBindings.addObject(bindings.get(i));
+                }
+            }
+            JsonObject callerResult = new JsonObject();
+            if (null != head) {
+                callerResult.putObject("head", head);
+            }
+            callerResult.putObject("results", new JsonObject().putArray("bindings", callerBindings));
+            caller.resultHandler.handle(new DefaultFutureResult<String>(callerResult.encode()));
+        }
+    }
+
+    private static boolean isAssigned(List<Caller> callers, String bindingKey)
+    {
+        for (Caller caller : callers) {
+            if (caller.rowKeys.contains(bindingKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // sends the queries of a batch on their own since a binding matches none of them
+    private void resend(List<Caller> callers, String bindingKey)
+    {
+        unassigned++;
+        log.warn("[Lernbedarf-Dienst] - binding with key " + bindingKey.trim() + " matches none of "
+                + callers.size() + " merged queries, sending them on their own");
+        for (Caller caller : callers) {
+            dispatcher.send(caller.shape.render(caller.shape.block.getRows()), caller.priority,
+                    caller.deadline, caller.resultHandler);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package de.appsist.service.lbd.queries;
+
+import java.util.*;
+
+/**
+ * SparQL query with typed parameters.
+ * The template text is parsed once into static segments and slots. A slot is written as
+ * <code>${type:name}</code>, the types are:
+ * <ul>
+ * <li><code>iri</code> - a single IRI, rendered as <code>&lt;iri&gt;</code></li>
+ * <li><code>iris</code> - a VALUES block of IRIs, rendered as <code>{&lt;a&gt; &lt;b&gt;}</code></li>
+ * <li><code>tuples</code> - a VALUES block of IRI tuples, rendered as
+ * <code>{(&lt;a&gt; &lt;b&gt;) (&lt;c&gt; &lt;d&gt;)}</code></li>
+ * <li><code>literal</code> - the content of a string literal, e.g., a language tag</li>
+ * </ul>
+ * IRIs may be passed with or without angle brackets. Characters not allowed in IRIs are
+ * percent-encoded.
+ * The entries of VALUES blocks are sorted and duplicates are removed, so the same parameters
+ * always render the same query. A name may be used by several slots of the same type.
+ */
+public class QueryTemplate
+{
+    private static final String TYPE_IRI = "iri";
+    private static final String TYPE_IRIS = "iris";
+    private static final String TYPE_TUPLES = "tuples";
+    private static final String TYPE_LITERAL = "literal";
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // builder reused for rendering, queries are rendered one at a time per thread
+    private static final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>()
+    {
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder(1024);
+        }
+    };
+
+    private final String[] segments;
+    // index into names for each slot
+    private final int[] slots;
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> types = new ArrayList<String>();
+    private final int staticLength;
+
+    private QueryTemplate(String template)
+    {
+        List<String> segmentList = new ArrayList<String>();
+        List<Integer> slotList = new ArrayList<Integer>();
+        int position = 0;
+        int start;
+        while ((start = template.indexOf("${", position)) >= 0) {
+            int end = template.indexOf('}', start);
+            int colon = template.indexOf(':', start);
+            if (end < 0 || colon < 0 || colon > end) {
+                throw new IllegalArgumentException("Invalid slot at " + start + ": " + template);
+            }
+            String type = template.substring(start + 2, colon);
+            String name = template.substring(colon + 1, end);
+            if (!TYPE_IRI.equals(type) && !TYPE_IRIS.equals(type) && !TYPE_TUPLES.equals(type)
+                    && !TYPE_LITERAL.equals(type)) {
+                throw new IllegalArgumentException("Unknown slot type " + type);
+            }
+            int index = names.indexOf(name);
+            if (index < 0) {
+                index = names.size();
+                names.add(name);
+                types.add(type);
+            }
+            else if (!types.get(index).equals(type)) {
+                throw new IllegalArgumentException("Slot " + name + " used with different types");
+            }
+            segmentList.add(template.substring(position, start));
+            slotList.add(index);
+            position = end + 1;
+        }
+        segmentList.add(template.substring(position));
+
+        this.segments = segmentList.toArray(new String[segmentList.size()]);
+        this.slots = new int[slotList.size()];
+        int length = 0;
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = slotList.get(i);
+        }
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        this.staticLength = length;
+    }
+
+    /**
+     * Parses a template.
+     *
+     * @param template Query text with slots.
+     * @return Template.
+     * @throws IllegalArgumentException If a slot is malformed or has an unknown type.
+     */
+    public static QueryTemplate compile(String template)
+    {
+        return new QueryTemplate(template);
+    }
+
+    /**
+     * Starts binding parameters to render a query.
+     *
+     * @return Parameters of a query, all slots have to be bound before rendering.
+     */
+    public Bindings bind()
+    {
+        return new Bindings();
+    }
+
+    /**
+     * Parameters of a single query.
+     */
+    public class Bindings
+    {
+        private final Object[] values = new Object[names.size()];
+
+        private Bindings()
+        {
+        }
+
+        /**
+         * Binds a single IRI.
+         *
+         * @param name Name of the slot.
+         * @param iri IRI.
+         * @return This object.
+         */
+        public Bindings iri(String name, String iri)
+        {
+            return set(name, TYPE_IRI, iri);
+        }
+
+        /**
+         * Binds the IRIs of a VALUES block.
+         *
+         * @param name Name of the slot.
+         * @param iris IRIs.
+         * @return This object.
+         */
+        public Bindings iris(String name, Collection<String> iris)
+        {
+            return set(name, TYPE_IRIS, iris);
+        }
+
+        /**
+         * Binds the IRI tuples of a VALUES block.
+         *
+         * @param name Name of the slot.
+         * @param tuples Tuples, all of the same length.
+         * @return This object.
+         */
+        public Bindings tuples(String name, Collection<String[]> tuples)
+        {
+            return set(name, TYPE_TUPLES, tuples);
+        }
+
+        /**
+         * Binds the content of a string literal.
+         *
+         * @param name Name of the slot.
+         * @param literal Unescaped content.
+         * @return This object.
+         */
+        public Bindings literal(String name, String literal)
+        {
+            return set(name, TYPE_LITERAL, literal);
+        }
+
+        private Bindings set(String name, String type, Object value)
+        {
+            int index = names.indexOf(name);
+            if (index < 0 || !types.get(index).equals(type)) {
+                throw new IllegalArgumentException("No slot " + type + ":" + name);
+            }
+            values[index] = value;
+            return this;
+        }
+
+        /**
+         * Renders the query.
+         *
+         * @return Query text.
+         * @throws IllegalStateException If a slot is not bound or bound to <code>null</code>.
+         * @throws IllegalArgumentException If an IRI is <code>null</code> or empty.
+         */
+        @SuppressWarnings("unchecked")
+        public String render()
+        {
+            // sort the entries of VALUES blocks once, even if they are used by several slots
+            Object[] rendered = new Object[values.length];
+            int length = staticLength;
+            for (int i = 0; i < values.length; i++) {
+                if (null == values[i]) {
+                    throw new IllegalStateException("Slot " + names.get(i) + " not bound");
+                }
+                String type = types.get(i);
+                int valueLength;
+                if (TYPE_IRIS.equals(type)) {
+                    String[] iris = sortedIris((Collection<String>) values[i]);
+                    rendered[i] = iris;
+                    valueLength = 2;
+                    for (String iri : iris) {
+                        valueLength += iri.length() + 3;
+                    }
+                }
+                else if (TYPE_TUPLES.equals(type)) {
+                    String[][] tuples = sortedTuples((Collection<String[]>) values[i]);
+                    rendered[i] = tuples;
+                    valueLength = 2;
+                    for (String[] tuple : tuples) {
+                        valueLength += 3;
+                        for (String iri : tuple) {
+                            valueLength += iri.length() + 3;
+                        }
+                    }
+                }
+                else {
+                    rendered[i] = values[i];
+                    valueLength = ((String) values[i]).length() + 2;
+                }
+                for (int slot : slots) {
+                    if (slot == i) {
+                        length += valueLength;
+                    }
+                }
+            }
+
+            StringBuilder builder = builders.get();
+            builder.setLength(0);
+            builder.ensureCapacity(length);
+            for (int i = 0; i < slots.length; i++) {
+                builder.append(segments[i]);
+                int index = slots[i];
+                String type = types.get(index);
+                if (TYPE_IRI.equals(type)) {
+                    appendIri(builder, stripBrackets((String) rendered[index]));
+                }
+                else if (TYPE_IRIS.equals(type)) {
+                    builder.append('{');
+                    String[] iris = (String[]) rendered[index];
+                    for (int j = 0; j < iris.length; j++) {
+                        if (j > 0) {
+                            builder.append(' ');
+                        }
+                        appendIri(builder, iris[j]);
+                    }
+                    builder.append('}');
+                }
+                else if (TYPE_TUPLES.equals(type)) {
+                    builder.append('{');
+                    String[][] tuples = (String[][]) rendered[index];
+                    for (int j = 0; j < tuples.length; j++) {
+                        builder.append(j > 0 ? " (" : "(");
+                        for (int k = 0; k < tuples[j].length; k++) {
+                            if (k > 0) {
+                                builder.append(' ');
+                            }
+                            appendIri(builder, tuples[j][k]);
+                        }
+                        builder.append(')');
+                    }
+                    builder.append('}');
+                }
+                else {
+                    appendLiteral(builder, (String) rendered[index]);
+                }
+            }
+            builder.append(segments[segments.length - 1]);
+            String query = builder.toString();
+            if (builder.capacity() > 65536) {
+                // do not keep the memory of exceptionally large queries
+                builders.remove();
+            }
+            return query;
+        }
+    }
+
+    private static String[] sortedIris(Collection<String> iris)
+    {
+        String[] sorted = new String[iris.size()];
+        int i = 0;
+        for (String iri : iris) {
+            sorted[i++] = stripBrackets(iri);
+        }
+        Arrays.sort(sorted);
+        return distinct(sorted);
+    }
+
+    private static String[][] sortedTuples(Collection<String[]> tuples)
+    {
+        String[][] sorted = new String[tuples.size()][];
+        int i = 0;
+        for (String[] tuple : tuples) {
+            String[] stripped = new String[tuple.length];
+            for (int j = 0; j < tuple.length; j++) {
+                stripped[j] = stripBrackets(tuple[j]);
+            }
+            sorted[i++] = stripped;
+        }
+        Arrays.sort(sorted, new Comparator<String[]>()
+        {
+            @Override
+            public int compare(String[] a, String[] b)
+            {
+                for (int j = 0; j < a.length && j < b.length; j++) {
+                    int result = a[j].compareTo(b[j]);
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return a.length - b.length;
+            }
+        });
+        int length = 0;
+        for (int j = 0; j < sorted.length; j++) {
+            if (length == 0 || !Arrays.equals(sorted[length - 1], sorted[j])) {
+                sorted[length++] = sorted[j];
+            }
+        }
+        return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
+    }
+
+    private static String[] distinct(String[] sorted)
+    {
+        int length = 0;
+        for (int j = 0; j < sorted.length; j++) {
+            if (length == 0 || !sorted[length - 1].equals(sorted[j])) {
+                sorted[length++] = sorted[j];
+            }
+        }
+        return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
+    }
+
+    private static String stripBrackets(String iri)
+    {
+        if (null == iri) {
+            throw new IllegalArgumentException("IRI missing");
+        }
+        iri = iri.trim();
+        if (iri.length() >= 2 && iri.charAt(0) == '<' && iri.charAt(iri.length() - 1) == '>') {
+            return iri.substring(1, iri.length() - 1);
+        }
+        return iri;
+    }
+
+    // appends an IRI reference, characters which are not allowed in IRIREF are percent-encoded
+    private static void appendIri(StringBuilder builder, String iri)
+    {
+        if (iri.isEmpty()) {
+            throw new IllegalArgumentException("Empty IRI");
+        }
+        builder.append('<');
+        for (int i = 0; i < iri.length(); i++) {
+            char c = iri.charAt(i);
+            if (c <= 0x20 || c == '<' || c == '>' || c == '"' || c == '{' || c == '}' || c == '|'
+                    || c == '^' || c == '`' || c == '\\') {
+                builder.append('%').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        builder.append('>');
+    }
+
+    // appends the content of a string literal
+    private static void appendLiteral(StringBuilder builder, String literal)
+    {
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            switch (c) {
+                case '"' :
+                case '\'' :
+                case '\\' :
+                    builder.append('\\').append(c);
+                    break;
+                case '\n' :
+                    builder.append("\\n");
+                    break;
+                case '\r' :
+                    builder.append("\\r");
+                    break;
+                default :
+                    builder.append(c);
+                    break;
+            }
+        }
+    }
+}
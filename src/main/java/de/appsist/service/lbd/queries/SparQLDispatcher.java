@@ -0,0 +1,686 @@
+package de.appsist.service.lbd.queries;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.eventbus.ReplyException;
+import org.vertx.java.core.eventbus.ReplyFailure;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.cache.ClusterResultCache;
+import de.appsist.service.lbd.cache.SparQLResultCache;
+import de.appsist.service.lbd.capture.TrafficRecorder;
+import de.appsist.service.lbd.metrics.FlightRecorderEvents;
+import de.appsist.service.lbd.resilience.CircuitBreaker;
+
+/**
+ * Sends SparQL queries to the semantic wiki service.
+ * All queries of the service are sent through a dispatcher, which answers repeated queries from
+ * a {@link SparQLResultCache}. A query identical to a query still waiting for its reply is not sent
+ * again, the reply is passed to all handlers waiting for it. Each of them keeps its priority and
+ * deadline: the query is sent, or waits in the queue, with the highest priority of the handlers,
+ * and is sent again for the handlers with time left if it has been cut off at the deadline of the
+ * handler which sent it. Queries which only differ in their
+ * VALUES block can be merged by a {@link QueryBatcher}. Queries missing the cache of the node are
+ * looked up in the {@link ClusterResultCache} shared with the other nodes before they are sent.
+ * Queries sent fail if they are not answered within the timeout, or within the time left before
+ * the deadline of the pipeline run sending them if that is shorter, or at once while the
+ * {@link CircuitBreaker} of the semantic wiki service is open. The number of queries outstanding
+ * can be limited by a {@link DispatchQueue}, which sends the queries waiting in the order of the
+ * priority set by the caller.
+ */
+public class SparQLDispatcher
+{
+    // Eventbus address
+    public static final String SPARQLREQUESTS = "appsist:requests:semwiki";
+
+    private final EventBus eb;
+    private final SparQLResultCache cache;
+    private ClusterResultCache clusterCache;
+    private QueryBatcher batcher;
+    private FlightRecorderEvents events = FlightRecorderEvents.NONE;
+    private TrafficRecorder recorder;
+    // 0 to wait for replies without timeout
+    private long timeout;
+    private CircuitBreaker breaker;
+    private DispatchQueue queue;
+    // session, stage, priority and deadline of the next query, see traceNextQuery
+    private int traceSessionHash;
+    private String traceStage;
+    private DispatchQueue.Priority nextPriority = DispatchQueue.Priority.BACKGROUND;
+    private long nextDeadline;
+
+    // caller waiting for the reply of a query sent
+    private static class Waiter
+    {
+        private final DispatchQueue.Priority priority;
+        private final long deadline;
+        private final AsyncResultHandler<String> resultHandler;
+
+        private Waiter(DispatchQueue.Priority priority, long deadline,
+                AsyncResultHandler<String> resultHandler)
+        {
+            this.priority = priority;
+            this.deadline = deadline;
+            this.resultHandler = resultHandler;
+        }
+    }
+
+    // query sent and the callers waiting for its reply
+    private static class PendingQuery
+    {
+        private final List<Waiter> waiters = new ArrayList<Waiter>(4);
+        // deadline the query is sent with, the one of the first caller
+        private final long deadline;
+        // priority the query is sent with, or waits with in the queue
+        private DispatchQueue.Priority priority;
+        // set once the query has been sent or offered to the batcher
+        private boolean sent;
+        // null if the query is not waiting in the queue of this dispatcher
+        private DispatchQueue.Ticket ticket;
+
+        private PendingQuery(DispatchQueue.Priority priority, long deadline)
+        {
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+    }
+
+    // queries sent, mapped by cache epoch and normalized query
+    private final Map<String, PendingQuery> pendingQueries = new HashMap<String, PendingQuery>();
+
+    private long sentQueries;
+    private long coalescedQueries;
+    private long retriedQueries;
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param eb Event bus to send the queries with.
+     * @param cache Cache for query results, <code>null</code> to send every query.
+     */
+    public SparQLDispatcher(EventBus eb, SparQLResultCache cache)
+    {
+        this.eb = eb;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the cache of this dispatcher.
+     *
+     * @return Result cache or <code>null</code> if results are not cached.
+     */
+    public SparQLResultCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Sets the cache shared with the other nodes of the cluster.
+     *
+     * @param clusterCache Cluster cache or <code>null</code> if results are only cached locally.
+     */
+    public void setClusterCache(ClusterResultCache clusterCache)
+    {
+        this.clusterCache = clusterCache;
+    }
+
+    /**
+     * Sets the batcher merging the queries of this dispatcher.
+     *
+     * @param batcher Batcher or <code>null</code> to send all queries as they are.
+     */
+    public void setBatcher(QueryBatcher batcher)
+    {
+        this.batcher = batcher;
+    }
+
+    /**
+     * Sets the Flight Recorder events committed for the queries.
+     *
+     * @param events Flight Recorder events.
+     */
+    public void setEvents(FlightRecorderEvents events)
+    {
+        this.events = events;
+    }
+
+    /**
+     * Sets the time to wait for the reply to a query sent.
+     *
+     * @param timeout Timeout in milliseconds, 0 to wait without timeout.
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the circuit breaker of the semantic wiki service.
+     *
+     * @param breaker Circuit breaker or <code>null</code> to send every query.
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker)
+    {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Sets the queue limiting the number of queries outstanding.
+     *
+     * @param queue Dispatch queue or <code>null</code> to send every query at once.
+     */
+    public void setQueue(DispatchQueue queue)
+    {
+        this.queue = queue;
+    }
+
+    /**
+     * Sets the recorder capturing the queries sent and their replies.
+     *
+     * @param recorder Traffic recorder or <code>null</code> if queries are never captured.
+     */
+    public void setRecorder(TrafficRecorder recorder)
+    {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets the session and stage recorded with the event of the next query, and its priority in
+     * the dispatch queue. Since the rules send their queries synchronously on the event loop, the
+     * caller sets them right before sending a query, they are reset when the query is sent.
+     * Queries sent without calling this method have the priority
+     * {@link DispatchQueue.Priority#BACKGROUND}.
+     *
+     * @param sessionHash Hash of the session id.
+     * @param stage Rule or stage sending the query.
+     * @param priority Priority of the query.
+     */
+    public void traceNextQuery(int sessionHash, String stage, DispatchQueue.Priority priority)
+    {
+        traceNextQuery(sessionHash, stage, priority, 0);
+    }
+
+    /**
+     * Sets the session, stage and priority of the next query like
+     * {@link #traceNextQuery(int, String, DispatchQueue.Priority)}, and the deadline of the
+     * pipeline run sending it. The query times out when the deadline is reached, unless its
+     * timeout is shorter. A query sent after the deadline, or joining a query sent before, waits
+     * for the timeout of the query sent.
+     *
+     * @param sessionHash Hash of the session id.
+     * @param stage Rule or stage sending the query.
+     * @param priority Priority of the query.
+     * @param deadline Deadline as returned by {@link System#nanoTime()}, 0 if there is none.
+     */
+    public void traceNextQuery(int sessionHash, String stage, DispatchQueue.Priority priority,
+            long deadline)
+    {
+        this.traceSessionHash = sessionHash;
+        this.traceStage = stage;
+        this.nextPriority = priority;
+        this.nextDeadline = deadline;
+    }
+
+    /**
+     * Returns the statistics of this dispatcher.
+     *
+     * @return Object with the fields sent, coalesced, retried and pending.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("sent", sentQueries);
+        statistics.putNumber("coalesced", coalescedQueries);
+        statistics.putNumber("retried", retriedQueries);
+        statistics.putNumber("pending", pendingQueries.size());
+        if (null != batcher) {
+            statistics.putObject("batching", batcher.getStatistics());
+        }
+        if (null != breaker) {
+            statistics.putObject("circuitBreaker", breaker.getStatistics());
+        }
+        if (null != queue) {
+            statistics.putObject("queue", queue.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Sends a query, or answers it from the cache of the node or of the cluster. If the same query
+     * has already been sent and its reply is pending, the handler is attached to the pending query.
+     *
+     * @param sparQLQuery SparQL query to send.
+     * @param resultHandler Handler for the JSON encoded result of the query.
+     */
+    public void query(String sparQLQuery, AsyncResultHandler<String> resultHandler)
+    {
+        long deadline = nextDeadline;
+        query(sparQLQuery, takePriority(), deadline, resultHandler);
+    }
+
+    private void query(String sparQLQuery, DispatchQueue.Priority priority, long deadline,
+            AsyncResultHandler<String> resultHandler)
+    {
+        dispatch(sparQLQuery, priority, deadline, traced(sparQLQuery, resultHandler));
+    }
+
+    // answers a query from the caches, attaches it to the same query pending or sends it
+    private void dispatch(final String sparQLQuery, DispatchQueue.Priority priority,
+            long deadline, AsyncResultHandler<String> resultHandler)
+    {
+        final String key = ValuesBlock.normalize(sparQLQuery);
+        final long epoch;
+        if (null != cache) {
+            String cachedResult = cache.get(key);
+            if (null != cachedResult) {
+                resultHandler.handle(new DefaultFutureResult<String>(cachedResult));
+                return;
+            }
+            epoch = cache.getEpoch();
+        }
+        else {
+            epoch = 0;
+        }
+        // queries sent before the cache has been invalidated are not joined
+        final String pendingKey = epoch + " " + key;
+        PendingQuery joined = pendingQueries.get(pendingKey);
+        if (null != joined) {
+            coalescedQueries++;
+            join(joined, new Waiter(priority, deadline, resultHandler));
+            return;
+        }
+        final PendingQuery pending = new PendingQuery(priority, deadline);
+        pending.waiters.add(new Waiter(priority, deadline, resultHandler));
+        pendingQueries.put(pendingKey, pending);
+
+        final AsyncResultHandler<String> completionHandler = new AsyncResultHandler<String>()
+        {
+            @Override
+            public void handle(AsyncResult<String> result)
+            {
+                if (null != cache && result.succeeded()) {
+                    cache.put(key, result.result(), epoch);
+                }
+                pendingQueries.remove(pendingKey);
+                List<Waiter> retries = new ArrayList<Waiter>(0);
+                for (Waiter waiter : pending.waiters) {
+                    if (result.failed() && isRetried(pending, waiter, result.cause())) {
+                        retries.add(waiter);
+                    }
+                    else {
+                        waiter.resultHandler.handle(result);
+                    }
+                }
+                // the first retry is sent, the others join it
+                retriedQueries += retries.size();
+                for (Waiter waiter : retries) {
+                    dispatch(sparQLQuery, waiter.priority, waiter.deadline,
+                            waiter.resultHandler);
+                }
+            }
+        };
+        if (null == clusterCache) {
+            sendPending(sparQLQuery, pending, completionHandler);
+            return;
+        }
+        final long generation = clusterCache.getGeneration();
+        clusterCache.get(key, new Handler<String>()
+        {
+            @Override
+            public void handle(String clusterResult)
+            {
+                if (null != clusterResult) {
+                    completionHandler.handle(new DefaultFutureResult<String>(clusterResult));
+                    return;
+                }
+                sendPending(sparQLQuery, pending, storeInCluster(key, generation,
+                        completionHandler));
+            }
+        });
+    }
+
+    // attaches a caller to a pending query, whose priority is raised to the one of the caller
+    private static void join(PendingQuery pending, Waiter waiter)
+    {
+        pending.waiters.add(waiter);
+        if (waiter.priority.compareTo(pending.priority) >= 0) {
+            return;
+        }
+        if (!pending.sent) {
+            pending.priority = waiter.priority;
+        }
+        else if (null != pending.ticket) {
+            pending.ticket.raise(waiter.priority);
+            pending.priority = waiter.priority;
+        }
+        // otherwise the priority of the query cannot be changed anymore, the caller sends the
+        // query again if it is shed
+    }
+
+    // whether a caller attached to a query which failed sends it again: the query has been cut off
+    // at the deadline of the caller which sent it while the caller has time left, or shed at a
+    // lower priority than the one of the caller
+    private static boolean isRetried(PendingQuery pending, Waiter waiter, Throwable failure)
+    {
+        if (failure instanceof DispatchQueue.ShedException) {
+            return waiter.priority.compareTo(pending.priority) < 0;
+        }
+        if (0 == pending.deadline || !(failure instanceof ReplyException)
+                || ((ReplyException) failure).failureType() != ReplyFailure.TIMEOUT) {
+            return false;
+        }
+        long now = System.nanoTime();
+        return now - pending.deadline >= 0 && (0 == waiter.deadline || waiter.deadline - now > 0);
+    }
+
+    // sends a pending query with its current priority
+    private void sendPending(String sparQLQuery, PendingQuery pending,
+            AsyncResultHandler<String> resultHandler)
+    {
+        pending.sent = true;
+        pending.ticket = sendOrOffer(sparQLQuery, pending.priority, pending.deadline,
+                resultHandler);
+    }
+
+    /**
+     * Sends a query without looking up or storing its result in the cache of the node, e.g., to
+     * refresh data the service keeps in a cache of its own. The result is still shared with the
+     * other nodes of the cluster, so a result retrieved by another node within the time to live of
+     * the cluster cache is used.
+     *
+     * @param sparQLQuery SparQL query to send.
+     * @param resultHandler Handler for the JSON encoded result of the query.
+     */
+    public void queryUncached(String sparQLQuery, AsyncResultHandler<String> resultHandler)
+    {
+        long deadline = nextDeadline;
+        queryUncached(sparQLQuery, takePriority(), deadline, resultHandler);
+    }
+
+    private void queryUncached(final String sparQLQuery, final DispatchQueue.Priority priority,
+            final long deadline, AsyncResultHandler<String> tracedHandler)
+    {
+        final AsyncResultHandler<String> resultHandler = traced(sparQLQuery, tracedHandler);
+        if (null == clusterCache) {
+            send(sparQLQuery, priority, deadline, resultHandler);
+            return;
+        }
+        final String key = ValuesBlock.normalize(sparQLQuery);
+        final long generation = clusterCache.getGeneration();
+        clusterCache.get(key, new Handler<String>()
+        {
+            @Override
+            public void handle(String clusterResult)
+            {
+                if (null != clusterResult) {
+                    resultHandler.handle(new DefaultFutureResult<String>(clusterResult));
+                    return;
+                }
+                send(sparQLQuery, priority, deadline, storeInCluster(key, generation,
+                        resultHandler));
+            }
+        });
+    }
+
+    /**
+     * Sends a query in pages of the given size using LIMIT and OFFSET and decodes each page into
+     * the sink. The next page is requested after a page has been decoded, so only one page of a
+     * large result is held at a time. All pages have the priority and deadline of the first. The
+     * query must not
+     * contain LIMIT, OFFSET or ORDER BY, the pages are ordered by the variables of the decoder.
+     *
+     * @param sparQLQuery SparQL query to send.
+     * @param pageSize Number of rows per page, 0 to send the query without paging.
+     * @param cached Whether the pages are sent with {@link #query} or {@link #queryUncached}.
+     * @param decoder Decoder for the pages.
+     * @param sink Sink for the rows of all pages.
+     * @param resultHandler Handler for the total number of rows.
+     */
+    public void queryPaged(String sparQLQuery, int pageSize, boolean cached,
+            SparQLResultDecoder decoder, SparQLResultDecoder.RowSink sink,
+            AsyncResultHandler<Integer> resultHandler)
+    {
+        long deadline = nextDeadline;
+        new PagedQuery(sparQLQuery, pageSize, cached, takePriority(), deadline, decoder, sink,
+                resultHandler).requestPage();
+    }
+
+    // state of a query sent by queryPaged
+    private class PagedQuery
+        implements AsyncResultHandler<String>
+    {
+        private final String sparQLQuery;
+        private final int pageSize;
+        private final boolean cached;
+        private final DispatchQueue.Priority priority;
+        private final long deadline;
+        private final SparQLResultDecoder decoder;
+        private final SparQLResultDecoder.RowSink sink;
+        private final AsyncResultHandler<Integer> resultHandler;
+        private int offset;
+
+        private PagedQuery(String sparQLQuery, int pageSize, boolean cached,
+                DispatchQueue.Priority priority, long deadline, SparQLResultDecoder decoder,
+                SparQLResultDecoder.RowSink sink, AsyncResultHandler<Integer> resultHandler)
+        {
+            if (pageSize > 0) {
+                StringBuilder orderedQuery = new StringBuilder(sparQLQuery).append(" ORDER BY");
+                for (String variable : decoder.getVariables()) {
+                    orderedQuery.append(" ?").append(variable);
+                }
+                sparQLQuery = orderedQuery.append(" LIMIT ").append(pageSize).toString();
+            }
+            this.sparQLQuery = sparQLQuery;
+            this.pageSize = pageSize;
+            this.cached = cached;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.decoder = decoder;
+            this.sink = sink;
+            this.resultHandler = resultHandler;
+        }
+
+        private void requestPage()
+        {
+            String page = pageSize > 0 && offset > 0
+                    ? sparQLQuery + " OFFSET " + offset
+                    : sparQLQuery;
+            if (cached) {
+                query(page, priority, deadline, this);
+            }
+            else {
+                queryUncached(page, priority, deadline, this);
+            }
+        }
+
+        @Override
+        public void handle(AsyncResult<String> result)
+        {
+            if (result.failed()) {
+                resultHandler.handle(new DefaultFutureResult<Integer>(result.cause()));
+                return;
+            }
+            int rows;
+            try {
+                rows = decoder.decode(result.result(), sink);
+            }
+            catch (IOException e) {
+                resultHandler.handle(new DefaultFutureResult<Integer>(e));
+                return;
+            }
+            offset += rows;
+            if (pageSize > 0 && rows >= pageSize) {
+                requestPage();
+            }
+            else {
+                resultHandler.handle(new DefaultFutureResult<Integer>(offset));
+            }
+        }
+    }
+
+    // returns the priority of the next query and resets it, together with its deadline
+    private DispatchQueue.Priority takePriority()
+    {
+        DispatchQueue.Priority priority = nextPriority;
+        nextPriority = DispatchQueue.Priority.BACKGROUND;
+        nextDeadline = 0;
+        return priority;
+    }
+
+    // wraps the handler of a query to commit its event while a recording is running
+    private AsyncResultHandler<String> traced(String sparQLQuery,
+            final AsyncResultHandler<String> resultHandler)
+    {
+        final int sessionHash = traceSessionHash;
+        final String stage = traceStage;
+        traceSessionHash = 0;
+        traceStage = null;
+        if (!events.isQueryEnabled()) {
+            return resultHandler;
+        }
+        int values = 0;
+        for (ValuesBlock block : ValuesBlock.findAll(sparQLQuery)) {
+            values += block.getRows().size();
+        }
+        final int valueCount = values;
+        final long startTime = System.nanoTime();
+        return new AsyncResultHandler<String>()
+        {
+            @Override
+            public void handle(AsyncResult<String> result)
+            {
+                int resultLength = result.succeeded() && null != result.result() ? result
+                        .result().length() : -1;
+                events.query(sessionHash, stage, valueCount, resultLength, System.nanoTime()
+                        - startTime);
+                resultHandler.handle(result);
+            }
+        };
+    }
+
+    // sends a query unless the batcher merges it with other queries, returns the ticket of the
+    // query in the queue, null if it is not queued by this dispatcher
+    private DispatchQueue.Ticket sendOrOffer(String sparQLQuery, DispatchQueue.Priority priority,
+            long deadline, AsyncResultHandler<String> resultHandler)
+    {
+        if (null == batcher || !batcher.offer(sparQLQuery, priority, deadline, resultHandler)) {
+            return send(sparQLQuery, priority, deadline, resultHandler);
+        }
+        return null;
+    }
+
+    // passes the result of a query sent to the semantic wiki service to the cluster cache
+    private AsyncResultHandler<String> storeInCluster(final String key, final long generation,
+            final AsyncResultHandler<String> resultHandler)
+    {
+        return new AsyncResultHandler<String>()
+        {
+            @Override
+            public void handle(AsyncResult<String> result)
+            {
+                if (result.succeeded()) {
+                    clusterCache.put(key, result.result(), generation);
+                }
+                resultHandler.handle(result);
+            }
+        };
+    }
+
+    // sends a query to the semantic wiki service once the queue admits it
+    // the deadline is the time the reply is waited for at most, 0 to wait for the timeout
+    // returns the ticket of the query in the queue, null if there is no queue
+    DispatchQueue.Ticket send(final String sparQLQuery, DispatchQueue.Priority priority,
+            final long deadline, final AsyncResultHandler<String> resultHandler)
+    {
+        if (null == queue) {
+            transmit(sparQLQuery, deadline, resultHandler);
+            return null;
+        }
+        return queue.submit(priority, new AsyncResultHandler<Void>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> admission)
+            {
+                if (admission.failed()) {
+                    resultHandler.handle(new DefaultFutureResult<String>(admission.cause()));
+                    return;
+                }
+                transmit(sparQLQuery, deadline, resultHandler);
+            }
+        });
+    }
+
+    // sends an admitted query to the semantic wiki service
+    private void transmit(final String sparQLQuery, long deadline,
+            final AsyncResultHandler<String> resultHandler)
+    {
+        if (null != breaker) {
+            try {
+                breaker.allowRequest();
+            }
+            catch (CircuitBreaker.OpenException e) {
+                if (null != queue) {
+                    queue.release();
+                }
+                resultHandler.handle(new DefaultFutureResult<String>(e));
+                return;
+            }
+        }
+        sentQueries++;
+        final long sendTime = System.nanoTime();
+        long requestTimeout = timeout;
+        if (0 != deadline) {
+            // the run sending the query does not wait for a reply after its deadline, a query sent
+            // later by a run going on after its deadline waits for the timeout
+            long left = (deadline - sendTime) / 1000000;
+            if (left > 0 && (requestTimeout <= 0 || left < requestTimeout)) {
+                requestTimeout = left;
+            }
+        }
+        // a query cut off at the deadline says nothing about the health of the service
+        final boolean cutOff = requestTimeout != timeout;
+        Handler<AsyncResult<Message<String>>> replyHandler = new Handler<AsyncResult<Message<String>>>()
+        {
+            @Override
+            public void handle(AsyncResult<Message<String>> reply)
+            {
+                if (null != queue) {
+                    queue.complete(sendTime);
+                }
+                if (reply.failed()) {
+                    if (null != breaker) {
+                        if (cutOff && reply.cause() instanceof ReplyException
+                                && ((ReplyException) reply.cause()).failureType()
+                                        == ReplyFailure.TIMEOUT) {
+                            breaker.recordCancelled();
+                        }
+                        else {
+                            breaker.recordFailure();
+                        }
+                    }
+                    resultHandler.handle(new DefaultFutureResult<String>(reply.cause()));
+                    return;
+                }
+                if (null != breaker) {
+                    breaker.recordSuccess();
+                }
+                if (null != recorder && recorder.isCapturing()) {
+                    recorder.recordQuery(sparQLQuery, reply.result().body(), System.nanoTime()
+                            - sendTime);
+                }
+                resultHandler.handle(new DefaultFutureResult<String>(reply.result().body()));
+            }
+        };
+        JsonObject sQuery = new JsonObject().putString("query", sparQLQuery);
+        // a timeout of -1 waits for the reply as long as it takes
+        eb.sendWithTimeout(SPARQLREQUESTS, new JsonObject().putObject("sparql", sQuery),
+                requestTimeout > 0 ? requestTimeout : -1, replyHandler);
+    }
+}
@@ -0,0 +1,221 @@
+package de.appsist.service.lbd.queries;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes SparQL query results in the JSON format without building a tree of the whole result.
+ * Only the values of the variables passed to the decoder are read. All other variables, and the
+ * type and language of the values, are skipped. Each binding is passed as a row of values to a
+ * {@link RowSink}. Decoders hold no state and may be shared.
+ */
+public class SparQLResultDecoder
+{
+    /**
+     * Receives the rows of a result.
+     */
+    public interface RowSink
+    {
+        /**
+         * Handles a binding of the result.
+         *
+         * @param values Values of the variables of the decoder, in the same order.
+         *            <code>null</code> if the variable is not bound. The array is reused for the
+         *            next binding.
+         */
+        void row(String[] values);
+    }
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final String[] variables;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param variables Variables to read, without question mark.
+     */
+    public SparQLResultDecoder(String... variables)
+    {
+        this.variables = variables.clone();
+    }
+
+    /**
+     * Returns the variables read by this decoder.
+     *
+     * @return Variable names.
+     */
+    public String[] getVariables()
+    {
+        return variables.clone();
+    }
+
+    /**
+     * Decodes a result.
+     *
+     * @param result JSON encoded result of a SparQL query.
+     * @param sink Sink for the bindings.
+     * @return Number of bindings in the result.
+     * @throws IOException If the result is not a valid SparQL JSON result.
+     */
+    public int decode(String result, RowSink sink) throws IOException
+    {
+        JsonParser parser = jsonFactory.createParser(result);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("SparQL result expected", parser.getCurrentLocation());
+            }
+            int rows = -1;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("results".equals(field) && token == JsonToken.START_OBJECT) {
+                    rows = decodeResults(parser, sink);
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+            if (rows < 0) {
+                throw new JsonParseException("Field results.bindings missing",
+                        parser.getCurrentLocation());
+            }
+            return rows;
+        }
+        finally {
+            parser.close();
+        }
+    }
+
+    // reads the object "results" of the result
+    private int decodeResults(JsonParser parser, RowSink sink) throws IOException
+    {
+        int rows = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("bindings".equals(field) && token == JsonToken.START_ARRAY) {
+                rows = decodeBindings(parser, sink);
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+        return rows;
+    }
+
+    // reads the array "bindings", the parser is positioned on its start
+    private int decodeBindings(JsonParser parser, RowSink sink) throws IOException
+    {
+        String[] values = new String[variables.length];
+        int rows = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                // bindings are objects, ignore anything else
+                parser.skipChildren();
+                continue;
+            }
+            Arrays.fill(values, null);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                int column = columnOf(parser.getCurrentName());
+                parser.nextToken();
+                if (column < 0) {
+                    parser.skipChildren();
+                }
+                else {
+                    values[column] = decodeValue(parser);
+                }
+            }
+            rows++;
+            sink.row(values);
+        }
+        return rows;
+    }
+
+    // reads the field "value" of an RDF term, the parser is positioned on the start of the term
+    private String decodeValue(JsonParser parser) throws IOException
+    {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("value".equals(field)) {
+                value = parser.getText();
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    private int columnOf(String variable)
+    {
+        // decoders read few variables, a linear search is faster than a map lookup
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(variable)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a sink adding the values of a column to a collection. Unbound values are ignored.
+     *
+     * @param target Collection to add the values to.
+     * @param column Index of the variable in the decoder.
+     * @return Sink.
+     */
+    public static RowSink values(final Collection<String> target, final int column)
+    {
+        return new RowSink()
+        {
+            @Override
+            public void row(String[] values)
+            {
+                if (null != values[column]) {
+                    target.add(values[column]);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a sink putting the values of two columns into a map. Rows without key are ignored.
+     *
+     * @param target Map to put the values into.
+     * @param keyColumn Index of the variable used as key.
+     * @param valueColumn Index of the variable used as value.
+     * @param defaultValue Value used if the value variable is not bound.
+     * @return Sink.
+     */
+    public static RowSink map(final Map<String, String> target, final int keyColumn,
+            final int valueColumn, final String defaultValue)
+    {
+        return new RowSink()
+        {
+            @Override
+            public void row(String[] values)
+            {
+                if (null != values[keyColumn]) {
+                    target.put(values[keyColumn], null != values[valueColumn]
+                            ? values[valueColumn]
+                            : defaultValue);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,354 @@
+package de.appsist.service.lbd.queries;
+
+import java.util.*;
+
+/**
+ * Inline data block of a SparQL query, e.g., <code>VALUES ?i {app:S10 app:S20}</code> or
+ * <code>VALUES (?z ?station) {(app:A app:S10) (app:A app:S20)}</code>.
+ * Blocks are located with a simple tokenizer which skips string literals and IRIs. Queries which
+ * cannot be tokenized are treated as if they had no VALUES block.
+ */
+public class ValuesBlock
+{
+    private final int start;
+    private final int end;
+    private final List<String> variables;
+    private final List<List<String>> rows;
+
+    private ValuesBlock(int start, int end, List<String> variables, List<List<String>> rows)
+    {
+        this.start = start;
+        this.end = end;
+        this.variables = variables;
+        this.rows = rows;
+    }
+
+    /**
+     * Returns the index of the VALUES keyword in the query.
+     *
+     * @return Index of the first character of the block.
+     */
+    public int getStart()
+    {
+        return start;
+    }
+
+    /**
+     * Returns the index after the closing brace of the block.
+     *
+     * @return Index of the first character after the block.
+     */
+    public int getEnd()
+    {
+        return end;
+    }
+
+    /**
+     * Returns the variables bound by the block, including the leading question mark.
+     *
+     * @return List of variables, e.g., ["?z", "?station"].
+     */
+    public List<String> getVariables()
+    {
+        return variables;
+    }
+
+    /**
+     * Returns the rows of the block. Each row has one term per variable.
+     *
+     * @return List of rows in the order given in the query.
+     */
+    public List<List<String>> getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Returns whether the block binds a single variable, i.e., it is not written as tuple.
+     *
+     * @return <code>true</code> if the block has the form <code>VALUES ?x {...}</code>.
+     */
+    public boolean isSingleVariable()
+    {
+        return variables.size() == 1;
+    }
+
+    /**
+     * Renders a block with the variables of this block and the given rows.
+     *
+     * @param blockRows Rows to render.
+     * @return Block in the form <code>VALUES ?x { a b }</code> or <code>VALUES (?x ?y) { (a b) }</code>.
+     */
+    public String render(Collection<List<String>> blockRows)
+    {
+        StringBuilder builder = new StringBuilder(32 + blockRows.size() * 48);
+        builder.append("VALUES ");
+        if (isSingleVariable()) {
+            builder.append(variables.get(0)).append(" {");
+            for (List<String> row : blockRows) {
+                builder.append(' ').append(row.get(0));
+            }
+        }
+        else {
+            builder.append('(');
+            appendJoined(builder, variables);
+            builder.append(") {");
+            for (List<String> row : blockRows) {
+                builder.append(" (");
+                appendJoined(builder, row);
+                builder.append(')');
+            }
+        }
+        return builder.append(" }").toString();
+    }
+
+    /**
+     * Renders this block with its rows sorted, i.e., blocks with the same rows given in a different
+     * order are rendered equally.
+     *
+     * @return Canonical form of this block.
+     */
+    public String renderCanonical()
+    {
+        List<List<String>> sortedRows = new ArrayList<List<String>>(rows);
+        Collections.sort(sortedRows, ROW_ORDER);
+        return render(sortedRows);
+    }
+
+    private static void appendJoined(StringBuilder builder, List<String> terms)
+    {
+        for (int i = 0; i < terms.size(); i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(terms.get(i));
+        }
+    }
+
+    private static final Comparator<List<String>> ROW_ORDER = new Comparator<List<String>>()
+    {
+        @Override
+        public int compare(List<String> first, List<String> second)
+        {
+            for (int i = 0; i < first.size() && i < second.size(); i++) {
+                int result = first.get(i).compareTo(second.get(i));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return first.size() - second.size();
+        }
+    };
+
+    /**
+     * Locates all VALUES blocks of a query.
+     *
+     * @param query SparQL query.
+     * @return Blocks in the order they occur in the query. Empty if the query contains no block or
+     *         cannot be tokenized.
+     */
+    public static List<ValuesBlock> findAll(String query)
+    {
+        List<ValuesBlock> blocks = new ArrayList<ValuesBlock>();
+        Tokenizer tokenizer = new Tokenizer(query);
+        try {
+            String token;
+            while (null != (token = tokenizer.next())) {
+                if ("VALUES".equalsIgnoreCase(token)) {
+                    blocks.add(parseBlock(tokenizer, tokenizer.tokenStart));
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            return Collections.emptyList();
+        }
+        return blocks;
+    }
+
+    /**
+     * Creates a canonical form of the given query: whitespace outside string literals is collapsed
+     * and the rows of all VALUES blocks are sorted.
+     *
+     * @param query SparQL query.
+     * @return Canonical form of the query.
+     */
+    public static String normalize(String query)
+    {
+        List<ValuesBlock> blocks = findAll(query);
+        StringBuilder builder = new StringBuilder(query.length());
+        int position = 0;
+        for (ValuesBlock block : blocks) {
+            appendCollapsed(builder, query, position, block.start);
+            builder.append(block.renderCanonical());
+            position = block.end;
+        }
+        appendCollapsed(builder, query, position, query.length());
+        return builder.toString().trim();
+    }
+
+    private static void appendCollapsed(StringBuilder builder, String query, int from, int to)
+    {
+        char quote = 0;
+        boolean whitespace = false;
+        for (int i = from; i < to; i++) {
+            char c = query.charAt(i);
+            if (0 == quote && Character.isWhitespace(c)) {
+                whitespace = true;
+                continue;
+            }
+            if (whitespace) {
+                builder.append(' ');
+                whitespace = false;
+            }
+            builder.append(c);
+            if (0 != quote) {
+                if ('\\' == c && i + 1 < to) {
+                    builder.append(query.charAt(++i));
+                }
+                else if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if ('"' == c || '\'' == c) {
+                quote = c;
+            }
+        }
+        if (whitespace) {
+            builder.append(' ');
+        }
+    }
+
+    private static ValuesBlock parseBlock(Tokenizer tokenizer, int start)
+    {
+        List<String> variables = new ArrayList<String>();
+        String token = tokenizer.next();
+        boolean tuple = "(".equals(token);
+        if (tuple) {
+            while (!")".equals(token = tokenizer.next())) {
+                variables.add(requireVariable(token));
+            }
+        }
+        else {
+            variables.add(requireVariable(token));
+        }
+        if (!"{".equals(tokenizer.next())) {
+            throw new IllegalArgumentException("Expected data block.");
+        }
+        List<List<String>> rows = new ArrayList<List<String>>();
+        while (!"}".equals(token = tokenizer.next())) {
+            List<String> row = new ArrayList<String>(variables.size());
+            if (tuple) {
+                if (!"(".equals(token)) {
+                    throw new IllegalArgumentException("Expected tuple.");
+                }
+                while (!")".equals(token = tokenizer.next())) {
+                    row.add(requireTerm(token));
+                }
+            }
+            else {
+                row.add(requireTerm(token));
+            }
+            if (row.size() != variables.size()) {
+                throw new IllegalArgumentException("Tuple size does not match variables.");
+            }
+            rows.add(row);
+        }
+        return new ValuesBlock(start, tokenizer.position, Collections.unmodifiableList(variables),
+                rows);
+    }
+
+    private static String requireVariable(String token)
+    {
+        if (null == token || !(token.startsWith("?") || token.startsWith("$"))) {
+            throw new IllegalArgumentException("Expected variable, found " + token);
+        }
+        return token;
+    }
+
+    private static String requireTerm(String token)
+    {
+        if (null == token || "{".equals(token) || "(".equals(token) || ")".equals(token)) {
+            throw new IllegalArgumentException("Expected term, found " + token);
+        }
+        return token;
+    }
+
+    // splits a query in braces, parentheses, IRIs, literals and words
+    private static class Tokenizer
+    {
+        private final String query;
+        private int position;
+        private int tokenStart;
+
+        private Tokenizer(String query)
+        {
+            this.query = query;
+        }
+
+        private String next()
+        {
+            int length = query.length();
+            while (position < length && Character.isWhitespace(query.charAt(position))) {
+                position++;
+            }
+            if (position >= length) {
+                return null;
+            }
+            tokenStart = position;
+            char c = query.charAt(position);
+            if ('{' == c || '}' == c || '(' == c || ')' == c) {
+                position++;
+                return String.valueOf(c);
+            }
+            if ('<' == c) {
+                int close = query.indexOf('>', position);
+                if (close > 0 && !containsWhitespace(position, close)) {
+                    position = close + 1;
+                    return query.substring(tokenStart, position);
+                }
+            }
+            if ('"' == c || '\'' == c) {
+                position = skipLiteral(position, c);
+            }
+            // words, or the language tag or datatype following a literal
+            while (position < length) {
+                c = query.charAt(position);
+                if (Character.isWhitespace(c) || '{' == c || '}' == c || '(' == c || ')' == c) {
+                    break;
+                }
+                if ('<' == c) {
+                    // datatype IRI, e.g., "1"^^<http://www.w3.org/2001/XMLSchema#int>
+                    int close = query.indexOf('>', position);
+                    position = close > 0 ? close + 1 : length;
+                    continue;
+                }
+                position++;
+            }
+            return query.substring(tokenStart, position);
+        }
+
+        private boolean containsWhitespace(int from, int to)
+        {
+            for (int i = from; i < to; i++) {
+                if (Character.isWhitespace(query.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int skipLiteral(int from, char quote)
+        {
+            for (int i = from + 1; i < query.length(); i++) {
+                char c = query.charAt(i);
+                if ('\\' == c) {
+                    i++;
+                }
+                else if (c == quote) {
+                    return i + 1;
+                }
+            }
+            throw new IllegalArgumentException("Unterminated literal.");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package de.appsist.service.lbd.resilience;
+
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Circuit breaker for the requests to a service the lbd service depends on.
+ * The breaker opens after a number of consecutive failed requests, e.g., timeouts. While it is
+ * open, requests are rejected at once instead of waiting for a service which is not going to
+ * answer in time. After the open time a limited number of probe requests is let through
+ * (half-open): the breaker closes when a probe succeeds and opens again when a probe fails.
+ * The breaker is thread safe, it is shared by all instances of the verticle.
+ */
+public class CircuitBreaker
+{
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * States of a breaker.
+     */
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Failure of a request rejected because the breaker is open.
+     */
+    public static class OpenException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        private OpenException(String name)
+        {
+            super("Circuit breaker of " + name + " is open");
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openTime;
+    private final int probes;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntil;
+    private int probesSent;
+
+    private long opened;
+    private long rejected;
+
+    /**
+     * Creates a breaker.
+     *
+     * @param name Name of the service, used in messages.
+     * @param failureThreshold Number of consecutive failures opening the breaker, 0 to never open
+     *            it.
+     * @param openTime Time in milliseconds the breaker stays open before it lets probes through.
+     * @param probes Number of probe requests let through while half-open.
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openTime, int probes)
+    {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        this.probes = Math.max(1, probes);
+    }
+
+    /**
+     * Creates a breaker configured by the given object.
+     *
+     * @param name Name of the service, used in messages.
+     * @param config Configuration with the optional fields "failureThreshold", "openTime" (ms)
+     *            and "probes".
+     * @return Breaker.
+     */
+    public static CircuitBreaker fromConfiguration(String name, JsonObject config)
+    {
+        return new CircuitBreaker(name, config.getInteger("failureThreshold", 5), config.getLong(
+                "openTime", 10000), config.getInteger("probes", 1));
+    }
+
+    /**
+     * Checks whether a request may be sent. A request allowed must be followed by a call to
+     * {@link #recordSuccess()}, {@link #recordFailure()} or {@link #recordCancelled()}.
+     *
+     * @throws OpenException If the breaker is open or all probes are already in flight.
+     */
+    public synchronized void allowRequest() throws OpenException
+    {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            state = State.HALF_OPEN;
+            probesSent = 0;
+            log.info("[Lernbedarf-Dienst] - circuit breaker of " + name + " half-open, probing");
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && probesSent >= probes)) {
+            rejected++;
+            throw new OpenException(name);
+        }
+        if (state == State.HALF_OPEN) {
+            probesSent++;
+        }
+    }
+
+    /**
+     * Records a request answered by the service.
+     */
+    public synchronized void recordSuccess()
+    {
+        failures = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            log.info("[Lernbedarf-Dienst] - circuit breaker of " + name + " closed");
+        }
+    }
+
+    /**
+     * Records a request the service failed to answer.
+     */
+    public synchronized void recordFailure()
+    {
+        failures++;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && failureThreshold > 0 && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openTime;
+            opened++;
+            log.warn("[Lernbedarf-Dienst] - circuit breaker of " + name + " opened after "
+                    + failures + " failed requests");
+        }
+    }
+
+    /**
+     * Records a request given up by the sender before the service answered it, e.g., at the
+     * deadline of the pipeline run sending it. The request counts neither as success nor as
+     * failure, a probe may be sent again.
+     */
+    public synchronized void recordCancelled()
+    {
+        if (state == State.HALF_OPEN && probesSent > 0) {
+            probesSent--;
+        }
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Returns the statistics of the breaker.
+     *
+     * @return Object with the fields state, failures (consecutive), opened and rejected.
+     */
+    public synchronized JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putString("state", state.name());
+        statistics.putNumber("failures", failures);
+        statistics.putNumber("opened", opened);
+        statistics.putNumber("rejected", rejected);
+        return statistics;
+    }
+}
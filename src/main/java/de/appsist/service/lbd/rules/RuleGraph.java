@@ -0,0 +1,307 @@
+package de.appsist.service.lbd.rules;
+
+import java.util.*;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.impl.DefaultFutureResult;
+
+/**
+ * Executor for a set of adaption rules ("Adaptionsregeln") with declared inputs.
+ * Every rule is dispatched as soon as all of its inputs are available, i.e., independent rules
+ * are evaluated concurrently. Rules registered with the same key are evaluated only once, all of
+ * them receive the result of the first rule registered for that key.
+ *
+ * A graph is meant to be executed once, on the event loop of the verticle which created it.
+ */
+public class RuleGraph
+{
+    /**
+     * A single rule of the graph.
+     */
+    public interface Rule
+    {
+        /**
+         * Evaluates the rule.
+         *
+         * @param inputs Results of the rules declared as inputs, mapped by rule id.
+         * @param resultHandler Handler to call with the result of this rule.
+         */
+        void evaluate(Map<String, Object> inputs, AsyncResultHandler<Object> resultHandler);
+    }
+
+    /**
+     * Receives the durations of the rules evaluated.
+     */
+    public interface Timer
+    {
+        /**
+         * Records the duration of a rule, from its dispatch until its result has been passed.
+         * A rule sharing the key of another rule, or an alias of another rule, is recorded with
+         * the duration of that rule. Known results are not recorded, nor are their aliases.
+         *
+         * @param ruleId Id of the rule.
+         * @param nanos Duration in nanoseconds.
+         * @param result Result of the rule.
+         */
+        void record(String ruleId, long nanos, Object result);
+    }
+
+    private static class Node
+    {
+        private final String id;
+        private final Rule rule;
+        private final List<String> inputs;
+        // id of the node whose result this node receives, null if this node is evaluated itself
+        private final String sameAs;
+        // result added before the execution, see addResult
+        private boolean known;
+        private boolean dispatched;
+        private long duration;
+
+        private Node(String id, Rule rule, List<String> inputs, String sameAs)
+        {
+            this.id = id;
+            this.rule = rule;
+            this.inputs = inputs;
+            this.sameAs = sameAs;
+        }
+    }
+
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+    private final Map<String, String> nodesByKey = new HashMap<String, String>();
+    private final Map<String, Object> results = new HashMap<String, Object>();
+
+    private AsyncResultHandler<Map<String, Object>> completionHandler;
+    private Timer timer;
+    private boolean finished;
+    private boolean dispatching;
+    private boolean redispatch;
+
+    /**
+     * Adds a rule which is evaluated on its own.
+     *
+     * @param id Unique id of the rule, e.g., "3.1.1".
+     * @param rule Rule to evaluate.
+     * @param inputs Ids of the rules whose results are required by this rule.
+     * @return This graph.
+     */
+    public RuleGraph addRule(String id, Rule rule, String... inputs)
+    {
+        return addRule(id, null, rule, inputs);
+    }
+
+    /**
+     * Adds a rule. If a rule with the same key has already been added, the given rule is not
+     * evaluated. Instead, it receives the result of the rule added first.
+     *
+     * @param id Unique id of the rule, e.g., "3.1.1".
+     * @param key Key identifying the evaluation, e.g., the query to send. May be <code>null</code>.
+     * @param rule Rule to evaluate.
+     * @param inputs Ids of the rules whose results are required by this rule.
+     * @return This graph.
+     */
+    public RuleGraph addRule(String id, String key, Rule rule, String... inputs)
+    {
+        if (nodes.containsKey(id)) {
+            throw new IllegalArgumentException("Rule " + id + " has already been added.");
+        }
+        String sameAs = null;
+        if (null != key) {
+            sameAs = nodesByKey.get(key);
+            if (null == sameAs) {
+                nodesByKey.put(key, id);
+            }
+        }
+        List<String> inputList;
+        if (null != sameAs) {
+            // identical rule, wait for the rule evaluating the key instead of own inputs
+            inputList = Collections.singletonList(sameAs);
+        }
+        else {
+            inputList = Arrays.asList(inputs);
+        }
+        nodes.put(id, new Node(id, rule, inputList, sameAs));
+        return this;
+    }
+
+    /**
+     * Adds a rule which receives the result of another rule, e.g., a rule of the documentation
+     * which is answered by the same query as another rule.
+     *
+     * @param id Unique id of the rule, e.g., "1.2".
+     * @param ruleId Id of the rule whose result is received.
+     * @return This graph.
+     */
+    public RuleGraph addAlias(String id, String ruleId)
+    {
+        if (nodes.containsKey(id)) {
+            throw new IllegalArgumentException("Rule " + id + " has already been added.");
+        }
+        nodes.put(id, new Node(id, null, Collections.singletonList(ruleId), ruleId));
+        return this;
+    }
+
+    /**
+     * Adds the known result of a rule, e.g., of a rule whose inputs did not change since it has
+     * been evaluated last. The rules depending on it are evaluated without waiting for it.
+     *
+     * @param id Unique id of the rule, e.g., "3.1.1".
+     * @param result Result of the rule.
+     * @return This graph.
+     */
+    public RuleGraph addResult(String id, Object result)
+    {
+        if (nodes.containsKey(id)) {
+            throw new IllegalArgumentException("Rule " + id + " has already been added.");
+        }
+        Node node = new Node(id, null, Collections.<String> emptyList(), null);
+        node.known = true;
+        node.dispatched = true;
+        nodes.put(id, node);
+        results.put(id, result);
+        return this;
+    }
+
+    /**
+     * Sets the timer receiving the durations of the rules.
+     *
+     * @param timer Timer or <code>null</code> if the rules are not timed.
+     * @return This graph.
+     */
+    public RuleGraph setTimer(Timer timer)
+    {
+        this.timer = timer;
+        return this;
+    }
+
+    /**
+     * Executes the graph.
+     *
+     * @param completionHandler Handler called with the results of all rules, mapped by rule id,
+     *            or with the failure of the first rule failing.
+     */
+    public void execute(AsyncResultHandler<Map<String, Object>> completionHandler)
+    {
+        this.completionHandler = completionHandler;
+        for (Node node : nodes.values()) {
+            for (String input : node.inputs) {
+                if (!nodes.containsKey(input)) {
+                    fail(new IllegalStateException("Rule " + node.id + " requires unknown rule "
+                            + input));
+                    return;
+                }
+            }
+        }
+        dispatchReady();
+    }
+
+    private void dispatchReady()
+    {
+        if (dispatching) {
+            // called from a rule completing synchronously, the running loop picks up new work
+            redispatch = true;
+            return;
+        }
+        dispatching = true;
+        do {
+            redispatch = false;
+            for (Node node : nodes.values()) {
+                if (finished) {
+                    break;
+                }
+                if (!node.dispatched && isReady(node)) {
+                    node.dispatched = true;
+                    evaluate(node);
+                }
+            }
+        }
+        while (redispatch && !finished);
+        dispatching = false;
+
+        if (finished) {
+            return;
+        }
+        if (results.size() == nodes.size()) {
+            finished = true;
+            completionHandler.handle(new DefaultFutureResult<Map<String, Object>>(results));
+        }
+        else if (!hasPendingRule()) {
+            fail(new IllegalStateException("Rule graph contains a cycle: " + nodes.keySet()));
+        }
+    }
+
+    private boolean isReady(Node node)
+    {
+        for (String input : node.inputs) {
+            if (!results.containsKey(input)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasPendingRule()
+    {
+        for (Node node : nodes.values()) {
+            if (node.dispatched && !results.containsKey(node.id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evaluate(final Node node)
+    {
+        if (null != node.sameAs) {
+            results.put(node.id, results.get(node.sameAs));
+            node.known = nodes.get(node.sameAs).known;
+            if (null != timer && !node.known) {
+                timer.record(node.id, nodes.get(node.sameAs).duration, results.get(node.id));
+            }
+            // rules added before this one may depend on it
+            redispatch = true;
+            return;
+        }
+        Map<String, Object> inputs = new HashMap<String, Object>();
+        for (String input : node.inputs) {
+            inputs.put(input, results.get(input));
+        }
+        final long dispatchTime = null != timer ? System.nanoTime() : 0;
+        AsyncResultHandler<Object> resultHandler = new AsyncResultHandler<Object>()
+        {
+            @Override
+            public void handle(AsyncResult<Object> result)
+            {
+                if (finished) {
+                    return;
+                }
+                if (result.failed()) {
+                    fail(result.cause());
+                    return;
+                }
+                if (null != timer) {
+                    node.duration = System.nanoTime() - dispatchTime;
+                    timer.record(node.id, node.duration, result.result());
+                }
+                results.put(node.id, result.result());
+                dispatchReady();
+            }
+        };
+        try {
+            node.rule.evaluate(inputs, resultHandler);
+        }
+        catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable cause)
+    {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        completionHandler.handle(new DefaultFutureResult<Map<String, Object>>(cause));
+    }
+}
@@ -0,0 +1,316 @@
+package de.appsist.service.lbd.session;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import de.appsist.service.iid.server.model.ServiceItem;
+
+import de.appsist.service.measuresservice.model.LocalState;
+import de.appsist.service.usermodel.model.EmployeeDevelopmentGoals;
+
+/**
+ * State the service keeps for a single user session.
+ * Contexts are created and evicted by the {@link SessionRegistry}.
+ */
+public class SessionContext
+{
+    private final String sessionId;
+    private String userId;
+
+    // information about the user, see processUserInformation
+    private String currentPosition;
+    private Set<String> workplaceGroups;
+    private Set<String> developmentGoals;
+    // storage object for Nebenzeit
+    private EmployeeDevelopmentGoals developmentGoalsObject;
+    private boolean inNebenzeit;
+
+    // results of the rules for the main activity
+    private Set<String> stations;
+    private Set<String> states;
+    private Set<LocalState> localStates;
+
+    // items to search learning contents for in Nebenzeit
+    private LinkedHashMap<String, String> sideContents;
+
+    // generation of the newest pipeline run, runs of older generations are abandoned
+    private int generation;
+    // generation of the newest run counted as abandoned
+    private int abandonedGeneration;
+    // System.nanoTime() of the event triggering the newest run
+    private long triggerTime;
+    // timer of the debounce time of the last activity switch, -1 if there is none
+    private long activitySwitchTimer = -1;
+    // whether an activity switch within the debounce time is waiting for its run
+    private boolean activitySwitchPending;
+    // timer of the deadline of the newest run, -1 if there is none
+    private long deadlineTimer = -1;
+    // System.nanoTime() of the deadline of the newest run, 0 if there is none
+    private long deadline;
+
+    // service items published last for the main and the side activity, published again if a run
+    // fails, or in the meantime if it misses its deadline
+    private List<ServiceItem> lastMainItems;
+    private List<ServiceItem> lastSideItems;
+    // items sent to the IID last, null if unknown
+    private List<ServiceItem> publishedItems;
+
+    // maintained by the registry
+    long lastAccess;
+    long expiryTick;
+    private boolean evicted;
+
+    SessionContext(String sessionId)
+    {
+        this.sessionId = sessionId;
+    }
+
+    public String getSessionId()
+    {
+        return sessionId;
+    }
+
+    public String getUserId()
+    {
+        return userId;
+    }
+
+    public void setUserId(String userId)
+    {
+        this.userId = userId;
+    }
+
+    public String getCurrentPosition()
+    {
+        return currentPosition;
+    }
+
+    public void setCurrentPosition(String currentPosition)
+    {
+        this.currentPosition = currentPosition;
+    }
+
+    public Set<String> getWorkplaceGroups()
+    {
+        return workplaceGroups;
+    }
+
+    public void setWorkplaceGroups(Set<String> workplaceGroups)
+    {
+        this.workplaceGroups = workplaceGroups;
+    }
+
+    public Set<String> getDevelopmentGoals()
+    {
+        return developmentGoals;
+    }
+
+    public void setDevelopmentGoals(Set<String> developmentGoals)
+    {
+        this.developmentGoals = developmentGoals;
+    }
+
+    public EmployeeDevelopmentGoals getDevelopmentGoalsObject()
+    {
+        return developmentGoalsObject;
+    }
+
+    public void setDevelopmentGoalsObject(EmployeeDevelopmentGoals developmentGoalsObject)
+    {
+        this.developmentGoalsObject = developmentGoalsObject;
+    }
+
+    public boolean isInNebenzeit()
+    {
+        return inNebenzeit;
+    }
+
+    public void setInNebenzeit(boolean inNebenzeit)
+    {
+        this.inNebenzeit = inNebenzeit;
+    }
+
+    public Set<String> getStations()
+    {
+        return stations;
+    }
+
+    public void setStations(Set<String> stations)
+    {
+        this.stations = stations;
+    }
+
+    public Set<String> getStates()
+    {
+        return states;
+    }
+
+    public void setStates(Set<String> states)
+    {
+        this.states = states;
+    }
+
+    public Set<LocalState> getLocalStates()
+    {
+        return localStates;
+    }
+
+    public void setLocalStates(Set<LocalState> localStates)
+    {
+        this.localStates = localStates;
+    }
+
+    public LinkedHashMap<String, String> getSideContents()
+    {
+        return sideContents;
+    }
+
+    public void setSideContents(LinkedHashMap<String, String> sideContents)
+    {
+        this.sideContents = sideContents;
+    }
+
+    /**
+     * Starts a new pipeline run, superseding all runs started before.
+     *
+     * @return Generation of the new run.
+     */
+    public int nextGeneration()
+    {
+        return ++generation;
+    }
+
+    /**
+     * Returns whether a pipeline run is still the newest run of the session.
+     * Superseded runs must neither send further queries nor publish their results.
+     *
+     * @param generation Generation of the run.
+     * @return <code>true</code> if the run has not been superseded and the session has not been
+     *         evicted.
+     */
+    public boolean isCurrent(int generation)
+    {
+        return !evicted && this.generation == generation;
+    }
+
+    /**
+     * Marks a run as abandoned.
+     *
+     * @param generation Generation of the run.
+     * @return <code>true</code> if the run has not been marked before, i.e., it is counted for
+     *         the first time.
+     */
+    public boolean markAbandoned(int generation)
+    {
+        if (generation <= abandonedGeneration) {
+            return false;
+        }
+        abandonedGeneration = generation;
+        return true;
+    }
+
+    public long getTriggerTime()
+    {
+        return triggerTime;
+    }
+
+    public void setTriggerTime(long triggerTime)
+    {
+        this.triggerTime = triggerTime;
+    }
+
+    public long getActivitySwitchTimer()
+    {
+        return activitySwitchTimer;
+    }
+
+    public void setActivitySwitchTimer(long activitySwitchTimer)
+    {
+        this.activitySwitchTimer = activitySwitchTimer;
+    }
+
+    public boolean isActivitySwitchPending()
+    {
+        return activitySwitchPending;
+    }
+
+    public void setActivitySwitchPending(boolean activitySwitchPending)
+    {
+        this.activitySwitchPending = activitySwitchPending;
+    }
+
+    public long getDeadlineTimer()
+    {
+        return deadlineTimer;
+    }
+
+    public void setDeadlineTimer(long deadlineTimer)
+    {
+        this.deadlineTimer = deadlineTimer;
+    }
+
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline)
+    {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the service items published last for an activity.
+     *
+     * @param side <code>true</code> for the side activity ("Nebenzeit").
+     * @return Service items or <code>null</code> if no items have been published for the
+     *         activity yet.
+     */
+    public List<ServiceItem> getLastItems(boolean side)
+    {
+        return side ? lastSideItems : lastMainItems;
+    }
+
+    public void setLastItems(boolean side, List<ServiceItem> items)
+    {
+        if (side) {
+            lastSideItems = items;
+        }
+        else {
+            lastMainItems = items;
+        }
+    }
+
+    /**
+     * Returns the service items the IID shows for the session, i.e., the items sent last.
+     *
+     * @return Service items or <code>null</code> if the items shown are not known, e.g., because
+     *         publishing failed.
+     */
+    public List<ServiceItem> getPublishedItems()
+    {
+        return publishedItems;
+    }
+
+    public void setPublishedItems(List<ServiceItem> publishedItems)
+    {
+        this.publishedItems = publishedItems;
+    }
+
+    /**
+     * Returns whether the context has been removed from the registry.
+     * Pipelines still running for an evicted session must not publish their results.
+     *
+     * @return <code>true</code> if the session has been evicted.
+     */
+    public boolean isEvicted()
+    {
+        return evicted;
+    }
+
+    void setEvicted()
+    {
+        this.evicted = true;
+    }
+}
@@ -0,0 +1,245 @@
+package de.appsist.service.lbd.session;
+
+import java.util.*;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Registry for the contexts of all sessions handled by the service.
+ * Contexts are evicted when the user goes offline, when the session has been idle for the
+ * configured time, or, if the registry is full, in least recently used order.
+ * Idle sessions are detected with a timer wheel: the idle timeout is divided into a fixed number of
+ * ticks and every session is kept in the bucket of the tick it expires in. A tick only inspects the
+ * sessions of a single bucket. Sessions accessed in the meantime are moved to a later bucket.
+ */
+public class SessionRegistry
+{
+    private final Vertx vertx;
+    private final int maxSessions;
+    private final long tickInterval;
+    private final int timeoutTicks;
+
+    private final LinkedHashMap<String, SessionContext> sessions;
+    private final List<List<SessionContext>> wheel;
+    private long currentTick;
+    private long timerId = -1;
+
+    private Handler<SessionContext> evictionHandler;
+    private long evictedIdle;
+    private long evictedOverflow;
+    private long evictedOffline;
+    private long handedOver;
+
+    /**
+     * Creates a registry.
+     *
+     * @param vertx Vert.x instance to run the timer wheel with.
+     * @param config Configuration with the optional fields "maxSessions", "idleTimeout" (ms) and
+     *            "wheelTicks".
+     */
+    public SessionRegistry(Vertx vertx, JsonObject config)
+    {
+        this.vertx = vertx;
+        this.maxSessions = config.getInteger("maxSessions", 10000);
+        long idleTimeout = config.getLong("idleTimeout", 43200000);
+        this.timeoutTicks = Math.max(1, config.getInteger("wheelTicks", 60));
+        this.tickInterval = Math.max(1, idleTimeout / timeoutTicks);
+        this.wheel = new ArrayList<List<SessionContext>>(timeoutTicks + 1);
+        for (int i = 0; i <= timeoutTicks; i++) {
+            wheel.add(new ArrayList<SessionContext>());
+        }
+        this.sessions = new LinkedHashMap<String, SessionContext>(64, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SessionContext> eldest)
+            {
+                if (size() > maxSessions) {
+                    evictedOverflow++;
+                    evicted(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Sets the handler called for every context evicted.
+     *
+     * @param evictionHandler Handler for evicted contexts.
+     */
+    public void setEvictionHandler(Handler<SessionContext> evictionHandler)
+    {
+        this.evictionHandler = evictionHandler;
+    }
+
+    /**
+     * Starts the timer wheel.
+     */
+    public void start()
+    {
+        timerId = vertx.setPeriodic(tickInterval, new Handler<Long>()
+        {
+            @Override
+            public void handle(Long event)
+            {
+                tick();
+            }
+        });
+    }
+
+    /**
+     * Stops the timer wheel.
+     */
+    public void stop()
+    {
+        if (timerId >= 0) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+    }
+
+    /**
+     * Returns the context of a session.
+     *
+     * @param sessionId Session id.
+     * @return Context or <code>null</code> if the session is unknown.
+     */
+    public SessionContext get(String sessionId)
+    {
+        SessionContext context = sessions.get(sessionId);
+        if (null != context) {
+            context.lastAccess = currentTick;
+        }
+        return context;
+    }
+
+    /**
+     * Returns the context of a session, creating it if the session is unknown.
+     *
+     * @param sessionId Session id.
+     * @return Context of the session.
+     */
+    public SessionContext getOrCreate(String sessionId)
+    {
+        SessionContext context = get(sessionId);
+        if (null == context) {
+            context = new SessionContext(sessionId);
+            context.lastAccess = currentTick;
+            schedule(context, currentTick + timeoutTicks);
+            sessions.put(sessionId, context);
+        }
+        return context;
+    }
+
+    /**
+     * Removes the context of a session, e.g., because the user has gone offline.
+     *
+     * @param sessionId Session id.
+     * @return Removed context or <code>null</code> if the session is unknown.
+     */
+    public SessionContext remove(String sessionId)
+    {
+        SessionContext context = sessions.remove(sessionId);
+        if (null != context) {
+            evictedOffline++;
+            evicted(context);
+        }
+        return context;
+    }
+
+    /**
+     * Removes the context of a session handed over to another node of the cluster.
+     *
+     * @param sessionId Session id.
+     * @return Removed context or <code>null</code> if the session is unknown.
+     */
+    public SessionContext handOver(String sessionId)
+    {
+        SessionContext context = sessions.remove(sessionId);
+        if (null != context) {
+            handedOver++;
+            evicted(context);
+        }
+        return context;
+    }
+
+    /**
+     * Returns the contexts of all sessions.
+     *
+     * @return Copy of the contexts.
+     */
+    public List<SessionContext> getSessions()
+    {
+        return new ArrayList<SessionContext>(sessions.values());
+    }
+
+    /**
+     * Returns the number of sessions.
+     *
+     * @return Number of contexts in the registry.
+     */
+    public int size()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the statistics of the registry.
+     *
+     * @return Object with the fields size, maxSessions, evictedIdle, evictedOverflow,
+     *         evictedOffline and handedOver.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("size", sessions.size());
+        statistics.putNumber("maxSessions", maxSessions);
+        statistics.putNumber("evictedIdle", evictedIdle);
+        statistics.putNumber("evictedOverflow", evictedOverflow);
+        statistics.putNumber("evictedOffline", evictedOffline);
+        statistics.putNumber("handedOver", handedOver);
+        return statistics;
+    }
+
+    private void schedule(SessionContext context, long expiryTick)
+    {
+        context.expiryTick = expiryTick;
+        wheel.get((int) (expiryTick % wheel.size())).add(context);
+    }
+
+    // advances the wheel by one tick and evicts the sessions expiring
+    private void tick()
+    {
+        currentTick++;
+        int bucket = (int) (currentTick % wheel.size());
+        List<SessionContext> expiring = wheel.get(bucket);
+        wheel.set(bucket, new ArrayList<SessionContext>());
+        for (SessionContext context : expiring) {
+            if (context.isEvicted()) {
+                continue;
+            }
+            long expiryTick = context.lastAccess + timeoutTicks;
+            if (expiryTick <= currentTick) {
+                sessions.remove(context.getSessionId());
+                evictedIdle++;
+                evicted(context);
+            }
+            else {
+                schedule(context, expiryTick);
+            }
+        }
+    }
+
+    private void evicted(SessionContext context)
+    {
+        context.setEvicted();
+        if (null != evictionHandler) {
+            evictionHandler.handle(context);
+        }
+    }
+}
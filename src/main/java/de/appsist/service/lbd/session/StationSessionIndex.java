@@ -0,0 +1,93 @@
+package de.appsist.service.lbd.session;
+
+import java.util.*;
+
+/**
+ * Reverse index from stations to the sessions whose workplace groups contain them, i.e., the
+ * sessions to update when the state of a station changes.
+ * Sessions are identified by their ids, the index is shared by all instances of the verticle.
+ */
+public class StationSessionIndex
+{
+    private final Map<String, Set<String>> sessionsByStation = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> stationsBySession = new HashMap<String, Set<String>>();
+
+    /**
+     * Sets the stations of a session, replacing the stations set before.
+     *
+     * @param sessionId Id of the session.
+     * @param stations IRIs of the stations.
+     */
+    public synchronized void update(String sessionId, Set<String> stations)
+    {
+        Set<String> oldStations = stationsBySession.get(sessionId);
+        if (null != oldStations) {
+            for (String station : oldStations) {
+                if (!stations.contains(station)) {
+                    removeSession(station, sessionId);
+                }
+            }
+        }
+        Set<String> newStations = new HashSet<String>(stations);
+        for (String station : newStations) {
+            Set<String> sessions = sessionsByStation.get(station);
+            if (null == sessions) {
+                sessions = new HashSet<String>();
+                sessionsByStation.put(station, sessions);
+            }
+            sessions.add(sessionId);
+        }
+        stationsBySession.put(sessionId, newStations);
+    }
+
+    /**
+     * Removes a session from the index.
+     *
+     * @param sessionId Id of the session, e.g., of an evicted session.
+     */
+    public synchronized void remove(String sessionId)
+    {
+        Set<String> stations = stationsBySession.remove(sessionId);
+        if (null != stations) {
+            for (String station : stations) {
+                removeSession(station, sessionId);
+            }
+        }
+    }
+
+    /**
+     * Returns the sessions with the given station.
+     *
+     * @param station IRI of the station.
+     * @return Copy of the session ids, empty if no session has the station.
+     */
+    public synchronized List<String> getSessions(String station)
+    {
+        Set<String> sessions = sessionsByStation.get(station);
+        if (null == sessions) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(sessions);
+    }
+
+    /**
+     * Returns the number of stations in the index.
+     *
+     * @return Number of stations with at least one session.
+     */
+    public synchronized int size()
+    {
+        return sessionsByStation.size();
+    }
+
+    private void removeSession(String station, String sessionId)
+    {
+        Set<String> sessions = sessionsByStation.get(station);
+        if (null != sessions) {
+            sessions.remove(sessionId);
+            if (sessions.isEmpty()) {
+                sessionsByStation.remove(station);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package de.appsist.service.lbd.session;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Current states of the machines of the plant, e.g., <code>app:LoctiteLeer</code>, by station, as
+ * reported by machine state events. The table is shared by all sessions and all instances of the
+ * verticle, reads do not block.
+ */
+public class StationStateTable
+{
+    // states by machine id by station, the maps stored are never modified
+    private final Map<String, Map<String, String>> statesByStation =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * Sets the state of a machine of a station.
+     *
+     * @param station IRI of the station.
+     * @param machine Id of the machine, empty if the state is reported for the station as a whole.
+     * @param state IRI of the current state, <code>null</code> if the machine has no special state.
+     * @return <code>true</code> if the state differs from the state known before.
+     */
+    public synchronized boolean setState(String station, String machine, String state)
+    {
+        updates.incrementAndGet();
+        Map<String, String> oldStates = statesByStation.get(station);
+        String oldState = null != oldStates ? oldStates.get(machine) : null;
+        if (null == oldState ? null == state : oldState.equals(state)) {
+            return false;
+        }
+        Map<String, String> states = null != oldStates ? new HashMap<String, String>(oldStates)
+                : new HashMap<String, String>();
+        if (null == state) {
+            states.remove(machine);
+        }
+        else {
+            states.put(machine, state);
+        }
+        if (states.isEmpty()) {
+            statesByStation.remove(station);
+        }
+        else {
+            statesByStation.put(station, Collections.unmodifiableMap(states));
+        }
+        changes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the current states of the machines of the given stations.
+     *
+     * @param stations IRIs of the stations.
+     * @return IRIs of the states, empty if no machine has a special state.
+     */
+    public Set<String> getStates(Collection<String> stations)
+    {
+        Set<String> result = new HashSet<String>();
+        for (String station : stations) {
+            Map<String, String> states = statesByStation.get(station);
+            if (null != states) {
+                result.addAll(states.values());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the statistics of the table.
+     *
+     * @return Object with the fields stations, updates and changes.
+     */
+    public JsonObject getStatistics()
+    {
+        JsonObject statistics = new JsonObject();
+        statistics.putNumber("stations", statesByStation.size());
+        statistics.putNumber("updates", updates.get());
+        statistics.putNumber("changes", changes.get());
+        return statistics;
+    }
+}
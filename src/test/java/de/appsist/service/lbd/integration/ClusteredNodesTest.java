@@ -0,0 +1,199 @@
+package de.appsist.service.lbd.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+import de.appsist.service.lbd.LBDMainVerticle;
+import de.appsist.service.lbd.addresses.Addresses;
+
+/**
+ * Two nodes of a cluster running in the same JVM, each with its own platform manager and an
+ * instance of the service. The nodes are joined over TCP on the loopback interface, see
+ * cluster.xml in the test resources.
+ */
+public class ClusteredNodesTest
+{
+    private static final int SESSIONS = 100;
+    private static final long TIMEOUT = 30000;
+
+    private PlatformManager first;
+    private PlatformManager second;
+    private int firstPort;
+    private int secondPort;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        firstPort = freePort();
+        secondPort = freePort();
+        first = startNode(firstPort);
+        second = startNode(secondPort);
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (PlatformManager platform : new PlatformManager[] { first, second }) {
+            if (null != platform) {
+                platform.stop();
+            }
+        }
+    }
+
+    @Test
+    public void nodesHaveTheirOwnState() throws Exception
+    {
+        JsonObject firstCluster = awaitNodes(firstPort, 2);
+        JsonObject secondCluster = awaitNodes(secondPort, 2);
+        assertNotEquals(firstCluster.getString("nodeId"), secondCluster.getString("nodeId"));
+    }
+
+    @Test
+    public void everySessionIsHandledByOneNode() throws Exception
+    {
+        awaitNodes(firstPort, 2);
+        awaitNodes(secondPort, 2);
+        publishUsersOnline();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        int firstSessions;
+        int secondSessions;
+        do {
+            Thread.sleep(100);
+            firstSessions = sessions(firstPort);
+            secondSessions = sessions(secondPort);
+        } while (firstSessions + secondSessions < SESSIONS
+                && System.currentTimeMillis() < deadline);
+        assertEquals(SESSIONS, firstSessions + secondSessions);
+        assertTrue(firstSessions > 0 && secondSessions > 0);
+    }
+
+    @Test
+    public void sessionsAreHandedOverWhenANodeLeaves() throws Exception
+    {
+        awaitNodes(firstPort, 2);
+        awaitNodes(secondPort, 2);
+        publishUsersOnline();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (sessions(firstPort) + sessions(secondPort) < SESSIONS
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        final CountDownLatch undeployed = new CountDownLatch(1);
+        second.undeployAll(new Handler<AsyncResult<Void>>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> result)
+            {
+                undeployed.countDown();
+            }
+        });
+        assertTrue(undeployed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // the node of the second platform stays in the cluster, but the service has left it
+        awaitNodes(firstPort, 1);
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (sessions(firstPort) < SESSIONS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(SESSIONS, sessions(firstPort));
+    }
+
+    private static PlatformManager startNode(int port) throws Exception
+    {
+        PlatformManager platform = PlatformLocator.factory.createPlatformManager(0, "127.0.0.1");
+        JsonObject config = new JsonObject();
+        config.putObject("webserver", new JsonObject().putNumber("port", port)
+                .putString("basePath", "/services/lbd").putString("statics", "www"));
+        config.putObject("cluster", new JsonObject().putNumber("membershipCheckInterval", 200));
+        config.putObject("topology", new JsonObject().putBoolean("enabled", false));
+        URL[] classpath = { LBDMainVerticle.class.getProtectionDomain().getCodeSource()
+                .getLocation() };
+        final CountDownLatch deployed = new CountDownLatch(1);
+        final AsyncResult<?>[] deployment = new AsyncResult<?>[1];
+        platform.deployVerticle(LBDMainVerticle.class.getName(), config, classpath, 1, null,
+                new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> result)
+                    {
+                        deployment[0] = result;
+                        deployed.countDown();
+                    }
+                });
+        assertTrue(deployed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        if (deployment[0].failed()) {
+            throw new Exception("Deployment failed", deployment[0].cause());
+        }
+        return platform;
+    }
+
+    // users online events are published to all nodes
+    private void publishUsersOnline()
+    {
+        for (int i = 0; i < SESSIONS; i++) {
+            String sessionId = "session-" + i;
+            first.vertx().eventBus().publish(Addresses.USER_ONLINE, new JsonObject()
+                    .putString("id", UUID.randomUUID().toString())
+                    .putString("modelId", "userOnline").putString("session", sessionId)
+                    .putObject("payload", new JsonObject().putString("userId", "user-" + i)
+                            .putString("deviceId", "test")));
+        }
+    }
+
+    // waits until a node sees the members of the cluster and returns its cluster statistics
+    private static JsonObject awaitNodes(int port, int nodes) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        JsonObject cluster = statistics(port).getObject("cluster");
+        while (cluster.getInteger("nodes") != nodes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            cluster = statistics(port).getObject("cluster");
+        }
+        assertEquals(nodes, (int) cluster.getInteger("nodes"));
+        return cluster;
+    }
+
+    private static int sessions(int port) throws IOException
+    {
+        return statistics(port).getObject("sessions").getInteger("size");
+    }
+
+    private static JsonObject statistics(int port) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port
+                + "/services/lbd/cache/statistics").openConnection();
+        try (InputStream in = connection.getInputStream();
+                Scanner scanner = new Scanner(in, "UTF-8")) {
+            return new JsonObject(scanner.useDelimiter("\\A").next());
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
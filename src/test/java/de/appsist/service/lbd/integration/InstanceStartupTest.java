@@ -0,0 +1,88 @@
+package de.appsist.service.lbd.integration;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+import de.appsist.service.lbd.LBDMainVerticle;
+
+/**
+ * Deployment of several instances of the service on a single Vert.x instance.
+ */
+public class InstanceStartupTest
+{
+    private static final long TIMEOUT = 30000;
+
+    private PlatformManager platform;
+
+    @Before
+    public void setUp()
+    {
+        platform = PlatformLocator.factory.createPlatformManager();
+    }
+
+    @After
+    public void tearDown()
+    {
+        platform.stop();
+    }
+
+    @Test
+    public void startsConfiguredInstances() throws Exception
+    {
+        assertTrue(deploy(2, 2).succeeded());
+    }
+
+    @Test
+    public void failsIfMoreInstancesAreStartedThanConfigured() throws Exception
+    {
+        assertFalse(deploy(1, 2).succeeded());
+    }
+
+    private AsyncResult<String> deploy(int configured, int started) throws Exception
+    {
+        JsonObject config = new JsonObject().putNumber("instances", configured);
+        config.putObject("webserver", new JsonObject().putNumber("port", freePort())
+                .putString("basePath", "/services/lbd").putString("statics", "www"));
+        config.putObject("topology", new JsonObject().putBoolean("enabled", false));
+        URL[] classpath = { LBDMainVerticle.class.getProtectionDomain().getCodeSource()
+                .getLocation() };
+        final CountDownLatch deployed = new CountDownLatch(1);
+        final AtomicReference<AsyncResult<String>> deployment;
+        deployment = new AtomicReference<AsyncResult<String>>();
+        platform.deployVerticle(LBDMainVerticle.class.getName(), config, classpath, started,
+                null, new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> result)
+                    {
+                        deployment.set(result);
+                        deployed.countDown();
+                    }
+                });
+        assertTrue(deployed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        return deployment.get();
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package de.appsist.service.lbd.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+import de.appsist.commons.event.MachineStateChangedEvent;
+import de.appsist.service.lbd.LBDMainVerticle;
+import de.appsist.service.lbd.addresses.Addresses;
+
+/**
+ * Machine state events as published by the platform, built with the event classes of the platform.
+ */
+public class MachineStateEventTest
+{
+    private static final long TIMEOUT = 30000;
+
+    private PlatformManager platform;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        platform = PlatformLocator.factory.createPlatformManager();
+        port = freePort();
+        JsonObject config = new JsonObject();
+        config.putObject("webserver", new JsonObject().putNumber("port", port)
+                .putString("basePath", "/services/lbd").putString("statics", "www"));
+        config.putObject("topology", new JsonObject().putBoolean("enabled", false));
+        URL[] classpath = { LBDMainVerticle.class.getProtectionDomain().getCodeSource()
+                .getLocation() };
+        final CountDownLatch deployed = new CountDownLatch(1);
+        final AtomicReference<AsyncResult<String>> deployment;
+        deployment = new AtomicReference<AsyncResult<String>>();
+        platform.deployVerticle(LBDMainVerticle.class.getName(), config, classpath, 1, null,
+                new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> result)
+                    {
+                        deployment.set(result);
+                        deployed.countDown();
+                    }
+                });
+        assertTrue(deployed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(deployment.get().succeeded());
+        // the web server is started after the deployment has completed
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                statistics();
+                break;
+            }
+            catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        platform.stop();
+    }
+
+    @Test
+    public void recordsStatesOfMachines() throws Exception
+    {
+        publish("M1", "app:S20", "app:LoctiteLeer");
+        JsonObject states = awaitUpdates(1);
+        assertEquals(1, (int) states.getInteger("stations"));
+        assertEquals(1, (int) states.getInteger("changes"));
+
+        // the same state again and the state of another machine of the station
+        publish("M1", "app:S20", "app:LoctiteLeer");
+        publish("M2", "app:S20", "app:Stoerung");
+        states = awaitUpdates(3);
+        assertEquals(1, (int) states.getInteger("stations"));
+        assertEquals(2, (int) states.getInteger("changes"));
+
+        // machines back to normal operation
+        publish("M1", "app:S20", "");
+        publish("M2", "app:S20", "");
+        states = awaitUpdates(5);
+        assertEquals(0, (int) states.getInteger("stations"));
+        assertEquals(4, (int) states.getInteger("changes"));
+    }
+
+    @Test
+    public void ignoresEventsOfOtherModels() throws Exception
+    {
+        JsonObject event = machineStateEvent("M1", "app:S20", "app:LoctiteLeer");
+        event.putString("modelId", "userOnline");
+        platform.vertx().eventBus().publish(Addresses.MACHINE_STATE_CHANGED, event);
+        publish("M1", "app:S21", "app:LoctiteLeer");
+        JsonObject states = awaitUpdates(1);
+        assertEquals(1, (int) states.getInteger("changes"));
+    }
+
+    private void publish(String machineId, String stationId, String machineState)
+    {
+        platform.vertx().eventBus().publish(Addresses.MACHINE_STATE_CHANGED,
+                machineStateEvent(machineId, stationId, machineState));
+    }
+
+    private static JsonObject machineStateEvent(String machineId, String stationId,
+            String machineState)
+    {
+        MachineStateChangedEvent event = new MachineStateChangedEvent(UUID.randomUUID()
+                .toString(), "session-1", machineId, stationId, "info", machineState, null);
+        // the fields of the event as sent over the event bus by the platform
+        JsonObject body = new JsonObject().putString("id", event.getId())
+                .putString("modelId", event.getModelId())
+                .putString("session", event.getSessionId());
+        body.putObject("payload", new JsonObject(event.getPayload()));
+        return body;
+    }
+
+    // waits until the service has received the given number of machine states
+    private JsonObject awaitUpdates(int updates) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        JsonObject states = statistics().getObject("stationStates");
+        while (states.getLong("updates") < updates && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            states = statistics().getObject("stationStates");
+        }
+        assertEquals(updates, (long) states.getLong("updates"));
+        return states;
+    }
+
+    private JsonObject statistics() throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port
+                + "/services/lbd/cache/statistics").openConnection();
+        try (InputStream in = connection.getInputStream();
+                Scanner scanner = new Scanner(in, "UTF-8")) {
+            return new JsonObject(scanner.useDelimiter("\\A").next());
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
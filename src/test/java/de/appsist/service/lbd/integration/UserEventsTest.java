@@ -0,0 +1,191 @@
+package de.appsist.service.lbd.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+import de.appsist.commons.event.UserOfflineEvent;
+import de.appsist.commons.event.UserOnlineEvent;
+import de.appsist.service.lbd.LBDMainVerticle;
+import de.appsist.service.lbd.addresses.Addresses;
+
+/**
+ * User events as published by the platform, built with the event classes of the platform.
+ */
+public class UserEventsTest
+{
+    private static final long TIMEOUT = 30000;
+    private static final long DEBOUNCE_TIME = 5000;
+
+    private PlatformManager platform;
+    private int port;
+    // requests of the service for user information
+    private final BlockingQueue<JsonObject> userInformationRequests =
+            new LinkedBlockingQueue<JsonObject>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        platform = PlatformLocator.factory.createPlatformManager();
+        port = freePort();
+        JsonObject config = new JsonObject();
+        config.putObject("webserver", new JsonObject().putNumber("port", port)
+                .putString("basePath", "/services/lbd").putString("statics", "www"));
+        config.putObject("topology", new JsonObject().putBoolean("enabled", false));
+        config.putObject("activitySwitch", new JsonObject().putNumber("debounceTime",
+                DEBOUNCE_TIME));
+        // the user model is not deployed, its requests fail at once
+        platform.vertx().eventBus().registerHandler(Addresses.USER_GET_INFORMATION,
+                new Handler<Message<JsonObject>>()
+                {
+                    @Override
+                    public void handle(Message<JsonObject> request)
+                    {
+                        userInformationRequests.add(request.body());
+                        request.fail(404, "no user model");
+                    }
+                });
+        URL[] classpath = { LBDMainVerticle.class.getProtectionDomain().getCodeSource()
+                .getLocation() };
+        final CountDownLatch deployed = new CountDownLatch(1);
+        final AtomicReference<AsyncResult<String>> deployment;
+        deployment = new AtomicReference<AsyncResult<String>>();
+        platform.deployVerticle(LBDMainVerticle.class.getName(), config, classpath, 1, null,
+                new Handler<AsyncResult<String>>()
+                {
+                    @Override
+                    public void handle(AsyncResult<String> result)
+                    {
+                        deployment.set(result);
+                        deployed.countDown();
+                    }
+                });
+        assertTrue(deployed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(deployment.get().succeeded());
+        // the web server is started after the deployment has completed
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                statistics();
+                break;
+            }
+            catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        platform.stop();
+    }
+
+    @Test
+    public void sessionIsDroppedWhenUserGoesOffline() throws Exception
+    {
+        publish(Addresses.USER_ONLINE, new UserOnlineEvent(UUID.randomUUID().toString(),
+                "session-1", "user-1", "test").asMap());
+        assertEquals(1, awaitSessions(1));
+        publish(Addresses.USER_OFFLINE, new UserOfflineEvent(UUID.randomUUID().toString(),
+                "session-1", "user-1", "test").asMap());
+        assertEquals(0, awaitSessions(0));
+    }
+
+    @Test
+    public void firstActivitySwitchIsNotDebounced() throws Exception
+    {
+        publish(Addresses.USER_ONLINE, new UserOnlineEvent(UUID.randomUUID().toString(),
+                "session-1", "user-1", "test").asMap());
+        assertEquals(1, awaitSessions(1));
+
+        // the first switch starts a run at once
+        switchActivity("side");
+        assertNotNull(userInformationRequests.poll(DEBOUNCE_TIME / 2, TimeUnit.MILLISECONDS));
+
+        // the switches following within the debounce time start a single run at its end
+        switchActivity("main");
+        switchActivity("side");
+        assertNull(userInformationRequests.poll(DEBOUNCE_TIME / 4, TimeUnit.MILLISECONDS));
+        assertNotNull(userInformationRequests.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(userInformationRequests.poll(DEBOUNCE_TIME / 4, TimeUnit.MILLISECONDS));
+    }
+
+    private void switchActivity(String activity)
+    {
+        platform.vertx().eventBus().publish(Addresses.USER_ACTIVITY_SWITCH, new JsonObject()
+                .putString("sessionId", "session-1").putString("activity", activity));
+    }
+
+    // the fields of the event as sent over the event bus by the platform
+    private void publish(String address, Map<String, Object> event)
+    {
+        JsonObject body = new JsonObject().putString("id", (String) event.get("id"))
+                .putString("modelId", (String) event.get("modelId"))
+                .putString("session", (String) event.get("session"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> payload = (Map<String, Object>) event.get("payload");
+        body.putObject("payload", new JsonObject(payload));
+        platform.vertx().eventBus().publish(address, body);
+    }
+
+    // waits until the service holds the given number of sessions
+    private int awaitSessions(int sessions) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        int size = statistics().getObject("sessions").getInteger("size");
+        while (size != sessions && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            size = statistics().getObject("sessions").getInteger("size");
+        }
+        return size;
+    }
+
+    private JsonObject statistics() throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port
+                + "/services/lbd/cache/statistics").openConnection();
+        try (InputStream in = connection.getInputStream();
+                Scanner scanner = new Scanner(in, "UTF-8")) {
+            return new JsonObject(scanner.useDelimiter("\\A").next());
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.spi.cluster.AsyncMap;
+
+import de.appsist.service.lbd.cache.ClusterResultCache;
+
+/**
+ * Cache on maps which answer at once, as the distributed maps of a cluster with a single node.
+ */
+public class ClusterResultCacheTest
+{
+    private static class LocalMap implements AsyncMap<String, String>
+    {
+        private final Map<String, String> entries = new HashMap<String, String>();
+
+        @Override
+        public void get(String key, Handler<AsyncResult<String>> handler)
+        {
+            handler.handle(new DefaultFutureResult<String>(entries.get(key)));
+        }
+
+        @Override
+        public void put(String key, String value, Handler<AsyncResult<Void>> handler)
+        {
+            entries.put(key, value);
+            handler.handle(new DefaultFutureResult<Void>((Void) null));
+        }
+
+        @Override
+        public void remove(String key, Handler<AsyncResult<Void>> handler)
+        {
+            entries.remove(key);
+            handler.handle(new DefaultFutureResult<Void>((Void) null));
+        }
+    }
+
+    private LocalMap results;
+    private LocalMap generations;
+
+    @Before
+    public void setUp()
+    {
+        results = new LocalMap();
+        generations = new LocalMap();
+    }
+
+    @Test
+    public void returnsResultsOfTheGeneration()
+    {
+        ClusterResultCache cache = start(60000);
+        cache.put("query", "result", cache.getGeneration());
+        assertEquals("result", get(cache, "query"));
+        assertEquals(1, (long) cache.getStatistics().getLong("hits"));
+    }
+
+    @Test
+    public void removesResultsOfOlderGenerations()
+    {
+        ClusterResultCache cache = start(60000);
+        cache.put("query", "result", cache.getGeneration());
+        cache.invalidate();
+        assertNull(get(cache, "query"));
+        assertTrue(results.entries.isEmpty());
+        assertEquals(1, (long) cache.getStatistics().getLong("removals"));
+        // the generation is not stored with the results
+        assertEquals(1, generations.entries.size());
+    }
+
+    @Test
+    public void removesExpiredResults() throws Exception
+    {
+        ClusterResultCache cache = start(1);
+        cache.put("query", "result", cache.getGeneration());
+        Thread.sleep(10);
+        assertNull(get(cache, "query"));
+        assertTrue(results.entries.isEmpty());
+    }
+
+    @Test
+    public void keepsResultsOfNewerGenerations()
+    {
+        ClusterResultCache cache = start(60000);
+        ClusterResultCache other = start(60000);
+        // the other node has invalidated the cache, this node has not adopted the generation yet
+        long generation = other.invalidate();
+        other.put("query", "result", generation);
+        assertNull(get(cache, "query"));
+        assertEquals(1, results.entries.size());
+        assertTrue(cache.adoptGeneration(generation));
+        assertEquals("result", get(cache, "query"));
+    }
+
+    private ClusterResultCache start(long timeToLive)
+    {
+        ClusterResultCache cache = new ClusterResultCache(results, generations, timeToLive);
+        cache.start();
+        return cache;
+    }
+
+    // the maps answer at once, so does the cache
+    private static String get(ClusterResultCache cache, String key)
+    {
+        final String[] result = { "not answered" };
+        cache.get(key, new Handler<String>()
+        {
+            @Override
+            public void handle(String value)
+            {
+                result[0] = value;
+            }
+        });
+        return result[0];
+    }
+}
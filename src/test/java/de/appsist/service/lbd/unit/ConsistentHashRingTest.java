@@ -0,0 +1,70 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.appsist.service.lbd.cluster.ConsistentHashRing;
+
+public class ConsistentHashRingTest
+{
+    private static final int SESSIONS = 10000;
+
+    @Test
+    public void emptyRingHasNoOwner()
+    {
+        assertNull(new ConsistentHashRing(Collections.<String> emptyList(), 64).getOwner("s"));
+    }
+
+    @Test
+    public void ownerDoesNotDependOnOrderOfNodes()
+    {
+        ConsistentHashRing first = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 64);
+        ConsistentHashRing second = new ConsistentHashRing(Arrays.asList("c", "a", "b"), 64);
+        for (int i = 0; i < SESSIONS; i++) {
+            assertEquals(first.getOwner("session-" + i), second.getOwner("session-" + i));
+        }
+    }
+
+    @Test
+    public void sessionsAreBalanced()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), 128);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < SESSIONS; i++) {
+            String owner = ring.getOwner("session-" + i);
+            Integer count = counts.get(owner);
+            counts.put(owner, null == count ? 1 : count + 1);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced: " + counts, count > SESSIONS / 4 / 2
+                    && count < SESSIONS / 4 * 2);
+        }
+    }
+
+    @Test
+    public void onlySessionsOfLeavingNodeMove()
+    {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 64);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "c"), 64);
+        int moved = 0;
+        for (int i = 0; i < SESSIONS; i++) {
+            String owner = before.getOwner("session-" + i);
+            if ("b".equals(owner)) {
+                moved++;
+            }
+            else {
+                assertEquals(owner, after.getOwner("session-" + i));
+            }
+        }
+        assertTrue(moved > 0);
+    }
+}
@@ -0,0 +1,178 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.queries.DispatchQueue;
+import de.appsist.service.lbd.queries.DispatchQueue.Priority;
+
+public class DispatchQueueTest
+{
+    private static final long TIMEOUT = 5000;
+
+    private Vertx vertx;
+
+    @Before
+    public void setUp()
+    {
+        vertx = VertxFactory.newVertx();
+    }
+
+    @After
+    public void tearDown()
+    {
+        vertx.stop();
+    }
+
+    @Test
+    public void admitsUpToLimit()
+    {
+        DispatchQueue queue = queue(2, 10);
+        List<AsyncResult<Void>> admissions = new ArrayList<AsyncResult<Void>>();
+        for (int i = 0; i < 3; i++) {
+            queue.submit(Priority.MAIN, collect(admissions));
+        }
+        assertEquals(2, admissions.size());
+        queue.complete(System.nanoTime());
+        assertEquals(3, admissions.size());
+        for (AsyncResult<Void> admission : admissions) {
+            assertTrue(admission.succeeded());
+        }
+    }
+
+    @Test
+    public void admitsHigherPriorityFirst()
+    {
+        DispatchQueue queue = queue(1, 10);
+        final List<Priority> admitted = new ArrayList<Priority>();
+        for (final Priority priority : new Priority[] { Priority.MAIN, Priority.BACKGROUND,
+                Priority.SIDE, Priority.MAIN }) {
+            queue.submit(priority, new AsyncResultHandler<Void>()
+            {
+                @Override
+                public void handle(AsyncResult<Void> admission)
+                {
+                    admitted.add(priority);
+                }
+            });
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.release();
+        }
+        assertEquals(4, admitted.size());
+        assertEquals(Priority.MAIN, admitted.get(1));
+        assertEquals(Priority.SIDE, admitted.get(2));
+        assertEquals(Priority.BACKGROUND, admitted.get(3));
+    }
+
+    @Test
+    public void shedsLowerPriorityWhenFull()
+    {
+        DispatchQueue queue = queue(1, 1);
+        List<AsyncResult<Void>> main = new ArrayList<AsyncResult<Void>>();
+        List<AsyncResult<Void>> background = new ArrayList<AsyncResult<Void>>();
+        queue.submit(Priority.MAIN, collect(main));
+        queue.submit(Priority.BACKGROUND, collect(background));
+        queue.submit(Priority.MAIN, collect(main));
+        assertEquals(1, background.size());
+        assertTrue(background.get(0).cause() instanceof DispatchQueue.ShedException);
+        queue.release();
+        assertEquals(2, main.size());
+        assertTrue(main.get(1).succeeded());
+    }
+
+    @Test
+    public void raisesPriorityOfWaitingQuery()
+    {
+        DispatchQueue queue = queue(1, 2);
+        List<AsyncResult<Void>> main = new ArrayList<AsyncResult<Void>>();
+        List<AsyncResult<Void>> side = new ArrayList<AsyncResult<Void>>();
+        List<AsyncResult<Void>> background = new ArrayList<AsyncResult<Void>>();
+        queue.submit(Priority.MAIN, collect(main));
+        DispatchQueue.Ticket ticket = queue.submit(Priority.BACKGROUND, collect(background));
+        queue.submit(Priority.SIDE, collect(side));
+        ticket.raise(Priority.MAIN);
+        // the queue is full, but the raised query is not shed anymore
+        queue.submit(Priority.MAIN, collect(main));
+        assertEquals(0, background.size());
+        assertEquals(1, side.size());
+        assertTrue(side.get(0).cause() instanceof DispatchQueue.ShedException);
+        queue.release();
+        assertEquals(1, background.size());
+        assertTrue(background.get(0).succeeded());
+        assertEquals(1, main.size());
+    }
+
+    @Test
+    public void admitsOnContextOfSubmitter() throws Exception
+    {
+        final DispatchQueue queue = queue(1, 10);
+        final BlockingQueue<Context> submitters = new LinkedBlockingQueue<Context>();
+        final BlockingQueue<Context> admitters = new LinkedBlockingQueue<Context>();
+        // two instances share the queue, the second waits for the query of the first
+        for (int i = 0; i < 2; i++) {
+            vertx.runOnContext(new Handler<Void>()
+            {
+                @Override
+                public void handle(Void event)
+                {
+                    // the instances run on different threads, submitters keeps the submit order
+                    synchronized (submitters) {
+                        submitters.add(vertx.currentContext());
+                        queue.submit(Priority.MAIN, new AsyncResultHandler<Void>()
+                        {
+                            @Override
+                            public void handle(AsyncResult<Void> admission)
+                            {
+                                admitters.add(vertx.currentContext());
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        Context first = submitters.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        Context second = submitters.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertSame(first, admitters.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(first != second);
+        queue.complete(System.nanoTime());
+        assertSame(second, admitters.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private DispatchQueue queue(int limit, int maxQueued)
+    {
+        return new DispatchQueue(vertx, new JsonObject().putNumber("minConcurrent", limit)
+                .putNumber("maxConcurrent", limit).putNumber("maxQueued", maxQueued), 10000,
+                null);
+    }
+
+    private static AsyncResultHandler<Void> collect(final List<AsyncResult<Void>> admissions)
+    {
+        return new AsyncResultHandler<Void>()
+        {
+            @Override
+            public void handle(AsyncResult<Void> admission)
+            {
+                admissions.add(admission);
+            }
+        };
+    }
+}
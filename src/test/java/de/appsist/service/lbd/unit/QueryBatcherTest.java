@@ -0,0 +1,217 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.queries.LBDSparQLQueries;
+import de.appsist.service.lbd.queries.QueryBatcher;
+import de.appsist.service.lbd.queries.SparQLDispatcher;
+import de.appsist.service.lbd.queries.ValuesBlock;
+
+/**
+ * Batches sent to a stand-in of the semantic wiki service which answers every row of the VALUES
+ * block of a query with one binding.
+ */
+public class QueryBatcherTest
+{
+    private static final String QUERY = "SELECT ?s ?l WHERE { VALUES ?s {%s} ?s rdfs:label ?l }";
+    private static final long TIMEOUT = 5000;
+
+    private Vertx vertx;
+    private SparQLDispatcher dispatcher;
+    private QueryBatcher batcher;
+    // queries received by the stand-in
+    private final BlockingQueue<String> requests = new LinkedBlockingQueue<String>();
+    // IRIs answered with another IRI by the stand-in
+    private final Set<String> rewritten = new HashSet<String>();
+
+    @Before
+    public void setUp()
+    {
+        vertx = VertxFactory.newVertx();
+        vertx.eventBus().registerHandler(SparQLDispatcher.SPARQLREQUESTS,
+                new Handler<Message<JsonObject>>()
+                {
+                    @Override
+                    public void handle(Message<JsonObject> message)
+                    {
+                        String query = message.body().getObject("sparql").getString("query");
+                        requests.add(query);
+                        message.reply(answer(query));
+                    }
+                });
+        dispatcher = new SparQLDispatcher(vertx.eventBus(), null);
+        batcher = new QueryBatcher(vertx, dispatcher, new JsonObject().putNumber("window", 20)
+                .putNumber("maxValues", 3).putNumber("minValues", 3));
+        dispatcher.setBatcher(batcher);
+    }
+
+    @After
+    public void tearDown()
+    {
+        vertx.stop();
+    }
+
+    @Test
+    public void mergesQueriesAndAssignsBindings() throws Exception
+    {
+        List<BlockingQueue<AsyncResult<String>>> results = query(
+                String.format(QUERY, "<http://a/1>"), String.format(QUERY, "<http://a/2>"));
+        assertEquals(Arrays.asList("http://a/1"), subjects(results.get(0)));
+        assertEquals(Arrays.asList("http://a/2"), subjects(results.get(1)));
+        assertEquals(1, requests.size());
+        assertEquals(2, ValuesBlock.findAll(requests.poll()).get(0).getRows().size());
+    }
+
+    @Test
+    public void doesNotMergeRelativeIris() throws Exception
+    {
+        List<BlockingQueue<AsyncResult<String>>> results = query(String.format(QUERY, "<S10>"),
+                String.format(QUERY, "<S20>"));
+        assertEquals(Arrays.asList("S10"), subjects(results.get(0)));
+        assertEquals(Arrays.asList("S20"), subjects(results.get(1)));
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void resendsQueriesIfBindingsCannotBeAssigned() throws Exception
+    {
+        rewritten.add("http://a/2");
+        List<BlockingQueue<AsyncResult<String>>> results = query(
+                String.format(QUERY, "<http://a/1>"), String.format(QUERY, "<http://a/2>"));
+        assertEquals(Arrays.asList("http://a/1"), subjects(results.get(0)));
+        assertEquals(Arrays.asList("http://a/2/"), subjects(results.get(1)));
+        // the merged query and the queries on their own
+        assertEquals(3, requests.size());
+        assertEquals(1, (int) batcher.getStatistics().getInteger("unassigned"));
+    }
+
+    @Test
+    public void splitsLargeBlocks() throws Exception
+    {
+        List<BlockingQueue<AsyncResult<String>>> results = query(String.format(QUERY,
+                "<http://a/1> <http://a/2> <http://a/3> <http://a/4> <http://a/5>"));
+        assertEquals(Arrays.asList("http://a/1", "http://a/2", "http://a/3", "http://a/4",
+                "http://a/5"), subjects(results.get(0)));
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void mergesQueriesOfLocalStates() throws Exception
+    {
+        String state = "http://www.appsist.de/ontology/FunkionsfaehigerZustand";
+        List<BlockingQueue<AsyncResult<String>>> results = query(LBDSparQLQueries
+                .bindLocalStates(Collections.singletonList(new String[] { state,
+                        "http://www.appsist.de/ontology/S10" })).render(), LBDSparQLQueries
+                .bindLocalStates(Collections.singletonList(new String[] { state,
+                        "http://www.appsist.de/ontology/S20" })).render());
+        assertEquals(Arrays.asList("http://www.appsist.de/ontology/S10"), bound(results.get(0),
+                "station"));
+        assertEquals(Arrays.asList("http://www.appsist.de/ontology/S20"), bound(results.get(1),
+                "station"));
+        assertEquals(1, requests.size());
+    }
+
+    // sends the queries on the event loop and returns the queues receiving their results
+    private List<BlockingQueue<AsyncResult<String>>> query(final String... queries)
+    {
+        final List<BlockingQueue<AsyncResult<String>>> results;
+        results = new ArrayList<BlockingQueue<AsyncResult<String>>>();
+        for (int i = 0; i < queries.length; i++) {
+            results.add(new LinkedBlockingQueue<AsyncResult<String>>());
+        }
+        vertx.runOnContext(new Handler<Void>()
+        {
+            @Override
+            public void handle(Void event)
+            {
+                for (int i = 0; i < queries.length; i++) {
+                    final BlockingQueue<AsyncResult<String>> result = results.get(i);
+                    dispatcher.query(queries[i], new AsyncResultHandler<String>()
+                    {
+                        @Override
+                        public void handle(AsyncResult<String> reply)
+                        {
+                            result.add(reply);
+                        }
+                    });
+                }
+            }
+        });
+        return results;
+    }
+
+    // waits for a result and returns the subjects of its bindings in order
+    private static List<String> subjects(BlockingQueue<AsyncResult<String>> results)
+            throws InterruptedException
+    {
+        return bound(results, "s");
+    }
+
+    // waits for a result and returns the values of a variable in its bindings in order
+    private static List<String> bound(BlockingQueue<AsyncResult<String>> results,
+            String variable) throws InterruptedException
+    {
+        AsyncResult<String> result = results.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(null != result && result.succeeded());
+        List<String> values = new ArrayList<String>();
+        for (Object binding : new JsonObject(result.result()).getObject("results").getArray(
+                "bindings")) {
+            values.add(((JsonObject) binding).getObject(variable).getString("value"));
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    // binds the variables of the VALUES block to the IRIs of a row, and ?l to a label of the
+    // first IRI
+    private String answer(String query)
+    {
+        ValuesBlock block = ValuesBlock.findAll(query).get(0);
+        JsonArray vars = new JsonArray();
+        for (String variable : block.getVariables()) {
+            vars.addString(variable.substring(1));
+        }
+        JsonArray bindings = new JsonArray();
+        for (List<String> row : block.getRows()) {
+            JsonObject binding = new JsonObject();
+            for (int i = 0; i < row.size(); i++) {
+                String iri = row.get(i).substring(1, row.get(i).length() - 1);
+                if (rewritten.contains(iri)) {
+                    iri += "/";
+                }
+                binding.putObject(vars.<String> get(i), new JsonObject().putString("type", "uri")
+                        .putString("value", iri));
+            }
+            binding.putObject("l", new JsonObject().putString("type", "literal").putString(
+                    "value", "label of " + binding.getObject(vars.<String> get(0)).getString(
+                            "value")));
+            bindings.addObject(binding);
+        }
+        return new JsonObject().putObject("head", new JsonObject().putArray("vars",
+                vars.addString("l"))).putObject("results", new JsonObject().putArray(
+                "bindings", bindings)).encode();
+    }
+}
@@ -0,0 +1,93 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.appsist.service.lbd.queries.QueryTemplate;
+
+public class QueryTemplateTest
+{
+    @Test
+    public void rendersIri()
+    {
+        QueryTemplate template = QueryTemplate.compile("SELECT ?x WHERE { ${iri:s} ?p ?x }");
+        assertEquals("SELECT ?x WHERE { <http://a/S10> ?p ?x }",
+                template.bind().iri("s", "http://a/S10").render());
+        assertEquals("SELECT ?x WHERE { <http://a/S10> ?p ?x }",
+                template.bind().iri("s", "<http://a/S10>").render());
+    }
+
+    @Test
+    public void rendersSortedDistinctIris()
+    {
+        QueryTemplate template = QueryTemplate.compile("VALUES ?s ${iris:s}");
+        assertEquals("VALUES ?s {<http://a/1> <http://a/2>}", template.bind().iris("s",
+                Arrays.asList("http://a/2", "<http://a/1>", "http://a/2")).render());
+    }
+
+    @Test
+    public void rendersSortedDistinctTuples()
+    {
+        QueryTemplate template = QueryTemplate.compile("VALUES (?z ?s) ${tuples:zs}");
+        assertEquals("VALUES (?z ?s) {(<a> <c>) (<b> <d>)}", template.bind().tuples("zs",
+                Arrays.asList(new String[] { "b", "d" }, new String[] { "a", "c" },
+                        new String[] { "<b>", "<d>" })).render());
+    }
+
+    @Test
+    public void escapesIrisAndLiterals()
+    {
+        QueryTemplate template = QueryTemplate.compile("SELECT ?l WHERE { ${iri:s} rdfs:label ?l "
+                + "FILTER (lang(?l) = \"${literal:lang}\") }");
+        assertEquals("SELECT ?l WHERE { <http://a/x%20y%3E> rdfs:label ?l "
+                + "FILTER (lang(?l) = \"de\\\" || 1\") }", template.bind()
+                .iri("s", "http://a/x y>").literal("lang", "de\" || 1").render());
+    }
+
+    @Test
+    public void reusesSlotName()
+    {
+        QueryTemplate template = QueryTemplate.compile("${iris:s} ${iris:s}");
+        assertEquals("{<a> <b>} {<a> <b>}", template.bind().iris("s", Arrays.asList("b", "a"))
+                .render());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownType()
+    {
+        QueryTemplate.compile("SELECT * WHERE { ${uri:s} ?p ?o }");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedSlot()
+    {
+        QueryTemplate.compile("SELECT * WHERE { ${iri} ?p ?o }");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDifferentTypesOfName()
+    {
+        QueryTemplate.compile("${iri:s} ${iris:s}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSlot()
+    {
+        QueryTemplate.compile("${iri:s}").bind().iri("t", "a");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnboundSlot()
+    {
+        QueryTemplate.compile("${iri:s} ${iri:t}").bind().iri("s", "a").render();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyIri()
+    {
+        QueryTemplate.compile("${iri:s}").bind().iri("s", "<>").render();
+    }
+}
@@ -0,0 +1,210 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.impl.DefaultFutureResult;
+
+import de.appsist.service.lbd.rules.RuleGraph;
+import de.appsist.service.lbd.rules.RuleGraph.Rule;
+
+public class RuleGraphTest
+{
+    // rule completing at once with its id, recording the order of the evaluations
+    private static Rule rule(final String id, final List<String> evaluated)
+    {
+        return new Rule()
+        {
+            @Override
+            public void evaluate(Map<String, Object> inputs,
+                    AsyncResultHandler<Object> resultHandler)
+            {
+                evaluated.add(id);
+                resultHandler.handle(new DefaultFutureResult<Object>((Object) (id + inputs
+                        .keySet())));
+            }
+        };
+    }
+
+    // rule keeping its handler to complete it later
+    private static Rule deferred(final List<AsyncResultHandler<Object>> handlers)
+    {
+        return new Rule()
+        {
+            @Override
+            public void evaluate(Map<String, Object> inputs,
+                    AsyncResultHandler<Object> resultHandler)
+            {
+                handlers.add(resultHandler);
+            }
+        };
+    }
+
+    private static class Completion implements AsyncResultHandler<Map<String, Object>>
+    {
+        private AsyncResult<Map<String, Object>> result;
+        private int calls;
+
+        @Override
+        public void handle(AsyncResult<Map<String, Object>> result)
+        {
+            this.result = result;
+            calls++;
+        }
+    }
+
+    @Test
+    public void evaluatesInputsFirst()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        Completion completion = new Completion();
+        new RuleGraph().addRule("3", rule("3", evaluated), "1", "2")
+                .addRule("2", rule("2", evaluated), "1").addRule("1", rule("1", evaluated))
+                .execute(completion);
+        assertTrue(completion.result.succeeded());
+        assertEquals(1, completion.calls);
+        assertEquals(3, evaluated.size());
+        assertEquals("1", evaluated.get(0));
+        assertEquals("2", evaluated.get(1));
+        assertEquals(3, completion.result.result().size());
+    }
+
+    @Test
+    public void evaluatesKeyOnce()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        Completion completion = new Completion();
+        new RuleGraph().addRule("a", "query", rule("a", evaluated))
+                .addRule("b", "query", rule("b", evaluated)).execute(completion);
+        assertTrue(completion.result.succeeded());
+        assertEquals(1, evaluated.size());
+        assertSame(completion.result.result().get("a"), completion.result.result().get("b"));
+    }
+
+    @Test
+    public void aliasReceivesResultOfRule()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        Completion completion = new Completion();
+        new RuleGraph().addRule("3.1.1", rule("3.1.1", evaluated)).addAlias("1.2", "3.1.1")
+                .execute(completion);
+        assertTrue(completion.result.succeeded());
+        assertEquals(1, evaluated.size());
+        assertEquals("3.1.1[]", completion.result.result().get("1.2"));
+    }
+
+    @Test
+    public void dispatchesRuleDependingOnAliasAddedLater()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        List<AsyncResultHandler<Object>> handlers = new ArrayList<AsyncResultHandler<Object>>();
+        Completion completion = new Completion();
+        new RuleGraph().addRule("2.1", rule("2.1", evaluated), "1.2")
+                .addRule("3.1.1", deferred(handlers)).addAlias("1.2", "3.1.1")
+                .execute(completion);
+        assertNull(completion.result);
+        assertEquals(1, handlers.size());
+        handlers.get(0).handle(new DefaultFutureResult<Object>((Object) "stations"));
+        assertEquals(1, completion.calls);
+        assertTrue(completion.result.succeeded());
+        assertEquals("2.1[1.2]", completion.result.result().get("2.1"));
+    }
+
+    @Test
+    public void startsAtKnownResult()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        final List<String> timed = new ArrayList<String>();
+        Completion completion = new Completion();
+        new RuleGraph().addResult("3.1.1", "stations").addAlias("1.2", "3.1.1")
+                .addRule("3.1.1.1", rule("3.1.1.1", evaluated), "3.1.1", "1.2")
+                .setTimer(new RuleGraph.Timer()
+                {
+                    @Override
+                    public void record(String ruleId, long nanos, Object result)
+                    {
+                        timed.add(ruleId);
+                    }
+                }).execute(completion);
+        assertTrue(completion.result.succeeded());
+        assertEquals("stations", completion.result.result().get("1.2"));
+        assertEquals(1, evaluated.size());
+        assertEquals(evaluated, timed);
+    }
+
+    @Test
+    public void failsWithFirstFailure()
+    {
+        final IllegalStateException failure = new IllegalStateException("failed");
+        List<String> evaluated = new ArrayList<String>();
+        Completion completion = new Completion();
+        new RuleGraph().addRule("1", new Rule()
+        {
+            @Override
+            public void evaluate(Map<String, Object> inputs,
+                    AsyncResultHandler<Object> resultHandler)
+            {
+                resultHandler.handle(new DefaultFutureResult<Object>(failure));
+            }
+        }).addRule("2", rule("2", evaluated), "1").execute(completion);
+        assertTrue(completion.result.failed());
+        assertSame(failure, completion.result.cause());
+        assertEquals(1, completion.calls);
+        assertTrue(evaluated.isEmpty());
+    }
+
+    @Test
+    public void failsOnException()
+    {
+        Completion completion = new Completion();
+        new RuleGraph().addRule("1", new Rule()
+        {
+            @Override
+            public void evaluate(Map<String, Object> inputs,
+                    AsyncResultHandler<Object> resultHandler)
+            {
+                throw new IllegalArgumentException("broken");
+            }
+        }).execute(completion);
+        assertTrue(completion.result.cause() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void failsOnCycle()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        Completion completion = new Completion();
+        new RuleGraph().addRule("1", rule("1", evaluated), "2")
+                .addRule("2", rule("2", evaluated), "1").execute(completion);
+        assertTrue(completion.result.failed());
+        assertTrue(evaluated.isEmpty());
+    }
+
+    @Test
+    public void failsOnUnknownInput()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        Completion completion = new Completion();
+        new RuleGraph().addRule("1", rule("1", evaluated), "0").execute(completion);
+        assertTrue(completion.result.failed());
+        assertFalse(completion.result.cause().getMessage().isEmpty());
+        assertTrue(evaluated.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateId()
+    {
+        List<String> evaluated = new ArrayList<String>();
+        new RuleGraph().addRule("1", rule("1", evaluated)).addAlias("1", "2");
+    }
+}
@@ -0,0 +1,103 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.appsist.service.iid.server.model.ServiceItem;
+import de.appsist.service.lbd.cache.LabelCache;
+import de.appsist.service.lbd.items.ServiceItemDelta;
+import de.appsist.service.lbd.items.ServiceItemDelta.Update;
+import de.appsist.service.lbd.items.ServiceItemFactory;
+
+public class ServiceItemDeltaTest
+{
+    private static final String SESSION = "session";
+    private static final String FIRST = "http://www.appsist.de/ontology/Zylinder";
+    private static final String SECOND = "file:///static/kolben.pdf";
+    private static final String THIRD = "http://www.appsist.de/ontology/Dichtung";
+
+    private LabelCache labels;
+    private ServiceItemFactory factory;
+
+    @Before
+    public void setUp()
+    {
+        labels = new LabelCache(100, 60000, 60000, 1);
+        factory = new ServiceItemFactory("/content/", labels, false);
+    }
+
+    @Test
+    public void replacesUnknownItems()
+    {
+        List<ServiceItem> items = build(FIRST, SECOND);
+        ServiceItemDelta delta = ServiceItemDelta.compute(null, items);
+        assertEquals(Update.REPLACE, delta.getUpdate());
+        assertEquals(items, delta.getItems());
+    }
+
+    @Test
+    public void sendsNothingIfItemsAreEqual()
+    {
+        ServiceItemDelta delta = ServiceItemDelta.compute(build(FIRST, SECOND),
+                build(FIRST, SECOND));
+        assertEquals(Update.NONE, delta.getUpdate());
+        assertTrue(delta.getItems().isEmpty());
+    }
+
+    @Test
+    public void addsNewItems()
+    {
+        List<ServiceItem> items = build(FIRST, SECOND, THIRD);
+        ServiceItemDelta delta = ServiceItemDelta.compute(build(FIRST, SECOND), items);
+        assertEquals(Update.ADD, delta.getUpdate());
+        assertEquals(1, delta.getItems().size());
+        assertEquals(ServiceItemFactory.itemId(THIRD), delta.getItems().get(0).getId());
+    }
+
+    @Test
+    public void replacesItemsIfOneIsRemoved()
+    {
+        List<ServiceItem> items = build(FIRST);
+        ServiceItemDelta delta = ServiceItemDelta.compute(build(FIRST, SECOND), items);
+        assertEquals(Update.REPLACE, delta.getUpdate());
+        assertEquals(1, delta.getRemoved());
+        assertEquals(items, delta.getItems());
+    }
+
+    @Test
+    public void replacesItemsIfTheyAreReprioritized()
+    {
+        ServiceItemDelta delta = ServiceItemDelta.compute(build(FIRST, SECOND),
+                build(SECOND, FIRST));
+        assertEquals(Update.REPLACE, delta.getUpdate());
+        assertEquals(2, delta.getChanged());
+        assertEquals(0, delta.getRemoved());
+    }
+
+    @Test
+    public void replacesItemsIfATitleChanges()
+    {
+        List<ServiceItem> published = build(FIRST, SECOND);
+        labels.put(FIRST, "Zylinder");
+        ServiceItemDelta delta = ServiceItemDelta.compute(published, build(FIRST, SECOND));
+        assertEquals(Update.REPLACE, delta.getUpdate());
+        assertEquals(1, delta.getChanged());
+    }
+
+    // items of the contents in the given order, followed by the assessment item
+    private List<ServiceItem> build(String... contentIds)
+    {
+        Map<String, String> contents = new LinkedHashMap<String, String>();
+        for (String contentId : contentIds) {
+            contents.put(contentId, "preview.png");
+        }
+        return factory.buildLearningMaterialList(SESSION, contents);
+    }
+}
@@ -0,0 +1,151 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.lbd.queries.DispatchQueue;
+import de.appsist.service.lbd.queries.DispatchQueue.Priority;
+import de.appsist.service.lbd.queries.SparQLDispatcher;
+
+/**
+ * Callers of the same query, sent to a stand-in of the semantic wiki service which answers when
+ * the test tells it to.
+ */
+public class SparQLDispatcherTest
+{
+    private static final String QUERY = "SELECT ?l WHERE { <http://a/1> rdfs:label ?l }";
+    private static final String OTHER_QUERY = "SELECT ?l WHERE { <http://a/2> rdfs:label ?l }";
+    private static final String THIRD_QUERY = "SELECT ?l WHERE { <http://a/3> rdfs:label ?l }";
+    private static final String RESULT = new JsonObject().putObject("head", new JsonObject())
+            .putObject("results", new JsonObject()).encode();
+    private static final long TIMEOUT = 5000;
+
+    private Vertx vertx;
+    private SparQLDispatcher dispatcher;
+    // queries received by the stand-in, answered by the test
+    private final BlockingQueue<Message<JsonObject>> requests =
+            new LinkedBlockingQueue<Message<JsonObject>>();
+
+    @Before
+    public void setUp()
+    {
+        vertx = VertxFactory.newVertx();
+        vertx.eventBus().registerHandler(SparQLDispatcher.SPARQLREQUESTS,
+                new Handler<Message<JsonObject>>()
+                {
+                    @Override
+                    public void handle(Message<JsonObject> message)
+                    {
+                        requests.add(message);
+                    }
+                });
+        dispatcher = new SparQLDispatcher(vertx.eventBus(), null);
+        dispatcher.setTimeout(TIMEOUT);
+    }
+
+    @After
+    public void tearDown()
+    {
+        vertx.stop();
+    }
+
+    @Test
+    public void resendsQueryCutOffAtTheDeadlineOfAnotherCaller() throws Exception
+    {
+        final BlockingQueue<AsyncResult<String>> first;
+        first = new LinkedBlockingQueue<AsyncResult<String>>();
+        final BlockingQueue<AsyncResult<String>> second;
+        second = new LinkedBlockingQueue<AsyncResult<String>>();
+        // all queries are sent on the same context, the dispatcher is not thread safe
+        vertx.runOnContext(new Handler<Void>()
+        {
+            @Override
+            public void handle(Void event)
+            {
+                dispatcher.traceNextQuery(0, null, Priority.MAIN, System.nanoTime() + 200000000L);
+                dispatcher.query(QUERY, collect(first));
+                // joins the query sent, but waits for the timeout
+                dispatcher.traceNextQuery(0, null, Priority.MAIN, 0);
+                dispatcher.query(QUERY, collect(second));
+            }
+        });
+        // the first request is not answered
+        assertNotNull(requests.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        AsyncResult<String> firstResult = first.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(null != firstResult && firstResult.failed());
+        requests.poll(TIMEOUT, TimeUnit.MILLISECONDS).reply(RESULT);
+        AsyncResult<String> secondResult = second.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(null != secondResult && secondResult.succeeded());
+        assertEquals(1, (long) dispatcher.getStatistics().getLong("retried"));
+    }
+
+    @Test
+    public void raisesPriorityOfQueryJoinedByMainActivity() throws Exception
+    {
+        final DispatchQueue queue = new DispatchQueue(vertx, new JsonObject().putNumber(
+                "minConcurrent", 1).putNumber("maxConcurrent", 1).putNumber("maxQueued", 1),
+                TIMEOUT, null);
+        dispatcher.setQueue(queue);
+        final BlockingQueue<AsyncResult<String>> results;
+        results = new LinkedBlockingQueue<AsyncResult<String>>();
+        final BlockingQueue<AsyncResult<String>> background;
+        background = new LinkedBlockingQueue<AsyncResult<String>>();
+        // all queries are sent on the same context, the dispatcher is not thread safe
+        vertx.runOnContext(new Handler<Void>()
+        {
+            @Override
+            public void handle(Void event)
+            {
+                // sent at once, the others wait in the queue
+                dispatcher.traceNextQuery(0, null, Priority.MAIN, 0);
+                dispatcher.query(OTHER_QUERY, collect(results));
+                dispatcher.traceNextQuery(0, null, Priority.BACKGROUND, 0);
+                dispatcher.query(QUERY, collect(background));
+                dispatcher.traceNextQuery(0, null, Priority.MAIN, 0);
+                dispatcher.query(QUERY, collect(results));
+                // the queue is full, the query of the background is not shed anymore
+                dispatcher.traceNextQuery(0, null, Priority.MAIN, 0);
+                dispatcher.query(THIRD_QUERY, collect(results));
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            requests.poll(TIMEOUT, TimeUnit.MILLISECONDS).reply(RESULT);
+        }
+        AsyncResult<String> backgroundResult = background.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(null != backgroundResult && backgroundResult.succeeded());
+        for (int i = 0; i < 3; i++) {
+            AsyncResult<String> result = results.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(null != result && result.succeeded());
+        }
+        assertEquals(0, (int) queue.getStatistics().getObject("shed").getInteger("background"));
+    }
+
+    private static AsyncResultHandler<String> collect(
+            final BlockingQueue<AsyncResult<String>> results)
+    {
+        return new AsyncResultHandler<String>()
+        {
+            @Override
+            public void handle(AsyncResult<String> result)
+            {
+                results.add(result);
+            }
+        };
+    }
+}
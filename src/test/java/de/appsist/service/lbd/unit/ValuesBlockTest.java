@@ -0,0 +1,75 @@
+package de.appsist.service.lbd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.appsist.service.lbd.queries.ValuesBlock;
+
+public class ValuesBlockTest
+{
+    @Test
+    public void findsSingleVariableBlock()
+    {
+        String query = "SELECT ?i WHERE { VALUES ?i {<http://a/S10> app:S20} ?x ?p ?i }";
+        List<ValuesBlock> blocks = ValuesBlock.findAll(query);
+        assertEquals(1, blocks.size());
+        ValuesBlock block = blocks.get(0);
+        assertTrue(block.isSingleVariable());
+        assertEquals(Arrays.asList("?i"), block.getVariables());
+        assertEquals(Arrays.asList(Arrays.asList("<http://a/S10>"), Arrays.asList("app:S20")),
+                block.getRows());
+        assertEquals("VALUES ?i {<http://a/S10> app:S20}", query.substring(block.getStart(),
+                block.getEnd()));
+    }
+
+    @Test
+    public void findsTupleBlock()
+    {
+        String query = "SELECT * WHERE { VALUES (?z ?station) {(app:A app:S10) (app:B app:S20)} }";
+        ValuesBlock block = ValuesBlock.findAll(query).get(0);
+        assertFalse(block.isSingleVariable());
+        assertEquals(Arrays.asList("?z", "?station"), block.getVariables());
+        assertEquals(Arrays.asList(Arrays.asList("app:A", "app:S10"),
+                Arrays.asList("app:B", "app:S20")), block.getRows());
+    }
+
+    @Test
+    public void ignoresKeywordInLiteralsAndIris()
+    {
+        String query = "SELECT ?l WHERE { ?x rdfs:label \"VALUES ?i {a}\" . ?x ?p <urn:VALUES> }";
+        assertTrue(ValuesBlock.findAll(query).isEmpty());
+    }
+
+    @Test
+    public void findsNothingInMalformedBlock()
+    {
+        assertTrue(ValuesBlock.findAll("SELECT ?i WHERE { VALUES ?i {<a> <b>").isEmpty());
+    }
+
+    @Test
+    public void rendersRows()
+    {
+        ValuesBlock single = ValuesBlock.findAll("VALUES ?i {<a>}").get(0);
+        assertEquals("VALUES ?i { <b> <c> }", single.render(Arrays.asList(
+                Collections.singletonList("<b>"), Collections.singletonList("<c>"))));
+        ValuesBlock tuple = ValuesBlock.findAll("VALUES (?x ?y) {(<a> <b>)}").get(0);
+        assertEquals("VALUES (?x ?y) { (<c> <d>) }", tuple.render(Collections.singletonList(
+                Arrays.asList("<c>", "<d>"))));
+    }
+
+    @Test
+    public void normalizesWhitespaceAndRowOrder()
+    {
+        String first = "SELECT ?i\n WHERE {  VALUES ?i {<b> <a>} ?i ?p \"x  y\" }";
+        String second = "SELECT ?i WHERE { VALUES ?i {<a>   <b>} ?i ?p \"x  y\" }";
+        assertEquals(ValuesBlock.normalize(first), ValuesBlock.normalize(second));
+        assertTrue(ValuesBlock.normalize(first).contains("\"x  y\""));
+    }
+}